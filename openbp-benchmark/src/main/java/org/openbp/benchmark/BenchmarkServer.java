@@ -0,0 +1,208 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.benchmark;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.openbp.common.application.Application;
+import org.openbp.server.ProcessFacade;
+import org.openbp.server.ProcessServer;
+import org.openbp.server.ProcessServerFactory;
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.context.WorkflowTask;
+import org.openbp.server.context.WorkflowTaskCriteria;
+
+/**
+ * Process server setup and test case process helpers for the engine benchmarks.
+ * The benchmark processes are the processes of the 'TestCase' model (openbp-model-testcase).
+ *
+ * @author Heiko Erhardt
+ */
+public final class BenchmarkServer
+{
+	/** Token store: In-memory token context service */
+	public static final String STORE_TRANSIENT = "transient";
+
+	/** Token store: Persistent token context service based on an embedded Derby database */
+	public static final String STORE_DERBY = "derby";
+
+	/** Process: Simple process containing a workflow node */
+	public static final String PROCESS_SIMPLEADDPARAM = "SimpleAddParamTest";
+
+	/** Process: Process calling a sub process that waits for resumption */
+	public static final String PROCESS_SUBPROCESS = "SubProcessTest";
+
+	/** Process: Process containing a BeanShell script node */
+	public static final String PROCESS_BEANSHELLSCRIPT = "BeanShellScriptTest";
+
+	/** Table of process servers (maps token store names (String) to process servers (ProcessServer)) */
+	private static Map<String, ProcessServer> processServers = new HashMap<String, ProcessServer>();
+
+	/**
+	 * Private constructor prevents instantiation.
+	 */
+	private BenchmarkServer()
+	{
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Process server
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the process server for the given token store, creating it if necessary.
+	 *
+	 * @param store {@link #STORE_TRANSIENT} or {@link #STORE_DERBY}
+	 * @return The process server
+	 */
+	public static synchronized ProcessServer obtainProcessServer(String store)
+	{
+		ProcessServer processServer = processServers.get(store);
+		if (processServer == null)
+		{
+			Application.setArguments(null);
+
+			String springConfigFileName;
+			if (STORE_DERBY.equals(store))
+			{
+				springConfigFileName = "OpenBP-Benchmark-Derby.spring.xml";
+			}
+			else if (STORE_TRANSIENT.equals(store))
+			{
+				springConfigFileName = "OpenBP-Benchmark-Transient.spring.xml";
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown token store '" + store + "'.");
+			}
+
+			processServer = new ProcessServerFactory().createProcessServer(springConfigFileName);
+			processServers.put(store, processServer);
+		}
+		return processServer;
+	}
+
+	/**
+	 * Shuts down the process server for the given token store, if any.
+	 *
+	 * @param store {@link #STORE_TRANSIENT} or {@link #STORE_DERBY}
+	 */
+	public static synchronized void shutdownProcessServer(String store)
+	{
+		ProcessServer processServer = processServers.remove(store);
+		if (processServer != null)
+		{
+			processServer.shutdown(false);
+		}
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Benchmark processes
+	//////////////////////////////////////////////////
+
+	/**
+	 * Creates a token for the given test case process and starts it.
+	 * The token will be ready for execution, but will not be executed.
+	 *
+	 * @param processServer Process server
+	 * @param process Name of the process ({@link #PROCESS_SIMPLEADDPARAM}/{@link #PROCESS_SUBPROCESS}/{@link #PROCESS_BEANSHELLSCRIPT})
+	 * @return The new token
+	 */
+	public static TokenContext startProcess(ProcessServer processServer, String process)
+	{
+		ProcessFacade facade = processServer.getProcessFacade();
+
+		TokenContext token = facade.createToken();
+		Map<String, Object> inputParams = null;
+		if (PROCESS_BEANSHELLSCRIPT.equals(process))
+		{
+			inputParams = new HashMap<String, Object>();
+			inputParams.put("InputValue", Integer.valueOf(100));
+			token.createProcessVariable("ExternalValue", true);
+			token.setProcessVariableValue("ExternalValue", Integer.valueOf(200));
+		}
+
+		facade.startToken(token, "/TestCase/" + process + ".Start", inputParams);
+		return token;
+	}
+
+	/**
+	 * Executes the given token of a test case process until the process has ended or waits for a workflow.
+	 * The sub process test will be resumed once, so the process will run to its end.
+	 *
+	 * @param processServer Process server
+	 * @param process Name of the process
+	 * @param token Token that has been created by {@link #startProcess}
+	 */
+	public static void runProcess(ProcessServer processServer, String process, TokenContext token)
+	{
+		ProcessFacade facade = processServer.getProcessFacade();
+
+		executeToken(facade, token);
+
+		if (PROCESS_SUBPROCESS.equals(process))
+		{
+			TokenContext resumed = facade.getTokenById(token.getId());
+			if (resumed != null)
+			{
+				facade.resumeToken(resumed, "Resumption", null);
+				executeToken(facade, resumed);
+			}
+		}
+	}
+
+	/**
+	 * Removes the given token and its workflow tasks from the token store, if still present.
+	 *
+	 * @param processServer Process server
+	 * @param token Token
+	 */
+	public static void discardToken(ProcessServer processServer, TokenContext token)
+	{
+		TokenContextService tcs = processServer.getTokenContextService();
+
+		TokenContext context = tcs.getContextById(token.getId());
+		if (context != null)
+		{
+			WorkflowTaskCriteria criteria = new WorkflowTaskCriteria();
+			criteria.setTokenContext(context);
+			for (Iterator it = tcs.getworkflowTasks(criteria); it.hasNext();)
+			{
+				tcs.deleteWorkflowTask((WorkflowTask) it.next());
+			}
+			tcs.deleteContext(context);
+		}
+		tcs.commit();
+	}
+
+	/**
+	 * Executes the given token in this thread as long as it has a resumption request.
+	 *
+	 * @param facade Process facade
+	 * @param token Token
+	 */
+	private static void executeToken(ProcessFacade facade, TokenContext token)
+	{
+		while (token.getLifecycleRequest() == LifecycleRequest.RESUME)
+		{
+			facade.executeContextInThisThread(token);
+		}
+	}
+}
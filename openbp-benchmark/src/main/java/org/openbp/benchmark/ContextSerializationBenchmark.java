@@ -0,0 +1,111 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openbp.server.ProcessServer;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the serialization of the token context data ({@link TokenContextUtil#toByteArray}/{@link TokenContextUtil#fromByteArray}).
+ * The data format is determined by the system properties of the engine; in order to compare the formats, use e. g.
+ * java -jar benchmarks.jar ContextSerialization -jvmArgsAppend -Dopenbp.contextData.compactFormat=false
+ *
+ * @author Heiko Erhardt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ContextSerializationBenchmark
+{
+	/** Process server */
+	private ProcessServer processServer;
+
+	/** Token to serialize */
+	private TokenContext token;
+
+	/** Serialized token data */
+	private byte[] data;
+
+	@Setup
+	public void setup()
+	{
+		processServer = BenchmarkServer.obtainProcessServer(BenchmarkServer.STORE_TRANSIENT);
+
+		// Start a token and add some typical process data
+		token = BenchmarkServer.startProcess(processServer, BenchmarkServer.PROCESS_BEANSHELLSCRIPT);
+		token.createProcessVariable("CustomerName", true);
+		token.setProcessVariableValue("CustomerName", "Smith");
+		token.createProcessVariable("OrderDate", true);
+		token.setProcessVariableValue("OrderDate", new Date());
+		List<String> items = new ArrayList<String>();
+		for (int i = 0; i < 20; ++i)
+		{
+			items.add("Item " + i);
+		}
+		token.createProcessVariable("Items", true);
+		token.setProcessVariableValue("Items", items);
+
+		data = TokenContextUtil.toByteArray(token);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		BenchmarkServer.discardToken(processServer, token);
+		BenchmarkServer.shutdownProcessServer(BenchmarkServer.STORE_TRANSIENT);
+	}
+
+	/**
+	 * Serializes the token context.
+	 * @return The serialized data
+	 */
+	@Benchmark
+	public byte[] serialize()
+	{
+		return TokenContextUtil.toByteArray(token);
+	}
+
+	/**
+	 * Deserializes the token context.
+	 * @return The token
+	 */
+	@Benchmark
+	public TokenContext deserialize()
+	{
+		TokenContextUtil.fromByteArray(token, data);
+		return token;
+	}
+}
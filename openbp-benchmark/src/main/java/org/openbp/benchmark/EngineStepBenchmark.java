@@ -0,0 +1,158 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openbp.server.ProcessServer;
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.engine.EngineExecutor;
+import org.openbp.server.engine.EngineImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the process step execution ({@link EngineExecutor#executeNextStep}) of the engine.
+ * The token is started outside the measured code and executed using the in-memory token store,
+ * so the benchmark measures the node execution only, excluding session registration and token persistence.
+ * Each token can be executed only once, so the tokens for an iteration are started before the iteration
+ * and each iteration executes a fixed batch of {@link #BATCH_SIZE} tokens.
+ * The score denotes the time of the whole batch.
+ *
+ * @author Heiko Erhardt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = EngineStepBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = EngineStepBenchmark.BATCH_SIZE)
+@Fork(1)
+public class EngineStepBenchmark
+{
+	/** Number of tokens executed per iteration */
+	public static final int BATCH_SIZE = 1000;
+
+	/** Test case process */
+	@Param({ BenchmarkServer.PROCESS_SIMPLEADDPARAM, BenchmarkServer.PROCESS_SUBPROCESS, BenchmarkServer.PROCESS_BEANSHELLSCRIPT })
+	public String process;
+
+	/** Process server */
+	private ProcessServer processServer;
+
+	/** Tokens to execute in the current iteration */
+	private List<TokenContext> tokens = new ArrayList<TokenContext>();
+
+	/** Index of the next token to execute */
+	private int tokenIndex;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		processServer = BenchmarkServer.obtainProcessServer(BenchmarkServer.STORE_TRANSIENT);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		BenchmarkServer.shutdownProcessServer(BenchmarkServer.STORE_TRANSIENT);
+	}
+
+	@Setup(Level.Iteration)
+	public void startTokens()
+	{
+		for (int i = 0; i < BATCH_SIZE; ++i)
+		{
+			tokens.add(BenchmarkServer.startProcess(processServer, process));
+		}
+		tokenIndex = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void discardTokens()
+	{
+		int n = tokens.size();
+		for (int i = 0; i < n; ++i)
+		{
+			BenchmarkServer.discardToken(processServer, tokens.get(i));
+		}
+		tokens.clear();
+	}
+
+	/**
+	 * Executes the process steps of the next token of the batch up to the next transaction boundary.
+	 * @return The number of steps
+	 */
+	@Benchmark
+	public int executeSteps()
+	{
+		TokenContext token = tokens.get(tokenIndex++);
+		StepExecutor executor = new StepExecutor(token, (EngineImpl) processServer.getEngine());
+		return executor.executeSteps();
+	}
+
+	/**
+	 * Engine executor that exposes the step execution.
+	 */
+	private static class StepExecutor extends EngineExecutor
+	{
+		/**
+		 * Constructor.
+		 *
+		 * @param context Token context
+		 * @param engine Engine
+		 */
+		public StepExecutor(TokenContext context, EngineImpl engine)
+		{
+			super(context, engine);
+		}
+
+		/**
+		 * Executes the process steps of the token up to the next transaction boundary.
+		 * @return The number of steps
+		 */
+		public int executeSteps()
+		{
+			TokenContext context = getTokenContext();
+			getEngine().changeTokenState(context, LifecycleState.RUNNING, LifecycleRequest.NONE);
+
+			int n = 0;
+			do
+			{
+				executeNextStep();
+				++n;
+			}
+			while (context.getLifecycleState() == LifecycleState.RUNNING);
+
+			getEngine().commitTokenContextTransaction();
+			return n;
+		}
+	}
+}
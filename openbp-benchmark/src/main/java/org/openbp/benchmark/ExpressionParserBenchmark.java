@@ -0,0 +1,147 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openbp.server.engine.script.ExpressionParser;
+import org.openbp.server.engine.script.MemberPath;
+import org.openbp.server.engine.script.StandardExpressionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the context path evaluation of the expression parser ({@link ExpressionParser#getContextPathValue}).
+ * Compares the evaluation of an expression string to the evaluation of a precompiled member path.
+ *
+ * @author Heiko Erhardt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ExpressionParserBenchmark
+{
+	/** Expression to evaluate */
+	@Param({ "Order", "Order.Buyer.Name" })
+	public String expression;
+
+	/** Expression parser */
+	private ExpressionParser parser;
+
+	/** Precompiled expression */
+	private MemberPath path;
+
+	@Setup
+	public void setup()
+	{
+		Buyer buyer = new Buyer();
+		buyer.setName("Smith");
+		Order order = new Order();
+		order.setBuyer(buyer);
+
+		StandardExpressionContext context = new StandardExpressionContext();
+		context.setObject("Order", order);
+
+		parser = new ExpressionParser(context);
+		path = MemberPath.compile(expression);
+	}
+
+	/**
+	 * Evaluates the expression string.
+	 * @return The expression value
+	 */
+	@Benchmark
+	public Object evaluateExpression()
+	{
+		return parser.getContextPathValue(expression, null, 0);
+	}
+
+	/**
+	 * Evaluates the precompiled expression.
+	 * @return The expression value
+	 */
+	@Benchmark
+	public Object evaluateMemberPath()
+	{
+		return parser.getContextPathValue(path, 0);
+	}
+
+	/**
+	 * Sample bean.
+	 */
+	public static class Order
+	{
+		/** Buyer */
+		private Buyer buyer;
+
+		/**
+		 * Gets the buyer.
+		 * @nowarn
+		 */
+		public Buyer getBuyer()
+		{
+			return buyer;
+		}
+
+		/**
+		 * Sets the buyer.
+		 * @nowarn
+		 */
+		public void setBuyer(Buyer buyer)
+		{
+			this.buyer = buyer;
+		}
+	}
+
+	/**
+	 * Sample bean.
+	 */
+	public static class Buyer
+	{
+		/** Name */
+		private String name;
+
+		/**
+		 * Gets the name.
+		 * @nowarn
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Sets the name.
+		 * @nowarn
+		 */
+		public void setName(String name)
+		{
+			this.name = name;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openbp.server.engine.script.ScriptCache;
+import org.openbp.server.engine.script.ScriptEngineImpl;
+import org.openbp.server.engine.script.StandardExpressionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the script execution of the BeanShell script engine ({@link ScriptEngineImpl#executeScript}).
+ * The script cache size 0 corresponds to parsing the script on each execution.
+ *
+ * @author Heiko Erhardt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ScriptEngineBenchmark
+{
+	/** Script to execute */
+	@Param({ "InputValue + ExternalValue", "int sum = 0; for (int i = 0; i < InputValue; ++i) { sum += i; } return sum;" })
+	public String script;
+
+	/** Size of the script cache */
+	@Param({ "0", "100" })
+	public int scriptCacheSize;
+
+	/** Script engine */
+	private ScriptEngineImpl scriptEngine;
+
+	@Setup
+	public void setup()
+	{
+		StandardExpressionContext context = new StandardExpressionContext();
+		context.setObject("InputValue", Integer.valueOf(100));
+		context.setObject("ExternalValue", Integer.valueOf(200));
+
+		scriptEngine = new ScriptEngineImpl();
+		if (scriptCacheSize > 0)
+		{
+			scriptEngine.setScriptCache(new ScriptCache(scriptCacheSize));
+		}
+		scriptEngine.setContext(context);
+	}
+
+	/**
+	 * Executes the script.
+	 * @return The script result
+	 */
+	@Benchmark
+	public Object executeScript()
+	{
+		return scriptEngine.executeScript(script, null, null);
+	}
+}
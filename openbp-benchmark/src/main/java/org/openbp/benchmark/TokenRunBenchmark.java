@@ -0,0 +1,87 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openbp.server.ProcessServer;
+import org.openbp.server.context.TokenContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of complete token runs.
+ * Each invocation starts a token of a test case process, executes it until the process has ended
+ * and removes any remains of the token from the token store.
+ * The benchmark is run against both the in-memory and the embedded Derby token store.
+ *
+ * @author Heiko Erhardt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class TokenRunBenchmark
+{
+	/** Token store */
+	@Param({ BenchmarkServer.STORE_TRANSIENT, BenchmarkServer.STORE_DERBY })
+	public String store;
+
+	/** Test case process */
+	@Param({ BenchmarkServer.PROCESS_SIMPLEADDPARAM, BenchmarkServer.PROCESS_SUBPROCESS, BenchmarkServer.PROCESS_BEANSHELLSCRIPT })
+	public String process;
+
+	/** Process server */
+	private ProcessServer processServer;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		processServer = BenchmarkServer.obtainProcessServer(store);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		BenchmarkServer.shutdownProcessServer(store);
+	}
+
+	/**
+	 * Starts, executes and removes a token.
+	 * @return The token
+	 */
+	@Benchmark
+	public TokenContext runToken()
+	{
+		TokenContext token = BenchmarkServer.startProcess(processServer, process);
+		BenchmarkServer.runProcess(processServer, process, token);
+		BenchmarkServer.discardToken(processServer, token);
+		return token;
+	}
+}
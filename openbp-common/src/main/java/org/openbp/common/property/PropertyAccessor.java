@@ -0,0 +1,198 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.common.property;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import org.apache.commons.beanutils.DynaBean;
+import org.apache.commons.beanutils.PropertyUtils;
+import org.openbp.common.string.StringUtil;
+
+/**
+ * Accessor for a particular property of Java beans.
+ * The accessor resolves the access methods of the property once per bean class
+ * and invokes them directly on subsequent calls, so it should be kept and reused
+ * wherever the same property is accessed repeatedly.
+ *
+ * Maps, dyna beans and properties that do not have regular access methods are accessed
+ * using the {@link PropertyAccessUtil} class.
+ * The class is thread-safe.
+ *
+ * @author Heiko Erhardt
+ */
+public class PropertyAccessor
+{
+	/** Property name */
+	private final String property;
+
+	/** Access methods for the class the accessor has been used with most recently */
+	private volatile AccessMethods accessMethods;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param property Property name
+	 */
+	public PropertyAccessor(String property)
+	{
+		// Decapitalize the property name the same way PropertyAccessUtil does
+		this.property = StringUtil.decapitalize(property);
+	}
+
+	/**
+	 * Gets the property name.
+	 * @nowarn
+	 */
+	public String getProperty()
+	{
+		return property;
+	}
+
+	/**
+	 * Gets the value of the property of an object.
+	 *
+	 * @param base Object that holds the property
+	 * @return The value of the property
+	 * @throws PropertyException If no appropriate access method could be found or if the invocation
+	 * of one of the property access methods failed. The nested exception describes the error in detail.
+	 */
+	public Object getValue(Object base)
+		throws PropertyException
+	{
+		Method m = base != null ? getAccessMethods(base).readMethod : null;
+		if (m == null)
+		{
+			return PropertyAccessUtil.getProperty(base, property);
+		}
+
+		try
+		{
+			return m.invoke(base, (Object []) null);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new PropertyException("Error accessing property '" + property + "' of object of type '" + base.getClass().getName() + "'.", e);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new PropertyException("Error accessing property '" + property + "' of object of type '" + base.getClass().getName() + "'.", e);
+		}
+	}
+
+	/**
+	 * Sets the value of the property of an object.
+	 *
+	 * @param base Object that holds the property
+	 * @param value Property value
+	 * @throws PropertyException If no appropriate access method could be found or if the invocation
+	 * of one of the property access methods failed. The nested exception describes the error in detail.
+	 */
+	public void setValue(Object base, Object value)
+		throws PropertyException
+	{
+		Method m = base != null ? getAccessMethods(base).writeMethod : null;
+		if (m == null)
+		{
+			PropertyAccessUtil.setProperty(base, property, value);
+			return;
+		}
+
+		Exception ex;
+		try
+		{
+			m.invoke(base, new Object [] { value });
+			return;
+		}
+		catch (IllegalAccessException e)
+		{
+			ex = e;
+		}
+		catch (IllegalArgumentException e)
+		{
+			ex = e;
+		}
+		catch (InvocationTargetException e)
+		{
+			ex = e;
+		}
+		String valueType = value != null ? value.getClass().getName() : null;
+		throw new PropertyException("Error setting property '" + property + "' of object of type '" + base.getClass().getName() + "' to value of type '" + valueType + "'.", ex);
+	}
+
+	/**
+	 * Gets the access methods of the property for the class of the given object.
+	 *
+	 * @param base Object that holds the property
+	 * @return The access methods; the methods are null if the property is to be accessed using {@link PropertyAccessUtil}
+	 */
+	private AccessMethods getAccessMethods(Object base)
+	{
+		Class cls = base.getClass();
+		AccessMethods am = accessMethods;
+		if (am == null || am.beanClass != cls)
+		{
+			am = new AccessMethods(cls);
+
+			if (!(base instanceof Map) && !(base instanceof DynaBean))
+			{
+				try
+				{
+					PropertyDescriptor pd = PropertyUtils.getPropertyDescriptor(base, property);
+					if (pd != null && pd.getPropertyType() != null)
+					{
+						am.readMethod = PropertyUtils.getReadMethod(pd);
+						am.writeMethod = PropertyUtils.getWriteMethod(pd);
+					}
+				}
+				catch (Exception e)
+				{
+					// Leave the error reporting to PropertyAccessUtil
+				}
+			}
+
+			accessMethods = am;
+		}
+		return am;
+	}
+
+	/**
+	 * Access methods of the property for a particular bean class.
+	 */
+	private static class AccessMethods
+	{
+		/** Bean class */
+		final Class beanClass;
+
+		/** Read method or null */
+		Method readMethod;
+
+		/** Write method or null */
+		Method writeMethod;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param beanClass Bean class
+		 */
+		AccessMethods(Class beanClass)
+		{
+			this.beanClass = beanClass;
+		}
+	}
+}
@@ -70,8 +70,10 @@ public class ModelImpl extends ItemImpl
 	 * Table of item types.
 	 * Maps item types (Strings, see {@link ItemTypes}) to HashMaps of items ({@link ItemImpl})
 	 * The item type list is lazy-loaded, i. e. it will be null after the object has been deserialized.
+	 * The table and its item maps are never modified once published; {@link #addItem} and {@link #removeItem}
+	 * replace the table by a modified copy, so readers do not need to synchronize.
 	 */
-	private transient Map itemTable;
+	private transient volatile Map itemTable;
 
 	/** List of imported models (contains {@link Model} objects) */
 	private transient List importedModelList;
@@ -665,7 +667,7 @@ public class ModelImpl extends ItemImpl
 	 * @param item Item to add
 	 * @throws OpenBPException If an object with this name already exists in this model
 	 */
-	public void addItem(Item item)
+	public synchronized void addItem(Item item)
 	{
 		String type = item.getItemType();
 
@@ -673,15 +675,19 @@ public class ModelImpl extends ItemImpl
 		if (items == null)
 		{
 			items = new HashMap();
-			itemTable.put(type, items);
 		}
 		else
 		{
 			if (items.get(item.getName()) != null)
 				throw new ModelException("Operation", "Component '" + item.getName() + "' already exists in model '" + getQualifier() + "'");
+			items = new HashMap(items);
 		}
 		items.put(item.getName(), item);
 
+		Map newItemTable = new HashMap(itemTable);
+		newItemTable.put(type, items);
+		itemTable = newItemTable;
+
 		item.setModel(this);
 	}
 
@@ -690,16 +696,22 @@ public class ModelImpl extends ItemImpl
 	 *
 	 * @param item Item to remove
 	 */
-	public void removeItem(Item item)
+	public synchronized void removeItem(Item item)
 	{
 		String type = item.getItemType();
 
 		Map items = (Map) itemTable.get(type);
 		if (items != null)
 		{
+			items = new HashMap(items);
 			items.remove(item.getName());
+
+			Map newItemTable = new HashMap(itemTable);
 			if (items.isEmpty())
-				itemTable.remove(type);
+				newItemTable.remove(type);
+			else
+				newItemTable.put(type, items);
+			itemTable = newItemTable;
 		}
 		item.setModel(null);
 	}
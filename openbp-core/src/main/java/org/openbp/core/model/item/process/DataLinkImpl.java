@@ -70,6 +70,12 @@ public class DataLinkImpl extends ProcessObjectImpl
 	/** Process the link belongs to (may not be null) */
 	private transient ProcessItem process;
 
+	/** Compiled source member path expression (for use by the process engine only) */
+	private transient Object compiledSourceMemberPath;
+
+	/** Compiled target member path expression (for use by the process engine only) */
+	private transient Object compiledTargetMemberPath;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -468,6 +474,17 @@ public class DataLinkImpl extends ProcessObjectImpl
 		targetParam = null;
 	}
 
+	/**
+	 * Discards the process variable data link index of the process the link belongs to.
+	 */
+	private void invalidateProcessVariableLinkIndex()
+	{
+		if (process != null)
+		{
+			process.invalidateProcessVariableLinkIndex();
+		}
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Property access
 	//////////////////////////////////////////////////
@@ -524,6 +541,8 @@ public class DataLinkImpl extends ProcessObjectImpl
 	public void setSourceParam(Param sourceParam)
 	{
 		this.sourceParam = sourceParam;
+		compiledSourceMemberPath = null;
+		invalidateProcessVariableLinkIndex();
 	}
 
 	/**
@@ -542,6 +561,7 @@ public class DataLinkImpl extends ProcessObjectImpl
 	public void setSourceMemberPath(String sourceMemberPath)
 	{
 		this.sourceMemberPath = sourceMemberPath;
+		compiledSourceMemberPath = null;
 	}
 
 	/**
@@ -560,6 +580,8 @@ public class DataLinkImpl extends ProcessObjectImpl
 	public void setTargetParam(Param targetParam)
 	{
 		this.targetParam = targetParam;
+		compiledTargetMemberPath = null;
+		invalidateProcessVariableLinkIndex();
 	}
 
 	/**
@@ -578,6 +600,7 @@ public class DataLinkImpl extends ProcessObjectImpl
 	public void setTargetMemberPath(String targetMemberPath)
 	{
 		this.targetMemberPath = targetMemberPath;
+		compiledTargetMemberPath = null;
 	}
 
 	/**
@@ -909,4 +932,46 @@ public class DataLinkImpl extends ProcessObjectImpl
 
 		return type;
 	}
+
+	//////////////////////////////////////////////////
+	// @@ Runtime support
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the compiled source member path expression (for use by the process engine only).
+	 * @return The compiled expression or null if the expression has not been compiled yet
+	 */
+	public Object getCompiledSourceMemberPath()
+	{
+		return compiledSourceMemberPath;
+	}
+
+	/**
+	 * Sets the compiled source member path expression (for use by the process engine only).
+	 * The compiled expression will be reset when the source parameter or the source member path changes.
+	 * @nowarn
+	 */
+	public void setCompiledSourceMemberPath(Object compiledSourceMemberPath)
+	{
+		this.compiledSourceMemberPath = compiledSourceMemberPath;
+	}
+
+	/**
+	 * Gets the compiled target member path expression (for use by the process engine only).
+	 * @return The compiled expression or null if the expression has not been compiled yet
+	 */
+	public Object getCompiledTargetMemberPath()
+	{
+		return compiledTargetMemberPath;
+	}
+
+	/**
+	 * Sets the compiled target member path expression (for use by the process engine only).
+	 * The compiled expression will be reset when the target parameter or the target member path changes.
+	 * @nowarn
+	 */
+	public void setCompiledTargetMemberPath(Object compiledTargetMemberPath)
+	{
+		this.compiledTargetMemberPath = compiledTargetMemberPath;
+	}
 }
@@ -161,4 +161,11 @@ public interface NodeParam
 	 * @nowarn
 	 */
 	public void setParamValueWizard(String paramValueWizard);
+
+	/**
+	 * Gets the index of the slot that holds the value of this parameter in the token context (for use by the process engine only).
+	 * The slot will be allocated from the process the parameter belongs to on first access.
+	 * @return The slot index or -1 if the parameter does not belong to a process
+	 */
+	public int getContextSlot();
 }
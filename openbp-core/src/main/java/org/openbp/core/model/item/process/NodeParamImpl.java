@@ -70,6 +70,9 @@ public class NodeParamImpl extends ParamImpl
 	/** Name of the parameter for parameter value context access ("node.socket.param") */
 	private transient String contextName;
 
+	/** Index of the slot that holds the value of this parameter in the token context or -1 */
+	private transient volatile int contextSlot = -1;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -502,6 +505,7 @@ public class NodeParamImpl extends ParamImpl
 		this.socket = socket;
 
 		contextName = null;
+		contextSlot = -1;
 	}
 
 	/**
@@ -517,4 +521,32 @@ public class NodeParamImpl extends ParamImpl
 
 		return contextName;
 	}
+
+	/**
+	 * Gets the index of the slot that holds the value of this parameter in the token context (for use by the process engine only).
+	 * The slot will be allocated from the process the parameter belongs to on first access.
+	 * @return The slot index or -1 if the parameter does not belong to a process
+	 */
+	public int getContextSlot()
+	{
+		int slot = contextSlot;
+		if (slot < 0)
+		{
+			ProcessItem process = getProcess();
+			if (process != null)
+			{
+				// Parameters are shared by all threads executing the process, so make sure the slot is allocated only once
+				synchronized (this)
+				{
+					slot = contextSlot;
+					if (slot < 0)
+					{
+						slot = process.allocateContextSlot();
+						contextSlot = slot;
+					}
+				}
+			}
+		}
+		return slot;
+	}
 }
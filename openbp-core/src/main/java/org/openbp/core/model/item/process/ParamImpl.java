@@ -306,6 +306,7 @@ public abstract class ParamImpl extends ProcessObjectImpl
 		}
 
 		dataLink.setProcess(getProcess());
+		invalidateProcessVariableLinkIndex();
 	}
 
 	/**
@@ -315,6 +316,19 @@ public abstract class ParamImpl extends ProcessObjectImpl
 	public void removeDataLink(DataLink dataLink)
 	{
 		CollectionUtil.removeReference(dataLinkList, dataLink);
+		invalidateProcessVariableLinkIndex();
+	}
+
+	/**
+	 * Discards the process variable data link index of the process the parameter belongs to.
+	 */
+	private void invalidateProcessVariableLinkIndex()
+	{
+		ProcessItem process = getProcess();
+		if (process != null)
+		{
+			process.invalidateProcessVariableLinkIndex();
+		}
 	}
 
 	/**
@@ -334,6 +348,7 @@ public abstract class ParamImpl extends ProcessObjectImpl
 	public void clearDataLinks()
 	{
 		dataLinkList = null;
+		invalidateProcessVariableLinkIndex();
 	}
 
 	/**
@@ -448,4 +448,39 @@ public interface ProcessItem
 	 * @nowarn
 	 */
 	public void setNodeGeometry(String nodeGeometry);
+
+	//////////////////////////////////////////////////
+	// @@ Runtime support
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the data links that connect process variables of this process to the given parameter (for use by the process engine only).
+	 * The lookup is based on an index that is built when the references of the process are resolved
+	 * and rebuilt on demand after data links or process variables have been added or removed.
+	 *
+	 * @param targetParam Target parameter
+	 * @return A list of {@link DataLink} objects or null if there are no such links
+	 */
+	public List getProcessVariableLinks(Param targetParam);
+
+	/**
+	 * Discards the process variable data link index (for use by the model only).
+	 * To be called when the data links of a parameter or the source or target parameter of a data link change.
+	 * The index will be rebuilt on the next call to {@link #getProcessVariableLinks}.
+	 */
+	public void invalidateProcessVariableLinkIndex();
+
+	/**
+	 * Allocates a new slot for node parameter values in the token context (for use by the process engine only).
+	 * Slots are numbered densely starting with 0 and are never reused.
+	 *
+	 * @return The new slot index
+	 */
+	public int allocateContextSlot();
+
+	/**
+	 * Gets the number of token context slots that have been allocated for the node parameters of this process.
+	 * @nowarn
+	 */
+	public int getContextSlotCount();
 }
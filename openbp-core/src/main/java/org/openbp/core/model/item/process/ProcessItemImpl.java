@@ -15,8 +15,11 @@
  */
 package org.openbp.core.model.item.process;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 import org.openbp.common.CollectionUtil;
@@ -87,6 +90,12 @@ public class ProcessItemImpl extends ItemImpl
 	/** Arbitary object that can be used by an editor to create a pointer to a graphical representation */
 	private transient Object representation;
 
+	/** Number of token context slots that have been allocated for the node parameters of this process */
+	private transient int contextSlotCount;
+
+	/** Process variable data link index (maps target {@link Param} objects to lists of {@link DataLink} objects) or null */
+	private transient volatile Map processVariableLinkIndex;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -119,6 +128,7 @@ public class ProcessItemImpl extends ItemImpl
 
 		defaultProcess = src.defaultProcess;
 		processType = src.processType;
+		processVariableLinkIndex = null;
 		skinName = src.skinName;
 		geometry = src.geometry;
 		nodeGeometry = src.nodeGeometry;
@@ -336,6 +346,15 @@ public class ProcessItemImpl extends ItemImpl
 				link.maintainReferences(flag);
 			}
 		}
+
+		if ((flag & RESOLVE_LOCAL_REFS) != 0)
+		{
+			processVariableLinkIndex = buildProcessVariableLinkIndex();
+		}
+		else
+		{
+			processVariableLinkIndex = null;
+		}
 	}
 
 	//////////////////////////////////////////////////
@@ -978,6 +997,7 @@ public class ProcessItemImpl extends ItemImpl
 		dataLinkList.add(dataLink);
 
 		dataLink.setProcess(this);
+		processVariableLinkIndex = null;
 	}
 
 	/**
@@ -991,6 +1011,7 @@ public class ProcessItemImpl extends ItemImpl
 	{
 		dataLink.unlink();
 		CollectionUtil.removeReference(dataLinkList, dataLink);
+		processVariableLinkIndex = null;
 	}
 
 	/**
@@ -1013,6 +1034,7 @@ public class ProcessItemImpl extends ItemImpl
 		}
 
 		dataLinkList = null;
+		processVariableLinkIndex = null;
 	}
 
 	/**
@@ -1057,6 +1079,7 @@ public class ProcessItemImpl extends ItemImpl
 		processVariableList.add(processVariable);
 
 		processVariable.setProcess(this);
+		processVariableLinkIndex = null;
 	}
 
 	/**
@@ -1067,6 +1090,7 @@ public class ProcessItemImpl extends ItemImpl
 	public void removeProcessVariable(ProcessVariable processVariable)
 	{
 		CollectionUtil.removeReference(processVariableList, processVariable);
+		processVariableLinkIndex = null;
 	}
 
 	/**
@@ -1075,6 +1099,7 @@ public class ProcessItemImpl extends ItemImpl
 	public void clearProcessVariables()
 	{
 		processVariableList = null;
+		processVariableLinkIndex = null;
 	}
 
 	/**
@@ -1093,6 +1118,7 @@ public class ProcessItemImpl extends ItemImpl
 	public void setProcessVariableList(List processVariableList)
 	{
 		this.processVariableList = processVariableList;
+		processVariableLinkIndex = null;
 
 		if (processVariableList != null)
 		{
@@ -1299,4 +1325,95 @@ public class ProcessItemImpl extends ItemImpl
 	{
 		this.representation = representation;
 	}
+
+	//////////////////////////////////////////////////
+	// @@ Runtime support
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the data links that connect process variables of this process to the given parameter (for use by the process engine only).
+	 * The lookup is based on an index that is built when the references of the process are resolved
+	 * and rebuilt on demand after data links or process variables have been added or removed.
+	 *
+	 * @param targetParam Target parameter
+	 * @return A list of {@link DataLink} objects or null if there are no such links
+	 */
+	public List getProcessVariableLinks(Param targetParam)
+	{
+		Map index = processVariableLinkIndex;
+		if (index == null)
+		{
+			index = buildProcessVariableLinkIndex();
+			processVariableLinkIndex = index;
+		}
+		return (List) index.get(targetParam);
+	}
+
+	/**
+	 * Discards the process variable data link index (for use by the model only).
+	 * To be called when the data links of a parameter or the source or target parameter of a data link change.
+	 * The index will be rebuilt on the next call to {@link #getProcessVariableLinks}.
+	 */
+	public void invalidateProcessVariableLinkIndex()
+	{
+		processVariableLinkIndex = null;
+	}
+
+	/**
+	 * Builds the process variable data link index.
+	 *
+	 * @return The index (maps target {@link Param} objects to lists of {@link DataLink} objects)
+	 */
+	private Map buildProcessVariableLinkIndex()
+	{
+		Map index = new IdentityHashMap();
+
+		if (processVariableList != null)
+		{
+			int n = processVariableList.size();
+			for (int i = 0; i < n; ++i)
+			{
+				ProcessVariable var = (ProcessVariable) processVariableList.get(i);
+
+				for (Iterator it = var.getDataLinks(); it.hasNext();)
+				{
+					DataLink link = (DataLink) it.next();
+
+					Param targetParam = link.getTargetParam();
+					if (targetParam == null || targetParam == var)
+						continue;
+
+					List links = (List) index.get(targetParam);
+					if (links == null)
+					{
+						links = new ArrayList();
+						index.put(targetParam, links);
+					}
+					links.add(link);
+				}
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Allocates a new slot for node parameter values in the token context (for use by the process engine only).
+	 * Slots are numbered densely starting with 0 and are never reused.
+	 *
+	 * @return The new slot index
+	 */
+	public synchronized int allocateContextSlot()
+	{
+		return contextSlotCount++;
+	}
+
+	/**
+	 * Gets the number of token context slots that have been allocated for the node parameters of this process.
+	 * @nowarn
+	 */
+	public synchronized int getContextSlotCount()
+	{
+		return contextSlotCount;
+	}
 }
@@ -933,4 +933,51 @@ public final class ProcessUtil
 			s = s.substring(0, i);
 		node.setName(s);
 	}
+
+	//////////////////////////////////////////////////
+	// @@ Node socket resolution
+	//////////////////////////////////////////////////
+
+	/**
+	 * This method identifies a NodeSocket from the passed socket qualifier.
+	 *
+	 * @param qualifier The path of the socket. Must contain an absolute model specification.
+	 * @param modelMgr Model manager that can be used to resolve process references
+	 * @return The node socket found or null
+	 */
+	public static NodeSocket determineNodeSocketFromQualifier(ModelQualifier qualifier, ModelMgr modelMgr)
+	{
+		if (qualifier != null)
+		{
+			qualifier.setItemType(ItemTypes.PROCESS);
+
+			try
+			{
+				ProcessItem process = (ProcessItem) modelMgr.getItemByQualifier(qualifier, true);
+
+				String objectPath = qualifier.getObjectPath();
+				if (objectPath != null)
+				{
+					String nodeName = null;
+					String socketName = null;
+
+					int i = objectPath.indexOf(ModelQualifier.OBJECT_DELIMITER_CHAR);
+					if (i >= 0)
+					{
+						nodeName = objectPath.substring(0, i);
+						socketName = objectPath.substring(i + 1);
+
+						Node node = process.getNodeByName(nodeName);
+
+						return node != null ? node.getSocketByName(socketName) : null;
+					}
+				}
+			}
+			catch (ModelException e)
+			{
+				// Fall thru (same handling as no socket found).
+			}
+		}
+		return null;
+	}
 }
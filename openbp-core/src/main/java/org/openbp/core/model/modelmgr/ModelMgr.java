@@ -25,6 +25,7 @@ import org.openbp.core.model.item.Item;
 import org.openbp.core.model.item.ItemTypeDescriptor;
 import org.openbp.core.model.item.ItemTypeRegistry;
 import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.NodeSocket;
 
 /**
  * A model manager is responsible for management and persistence of models and their items.
@@ -175,6 +176,36 @@ public interface ModelMgr
 	 */
 	public Item getItemByQualifier(ModelQualifier qualifier, boolean required);
 
+	//////////////////////////////////////////////////
+	// @@ Qualifier resolution cache
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets a model specified by the string representation of its qualifier.
+	 * The result will be cached until the models are updated (see {@link #clearQualifierCache}).
+	 *
+	 * @param qualifier Qualifier string of the model (e. g. "/Model")
+	 * @return The model
+	 * @throws OpenBPException If the specified model does not exist
+	 */
+	public Model getModelByQualifierString(String qualifier);
+
+	/**
+	 * Gets a node socket specified by the string representation of its qualifier.
+	 * The result will be cached until the models are updated (see {@link #clearQualifierCache}).
+	 *
+	 * @param qualifier Qualifier string of the socket (e. g. "/Model/Process.Node.Socket").
+	 * Must contain an absolute model specification.
+	 * @return The node socket or null if no such socket exists
+	 */
+	public NodeSocket getNodeSocketByQualifierString(String qualifier);
+
+	/**
+	 * Clears the cache of resolved qualifier strings.
+	 * Called whenever models or model items are added, updated or removed.
+	 */
+	public void clearQualifierCache();
+
 	//////////////////////////////////////////////////
 	// @@ Operations on model items (processes, activities, validators, fields etc.)
 	//////////////////////////////////////////////////
@@ -15,11 +15,18 @@
  */
 package org.openbp.core.model.modelmgr;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.openbp.common.generic.msgcontainer.StandardMsgContainer;
+import org.openbp.core.OpenBPException;
 import org.openbp.core.model.Model;
+import org.openbp.core.model.ModelQualifier;
 import org.openbp.core.model.item.ItemTypeDescriptor;
 import org.openbp.core.model.item.ItemTypeRegistry;
 import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.NodeSocket;
+import org.openbp.core.model.item.process.ProcessUtil;
 
 /**
  * This class serves as a simple base class for all model managers.
@@ -42,6 +49,19 @@ public abstract class ModelMgrBase
 	/** Message container for validation error logging */
 	private StandardMsgContainer msgContainer = new StandardMsgContainer();
 
+	/**
+	 * Cache of resolved models.
+	 * Maps qualifier strings to models ({@link Model} objects).
+	 * The map will be replaced (not cleared) on invalidation, so a concurrent resolution cannot store a stale entry in the new map.
+	 */
+	private volatile Map<String, Model> modelCache = new ConcurrentHashMap<String, Model>();
+
+	/**
+	 * Cache of resolved node sockets.
+	 * Maps qualifier strings to node sockets ({@link NodeSocket} objects).
+	 */
+	private volatile Map<String, NodeSocket> nodeSocketCache = new ConcurrentHashMap<String, NodeSocket>();
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -131,6 +151,81 @@ public abstract class ModelMgrBase
 		this.msgContainer = msgContainer;
 	}
 
+	//////////////////////////////////////////////////
+	// @@ ModelMgr implementation: Qualifier resolution cache
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets a model specified by the string representation of its qualifier.
+	 * The result will be cached until the models are updated (see {@link #clearQualifierCache}).
+	 *
+	 * @param qualifier Qualifier string of the model (e. g. "/Model")
+	 * @return The model
+	 * @throws OpenBPException If the specified model does not exist
+	 */
+	public Model getModelByQualifierString(String qualifier)
+	{
+		if (getParentModelMgr() != null)
+		{
+			return getParentModelMgr().getModelByQualifierString(qualifier);
+		}
+
+		Map<String, Model> cache = modelCache;
+		Model model = cache.get(qualifier);
+		if (model == null)
+		{
+			model = getModelByQualifier(new ModelQualifier(qualifier));
+			cache.put(qualifier, model);
+		}
+		return model;
+	}
+
+	/**
+	 * Gets a node socket specified by the string representation of its qualifier.
+	 * The result will be cached until the models are updated (see {@link #clearQualifierCache}).
+	 *
+	 * @param qualifier Qualifier string of the socket (e. g. "/Model/Process.Node.Socket").
+	 * Must contain an absolute model specification.
+	 * @return The node socket or null if no such socket exists
+	 */
+	public NodeSocket getNodeSocketByQualifierString(String qualifier)
+	{
+		if (getParentModelMgr() != null)
+		{
+			return getParentModelMgr().getNodeSocketByQualifierString(qualifier);
+		}
+
+		Map<String, NodeSocket> cache = nodeSocketCache;
+		NodeSocket socket = cache.get(qualifier);
+		if (socket == null)
+		{
+			socket = ProcessUtil.determineNodeSocketFromQualifier(new ModelQualifier(qualifier), this);
+
+			// Unresolvable qualifiers are not cached, the socket might be added later
+			if (socket != null)
+			{
+				cache.put(qualifier, socket);
+			}
+		}
+		return socket;
+	}
+
+	/**
+	 * Clears the cache of resolved qualifier strings.
+	 * Called whenever models or model items are added, updated or removed.
+	 * Also clears the cache of the parent model manager, if any.
+	 */
+	public void clearQualifierCache()
+	{
+		modelCache = new ConcurrentHashMap<String, Model>();
+		nodeSocketCache = new ConcurrentHashMap<String, NodeSocket>();
+
+		if (getParentModelMgr() != null)
+		{
+			getParentModelMgr().clearQualifierCache();
+		}
+	}
+
 	//////////////////////////////////////////////////
 	// @@ ModelMgr implementation: Item types
 	//////////////////////////////////////////////////
@@ -341,6 +341,7 @@ public class MultiplexModelMgr extends ModelMgrBase
 		{
 			mgrs[i].initializeModels();
 		}
+		clearQualifierCache();
 
 		// This is an appropriate place to invoke the garbage collection
 		System.gc();
@@ -366,6 +367,7 @@ public class MultiplexModelMgr extends ModelMgrBase
 		{
 			mgrs[i].modelUpdated(qualifier, mode);
 		}
+		clearQualifierCache();
 	}
 
 	//////////////////////////////////////////////////
@@ -385,6 +387,7 @@ public class MultiplexModelMgr extends ModelMgrBase
 		{
 			mgrs[i].readModels();
 		}
+		clearQualifierCache();
 	}
 
 	/**
@@ -18,6 +18,7 @@ package org.openbp.core.model.modelmgr;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -69,8 +70,20 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 	/**
 	 * List of all models.
 	 * Maps model qualifiers ({@link ModelQualifier} objects) to model descriptors ({@link ModelImpl})
+	 * The map is an immutable snapshot that will be replaced as a whole when models are registered or unregistered,
+	 * so the model lookup methods do not need to synchronize.
 	 */
-	protected Map allModels = new HashMap();
+	protected volatile Map allModels = Collections.EMPTY_MAP;
+
+	/**
+	 * Models that are being read by {@link #readModels}.
+	 * The models will be published to {@link #allModels} after they have been initialized by {@link #initializeModels}.
+	 * Accessed by the {@link #loadingThread} only.
+	 */
+	private Map loadingModels;
+
+	/** Thread that is reading the models or null */
+	private volatile Thread loadingThread;
 
 	/** Model patterns */
 	private ShellMatcher[] modelPatterns;
@@ -121,7 +134,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 	 * @return The model
 	 * @throws OpenBPException If the specified model does not exist
 	 */
-	public synchronized Model getModelByQualifier(ModelQualifier modelQualifier)
+	public Model getModelByQualifier(ModelQualifier modelQualifier)
 	{
 		if (getParentModelMgr() != null)
 		{
@@ -159,7 +172,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 	 */
 	public Model internalGetModelByQualifier(ModelQualifier modelQualifier)
 	{
-		return (Model) allModels.get(modelQualifier);
+		return (Model) getVisibleModels().get(modelQualifier);
 	}
 
 	/**
@@ -169,7 +182,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 	 */
 	public List getModels()
 	{
-		return CollectionUtil.iteratorToArrayList(allModels.values().iterator());
+		return CollectionUtil.iteratorToArrayList(getVisibleModels().values().iterator());
 	}
 
 	//////////////////////////////////////////////////
@@ -192,7 +205,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 
 		// Check if model already exists
 		ModelQualifier qualifier = model.getQualifier();
-		if (allModels.get(qualifier) != null)
+		if (getVisibleModels().get(qualifier) != null)
 			throw new ModelException("Operation", "Model '" + qualifier + "' already exists");
 
 		addModelToStore(model);
@@ -253,6 +266,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 	{
 		unregisterModel(model);
 		removeModelFromStore(model);
+		clearQualifierCache();
 	}
 
 	//////////////////////////////////////////////////
@@ -371,6 +385,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 
 		// Save the item file
 		saveItemToStore(currentItem);
+		clearQualifierCache();
 
 		// Instantiate classes referenced by the item if we are expected to
 		if (isInstantiateItems())
@@ -394,6 +409,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 		Model model = item.getModel();
 
 		model.removeItem(item);
+		clearQualifierCache();
 	}
 
 	/**
@@ -429,6 +445,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 		destinationModel.addItem(item);
 
 		addItemToStore(item);
+		clearQualifierCache();
 	}
 
 	//////////////////////////////////////////////////
@@ -451,7 +468,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 		else
 		{
 			// Reset all model class loaders only
-			for (Iterator it = allModels.values().iterator(); it.hasNext();)
+			for (Iterator it = getVisibleModels().values().iterator(); it.hasNext();)
 			{
 				Model model = (Model) it.next();
 				model.resetModel();
@@ -461,6 +478,9 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 		// Initialize the models
 		initializeModels();
 
+		// Resolved sockets or models may refer to objects that have been replaced
+		clearQualifierCache();
+
 		// This is an appropriate place to invoke the garbage collection
 		System.gc();
 
@@ -547,6 +567,9 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 				break;
 			}
 		}
+
+		// Resolved sockets or models may refer to objects that have been replaced
+		clearQualifierCache();
 	}
 
 	/**
@@ -585,21 +608,35 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 
 	/**
 	 * Read all models in the model root directory.
+	 * The models will be visible to the current thread only until they have been initialized by {@link #initializeModels}.
+	 * Other threads will continue to see the models that have been loaded before.
 	 *
 	 * Any errors will be logged to the message container of this class.
 	 */
 	public synchronized void readModels()
 	{
-		allModels.clear();
+		loadingModels = new HashMap();
+		loadingThread = Thread.currentThread();
 		modelPatterns = null;
 
 		initialize();
 
-		readModelsFromStore();
+		try
+		{
+			readModelsFromStore();
+		}
+		catch (RuntimeException e)
+		{
+			// Keep the models that have been loaded before
+			discardLoadedModels();
+			throw e;
+		}
 	}
 
 	/**
 	 * Initializes all models.
+	 * If the models have been read by {@link #readModels}, they will be published to all threads
+	 * after their references have been established.
 	 *
 	 * Any errors will be logged to the message container of this class.
 	 */
@@ -609,18 +646,70 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 		if (isInstantiateItems())
 			flag |= ModelObject.INSTANTIATE_ITEM;
 
-		for (Iterator it = allModels.values().iterator(); it.hasNext();)
+		try
 		{
-			Model model = (Model) it.next();
+			for (Iterator it = getVisibleModels().values().iterator(); it.hasNext();)
+			{
+				Model model = (Model) it.next();
+
+				// After a model has been read, the links to other objects must be established
+				// and the objects instantiated if necessary
+				model.maintainReferences(flag);
 
-			// After a model has been read, the links to other objects must be established
-			// and the objects instantiated if necessary
-			model.maintainReferences(flag);
+				// TODO Feature 4 Trigger unit event
+			}
+		}
+		catch (RuntimeException e)
+		{
+			// Keep the models that have been loaded before
+			discardLoadedModels();
+			throw e;
+		}
 
-			// TODO Feature 4 Trigger unit event
+		if (loadingThread == Thread.currentThread())
+		{
+			publishLoadedModels();
 		}
 	}
 
+	/**
+	 * Publishes the models that have been read by {@link #readModels} to all threads.
+	 */
+	private synchronized void publishLoadedModels()
+	{
+		allModels = Collections.unmodifiableMap(loadingModels);
+		loadingModels = null;
+		loadingThread = null;
+
+		// Resolved sockets or models may refer to objects that have been replaced
+		clearQualifierCache();
+	}
+
+	/**
+	 * Discards the models that are being read by the current thread.
+	 */
+	private synchronized void discardLoadedModels()
+	{
+		if (loadingThread == Thread.currentThread())
+		{
+			loadingModels = null;
+			loadingThread = null;
+		}
+	}
+
+	/**
+	 * Gets the models that are visible to the current thread.
+	 * While the models are being read, the reading thread sees the new models.
+	 *
+	 * @return Maps model qualifiers ({@link ModelQualifier} objects) to model descriptors ({@link ModelImpl})
+	 */
+	private Map getVisibleModels()
+	{
+		if (loadingThread == Thread.currentThread())
+			return loadingModels;
+		return allModels;
+	}
+
 	/**
 	 * Reads all models from the model persistence store.
 	 */
@@ -833,7 +922,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 	 * @param model Model to register
 	 * @throws OpenBPException If the model could not be registered
 	 */
-	protected void registerModel(Model model)
+	protected synchronized void registerModel(Model model)
 	{
 		model.setModelMgr(this);
 
@@ -842,7 +931,7 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 		// Check if model already exists
 
 		// First, check in current model manager
-		if (allModels.get(qualifier) != null)
+		if (getVisibleModels().get(qualifier) != null)
 			throw new ModelException("Operation", "Model '" + qualifier + "' already exists");
 
 		// Then, check in other model managers
@@ -855,9 +944,18 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 			}
 		}
 
+		if (loadingThread == Thread.currentThread())
+		{
+			// The model will be published when the models have been initialized
+			loadingModels.put(qualifier, model);
+			return;
+		}
+
 		// Now that the model descriptor has been written, we can link the new model
 		// into the top level/all models list.
-		allModels.put(qualifier, model);
+		Map newModels = new HashMap(allModels);
+		newModels.put(qualifier, model);
+		allModels = Collections.unmodifiableMap(newModels);
 	}
 
 	/**
@@ -866,9 +964,17 @@ public abstract class NonDelegatingModelMgrBase extends ModelMgrBase
 	 * @param model Model to unregister
 	 * @throws OpenBPException If the model could not be unregistered
 	 */
-	protected void unregisterModel(Model model)
+	protected synchronized void unregisterModel(Model model)
 	{
 		ModelQualifier qualifier = model.getQualifier();
-		allModels.remove(qualifier);
+		if (loadingThread == Thread.currentThread())
+		{
+			loadingModels.remove(qualifier);
+			return;
+		}
+
+		Map newModels = new HashMap(allModels);
+		newModels.remove(qualifier);
+		allModels = Collections.unmodifiableMap(newModels);
 	}
 }
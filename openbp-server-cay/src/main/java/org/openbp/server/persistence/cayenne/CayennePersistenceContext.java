@@ -17,8 +17,10 @@ package org.openbp.server.persistence.cayenne;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.cayenne.CayenneRuntimeException;
 import org.apache.cayenne.DataObject;
@@ -286,6 +288,78 @@ public class CayennePersistenceContext extends BasicPersistenceContext
 		return ret;
 	}
 
+	/**
+	 * Finds several objects of the same type by their primary keys.
+	 * Objects that are not registered with the data context yet are loaded by a single query.
+	 *
+	 * @param ids Primary keys ({@link ObjectId} objects)
+	 * @param cls Type of object to lookup (usually a class implementing PeristentObject)
+	 * @return A map that maps the primary keys to the objects; objects that cannot be found will not be contained in the map
+	 * @throws PersistenceException On error
+	 */
+	public Map findByIds(final Collection ids, Class cls)
+		throws PersistenceException
+	{
+		cls = getMappedObjectClass(cls, false);
+		HashMap ret = new HashMap();
+
+		Expression exp = null;
+		ObjectStore objectStore = getDataContext().getObjectStore();
+		for (Iterator it = ids.iterator(); it.hasNext();)
+		{
+			Object id = it.next();
+			if (! (id instanceof ObjectId))
+			{
+				// Not a Cayenne object id, load the object the regular way
+				Object o = findById(id, cls);
+				if (o != null)
+				{
+					ret.put(id, o);
+				}
+				continue;
+			}
+
+			Object o = objectStore.getNode((ObjectId) id);
+			if (o != null)
+			{
+				ret.put(id, o);
+				continue;
+			}
+
+			Expression idExp = ExpressionFactory.matchAllDbExp(((ObjectId) id).getIdSnapshot(), Expression.EQUAL_TO);
+			exp = exp != null ? exp.orExp(idExp) : idExp;
+		}
+
+		if (exp != null)
+		{
+			TransactionGuard tg = new TransactionGuard(this);
+			try
+			{
+				List result = getDataContext().performQuery(new SelectQuery(cls, exp));
+				for (Iterator it = result.iterator(); it.hasNext();)
+				{
+					DataObject o = (DataObject) it.next();
+					ret.put(o.getObjectId(), o);
+				}
+			}
+			catch (Exception e)
+			{
+				tg.doCatch();
+				throw createLoggedException(e);
+			}
+			finally
+			{
+				tg.doFinally();
+			}
+		}
+
+		for (Iterator it = ret.values().iterator(); it.hasNext();)
+		{
+			getPersistenceContextProvider().fireOnLoad(it.next(), this);
+		}
+		return ret;
+	}
+
 	/**
 	 * Returns a list of the objects of a particular type that match the given criterion.
 	 *
@@ -356,6 +430,11 @@ public class CayennePersistenceContext extends BasicPersistenceContext
 					Expression newExp = ExpressionFactory.matchExp(property, null);
 					exp = conjugate(newExp, exp);
 				}
+				else if (PersistenceCriterion.OPERATOR_IN.equals(operator))
+				{
+					Expression newExp = ExpressionFactory.inExp(property, (Collection) value);
+					exp = conjugate(newExp, exp);
+				}
 				else if (PersistenceCriterion.OPERATOR_ALIAS.equals(operator))
 					throw new PersistenceException("'alias' operation not supproted by Cayenne persistence criterion.");
 			}
@@ -493,12 +572,25 @@ public class CayennePersistenceContext extends BasicPersistenceContext
 	 */
 	public int executeUpdateOrDelete(String sql)
 		throws PersistenceException
+	{
+		return executeUpdateOrDelete(sql, null);
+	}
+
+	/**
+	 * Runs the given SQL update or delete statement using bound parameters.
+	 *
+	 * @param sql An SQL update statement containing a '?' placeholder for each parameter
+	 * @param params Parameter values in the order of the placeholders or null
+	 * @return The number of rows affected.
+	 * @throws PersistenceException On error
+	 */
+	public int executeUpdateOrDelete(String sql, Object[] params)
+		throws PersistenceException
 	{
 		TransactionGuard tg = new TransactionGuard(this);
 		try
 		{
-			SQLTemplate temp = new SQLTemplate();
-			temp.setDefaultTemplate(sql);
+			SQLTemplate temp = createSQLTemplate(sql, params);
 
 			DataMap dataMap = getDataContext().getEntityResolver().getDataMaps().iterator().next();
 			temp.setRoot(dataMap);
@@ -530,12 +622,26 @@ public class CayennePersistenceContext extends BasicPersistenceContext
 	 */
 	public Collection executeSelect(String sql, int maxResults)
 		throws PersistenceException
+	{
+		return executeSelect(sql, null, maxResults);
+	}
+
+	/**
+	 * Runs the given SQL select statement using bound parameters.
+	 *
+	 * @param sql SQL query to run containing a '?' placeholder for each parameter
+	 * @param params Parameter values in the order of the placeholders or null
+	 * @param maxResults Maximum number of result rows or 0 for unlimited
+	 * @return A list of result elements (contains Object or Object[] elements, depending if this was a single column or multi-column query)
+	 * @throws PersistenceException On error
+	 */
+	public Collection executeSelect(String sql, Object[] params, int maxResults)
+		throws PersistenceException
 	{
 		TransactionGuard tg = new TransactionGuard(this);
 		try
 		{
-			SQLTemplate temp = new SQLTemplate();
-			temp.setDefaultTemplate(sql);
+			SQLTemplate temp = createSQLTemplate(sql, params);
 			if (maxResults > 0)
 			{
 				temp.setFetchLimit(maxResults);
@@ -558,6 +664,46 @@ public class CayennePersistenceContext extends BasicPersistenceContext
 		}
 	}
 
+	/**
+	 * Creates an SQL template for the given SQL statement.
+	 * The '?' placeholders of the statement will be replaced by Cayenne bind directives.
+	 *
+	 * @param sql SQL statement
+	 * @param params Parameter values in the order of the placeholders or null
+	 * @return The new template
+	 */
+	private static SQLTemplate createSQLTemplate(String sql, Object[] params)
+	{
+		SQLTemplate temp = new SQLTemplate();
+		if (params != null && params.length > 0)
+		{
+			StringBuffer sb = new StringBuffer();
+			Map parameters = new HashMap();
+			int index = 0;
+			for (int i = 0; i < sql.length(); ++i)
+			{
+				char c = sql.charAt(i);
+				if (c == '?' && index < params.length)
+				{
+					String name = "p" + index;
+					sb.append("#bind($").append(name).append(")");
+					parameters.put(name, params[index++]);
+				}
+				else
+				{
+					sb.append(c);
+				}
+			}
+			temp.setDefaultTemplate(sb.toString());
+			temp.setParameters(parameters);
+		}
+		else
+		{
+			temp.setDefaultTemplate(sql);
+		}
+		return temp;
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Transaction control
 	//////////////////////////////////////////////////
@@ -573,6 +719,18 @@ public class CayennePersistenceContext extends BasicPersistenceContext
 		return getDataContext().hasChanges();
 	}
 
+	/**
+	 * Checks if the current transaction contains any changes.
+	 * SQL statements are committed immediately by Cayenne, so only the changes of the data context are considered.
+	 *
+	 * @return true if committing the transaction would write any changes
+	 */
+	public boolean hasTransactionChanges()
+		throws PersistenceException
+	{
+		return getDataContext().hasChanges();
+	}
+
 	/**
 	 * Begins a new transaction.
 	 * Does nothing if a transaction is already running.
@@ -17,9 +17,9 @@ package org.openbp.server.persistence.cayenne;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -35,15 +35,16 @@ import org.openbp.common.util.observer.EventObserverMgr;
 import org.openbp.core.CoreConstants;
 import org.openbp.core.engine.EngineException;
 import org.openbp.core.model.Model;
-import org.openbp.core.model.ModelQualifier;
-import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.NodeParam;
 import org.openbp.core.model.item.process.NodeSocket;
 import org.openbp.core.model.modelmgr.ModelMgr;
 import org.openbp.server.ServerConstants;
 import org.openbp.server.context.CallStack;
 import org.openbp.server.context.CallStackImpl;
+import org.openbp.server.context.DeferredContextValue;
 import org.openbp.server.context.LifecycleRequest;
 import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.ParamValueMap;
 import org.openbp.server.context.ProgressInfo;
 import org.openbp.server.context.TokenContext;
 import org.openbp.server.context.TokenContextUtil;
@@ -73,7 +74,29 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	 * parameter values (Objects)
 	 */
 	// Note that this is transient, parameter set will be saved as byte array
-	private transient Map<String, Object> paramValues;
+	private transient ParamValueMap paramValues;
+
+	/**
+	 * Flag that determines if the parameter values or the call stack may have been modified
+	 * since the context data has been serialized or deserialized the last time.
+	 */
+	private transient boolean contextDataModified = true;
+
+	/**
+	 * Flag that determines if the serialized context data has been loaded from persistent storage,
+	 * but has not been deserialized yet.
+	 */
+	private transient boolean contextDataPending;
+
+	/**
+	 * Value holders of the parameter values and the values they held when the parameter value map
+	 * has been handed out by {@link #getParamValues} (maps {@link TokenContextValue} objects to values).
+	 * Used to detect modifications of the map if the context data has not been modified otherwise.
+	 */
+	private transient Map<TokenContextValue, Object> paramValueSnapshot;
+
+	/** Flag that determines if the context data is being serialized or deserialized */
+	private transient boolean serializing;
 
 	/** Runtime attribute table */
 	protected transient Map<String, Object> runtimeAttributes;
@@ -107,6 +130,9 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	/** Flag that determines if accessing an undefined process variable should cause an exception */
 	private static Boolean strictProcessVariableHandling;
 
+	/** Flag that determines if the context data should be serialized only after a modification of the context */
+	private static Boolean contextDataDirtyTracking;
+
 	//
 	// Fields to store transient the persistent data.
 	// To avoid hitting the database outside readValuesFromCayenne and
@@ -118,6 +144,9 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 
 		/** the list of child contexts */	
 	protected transient List<TokenContext> childContextList;
+
+	/** Number of child tokens that have not been joined or ended yet (transient token context services only) */
+	private transient int childCount;
 	
 	/** new child contexts since the last call to readValuesFromCayenne and writeValuesToCayenne */
 	protected transient List<TokenContext> addedContextList = new ArrayList<TokenContext>();
@@ -264,6 +293,40 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 		return childContextList.iterator();
 	}
 
+	/*
+	 * @seem TokenContext.getChildCount
+	 */
+	public int getChildCount()
+	{
+		return childCount;
+	}
+
+	/*
+	 * @seem TokenContext.setChildCount
+	 */
+	public void setChildCount(final int childCount)
+	{
+		this.childCount = childCount;
+	}
+
+	/**
+	 * Gets the partition key of the token (see {@link TokenContextUtil#getPartitionKey}).
+	 * @nowarn
+	 */
+	public int getPartitionKey()
+	{
+		return TokenContextUtil.getPartitionKey(getId());
+	}
+
+	/**
+	 * Sets the partition key of the token.
+	 * The partition key is derived from the id of the context, so this method does nothing.
+	 * @nowarn
+	 */
+	public void setPartitionKey(final int partitionKey)
+	{
+	}
+
 	/*
 	 * @seem TokenContext.getExecutingModel
 	 */
@@ -312,10 +375,14 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	 */
 	public CallStack getCallStack()
 	{
+		ensureContextData();
 		if (callStack == null)
 		{
 			callStack = new CallStackImpl(this);
 		}
+
+		// The call stack may be modified by the caller
+		contextDataModified = true;
 		return callStack;
 	}
 
@@ -324,7 +391,9 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	 */
 	public void setCallStack(final CallStack callStack)
 	{
+		ensureContextData();
 		this.callStack = callStack;
+		contextDataModified = true;
 		markAsModified();
 	}
 
@@ -546,7 +615,7 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	 */
 	public boolean hasParamValue(final String qualParamName)
 	{
-		return getParamValues().containsKey(qualParamName);
+		return getParamValueMap().containsKey(qualParamName);
 	}
 
 	/*
@@ -554,9 +623,9 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	 */
 	public Object getParamValue(final String qualParamName)
 	{
-		TokenContextValue tcv = (TokenContextValue) getParamValues().get(qualParamName);
+		TokenContextValue tcv = (TokenContextValue) getParamValueMap().get(qualParamName);
 		if (tcv != null)
-			return tcv.getValue();
+			return accessValue(tcv);
 		return null;
 	}
 
@@ -566,7 +635,8 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	public void setParamValue(final String qualParamName, final Object value)
 	{
 		TokenContextValue tcv = obtainParamValue(qualParamName, true);
-	 	tcv.setValue(value);
+		tcv.setValue(value);
+		contextDataModified = true;
 		markAsModified();
 	}
 
@@ -575,7 +645,32 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	 */
 	public void removeParamValue(final String qualParamName)
 	{
-		getParamValues().remove(qualParamName);
+		if (getParamValueMap().remove(qualParamName) != null)
+		{
+			contextDataModified = true;
+		}
+	}
+
+	/*
+	 * @seem TokenContext.getNodeParamValue
+	 */
+	public Object getNodeParamValue(final NodeParam param)
+	{
+		TokenContextValue tcv = getParamValueMap().getValue(param);
+		if (tcv != null)
+			return accessValue(tcv);
+		return null;
+	}
+
+	/*
+	 * @seem TokenContext.setNodeParamValue
+	 */
+	public void setNodeParamValue(final NodeParam param, final Object value)
+	{
+		TokenContextValue tcv = getParamValueMap().obtainValue(param, true);
+		tcv.setValue(value);
+		contextDataModified = true;
+		markAsModified();
 	}
 
 	/*
@@ -583,7 +678,8 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	 */
 	public void clearParamValues()
 	{
-		getParamValues().clear();
+		getParamValueMap().clear();
+		contextDataModified = true;
 	}
 
 	/*
@@ -591,26 +687,104 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	 */
 	public Map<String, Object> getParamValues()
 	{
+		ParamValueMap map = getParamValueMap();
+		if (serializing)
+			return map;
+
+		// The caller may modify the map and the values it holds
+		if (paramValueSnapshot == null && isContextDataUnmodified())
+		{
+			paramValueSnapshot = new IdentityHashMap<TokenContextValue, Object>();
+			for (Object o : map.values())
+			{
+				TokenContextValue tcv = (TokenContextValue) o;
+				paramValueSnapshot.put(tcv, tcv.getValue());
+			}
+		}
+		for (Object o : map.values())
+		{
+			exposeValue((TokenContextValue) o);
+		}
+		return map;
+	}
+
+	/**
+	 * Gets the parameter value storage of this context.
+	 * @nowarn
+	 */
+	protected ParamValueMap getParamValueMap()
+	{
+		ensureContextData();
 		if (paramValues == null)
 		{
-			paramValues = Collections.synchronizedMap(new HashMap<String, Object>());
+			paramValues = new ParamValueMap();
 		}
 		return paramValues;
 	}
 
 	protected TokenContextValue obtainParamValue(final String variableName, final boolean isPersistent)
 	{
-		TokenContextValue tcv = (TokenContextValue) getParamValues().get(variableName);
+		TokenContextValue tcv = (TokenContextValue) getParamValueMap().get(variableName);
 		if (tcv == null)
 		{
 			tcv = new TokenContextValue();
 			tcv.setPersistentVariable(isPersistent);
-			getParamValues().put(variableName, tcv);
+			getParamValueMap().put(variableName, tcv);
+			contextDataModified = true;
 			markAsModified();
 		}
 		return tcv;
 	}
 
+	/**
+	 * Gets the value of a parameter value or process variable holder.
+	 * Values that are not immutable may be modified by the caller, so they will be checked for modifications
+	 * when the context is saved (see {@link #exposeValue}).
+	 * A {@link DeferredContextValue} will be resolved and replaced by the resolved value.
+	 *
+	 * @param tcv Value holder
+	 * @return The value
+	 */
+	protected Object accessValue(final TokenContextValue tcv)
+	{
+		Object value = tcv.getValue();
+		if (value instanceof DeferredContextValue)
+		{
+			value = ((DeferredContextValue) value).resolveValue(this);
+			tcv.setValue(value);
+		}
+		exposeValue(tcv);
+		return value;
+	}
+
+	/**
+	 * Marks a persistent value that is not immutable as handed out to the caller.
+	 * If the context data has not been modified yet, the hash of the value will be determined,
+	 * so a modification of the value can be detected when the context is saved.
+	 * Values that cannot be hashed (e. g. persistent objects) cause the context data to be considered modified.
+	 *
+	 * @param tcv Value holder
+	 */
+	protected void exposeValue(final TokenContextValue tcv)
+	{
+		if (tcv.isExposed() || ! tcv.isPersistentVariable() || TokenContextUtil.isImmutableValue(tcv.getValue()))
+			return;
+
+		tcv.setExposed(true);
+		if (tcv.getValueHash() == null && isContextDataUnmodified())
+		{
+			String hash = TokenContextUtil.computeValueHash(this, tcv.getValue());
+			if (hash != null)
+			{
+				tcv.setValueHash(hash);
+			}
+			else
+			{
+				contextDataModified = true;
+			}
+		}
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Process variables
 	//////////////////////////////////////////////////
@@ -649,7 +823,7 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 		TokenContextValue tcv = getProcessVariable(variableName, false);
 		if (tcv != null)
 		{
-			return tcv.getValue();
+			return accessValue(tcv);
 		}
 		return null;
 	}
@@ -663,6 +837,9 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 		if (tcv != null)
 		{
 			tcv.setValue(value);
+
+			// Note that a variable of a parent context has been marked as modified by getProcessVariable
+			contextDataModified = true;
 			markAsModified();
 		}
 	}
@@ -684,7 +861,7 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 	public Iterator<String> getProcessVariableNames()
 	{
 		ArrayList<String> ret = new ArrayList<String>();
-		for (Iterator<String> it = getParamValues().keySet().iterator(); it.hasNext();)
+		for (Iterator<String> it = getParamValueMap().keySet().iterator(); it.hasNext();)
 		{
 			String name = (String) it.next();
 			if (TokenContextUtil.isProcessVariableIdentifier(name))
@@ -697,9 +874,20 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 
 	protected TokenContextValue getProcessVariable(final String variableName, boolean mustExist)
 	{
-		for (TokenContext context = this; context != null; context = context.getParentContext())
+		String qualVariableName = CoreConstants.PROCESS_VARIABLE_INDICATOR + variableName;
+		TokenContextValue tcv = (TokenContextValue) getParamValueMap().get(qualVariableName);
+		if (tcv != null)
+			return tcv;
+		for (TokenContext context = getParentContext(); context != null; context = context.getParentContext())
 		{
-			TokenContextValue tcv = (TokenContextValue) context.getParamValues().get(CoreConstants.PROCESS_VARIABLE_INDICATOR + variableName);
+			if (context instanceof CayenneTokenContextImpl)
+			{
+				tcv = (TokenContextValue) ((CayenneTokenContextImpl) context).getParamValueMap().get(qualVariableName);
+			}
+			else
+			{
+				tcv = (TokenContextValue) context.getParamValues().get(qualVariableName);
+			}
 			if (tcv != null)
 				return tcv;
 		}
@@ -885,8 +1073,7 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 		String tempExecutingModelQualifier = (String) readProperty("executingModel");
 		if (tempExecutingModelQualifier != null)
 		{
-			ModelQualifier qualifier = new ModelQualifier(tempExecutingModelQualifier);
-			executingModel = getModelMgr().getModelByQualifier(qualifier);
+			executingModel = getModelMgr().getModelByQualifierString(tempExecutingModelQualifier);
 		}
 		else
 		{
@@ -896,16 +1083,12 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 		String tempCurrentSocketQualifier = (String) readProperty("currentSocket");
 		if (tempCurrentSocketQualifier != null)
 		{
-			ModelQualifier qualifier = new ModelQualifier(tempCurrentSocketQualifier);
-			qualifier.setItemType(ItemTypes.PROCESS);
-			setCurrentSocket(EngineUtil.determineNodeSocketFromQualifier(qualifier, getModelMgr()));
+			setCurrentSocket(getModelMgr().getNodeSocketByQualifierString(tempCurrentSocketQualifier));
 		}
 
-		byte[] serializedContextData = (byte[]) readProperty("data");
-		if (serializedContextData != null)
-		{
-			TokenContextUtil.fromByteArray(this, serializedContextData);
-		}
+		// The context data will be deserialized on first access of the call stack or the parameter values
+		contextDataPending = true;
+		contextDataModified = false;
 		parentContext = (TokenContext) readProperty("parentContext");
 		childContextList = (List<TokenContext>) readProperty("childContextList");
 		lifecycleState = toInt(readProperty("lifecycleState"));
@@ -925,8 +1108,49 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 		// TODO Fix version checking with Cayenne
 		setVersion(Integer.valueOf(1));
 
-		byte[] serializedContextData = TokenContextUtil.toByteArray(this);
-		writeChangedProperty("data", serializedContextData);
+		byte[] oldContextData = (byte[]) readProperty("data");
+		if (contextDataPending)
+		{
+			// Context data has not even been deserialized, so the persistent state is still valid
+		}
+		else if (! isContextDataUnmodified() || hasExposedValueChanged())
+		{
+			// Write the context data only if its content has changed
+			byte[] serializedContextData;
+			serializing = true;
+			try
+			{
+				serializedContextData = TokenContextUtil.toByteArray(this);
+			}
+			finally
+			{
+				serializing = false;
+			}
+			if (oldContextData == null || ! Arrays.equals(serializedContextData, oldContextData))
+			{
+				writeProperty("data", serializedContextData);
+			}
+
+			// Reset the flags after the serialization, which accesses the call stack and the parameter values
+			contextDataModified = false;
+			paramValueSnapshot = null;
+			if (paramValues != null)
+			{
+				for (Object o : paramValues.values())
+				{
+					TokenContextValue tcv = (TokenContextValue) o;
+					if (tcv.isExposed())
+					{
+						tcv.setExposed(false);
+						if (! tcv.isExternal())
+						{
+							// The hash of a value that is stored by reference is still valid
+							tcv.setValueHash(null);
+						}
+					}
+				}
+			}
+		}
 
 		String socketQualifier = null;
 		if (getCurrentSocket() != null)
@@ -956,6 +1180,7 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 		writeChangedProperty("lifecycleState", lifecycleState);
 		writeChangedProperty("lifecycleRequest", lifecycleRequest);
 		writeChangedProperty("priority", priority);
+		writeChangedProperty("partitionKey", getPartitionKey());
 		writeChangedProperty("queuetype", queueType);
 		writeChangedProperty("nodeId", nodeId);
 		writeChangedProperty("userId", userId);
@@ -965,6 +1190,92 @@ public class CayenneTokenContextImpl extends CayenneObjectBase
 		writeChangedProperty("progressText", progressText);
 	}
 
+	/**
+	 * Deserializes the context data if this has not been done since the context has been read from persistent storage.
+	 */
+	protected void ensureContextData()
+	{
+		if (contextDataPending)
+		{
+			// Reset the flag first, the deserialization accesses the call stack and the parameter values
+			contextDataPending = false;
+
+			byte[] serializedContextData = (byte[]) readProperty("data");
+			if (serializedContextData != null)
+			{
+				serializing = true;
+				try
+				{
+					TokenContextUtil.fromByteArray(this, serializedContextData);
+				}
+				finally
+				{
+					serializing = false;
+				}
+			}
+
+			// The context now reflects the persistent state
+			contextDataModified = false;
+			paramValueSnapshot = null;
+		}
+	}
+
+	/**
+	 * Checks if the serialized context data reflects the state of the context, not considering the values that have been handed out.
+	 * @return true if there is serialized context data, the context has not been modified and dirty tracking is enabled
+	 */
+	protected boolean isContextDataUnmodified()
+	{
+		return ! contextDataModified && readProperty("data") != null && isContextDataDirtyTracking();
+	}
+
+	/**
+	 * Checks if the parameter value map or one of the mutable values that have been handed out has been modified.
+	 * @return true if the parameter value map has been modified or the hash of an exposed value has changed
+	 */
+	protected boolean hasExposedValueChanged()
+	{
+		if (paramValues == null)
+			return false;
+
+		if (paramValueSnapshot != null)
+		{
+			if (paramValueSnapshot.size() != paramValues.size())
+				return true;
+			for (Object o : paramValues.values())
+			{
+				TokenContextValue tcv = (TokenContextValue) o;
+				if (! paramValueSnapshot.containsKey(tcv) || paramValueSnapshot.get(tcv) != tcv.getValue())
+					return true;
+			}
+		}
+
+		for (Object o : paramValues.values())
+		{
+			TokenContextValue tcv = (TokenContextValue) o;
+			if (! tcv.isExposed())
+				continue;
+			String hash = tcv.getValueHash();
+			if (hash == null || ! hash.equals(TokenContextUtil.computeValueHash(this, tcv.getValue())))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if the context data should be serialized only after a modification of the context.
+	 * @return The value of the {@link ServerConstants#SYSPROP_CONTEXTDATA_DIRTYTRACKING} setting
+	 */
+	protected static boolean isContextDataDirtyTracking()
+	{
+		if (contextDataDirtyTracking == null)
+		{
+			boolean b = SettingUtil.getBooleanSetting(ServerConstants.SYSPROP_CONTEXTDATA_DIRTYTRACKING, true);
+			contextDataDirtyTracking = Boolean.valueOf(b);
+		}
+		return contextDataDirtyTracking.booleanValue();
+	}
+
 	/**
 	 * Marks the token context as modified.
 	 * Used internally only.
@@ -16,18 +16,28 @@
 package org.openbp.server.persistence.hibernate;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.hibernate.Criteria;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.EntityMode;
 import org.hibernate.HibernateException;
+import org.hibernate.Interceptor;
 import org.hibernate.SQLQuery;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.UnresolvableObjectException;
 import org.hibernate.criterion.Order;
+import org.hibernate.engine.SessionFactoryImplementor;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.Type;
 import org.openbp.common.logger.LogUtil;
 import org.openbp.server.persistence.BasicPersistenceContext;
 import org.openbp.server.persistence.BasicPersistenceContextProvider;
@@ -46,6 +56,9 @@ import org.openbp.server.persistence.TransactionGuard;
  */
 public class HibernatePersistenceContext extends BasicPersistenceContext
 {
+	/** Maximum number of primary keys in the 'in' clause of a query issued by {@link #findByIds} */
+	public static final int MAX_IDS_PER_QUERY = 500;
+
 	//////////////////////////////////////////////////
 	// @@ Data members
 	//////////////////////////////////////////////////
@@ -56,6 +69,12 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 	/** Underlying Hibernate session */
 	protected Session session;
 
+	/** Flag if changes have been written to the database within the current transaction (see {@link #hasTransactionChanges}) */
+	private boolean changesWritten;
+
+	/** Flag if the changes of the current session are being tracked by a {@link ChangeTrackingInterceptor} */
+	private boolean trackingChanges;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -253,6 +272,61 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 		}
 	}
 
+	/**
+	 * Finds several objects of the same type by their primary keys.
+	 * The objects are loaded by a single query per {@link #MAX_IDS_PER_QUERY} primary keys.
+	 *
+	 * @param ids Primary keys
+	 * @param cls Type of object to lookup (usually a class implementing PeristentObject)
+	 * @return A map that maps the primary keys to the objects; objects that cannot be found will not be contained in the map
+	 * @throws PersistenceException On error
+	 */
+	public Map findByIds(final Collection ids, Class cls)
+		throws PersistenceException
+	{
+		cls = getMappedObjectClass(cls, false);
+		HashMap ret = new HashMap();
+		if (ids.isEmpty())
+			return ret;
+
+		TransactionGuard tg = new TransactionGuard(this);
+		try
+		{
+			Session session = getHibernateSession();
+			ClassMetadata metadata = session.getSessionFactory().getClassMetadata(cls);
+			if (metadata == null)
+			{
+				// Not an entity class, let the persistence layer complain
+				return super.findByIds(ids, cls);
+			}
+			String idProperty = metadata.getIdentifierPropertyName();
+
+			ArrayList idList = new ArrayList(ids);
+			int n = idList.size();
+			for (int i = 0; i < n; i += MAX_IDS_PER_QUERY)
+			{
+				List chunk = idList.subList(i, Math.min(i + MAX_IDS_PER_QUERY, n));
+				Criteria hc = session.createCriteria(cls).add(Restrictions.in(idProperty, chunk));
+				for (Iterator it = hc.list().iterator(); it.hasNext();)
+				{
+					Object o = it.next();
+					getPersistenceContextProvider().fireOnLoad(o, this);
+					ret.put(session.getIdentifier(o), o);
+				}
+			}
+			return ret;
+		}
+		catch (HibernateException e)
+		{
+			tg.doCatch();
+			throw createLoggedException(e);
+		}
+		finally
+		{
+			tg.doFinally();
+		}
+	}
+
 	/**
 	 * Returns a list of the objects of a particular type that match the given criterion.
 	 *
@@ -324,6 +398,10 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 				{
 					hc = hc.add(Restrictions.isNull(property));
 				}
+				else if (PersistenceCriterion.OPERATOR_IN.equals(operator))
+				{
+					hc = hc.add(Restrictions.in(property, (Collection) value));
+				}
 				else if (PersistenceCriterion.OPERATOR_ALIAS.equals(operator))
 				{
 					hc = hc.createAlias(property, (String) value);
@@ -425,12 +503,31 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 	 */
 	public int executeUpdateOrDelete(String sql)
 		throws PersistenceException
+	{
+		return executeUpdateOrDelete(sql, null);
+	}
+
+	/**
+	 * Runs the given SQL update or delete statement using bound parameters.
+	 *
+	 * @param sql An SQL update statement containing a '?' placeholder for each parameter
+	 * @param params Parameter values in the order of the placeholders or null
+	 * @return The number of rows affected.
+	 * @throws PersistenceException On error
+	 */
+	public int executeUpdateOrDelete(String sql, Object[] params)
+		throws PersistenceException
 	{
 		TransactionGuard tg = new TransactionGuard(this);
 		try
 		{
 			SQLQuery query = getHibernateSession().createSQLQuery(sql);
+			setQueryParameters(query, params);
 			int count = query.executeUpdate();
+			if (count > 0)
+			{
+				changesWritten = true;
+			}
 			return count;
 		}
 		catch (HibernateException e)
@@ -454,11 +551,27 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 	 */
 	public Collection executeSelect(String sql, int maxResults)
 		throws PersistenceException
+	{
+		return executeSelect(sql, null, maxResults);
+	}
+
+	/**
+	 * Runs the given SQL select statement using bound parameters.
+	 *
+	 * @param sql SQL query to run containing a '?' placeholder for each parameter
+	 * @param params Parameter values in the order of the placeholders or null
+	 * @param maxResults Maximum number of result rows or 0 for unlimited
+	 * @return A list of result elements (contains Object or Object[] elements, depending if this was a single column or multi-column query)
+	 * @throws PersistenceException On error
+	 */
+	public Collection executeSelect(String sql, Object[] params, int maxResults)
+		throws PersistenceException
 	{
 		TransactionGuard tg = new TransactionGuard(this);
 		try
 		{
 			SQLQuery query = getHibernateSession().createSQLQuery(sql);
+			setQueryParameters(query, params);
 			if (maxResults > 0)
 			{
 				query.setMaxResults(maxResults);
@@ -478,6 +591,23 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 		}
 	}
 
+	/**
+	 * Binds the given positional parameters to an SQL query.
+	 *
+	 * @param query Query
+	 * @param params Parameter values or null
+	 */
+	private static void setQueryParameters(SQLQuery query, Object[] params)
+	{
+		if (params != null)
+		{
+			for (int i = 0; i < params.length; ++i)
+			{
+				query.setParameter(i, params[i]);
+			}
+		}
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Transaction control
 	//////////////////////////////////////////////////
@@ -493,6 +623,35 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 		return getHibernateTransaction().isActive();
 	}
 
+	/**
+	 * Checks if the current transaction contains any changes.
+	 * This includes pending changes of persistent objects as well as changes that have already been written
+	 * to the database (by a flush or an SQL statement), but have not been committed yet.
+	 *
+	 * @return true if committing the transaction would write or commit any changes
+	 */
+	public boolean hasTransactionChanges()
+		throws PersistenceException
+	{
+		if (changesWritten)
+			return true;
+
+		try
+		{
+			Session session = getHibernateSession();
+			if (! trackingChanges && session.getTransaction().isActive())
+			{
+				// Flushed changes are unknown without the tracking interceptor
+				return true;
+			}
+			return session.isDirty();
+		}
+		catch (HibernateException e)
+		{
+			throw createLoggedException(e);
+		}
+	}
+
 	/**
 	 * Begins a new transaction.
 	 * Does nothing if a transaction is already running.
@@ -521,6 +680,7 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 			try
 			{
 				getHibernateTransaction().rollback();
+				changesWritten = false;
 			}
 			catch (HibernateException e)
 			{
@@ -546,6 +706,7 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 			{
 				getHibernateSession().flush();
 				getHibernateTransaction().commit();
+				changesWritten = false;
 				LogUtil.trace(getClass(), "Committed transaction.");
 			}
 			catch (HibernateException e)
@@ -596,7 +757,20 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 
 		if (session == null)
 		{
-			session = sessionFactory.openSession();
+			BasicPersistenceContextProvider provider = (BasicPersistenceContextProvider) getPersistenceContextProvider();
+			if (provider.isTransactionChangeTracking())
+			{
+				// Chain the tracking interceptor to the one configured for the session factory
+				Interceptor configured = ((SessionFactoryImplementor) sessionFactory).getInterceptor();
+				session = sessionFactory.openSession(new ChangeTrackingInterceptor(configured));
+				trackingChanges = true;
+			}
+			else
+			{
+				session = sessionFactory.openSession();
+				trackingChanges = false;
+			}
+			changesWritten = false;
 			LogUtil.debug(getClass(), "Opened Hibernate session $0.", session);
 		}
 
@@ -607,4 +781,125 @@ public class HibernatePersistenceContext extends BasicPersistenceContext
 	{
 		return getHibernateSession() != null ? getHibernateSession().getTransaction() : null;
 	}
+
+	//////////////////////////////////////////////////
+	// @@ Helper classes
+	//////////////////////////////////////////////////
+
+	/**
+	 * Interceptor that records the changes that are written to the database within the current transaction.
+	 * All calls are passed on to the interceptor that has been configured for the session factory.
+	 */
+	private class ChangeTrackingInterceptor
+		implements Interceptor
+	{
+		/** Interceptor of the session factory */
+		private final Interceptor target;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param target Interceptor of the session factory or null
+		 */
+		public ChangeTrackingInterceptor(Interceptor target)
+		{
+			this.target = target != null ? target : EmptyInterceptor.INSTANCE;
+		}
+
+		public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+		{
+			return target.onLoad(entity, id, state, propertyNames, types);
+		}
+
+		public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types)
+		{
+			changesWritten = true;
+			return target.onFlushDirty(entity, id, currentState, previousState, propertyNames, types);
+		}
+
+		public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+		{
+			changesWritten = true;
+			return target.onSave(entity, id, state, propertyNames, types);
+		}
+
+		public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+		{
+			changesWritten = true;
+			target.onDelete(entity, id, state, propertyNames, types);
+		}
+
+		public void onCollectionRecreate(Object collection, Serializable key)
+		{
+			changesWritten = true;
+			target.onCollectionRecreate(collection, key);
+		}
+
+		public void onCollectionRemove(Object collection, Serializable key)
+		{
+			changesWritten = true;
+			target.onCollectionRemove(collection, key);
+		}
+
+		public void onCollectionUpdate(Object collection, Serializable key)
+		{
+			changesWritten = true;
+			target.onCollectionUpdate(collection, key);
+		}
+
+		public void preFlush(Iterator entities)
+		{
+			target.preFlush(entities);
+		}
+
+		public void postFlush(Iterator entities)
+		{
+			target.postFlush(entities);
+		}
+
+		public Boolean isTransient(Object entity)
+		{
+			return target.isTransient(entity);
+		}
+
+		public int[] findDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types)
+		{
+			return target.findDirty(entity, id, currentState, previousState, propertyNames, types);
+		}
+
+		public Object instantiate(String entityName, EntityMode entityMode, Serializable id)
+		{
+			return target.instantiate(entityName, entityMode, id);
+		}
+
+		public String getEntityName(Object object)
+		{
+			return target.getEntityName(object);
+		}
+
+		public Object getEntity(String entityName, Serializable id)
+		{
+			return target.getEntity(entityName, id);
+		}
+
+		public void afterTransactionBegin(Transaction tx)
+		{
+			target.afterTransactionBegin(tx);
+		}
+
+		public void beforeTransactionCompletion(Transaction tx)
+		{
+			target.beforeTransactionCompletion(tx);
+		}
+
+		public void afterTransactionCompletion(Transaction tx)
+		{
+			target.afterTransactionCompletion(tx);
+		}
+
+		public String onPrepareStatement(String sql)
+		{
+			return target.onPrepareStatement(sql);
+		}
+	}
 }
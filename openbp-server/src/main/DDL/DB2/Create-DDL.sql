@@ -15,6 +15,8 @@ CREATE TABLE OPENBPTOKENCONTEXT (
     TC_PROGRESS_TEXT VARCHAR(250),
     TC_DATA BLOB(2G) NOT LOGGED,
     TC_PARENT_ID VARCHAR(40),
+    TC_CHILD_COUNT INTEGER DEFAULT 0,
+    TC_PARTITION_KEY INTEGER,
     CONSTRAINT TC_PK PRIMARY KEY(TC_ID)
 )!
 
@@ -43,6 +45,12 @@ CREATE TABLE OPENBPWORKFLOWTASK (
     CONSTRAINT TASK_PK PRIMARY KEY(TASK_ID)
 )!
 
+CREATE TABLE OPENBPNODE (
+    NODE_ID VARCHAR(100) NOT NULL,
+    NODE_HEARTBEAT BIGINT,
+    CONSTRAINT NODE_PK PRIMARY KEY(NODE_ID)
+)!
+
 CREATE INDEX TC_PARENT_FK
     ON OPENBPTOKENCONTEXT(TC_PARENT_ID)!
 
@@ -58,3 +66,11 @@ ALTER TABLE OPENBPWORKFLOWTASK
 	ADD CONSTRAINT TASK_TC_FK
 	FOREIGN KEY(TASK_CONTEXT_ID)
 	REFERENCES OPENBPTOKENCONTEXT(TC_ID)!
+
+CREATE TABLE OPENBPCONTEXTVALUE (
+    CV_CONTEXT_ID VARCHAR(40) NOT NULL,
+    CV_NAME VARCHAR(250) NOT NULL,
+    CV_HASH VARCHAR(40),
+    CV_DATA BLOB(2G) NOT LOGGED,
+    CONSTRAINT CV_PK PRIMARY KEY(CV_CONTEXT_ID, CV_NAME)
+)!
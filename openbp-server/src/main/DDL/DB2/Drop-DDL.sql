@@ -1,2 +1,4 @@
 DROP TABLE OPENBPWORKFLOWTASK;
 DROP TABLE OPENBPTOKENCONTEXT;
+DROP TABLE OPENBPNODE;
+DROP TABLE OPENBPCONTEXTVALUE;
@@ -0,0 +1,21 @@
+-- Join counter; existing contexts keep a null counter, so their joins fall back to the child contexts
+ALTER TABLE OPENBPTOKENCONTEXT ADD COLUMN TC_CHILD_COUNT INTEGER!
+ALTER TABLE OPENBPTOKENCONTEXT ALTER COLUMN TC_CHILD_COUNT SET DEFAULT 0!
+
+-- Cluster node registry and partitioning of the token space; existing contexts without partition key belong to partition 0
+ALTER TABLE OPENBPTOKENCONTEXT ADD COLUMN TC_PARTITION_KEY INTEGER!
+
+CREATE TABLE OPENBPNODE (
+    NODE_ID VARCHAR(100) NOT NULL,
+    NODE_HEARTBEAT BIGINT,
+    CONSTRAINT NODE_PK PRIMARY KEY(NODE_ID)
+)!
+
+-- Large context values that are stored by reference
+CREATE TABLE OPENBPCONTEXTVALUE (
+    CV_CONTEXT_ID VARCHAR(40) NOT NULL,
+    CV_NAME VARCHAR(250) NOT NULL,
+    CV_HASH VARCHAR(40),
+    CV_DATA BLOB(2G) NOT LOGGED,
+    CONSTRAINT CV_PK PRIMARY KEY(CV_CONTEXT_ID, CV_NAME)
+)!
@@ -1,2 +1,4 @@
 DELETE FROM OPENBPWORKFLOWTASK;
 DELETE FROM OPENBPTOKENCONTEXT;
+DELETE FROM OPENBPNODE;
+DELETE FROM OPENBPCONTEXTVALUE;
@@ -15,6 +15,8 @@ CREATE TABLE OPENBPTOKENCONTEXT (
 	TC_PROGRESS_TEXT VARCHAR(250),
 	TC_DATA LONG VARCHAR FOR BIT DATA,
 	TC_PARENT_ID VARCHAR(40),
+	TC_CHILD_COUNT INTEGER DEFAULT 0,
+	TC_PARTITION_KEY INTEGER,
 	PRIMARY KEY (TC_ID)
 );
 
@@ -43,6 +45,12 @@ CREATE TABLE OPENBPWORKFLOWTASK (
 	PRIMARY KEY (TASK_ID)
 );
 
+CREATE TABLE OPENBPNODE (
+	NODE_ID VARCHAR(100) NOT NULL,
+	NODE_HEARTBEAT BIGINT,
+	PRIMARY KEY (NODE_ID)
+);
+
 CREATE INDEX FK_OPENBPTOKENCONTEXT_PARENT_ID ON OPENBPTOKENCONTEXT(TC_PARENT_ID);
 
 ALTER TABLE OPENBPTOKENCONTEXT 
@@ -80,3 +88,11 @@ CREATE TABLE OPENBPMODEL (
 
 CREATE INDEX FK_OPENBPMODEL_NAME ON OPENBPMODEL(MO_NAME);
 CREATE INDEX FK_OPENBPMODELITEM_MODEL_NAME ON OPENBPMODELITEM(MI_MODEL_NAME);
+
+CREATE TABLE OPENBPCONTEXTVALUE (
+	CV_CONTEXT_ID VARCHAR(40) NOT NULL,
+	CV_NAME VARCHAR(250) NOT NULL,
+	CV_HASH VARCHAR(40),
+	CV_DATA BLOB(2G),
+	PRIMARY KEY (CV_CONTEXT_ID, CV_NAME)
+);
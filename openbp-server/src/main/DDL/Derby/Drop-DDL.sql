@@ -2,3 +2,5 @@ DROP TABLE OPENBPWORKFLOWTASK;
 DROP TABLE OPENBPTOKENCONTEXT;
 DROP TABLE OPENBPMODELITEM;
 DROP TABLE OPENBPMODEL;
+DROP TABLE OPENBPNODE;
+DROP TABLE OPENBPCONTEXTVALUE;
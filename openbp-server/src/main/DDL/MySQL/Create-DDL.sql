@@ -15,6 +15,8 @@ CREATE TABLE OPENBPTOKENCONTEXT (
 	TC_PROGRESS_TEXT VARCHAR(250),
 	TC_DATA BLOB,
 	TC_PARENT_ID VARCHAR(40),
+	TC_CHILD_COUNT INTEGER DEFAULT 0,
+	TC_PARTITION_KEY INTEGER,
 	PRIMARY KEY (TC_ID)
 );
 
@@ -43,6 +45,12 @@ CREATE TABLE OPENBPWORKFLOWTASK (
 	PRIMARY KEY (TASK_ID)
 );
 
+CREATE TABLE OPENBPNODE (
+	NODE_ID VARCHAR(100) NOT NULL,
+	NODE_HEARTBEAT BIGINT,
+	PRIMARY KEY (NODE_ID)
+);
+
 ALTER TABLE OPENBPTOKENCONTEXT 
 	ADD INDEX FK_OPENBPTOKENCONTEXT_PARENT_ID (TC_PARENT_ID), 
 	ADD CONSTRAINT FK_OPENBPTOKENCONTEXT_PARENT_ID
@@ -57,3 +65,11 @@ ALTER TABLE OPENBPWORKFLOWTASK
 	ADD CONSTRAINT FK_OPENBPWORKFLOWTASK_CONTEXT_ID 
 	FOREIGN KEY (TASK_CONTEXT_ID) 
 	REFERENCES OPENBPTOKENCONTEXT (TC_ID);
+
+CREATE TABLE OPENBPCONTEXTVALUE (
+	CV_CONTEXT_ID VARCHAR(40) NOT NULL,
+	CV_NAME VARCHAR(250) NOT NULL,
+	CV_HASH VARCHAR(40),
+	CV_DATA LONGBLOB,
+	PRIMARY KEY (CV_CONTEXT_ID, CV_NAME)
+);
@@ -15,6 +15,8 @@ CREATE TABLE OPENBPTOKENCONTEXT (
 	TC_PROGRESS_TEXT VARCHAR2(250 CHAR),
 	TC_DATA BLOB,
 	TC_PARENT_ID VARCHAR2(40),
+	TC_CHILD_COUNT NUMBER(10,0) DEFAULT 0,
+	TC_PARTITION_KEY NUMBER(10,0),
 	CONSTRAINT TC_PK PRIMARY KEY(TC_ID) USING INDEX PCTFREE 10
 ) PCTFREE 10;
 
@@ -43,6 +45,12 @@ CREATE TABLE OPENBPWORKFLOWTASK (
 	CONSTRAINT TASK_PK PRIMARY KEY(TASK_ID) USING INDEX PCTFREE 10
 ) PCTFREE 10;
 
+CREATE TABLE OPENBPNODE (
+	NODE_ID VARCHAR2(100 CHAR) CONSTRAINT NODE_ID_NN NOT NULL,
+	NODE_HEARTBEAT NUMBER(19,0),
+	CONSTRAINT NODE_PK PRIMARY KEY(NODE_ID) USING INDEX PCTFREE 10
+) PCTFREE 10;
+
 
 CREATE INDEX TC_PARENT_FK
 	ON OPENBPTOKENCONTEXT(TC_PARENT_ID);
@@ -59,3 +67,11 @@ ALTER TABLE OPENBPWORKFLOWTASK
 	ADD CONSTRAINT TASK_TC_FK 
 	FOREIGN KEY(TASK_CONTEXT_ID) 
 	REFERENCES OPENBPTOKENCONTEXT(TC_ID);
+
+CREATE TABLE OPENBPCONTEXTVALUE (
+	CV_CONTEXT_ID VARCHAR2(40 CHAR) CONSTRAINT CV_CONTEXT_ID_NN NOT NULL,
+	CV_NAME VARCHAR2(250 CHAR) CONSTRAINT CV_NAME_NN NOT NULL,
+	CV_HASH VARCHAR2(40 CHAR),
+	CV_DATA BLOB,
+	CONSTRAINT CV_PK PRIMARY KEY(CV_CONTEXT_ID, CV_NAME) USING INDEX PCTFREE 10
+) PCTFREE 10;
@@ -1,2 +1,4 @@
 DROP TABLE OPENBPTOKENCONTEXT CASCADE CONSTRAINTS;
 DROP TABLE OPENBPWORKFLOWTASK CASCADE CONSTRAINTS;
+DROP TABLE OPENBPNODE CASCADE CONSTRAINTS;
+DROP TABLE OPENBPCONTEXTVALUE CASCADE CONSTRAINTS;
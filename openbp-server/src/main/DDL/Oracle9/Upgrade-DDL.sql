@@ -0,0 +1,21 @@
+-- Join counter; existing contexts keep a null counter, so their joins fall back to the child contexts
+ALTER TABLE OPENBPTOKENCONTEXT ADD (TC_CHILD_COUNT NUMBER(10,0));
+ALTER TABLE OPENBPTOKENCONTEXT MODIFY (TC_CHILD_COUNT DEFAULT 0);
+
+-- Cluster node registry and partitioning of the token space; existing contexts without partition key belong to partition 0
+ALTER TABLE OPENBPTOKENCONTEXT ADD (TC_PARTITION_KEY NUMBER(10,0));
+
+CREATE TABLE OPENBPNODE (
+	NODE_ID VARCHAR2(100 CHAR) CONSTRAINT NODE_ID_NN NOT NULL,
+	NODE_HEARTBEAT NUMBER(19,0),
+	CONSTRAINT NODE_PK PRIMARY KEY(NODE_ID) USING INDEX PCTFREE 10
+) PCTFREE 10;
+
+-- Large context values that are stored by reference
+CREATE TABLE OPENBPCONTEXTVALUE (
+	CV_CONTEXT_ID VARCHAR2(40 CHAR) CONSTRAINT CV_CONTEXT_ID_NN NOT NULL,
+	CV_NAME VARCHAR2(250 CHAR) CONSTRAINT CV_NAME_NN NOT NULL,
+	CV_HASH VARCHAR2(40 CHAR),
+	CV_DATA BLOB,
+	CONSTRAINT CV_PK PRIMARY KEY(CV_CONTEXT_ID, CV_NAME) USING INDEX PCTFREE 10
+) PCTFREE 10;
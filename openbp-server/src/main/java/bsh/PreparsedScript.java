@@ -0,0 +1,144 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package bsh;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bean shell script that has been parsed once and can be evaluated any number of times.
+ *
+ * The bean shell does not expose its syntax tree outside of the bsh package,
+ * so this class has to reside in the bsh package itself.
+ * The evaluation mirrors {@link Interpreter#eval(java.io.Reader, NameSpace, String)},
+ * except that the statements are parsed only once.
+ *
+ * This class is not thread-safe. The nodes of the syntax tree cache the classes and names they resolved
+ * during the evaluation without synchronization, so a parsed script must not be evaluated by several threads concurrently.
+ * {@link org.openbp.server.engine.script.ScriptCache} keeps the parsed scripts of each thread separately.
+ *
+ * @author Heiko Erhardt
+ */
+public final class PreparsedScript
+{
+	/** Top level statements of the script */
+	private final SimpleNode [] statements;
+
+	/**
+	 * Private constructor.
+	 *
+	 * @param statements Top level statements of the script
+	 */
+	private PreparsedScript(SimpleNode [] statements)
+	{
+		this.statements = statements;
+	}
+
+	/**
+	 * Parses a script.
+	 *
+	 * @param script Script to parse
+	 * @param sourceFileInfo Source description that will be used in error messages
+	 * @return The parsed script
+	 * @throws EvalError On syntax errors
+	 */
+	public static PreparsedScript parse(String script, String sourceFileInfo)
+		throws EvalError
+	{
+		Parser parser = new Parser(new StringReader(script));
+		List<SimpleNode> statements = new ArrayList<SimpleNode>();
+
+		try
+		{
+			boolean eof = false;
+			while (! eof)
+			{
+				eof = parser.Line();
+				if (parser.jjtree.nodeArity() > 0)
+				{
+					SimpleNode node = (SimpleNode) parser.jjtree.rootNode();
+					node.setSourceFile(sourceFileInfo);
+					statements.add(node);
+				}
+				parser.jjtree.reset();
+			}
+		}
+		catch (ParseException e)
+		{
+			throw new EvalError("Sourced file: " + sourceFileInfo + " parser Error: " + e.getMessage(), null, null);
+		}
+		catch (TokenMgrError e)
+		{
+			throw new EvalError("Sourced file: " + sourceFileInfo + " Token Parsing Error: " + e.getMessage(), null, null);
+		}
+
+		return new PreparsedScript(statements.toArray(new SimpleNode [statements.size()]));
+	}
+
+	/**
+	 * Evaluates the script.
+	 *
+	 * @param interpreter Interpreter to use for the evaluation
+	 * @param nameSpace Name space to evaluate the script in
+	 * @return The value of the last statement or of the return statement
+	 * @throws EvalError On evaluation errors
+	 */
+	public Object eval(Interpreter interpreter, NameSpace nameSpace)
+		throws EvalError
+	{
+		CallStack callstack = new CallStack(nameSpace);
+		Object retVal = null;
+
+		for (int i = 0; i < statements.length; ++i)
+		{
+			SimpleNode node = statements [i];
+			try
+			{
+				retVal = node.eval(callstack, interpreter);
+			}
+			catch (TargetError e)
+			{
+				if (e.getNode() == null)
+				{
+					e.setNode(node);
+				}
+				throw e;
+			}
+			catch (InterpreterError e)
+			{
+				throw new EvalError("Sourced file: " + node.getSourceFile() + " internal Error: " + e.getMessage(), node, callstack);
+			}
+			finally
+			{
+				// Make sure the call stack is clean for the next statement
+				if (callstack.depth() > 1)
+				{
+					callstack.clear();
+					callstack.push(nameSpace);
+				}
+			}
+
+			if (retVal instanceof ReturnControl)
+			{
+				retVal = ((ReturnControl) retVal).value;
+				break;
+			}
+		}
+
+		return Primitive.unwrap(retVal);
+	}
+}
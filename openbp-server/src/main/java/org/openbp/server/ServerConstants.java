@@ -29,11 +29,60 @@ public interface ServerConstants
 	/* System property: Flag that determines if accessing an undefined process variable should cause an exception */
 	public static final String SYSPROP_PROCESSVARIABLEHANDLING_STRICT = "openbp.processVariableHandling.strict";
 
+	/* System property: Flag that determines if the serialized context data of a token should be rebuilt only if
+	 * the parameter values or the call stack of the token have been modified (default: true).
+	 * Mutable values that are handed out by the token are hashed and checked for modifications when the token is saved,
+	 * so reading a value does not cause the context data to be rebuilt.
+	 * This is enabled by default because it does not change the persisted state, except for one case:
+	 * A mutable value that has been retrieved before the token has been saved and that is modified after the save
+	 * will not be detected. Set this to false if the application modifies context values it has retrieved in a previous transaction.
+	 */
+	public static final String SYSPROP_CONTEXTDATA_DIRTYTRACKING = "openbp.contextData.dirtyTracking";
+
+	/* System property: Minimum size in bytes of a serialized context value that will be stored by reference (default: 8192).
+	 * Applies only if a {@link org.openbp.server.context.ContextValueStore} has been registered
+	 * (see {@link org.openbp.server.context.PersistentTokenContextService#setContextValueStore}).
+	 * Large values that have not been modified will neither be serialized nor written again when the token is saved.
+	 * 0 keeps all values in the context data.
+	 */
+	public static final String SYSPROP_CONTEXTDATA_EXTERNALVALUESIZE = "openbp.contextData.externalValueSize";
+
+	/* System property: Flag that determines if the context data of a token should be written in the compact binary format (default: true).
+	 * Set this to false in order to write the format that is understood by previous versions of OpenBP.
+	 * Both formats can be read regardless of this setting.
+	 */
+	public static final String SYSPROP_CONTEXTDATA_COMPACTFORMAT = "openbp.contextData.compactFormat";
+
+	/* System property: Minimum size in bytes of the context data of a token in compact format that will be compressed.
+	 * 0 disables compression (default: 2000)
+	 */
+	public static final String SYSPROP_CONTEXTDATA_COMPRESSIONTHRESHOLD = "openbp.contextData.compressionThreshold";
+
 	/* System property: Timeout of the server session in sec.
 	 * Determines when a token context is removed from the {@link SessionRegistry} 0 for no timeout (default: 0)
 	 */
 	public static final String SYSPROP_SERVERSESSION_TIMEOUT = "openbp.serverSession.timeout";
 
+	/* System property: Number of child tokens a fork node creates before it flushes them to the database in a single batch.
+	 * 0 flushes all child tokens of the fork at once (default: 500)
+	 */
+	public static final String SYSPROP_FORK_CHUNKSIZE = "openbp.fork.chunkSize";
+
+	/* System property: Flag that determines if a fork node should commit the transaction after each chunk of child tokens,
+	 * so that the engine runner can start executing the children before the fork has completed (default: false).
+	 * Do not enable this for forks whose children are joined again: A child that reaches the join node before its
+	 * siblings have been created will consider the fork complete.
+	 * If the fork fails after a chunk has been committed, a retry of the parent token continues after the committed children.
+	 */
+	public static final String SYSPROP_FORK_COMMITCHUNKS = "openbp.fork.commitChunks";
+
+	/* System property: Flag that determines if the engine should coalesce the transactions of a token that has been
+	 * claimed by the engine runner, i. e. commit only at transaction control links, wait states and the end of the token
+	 * instead of committing the running state before the first step (default: false).
+	 * Can be enabled for individual processes using the transactionCoalescingProcesses property of the engine.
+	 */
+	public static final String SYSPROP_ENGINE_TRANSACTIONCOALESCING = "openbp.engine.transactionCoalescing";
+
 	/* System property: Timeout of the client session in sec.
 	 * Determines when the connection between the OpenBP engine and the OpenBP modeler will be closed. 0 for no timeout (default: 24 hours)
 	 */
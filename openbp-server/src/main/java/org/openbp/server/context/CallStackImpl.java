@@ -26,7 +26,6 @@ import org.openbp.common.logger.LogUtil;
 import org.openbp.core.OpenBPException;
 import org.openbp.core.engine.EngineException;
 import org.openbp.core.model.ModelQualifier;
-import org.openbp.core.model.item.ItemTypes;
 import org.openbp.core.model.item.process.NodeSocket;
 import org.openbp.core.model.item.process.ProcessItem;
 import org.openbp.core.model.item.process.ProcessVariable;
@@ -519,9 +518,7 @@ public class CallStackImpl
 		{
 			if (tempNodeSocketQualifier != null)
 			{
-				ModelQualifier qualifier = new ModelQualifier(tempNodeSocketQualifier);
-				qualifier.setItemType(ItemTypes.PROCESS);
-				nodeSocket = EngineUtil.determineNodeSocketFromQualifier(qualifier, modelMgr);
+				nodeSocket = modelMgr.getNodeSocketByQualifierString(tempNodeSocketQualifier);
 				tempNodeSocketQualifier = null;
 			}
 		}
@@ -0,0 +1,61 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context;
+
+import java.io.Serializable;
+
+/**
+ * Placeholder for a token context value that is stored by reference in a {@link ContextValueStore}.
+ * The reference is written to the serialized context data instead of the value itself.
+ *
+ * @author Heiko Erhardt
+ */
+public class ContextValueReference
+	implements Serializable
+{
+	private static final long serialVersionUID = 2871260343829461270L;
+
+	/** Hash of the serialized value */
+	private String valueHash;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param valueHash Hash of the serialized value
+	 */
+	public ContextValueReference(String valueHash)
+	{
+		this.valueHash = valueHash;
+	}
+
+	/**
+	 * Gets the hash of the serialized value.
+	 * @nowarn
+	 */
+	public String getValueHash()
+	{
+		return valueHash;
+	}
+
+	/**
+	 * Returns a string representation of this object.
+	 * @nowarn
+	 */
+	public String toString()
+	{
+		return "ContextValueReference[" + valueHash + "]";
+	}
+}
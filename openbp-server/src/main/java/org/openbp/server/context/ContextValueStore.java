@@ -0,0 +1,58 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Store for large token context values.
+ * If a context value store has been registered with the {@link org.openbp.common.CommonRegistry},
+ * context values whose serialized size exceeds the
+ * {@link org.openbp.server.ServerConstants#SYSPROP_CONTEXTDATA_EXTERNALVALUESIZE} setting are stored by reference.
+ * The serialized context data contains a {@link ContextValueReference} only, so an unchanged large value
+ * is neither serialized nor written again when the context data is updated.
+ *
+ * @author Heiko Erhardt
+ */
+public interface ContextValueStore
+{
+	/**
+	 * Loads the values of the given context.
+	 *
+	 * @param context Token context
+	 * @return A map that maps value names (Strings) to serialized values (byte arrays)
+	 */
+	public Map loadValues(TokenContext context);
+
+	/**
+	 * Stores a value of the given context, replacing the previous value of the same name.
+	 *
+	 * @param context Token context
+	 * @param name Value name
+	 * @param valueHash Hash of the serialized value
+	 * @param data Serialized value
+	 */
+	public void storeValue(TokenContext context, String name, String valueHash, byte[] data);
+
+	/**
+	 * Removes values of the given context.
+	 *
+	 * @param context Token context
+	 * @param names Names of the values to remove (Strings) or null to remove all values of the context
+	 */
+	public void removeValues(TokenContext context, Collection names);
+}
@@ -0,0 +1,38 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context;
+
+/**
+ * Placeholder for a parameter value or process variable value of a token context that will be determined on first access,
+ * e. g. a reference to a persistent object that has not been loaded yet.
+ *
+ * The token context will resolve the placeholder when the value is accessed using
+ * {@link TokenContext#getParamValue}, {@link TokenContext#getNodeParamValue} or {@link TokenContext#getProcessVariableValue}
+ * and will replace the placeholder by the resolved value.
+ * Note that the value map returned by {@link TokenContext#getParamValues} may still contain unresolved placeholders.
+ *
+ * @author Heiko Erhardt
+ */
+public interface DeferredContextValue
+{
+	/**
+	 * Determines the actual value.
+	 *
+	 * @param context Token context the value belongs to
+	 * @return The value
+	 */
+	public Object resolveValue(TokenContext context);
+}
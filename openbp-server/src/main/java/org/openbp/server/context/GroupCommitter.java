@@ -0,0 +1,539 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openbp.common.generic.LifecycleSupport;
+import org.openbp.common.logger.LogUtil;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.persistence.PersistenceContextProvider;
+import org.openbp.server.persistence.PersistenceException;
+
+/**
+ * Group commit of token context updates.
+ *
+ * Each engine thread commits its own transaction, so a database under load sees a large number of
+ * small transactions that update a single token context row each.
+ * If a group committer has been assigned to the {@link PersistentTokenContextService},
+ * the update of a token that is being suspended is not written by the transaction of its engine thread.
+ * Instead, the group committer collects the updates of all engine threads that arrive within
+ * {@link #setMaxDelay maxDelay} milliseconds and writes them in a single transaction,
+ * using a persistence context of its own.
+ * The engine thread waits until this transaction has been committed.
+ * If the committer has been shut down or the update has not been picked up within
+ * {@link #setCommitTimeout commitTimeout} milliseconds, the engine thread writes the context itself.
+ *
+ * The group commit is used only if the transaction of the engine thread does not contain any changes besides the token context update,
+ * otherwise the token context is written within the transaction of the engine thread.
+ * The group committer requires a persistence layer that is able to reattach a detached object
+ * to a different persistence context (e. g. Hibernate).
+ *
+ * @author Heiko Erhardt
+ */
+public class GroupCommitter
+	implements LifecycleSupport
+{
+	/** Default maximum number of token context updates per transaction */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+	/** Default time in milliseconds to wait for further token context updates before the transaction is committed */
+	public static final int DEFAULT_MAX_DELAY = 5;
+
+	/** Default time in milliseconds an engine thread waits for the group commit of its token context */
+	public static final long DEFAULT_COMMIT_TIMEOUT = 30000L;
+
+	/** Time in milliseconds the committer thread waits for a request before checking for a stop request */
+	private static final long POLL_TIME = 100L;
+
+	/** Pending commit requests */
+	private final BlockingQueue<CommitRequest> requests = new LinkedBlockingQueue<CommitRequest>();
+
+	/** Persistence context provider */
+	private PersistenceContextProvider persistenceContextProvider;
+
+	/** Maximum number of token context updates per transaction */
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	/** Time in milliseconds to wait for further token context updates before the transaction is committed */
+	private int maxDelay = DEFAULT_MAX_DELAY;
+
+	/** Time in milliseconds an engine thread waits for the group commit of its token context */
+	private long commitTimeout = DEFAULT_COMMIT_TIMEOUT;
+
+	/** Committer thread */
+	private Thread committerThread;
+
+	/** Flag that requests the committer thread to stop */
+	private volatile boolean stopRequested;
+
+	/** Flag if the committer has been shut down; requests will be rejected until it is initialized again */
+	private boolean stopped;
+
+	/** Number of token context updates that have been written by group commits */
+	private final AtomicLong numberOfCommittedContexts = new AtomicLong();
+
+	/**
+	 * Default constructor.
+	 */
+	public GroupCommitter()
+	{
+	}
+
+	//////////////////////////////////////////////////
+	// @@ LifecycleSupport implementation
+	//////////////////////////////////////////////////
+
+	/**
+	 * Starts the committer thread.
+	 */
+	public synchronized void initialize()
+	{
+		if (committerThread != null)
+			return;
+
+		stopRequested = false;
+		stopped = false;
+		committerThread = new Thread("OpenBP group committer")
+		{
+			public void run()
+			{
+				commitLoop();
+			}
+		};
+		committerThread.setDaemon(true);
+		committerThread.start();
+	}
+
+	/**
+	 * Stops the committer thread.
+	 * Pending requests will be committed before the thread ends, further requests will be rejected.
+	 */
+	public synchronized void shutdown()
+	{
+		stopped = true;
+		if (committerThread == null)
+			return;
+
+		stopRequested = true;
+		try
+		{
+			committerThread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		committerThread = null;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Commit
+	//////////////////////////////////////////////////
+
+	/**
+	 * Writes the given token context and waits until the update has been committed.
+	 * The context must not be attached to the persistence context of the calling thread.
+	 * If the committer has been shut down or has not picked up the update within the commit timeout,
+	 * the update is withdrawn and the caller has to write the context itself.
+	 *
+	 * @param context Context to save
+	 * @return
+	 *		true	The update has been committed by the group committer<br>
+	 *		false	The update has been rejected or withdrawn
+	 * @throws PersistenceException On error or if the update has been picked up, but not committed within the commit timeout
+	 */
+	public boolean commit(TokenContext context)
+	{
+		CommitRequest request = (CommitRequest) submit(context);
+		if (request == null)
+			return false;
+
+		try
+		{
+			try
+			{
+				request.get(commitTimeout, TimeUnit.MILLISECONDS);
+				return true;
+			}
+			catch (TimeoutException e)
+			{
+				if (request.take())
+				{
+					LogUtil.warn(getClass(), "Group commit of token context timed out after $0 ms, withdrawing the update. [{1}]", Long.valueOf(commitTimeout), context);
+					return false;
+				}
+			}
+
+			// The committer thread is writing the context right now
+			request.get(commitTimeout, TimeUnit.MILLISECONDS);
+			return true;
+		}
+		catch (TimeoutException e)
+		{
+			throw new PersistenceException("Group commit of a token context timed out.", e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new PersistenceException("Interrupted while waiting for the group commit of a token context.", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new PersistenceException("Group commit of a token context failed.", cause);
+		}
+	}
+
+	/**
+	 * Submits the given token context for the next group commit.
+	 * The context must not be attached to the persistence context of the calling thread
+	 * and must not be accessed until the returned future is done.
+	 *
+	 * @param context Context to save
+	 * @return Future that is done when the update has been committed or null if the committer has been shut down
+	 */
+	public synchronized Future<TokenContext> submit(TokenContext context)
+	{
+		if (stopped)
+			return null;
+		if (committerThread == null)
+		{
+			initialize();
+		}
+
+		CommitRequest request = new CommitRequest(context);
+		requests.add(request);
+		return request;
+	}
+
+	/**
+	 * Main loop of the committer thread.
+	 */
+	protected void commitLoop()
+	{
+		List<CommitRequest> batch = new ArrayList<CommitRequest>();
+		for (;;)
+		{
+			CommitRequest request = pollRequest(POLL_TIME * 1000000L);
+			if (request == null)
+			{
+				if (stopRequested && requests.isEmpty())
+					break;
+				continue;
+			}
+			if (request.take())
+			{
+				batch.add(request);
+			}
+
+			// Collect the requests of the other engine threads that arrive within the maximum delay
+			long deadline = System.nanoTime() + maxDelay * 1000000L;
+			while (batch.size() < maxBatchSize)
+			{
+				request = pollRequest(deadline - System.nanoTime());
+				if (request == null)
+					break;
+				if (request.take())
+				{
+					batch.add(request);
+				}
+			}
+
+			if (! batch.isEmpty())
+			{
+				commitBatch(batch);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Retrieves the next commit request.
+	 *
+	 * @param timeout Time to wait for a request in nanoseconds
+	 * @return The request or null if no request has arrived in the given time
+	 */
+	private CommitRequest pollRequest(long timeout)
+	{
+		try
+		{
+			return timeout > 0L ? requests.poll(timeout, TimeUnit.NANOSECONDS) : requests.poll();
+		}
+		catch (InterruptedException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the token contexts of the given requests in a single transaction.
+	 * If the transaction fails, the requests will be committed separately, so the error is reported to the affected request only.
+	 *
+	 * @param batch Requests to commit
+	 */
+	protected void commitBatch(List<CommitRequest> batch)
+	{
+		try
+		{
+			writeContexts(batch);
+		}
+		catch (Throwable t)
+		{
+			if (batch.size() == 1)
+			{
+				batch.get(0).failed(t);
+				return;
+			}
+
+			LogUtil.warn(getClass(), "Group commit of $0 token contexts failed, committing them separately.", Integer.valueOf(batch.size()), t);
+			for (CommitRequest request : batch)
+			{
+				try
+				{
+					writeContexts(Collections.singletonList(request));
+				}
+				catch (Throwable t2)
+				{
+					request.failed(t2);
+					continue;
+				}
+				numberOfCommittedContexts.incrementAndGet();
+				request.committed();
+			}
+			return;
+		}
+
+		numberOfCommittedContexts.addAndGet(batch.size());
+		for (CommitRequest request : batch)
+		{
+			request.committed();
+		}
+	}
+
+	/**
+	 * Saves the token contexts of the given requests and commits the transaction.
+	 *
+	 * @param batch Requests to commit
+	 * @throws PersistenceException On error
+	 */
+	protected void writeContexts(List<CommitRequest> batch)
+	{
+		PersistenceContext pc = persistenceContextProvider.obtainPersistenceContext();
+		try
+		{
+			pc.beginTransaction();
+			for (CommitRequest request : batch)
+			{
+				pc.saveObject(request.getContext());
+			}
+			pc.commitTransaction();
+		}
+		catch (RuntimeException e)
+		{
+			if (pc.isTransactionActive())
+			{
+				pc.rollbackTransaction();
+			}
+			throw e;
+		}
+		finally
+		{
+			// Detach the contexts again, they belong to their engine threads
+			pc.release();
+		}
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Properties
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the number of token context updates that are waiting for the next group commit.
+	 * @nowarn
+	 */
+	public int getNumberOfPendingRequests()
+	{
+		return requests.size();
+	}
+
+	/**
+	 * Gets the number of token context updates that have been written by group commits.
+	 * @nowarn
+	 */
+	public long getNumberOfCommittedContexts()
+	{
+		return numberOfCommittedContexts.get();
+	}
+
+	/**
+	 * Gets the persistence context provider.
+	 * @nowarn
+	 */
+	public PersistenceContextProvider getPersistenceContextProvider()
+	{
+		return persistenceContextProvider;
+	}
+
+	/**
+	 * Sets the persistence context provider.
+	 * Will be set by {@link PersistentTokenContextService#setGroupCommitter} if not set explicitly.
+	 * @nowarn
+	 */
+	public void setPersistenceContextProvider(PersistenceContextProvider persistenceContextProvider)
+	{
+		this.persistenceContextProvider = persistenceContextProvider;
+	}
+
+	/**
+	 * Gets the maximum number of token context updates per transaction.
+	 * @nowarn
+	 */
+	public int getMaxBatchSize()
+	{
+		return maxBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of token context updates per transaction.
+	 * @nowarn
+	 */
+	public void setMaxBatchSize(int maxBatchSize)
+	{
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Gets the time in milliseconds to wait for further token context updates before the transaction is committed.
+	 * @nowarn
+	 */
+	public int getMaxDelay()
+	{
+		return maxDelay;
+	}
+
+	/**
+	 * Sets the time in milliseconds to wait for further token context updates before the transaction is committed.
+	 * This is the additional latency of a suspension; 0 commits the updates that are pending at the time without waiting.
+	 * @nowarn
+	 */
+	public void setMaxDelay(int maxDelay)
+	{
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Gets the time in milliseconds an engine thread waits for the group commit of its token context.
+	 * @nowarn
+	 */
+	public long getCommitTimeout()
+	{
+		return commitTimeout;
+	}
+
+	/**
+	 * Sets the time in milliseconds an engine thread waits for the group commit of its token context.
+	 * If the update has not been picked up by the committer thread within this time, the engine thread writes the context itself.
+	 * @nowarn
+	 */
+	public void setCommitTimeout(long commitTimeout)
+	{
+		this.commitTimeout = commitTimeout;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Helper classes
+	//////////////////////////////////////////////////
+
+	/**
+	 * Request to commit a token context.
+	 */
+	private static class CommitRequest extends FutureTask<TokenContext>
+	{
+		/** Context to save */
+		private final TokenContext context;
+
+		/** Flag if the request has been taken by the committer thread or withdrawn by the engine thread */
+		private final AtomicBoolean taken = new AtomicBoolean();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param context Context to save
+		 */
+		public CommitRequest(TokenContext context)
+		{
+			// The task itself is never run; the committer thread sets the outcome
+			super(new Runnable()
+			{
+				public void run()
+				{
+				}
+			}, context);
+			this.context = context;
+		}
+
+		/**
+		 * Gets the context to save.
+		 * @nowarn
+		 */
+		public TokenContext getContext()
+		{
+			return context;
+		}
+
+		/**
+		 * Takes the request, either for writing it (committer thread) or for withdrawing it (engine thread).
+		 *
+		 * @return true if the request has been taken by the caller, false if it has been taken already
+		 */
+		public boolean take()
+		{
+			return taken.compareAndSet(false, true);
+		}
+
+		/**
+		 * Notifies the waiting engine thread that the update has been committed.
+		 */
+		public void committed()
+		{
+			set(context);
+		}
+
+		/**
+		 * Notifies the waiting engine thread that the update has failed.
+		 *
+		 * @param t Error
+		 */
+		public void failed(Throwable t)
+		{
+			setException(t);
+		}
+	}
+}
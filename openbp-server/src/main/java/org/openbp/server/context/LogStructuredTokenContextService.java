@@ -0,0 +1,1207 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openbp.common.logger.LogUtil;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.persistence.PersistenceException;
+
+/**
+ * Token context service that keeps its contexts in memory and records all changes in a local append-only log.
+ * This provides durable storage of token contexts and workflow tasks for single-node deployments without a database.
+ *
+ * The service extends the {@link TransientTokenContextService}; queries are served from memory.
+ * Each saved context or workflow task is appended to the {@link TokenLog} as a complete record,
+ * deletions are appended as delete records.
+ * The service maintains an in-memory index that maps the ids of the contexts and workflow tasks to the location
+ * of their current record.
+ * When the ratio of obsolete records in the sealed segments of the log exceeds the
+ * {@link #setCompactionThreshold compaction threshold} after a commit, the compactor thread of the service
+ * copies the current records to the head of the log and removes the sealed segments.
+ * The segments are compacted one at a time, oldest first, so the log is locked for the compaction of a single segment only.
+ *
+ * When the service is initialized, the log is replayed and the contexts and workflow tasks are restored.
+ * Contexts that were selected or running when the service was stopped are suspended and marked for resumption.
+ * Since the contexts refer to model objects, the service must be initialized after the models have been read
+ * (i. e. it must be listed in the services2 list of the process server).
+ *
+ * The records of saved or deleted contexts and workflow tasks are collected in the persistence context of the current thread
+ * and appended to the log as a single batch on {@link #commit}; they become durable at this point if {@link #setSyncOnCommit syncOnCommit} is set.
+ * If the process crashes while a batch is being written, the batch will be skipped as a whole when the log is replayed.
+ * A {@link #rollback} or the release of the persistence context discards the records that have been collected since
+ * the last commit, so the log contains the committed changes only. Like in the transient token context service, the objects in memory are not reverted.
+ * Changes of the child counter of a parent context (see {@link #addChildCount} and {@link #releaseChildContext})
+ * are committed with the transaction that changed the counter; the parent record is encoded when it is appended to the log,
+ * so the last record of the parent reflects the latest counter value.
+ * The token contexts must be {@link TokenContextImpl} objects.
+ *
+ * @author Heiko Erhardt
+ */
+public class LogStructuredTokenContextService extends TransientTokenContextService
+{
+	/** Default size of a log segment in bytes */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/** Default ratio of obsolete records in the sealed segments that triggers a compaction */
+	public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5d;
+
+	/** Record type: Token context */
+	private static final byte RECORD_CONTEXT = 1;
+
+	/** Record type: Token context has been deleted */
+	private static final byte RECORD_CONTEXT_DELETED = 2;
+
+	/** Record type: Workflow task */
+	private static final byte RECORD_TASK = 3;
+
+	/** Record type: Workflow task has been deleted */
+	private static final byte RECORD_TASK_DELETED = 4;
+
+	/** Name of the persistence context attribute that holds the changes of the current transaction */
+	private static final String ATTRIBUTE_PENDING_CHANGES = LogStructuredTokenContextService.class.getName() + ".pendingChanges";
+
+	//////////////////////////////////////////////////
+	// @@ Data members
+	//////////////////////////////////////////////////
+
+	/** Directory of the log files */
+	private String directory = "tokenlog";
+
+	/** Size of a log segment in bytes */
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	/** Flag if the log should be forced to the storage device on commit */
+	private boolean syncOnCommit = true;
+
+	/** Ratio of obsolete records in the sealed segments that triggers a compaction */
+	private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	/** Token log or null if the service has not been initialized */
+	private TokenLog log;
+
+	/** Location of the current record of each context; maps context ids to {@link TokenLog.Location} objects */
+	private final Map<Object, TokenLog.Location> contextLocations = new HashMap<Object, TokenLog.Location>();
+
+	/** Location of the current record of each workflow task; maps workflow task ids to {@link TokenLog.Location} objects */
+	private final Map<Object, TokenLog.Location> taskLocations = new HashMap<Object, TokenLog.Location>();
+
+	/** Compactor thread or null if the service has not been initialized */
+	private Thread compactorThread;
+
+	/** Lock that guards the compaction request */
+	private final Object compactionLock = new Object();
+
+	/** Flag that requests a compaction of the log */
+	private boolean compactionRequested;
+
+	/** Flag that requests the compactor thread to stop */
+	private volatile boolean stopRequested;
+
+	//////////////////////////////////////////////////
+	// @@ Construction
+	//////////////////////////////////////////////////
+
+	/**
+	 * Default constructor.
+	 */
+	public LogStructuredTokenContextService()
+	{
+	}
+
+	/**
+	 * Opens the log and restores the contexts and workflow tasks.
+	 */
+	public void initialize()
+	{
+		super.initialize();
+
+		if (log != null)
+			return;
+
+		log = new TokenLog(new File(directory), segmentSize);
+		log.open(new TokenLog.RecordHandler()
+		{
+			public void handleRecord(byte type, byte [] payload, TokenLog.Location location)
+			{
+				replayRecord(type, payload, location);
+			}
+		});
+
+		restore();
+
+		stopRequested = false;
+		compactorThread = new Thread("OpenBP token log compactor")
+		{
+			public void run()
+			{
+				compactionLoop();
+			}
+		};
+		compactorThread.setDaemon(true);
+		compactorThread.start();
+	}
+
+	/**
+	 * Stops the compactor thread, forces and closes the log.
+	 */
+	public void shutdown()
+	{
+		if (compactorThread != null)
+		{
+			synchronized (compactionLock)
+			{
+				stopRequested = true;
+				compactionLock.notifyAll();
+			}
+			try
+			{
+				compactorThread.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			compactorThread = null;
+		}
+
+		if (log != null)
+		{
+			log.close();
+			log = null;
+		}
+
+		super.shutdown();
+	}
+
+	//////////////////////////////////////////////////
+	// @@ General
+	//////////////////////////////////////////////////
+
+	/**
+	 * Commits the recent changes.
+	 * Appends the changes of the current thread to the log and forces the log to the storage device
+	 * if the {@link #setSyncOnCommit syncOnCommit} flag is set.
+	 * If the ratio of obsolete records exceeds the compaction threshold, the compactor thread is notified.
+	 */
+	public void commit()
+	{
+		PendingChanges changes = removePendingChanges();
+		if (changes != null)
+		{
+
+			TokenLog log = getLog();
+			synchronized (log)
+			{
+				// Encode the parent contexts under the lock of the log, so the records are appended in the order of the counter changes
+				encodeParentContexts(changes);
+
+				// The changes of the transaction are written as a single batch, so they will be replayed completely or not at all
+				TokenLog.Batch batch = new TokenLog.Batch();
+				List<PendingRecord> records = new ArrayList<PendingRecord>();
+				addRecords(batch, records, changes.contexts, RECORD_CONTEXT, RECORD_CONTEXT_DELETED, contextLocations);
+				addRecords(batch, records, changes.tasks, RECORD_TASK, RECORD_TASK_DELETED, taskLocations);
+				if (batch.size() > 0)
+				{
+					updateLocations(records, log.append(batch));
+				}
+			}
+
+			if (log.getSealedGarbageRatio() > compactionThreshold)
+			{
+				requestCompaction();
+			}
+		}
+
+		if (syncOnCommit)
+		{
+			getLog().force();
+		}
+
+		transactionCommitted();
+	}
+
+	/**
+	 * Rolls back the recent changes.
+	 * Discards the changes of the current thread that have not been appended to the log yet.
+	 */
+	public void rollback()
+	{
+		removePendingChanges();
+		transactionRolledBack();
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Context management
+	//////////////////////////////////////////////////
+
+	/**
+	 * Adds a context to the service.
+	 *
+	 * @param context Context to add
+	 * @return The saved object
+	 */
+	public TokenContext addContext(final TokenContext context)
+	{
+		// The id determines the hash code, so assign it before the context is added to the context map
+		if (context.getId() == null)
+		{
+			context.createId();
+		}
+
+		super.addContext(context);
+		writeContext(context);
+		return context;
+	}
+
+	/**
+	 * Save the changes to a context.
+	 *
+	 * @param context Context to save
+	 * @return The saved object
+	 */
+	public TokenContext saveContext(final TokenContext context)
+	{
+		super.saveContext(context);
+		writeContext(context);
+		return context;
+	}
+
+	/**
+	 * Removes a context from the service.
+	 *
+	 * @param context Context to remove
+	 */
+	public void deleteContext(final TokenContext context)
+	{
+		super.deleteContext(context);
+		writeDeletion(getPendingChanges().contexts, context.getId());
+	}
+
+	/**
+	 * Removes several contexts from the service.
+	 *
+	 * @param contextsToDelete Contexts to remove (contains {@link TokenContext} objects)
+	 */
+	public void deleteContexts(final Collection contextsToDelete)
+	{
+		super.deleteContexts(contextsToDelete);
+		for (Iterator it = contextsToDelete.iterator(); it.hasNext();)
+		{
+			TokenContext context = (TokenContext) it.next();
+			writeDeletion(getPendingChanges().contexts, context.getId());
+		}
+	}
+
+	/**
+	 * Changes the state of all matching token context objects in the context store.
+	 *
+	 * @param fromLifecycleState Lifecycle state to search for
+	 * @param toLifecycleState New lifecycle state for matching context objects
+	 * @param toLifecycleRequest New lifecycle request for matching context objects
+	 * @param nodeId System name of the system these contexts have been assigned to or null for all context objects
+	 * @return The number of tokens that have been updated
+	 */
+	public int changeContextState(int fromLifecycleState, int toLifecycleState, int toLifecycleRequest, String nodeId)
+	{
+		TokenContextCriteria criteria = new TokenContextCriteria();
+		criteria.setLifecycleState(Integer.valueOf(fromLifecycleState));
+		List matches = new ArrayList();
+		for (Iterator it = getContexts(criteria, 0); it.hasNext();)
+		{
+			TokenContext context = (TokenContext) it.next();
+			if (nodeId == null || nodeId.equals(context.getNodeId()))
+			{
+				matches.add(context);
+			}
+		}
+
+		int ret = super.changeContextState(fromLifecycleState, toLifecycleState, toLifecycleRequest, nodeId);
+
+		for (Iterator it = matches.iterator(); it.hasNext();)
+		{
+			writeContext((TokenContext) it.next());
+		}
+		return ret;
+	}
+
+	/**
+	 * Increases the number of outstanding child contexts of the given context.
+	 * The parent context will be written with the next commit.
+	 *
+	 * @param parentContext Parent context
+	 * @param count Number of child contexts that have been added
+	 */
+	public void addChildCount(TokenContext parentContext, int count)
+	{
+		super.addChildCount(parentContext, count);
+		getPendingChanges().parentContexts.add(parentContext);
+	}
+
+	/**
+	 * Detaches a child context from its parent context and decrements the number of outstanding child contexts of the parent.
+	 * The parent context will be written with the next commit, so the counter survives a restart
+	 * even if the parent is not saved by the engine.
+	 *
+	 * @param parentContext Parent context
+	 * @param childContext Child context to release
+	 * @return true if there are no more outstanding child contexts of the parent context
+	 */
+	public boolean releaseChildContext(TokenContext parentContext, TokenContext childContext)
+	{
+		boolean lastChild = super.releaseChildContext(parentContext, childContext);
+		getPendingChanges().parentContexts.add(parentContext);
+		return lastChild;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Workflow task management
+	//////////////////////////////////////////////////
+
+	/**
+	 * Adds a workflow task to the service.
+	 *
+	 * @param workflowTask workflow task to add
+	 * @return The saved object
+	 */
+	public WorkflowTask addWorkflowTask(final WorkflowTask workflowTask)
+	{
+		if (workflowTask.getId() == null)
+		{
+			workflowTask.createId();
+		}
+
+		super.addWorkflowTask(workflowTask);
+		writeWorkflowTask(workflowTask);
+		return workflowTask;
+	}
+
+	/**
+	 * Save the changes to a workflow task.
+	 *
+	 * @param workflowTask workflow task to save
+	 * @return The saved object
+	 */
+	public WorkflowTask saveWorkflowTask(final WorkflowTask workflowTask)
+	{
+		super.saveWorkflowTask(workflowTask);
+		writeWorkflowTask(workflowTask);
+		return workflowTask;
+	}
+
+	/**
+	 * Removes a workflow task from the service.
+	 *
+	 * @param workflowTask workflow task to remove
+	 */
+	public void deleteWorkflowTask(final WorkflowTask workflowTask)
+	{
+		super.deleteWorkflowTask(workflowTask);
+		writeDeletion(getPendingChanges().tasks, workflowTask.getId());
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Log writing
+	//////////////////////////////////////////////////
+
+	/**
+	 * Records the current state of a context for the next commit.
+	 *
+	 * @param context Context to write
+	 */
+	protected void writeContext(TokenContext context)
+	{
+		if (context.getId() == null)
+		{
+			context.createId();
+		}
+
+		// Serialize the context now, the record shall reflect the state of the context at the time it has been saved
+		getPendingChanges().contexts.put(context.getId(), encodeContext((TokenContextImpl) context));
+	}
+
+	/**
+	 * Records the current state of a workflow task for the next commit.
+	 *
+	 * @param workflowTask Workflow task to write
+	 */
+	protected void writeWorkflowTask(WorkflowTask workflowTask)
+	{
+		if (workflowTask.getId() == null)
+		{
+			workflowTask.createId();
+		}
+
+		getPendingChanges().tasks.put(workflowTask.getId(), encodeWorkflowTask(workflowTask));
+	}
+
+	/**
+	 * Records the deletion of an object for the next commit.
+	 *
+	 * @param changes Pending changes of the record type
+	 * @param id Id of the deleted object
+	 */
+	private void writeDeletion(Map<Object, byte []> changes, Object id)
+	{
+		if (id != null)
+		{
+			changes.put(id, null);
+		}
+	}
+
+	/**
+	 * Gets the changes of the current transaction from the persistence context of the current thread.
+	 *
+	 * @return The pending changes
+	 */
+	private PendingChanges getPendingChanges()
+	{
+		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+		PendingChanges changes = (PendingChanges) pc.getAttribute(ATTRIBUTE_PENDING_CHANGES);
+		if (changes == null)
+		{
+			changes = new PendingChanges();
+			pc.setAttribute(ATTRIBUTE_PENDING_CHANGES, changes);
+		}
+		return changes;
+	}
+
+	/**
+	 * Removes the pending changes from the persistence context of the current thread.
+	 *
+	 * @return The pending changes or null if there are no pending changes
+	 */
+	private PendingChanges removePendingChanges()
+	{
+		PersistenceContext pc = getPersistenceContextProvider().obtainExistingPersistenceContext();
+		if (pc == null)
+			return null;
+
+		PendingChanges changes = (PendingChanges) pc.getAttribute(ATTRIBUTE_PENDING_CHANGES);
+		pc.setAttribute(ATTRIBUTE_PENDING_CHANGES, null);
+		return changes;
+	}
+
+	/**
+	 * Records the current state of the parent contexts whose child counter has been changed in the transaction.
+	 * Must be called while holding the lock of the log.
+	 *
+	 * @param changes Pending changes
+	 */
+	private void encodeParentContexts(PendingChanges changes)
+	{
+		for (Iterator<TokenContext> it = changes.parentContexts.iterator(); it.hasNext();)
+		{
+			TokenContext parentContext = it.next();
+			Object id = parentContext.getId();
+			if (changes.contexts.containsKey(id) && changes.contexts.get(id) == null)
+			{
+				// Deleted within this transaction
+				continue;
+			}
+
+			synchronized (parentContext)
+			{
+				changes.contexts.put(id, encodeContext((TokenContextImpl) parentContext));
+			}
+		}
+	}
+
+	/**
+	 * Adds the pending changes of a record type to the batch of the commit.
+	 * Must be called while holding the lock of the log.
+	 *
+	 * @param batch Batch of the commit
+	 * @param records Receives the index updates that correspond to the records of the batch
+	 * @param changes Pending changes; maps object ids to record payloads (null for deleted objects)
+	 * @param type Record type
+	 * @param deletedType Record type of a deletion
+	 * @param locations Index of the record type
+	 */
+	private void addRecords(TokenLog.Batch batch, List<PendingRecord> records, Map<Object, byte []> changes, byte type, byte deletedType, Map<Object, TokenLog.Location> locations)
+	{
+		for (Iterator<Map.Entry<Object, byte []>> it = changes.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry<Object, byte []> entry = it.next();
+			Object id = entry.getKey();
+			byte [] payload = entry.getValue();
+			if (payload != null)
+			{
+				batch.add(type, payload);
+				records.add(new PendingRecord(locations, id, false));
+			}
+			else if (locations.containsKey(id))
+			{
+				batch.add(deletedType, encodeId(id));
+				records.add(new PendingRecord(locations, id, true));
+			}
+		}
+	}
+
+	/**
+	 * Updates the indices after the batch of a commit has been appended to the log.
+	 * Must be called while holding the lock of the log.
+	 *
+	 * @param records Index updates that correspond to the records of the batch
+	 * @param recordLocations Locations of the records of the batch
+	 */
+	private void updateLocations(List<PendingRecord> records, TokenLog.Location [] recordLocations)
+	{
+		for (int i = 0; i < recordLocations.length; ++i)
+		{
+			PendingRecord record = records.get(i);
+			if (record.deleted)
+			{
+				// The delete record is obsolete right away, it will be dropped by the next compaction
+				log.release(recordLocations[i]);
+				updateLocation(record.locations, record.id, null);
+			}
+			else
+			{
+				updateLocation(record.locations, record.id, recordLocations[i]);
+			}
+		}
+	}
+
+	/**
+	 * Updates the index entry of an object and marks its previous record as obsolete.
+	 *
+	 * @param locations Index of the record type
+	 * @param id Id of the object
+	 * @param location Location of the current record or null if the object has been deleted
+	 */
+	private void updateLocation(Map<Object, TokenLog.Location> locations, Object id, TokenLog.Location location)
+	{
+		TokenLog.Location oldLocation = location != null ? locations.put(id, location) : locations.remove(id);
+		if (oldLocation != null)
+		{
+			log.release(oldLocation);
+		}
+	}
+
+	/**
+	 * Notifies the compactor thread to compact the log.
+	 */
+	private void requestCompaction()
+	{
+		synchronized (compactionLock)
+		{
+			compactionRequested = true;
+			compactionLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Main loop of the compactor thread.
+	 */
+	private void compactionLoop()
+	{
+		for (;;)
+		{
+			synchronized (compactionLock)
+			{
+				try
+				{
+					while (! compactionRequested && ! stopRequested)
+					{
+						compactionLock.wait();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				if (stopRequested)
+					return;
+				compactionRequested = false;
+			}
+
+			try
+			{
+				compact();
+			}
+			catch (RuntimeException e)
+			{
+				LogUtil.error(getClass(), "Error compacting token log $0.", directory, e);
+			}
+		}
+	}
+
+	/**
+	 * Copies the current records of the sealed segments to the head of the log and removes the sealed segments.
+	 * The segments are compacted oldest first, so a delete record is never removed before the records it obsoletes.
+	 * The log is locked for the compaction of a single segment only, so commits can proceed in between.
+	 */
+	protected void compact()
+	{
+		TokenLog log = getLog();
+		int count = log.getSealedSegments().size();
+		if (count == 0)
+			return;
+
+		LogUtil.debug(getClass(), "Compacting token log, removing $0 segments.", Integer.valueOf(count));
+
+		for (int i = 0; i < count && ! stopRequested; ++i)
+		{
+			synchronized (log)
+			{
+				List<TokenLog.Segment> sealedSegments = log.getSealedSegments();
+				if (sealedSegments.isEmpty())
+					return;
+
+				List<TokenLog.Segment> segments = Collections.singletonList(sealedSegments.get(0));
+				compactLocations(contextLocations, segments);
+				compactLocations(taskLocations, segments);
+
+				log.removeSegments(segments);
+			}
+		}
+	}
+
+	/**
+	 * Copies the records of the given index that reside in one of the given segments to the head of the log.
+	 *
+	 * @param locations Index of the record type
+	 * @param segments Segments to evacuate
+	 */
+	private void compactLocations(Map<Object, TokenLog.Location> locations, List<TokenLog.Segment> segments)
+	{
+		for (Iterator<Map.Entry<Object, TokenLog.Location>> it = locations.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry<Object, TokenLog.Location> entry = it.next();
+			TokenLog.Location location = entry.getValue();
+			if (segments.contains(location.getSegment()))
+			{
+				entry.setValue(log.copy(location));
+				log.release(location);
+			}
+		}
+	}
+
+	/**
+	 * Gets the token log.
+	 *
+	 * @return The log
+	 * @throws PersistenceException If the service has not been initialized
+	 */
+	private TokenLog getLog()
+	{
+		if (log == null)
+			throw new PersistenceException("Token context service has not been initialized.");
+		return log;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Recovery
+	//////////////////////////////////////////////////
+
+	/**
+	 * Updates the index according to a record of the log while the log is being opened.
+	 *
+	 * @param type Record type
+	 * @param payload Record payload
+	 * @param location Location of the record
+	 */
+	private void replayRecord(byte type, byte [] payload, TokenLog.Location location)
+	{
+		Object id = decodeId(payload);
+		switch (type)
+		{
+		case RECORD_CONTEXT:
+			updateLocation(contextLocations, id, location);
+			break;
+
+		case RECORD_CONTEXT_DELETED:
+			updateLocation(contextLocations, id, null);
+			log.release(location);
+			break;
+
+		case RECORD_TASK:
+			updateLocation(taskLocations, id, location);
+			break;
+
+		case RECORD_TASK_DELETED:
+			updateLocation(taskLocations, id, null);
+			log.release(location);
+			break;
+
+		default:
+			LogUtil.warn(getClass(), "Unknown token log record type $0, skipping record.", Byte.valueOf(type));
+			log.release(location);
+		}
+	}
+
+	/**
+	 * Restores the contexts and workflow tasks from the current records of the log.
+	 */
+	private void restore()
+	{
+		Map<Object, TokenContext> contexts = new HashMap<Object, TokenContext>();
+		Map<TokenContext, Object> parentIds = new HashMap<TokenContext, Object>();
+		for (Iterator<TokenLog.Location> it = contextLocations.values().iterator(); it.hasNext();)
+		{
+			TokenContext context = decodeContext(log.read(it.next()), parentIds);
+			contexts.put(context.getId(), context);
+		}
+
+		for (Iterator<TokenContext> it = contexts.values().iterator(); it.hasNext();)
+		{
+			TokenContext context = it.next();
+
+			Object parentId = parentIds.get(context);
+			if (parentId != null)
+			{
+				TokenContext parentContext = contexts.get(parentId);
+				if (parentContext != null)
+				{
+					parentContext.addChildContext(context);
+				}
+				else
+				{
+					LogUtil.warn(getClass(), "Parent context $0 of token $1 does not exist any more.", parentId, context);
+				}
+			}
+
+			// Resume tokens that have been interrupted
+			int state = context.getLifecycleState();
+			if (state == LifecycleState.SELECTED || state == LifecycleState.RUNNING)
+			{
+				context.setLifecycleState(LifecycleState.SUSPENDED);
+				context.setLifecycleRequest(LifecycleRequest.RESUME);
+			}
+
+			super.addContext(context);
+		}
+
+		int nTasks = 0;
+		for (Iterator<TokenLog.Location> it = taskLocations.values().iterator(); it.hasNext();)
+		{
+			WorkflowTask task = decodeWorkflowTask(log.read(it.next()), contexts);
+			if (task != null)
+			{
+				super.addWorkflowTask(task);
+				++nTasks;
+			}
+		}
+
+		LogUtil.info(getClass(), "Restored $0 tokens and $1 workflow tasks from token log $2.", Integer.valueOf(contexts.size()), Integer.valueOf(nTasks), directory);
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Record encoding
+	//////////////////////////////////////////////////
+
+	/**
+	 * Encodes a delete record.
+	 *
+	 * @param id Id of the deleted object
+	 * @return The payload
+	 */
+	private static byte [] encodeId(Object id)
+	{
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeUTF(id.toString());
+			out.flush();
+			return bos.toByteArray();
+		}
+		catch (IOException e)
+		{
+			// Doesn't happen with byte array streams
+			throw new PersistenceException("Error encoding token log record.", e);
+		}
+	}
+
+	/**
+	 * Decodes the object id, which is the first value of each record.
+	 *
+	 * @param payload Record payload
+	 * @return The id
+	 */
+	private static Object decodeId(byte [] payload)
+	{
+		try
+		{
+			return new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+		}
+		catch (IOException e)
+		{
+			throw new PersistenceException("Corrupt token log record.", e);
+		}
+	}
+
+	/**
+	 * Encodes a context record.
+	 *
+	 * @param context Context
+	 * @return The payload
+	 */
+	private static byte [] encodeContext(TokenContextImpl context)
+	{
+		// Update the serialized context data
+		context.beforeSave();
+
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeUTF(context.getId().toString());
+			TokenContext parentContext = context.getParentContext();
+			writeString(out, parentContext != null ? parentContext.getId().toString() : null);
+			out.writeInt(context.getLifecycleState());
+			out.writeInt(context.getLifecycleRequest());
+			writeString(out, context.getExecutingModelQualifier());
+			writeString(out, context.getCurrentSocketQualifier());
+			writeString(out, context.getQueueType());
+			writeString(out, context.getUserId());
+			writeString(out, context.getDebuggerId());
+			writeString(out, context.getNodeId());
+			out.writeInt(context.getPriority());
+			out.writeInt(context.getProgressCount());
+			out.writeInt(context.getProgressTotal());
+			out.writeInt(context.getChildCount());
+			byte [] data = context.getContextData();
+			if (data != null)
+			{
+				out.writeInt(data.length);
+				out.write(data);
+			}
+			else
+			{
+				out.writeInt(-1);
+			}
+			out.flush();
+			return bos.toByteArray();
+		}
+		catch (IOException e)
+		{
+			// Doesn't happen with byte array streams
+			throw new PersistenceException("Error encoding token log record.", e);
+		}
+	}
+
+	/**
+	 * Decodes a context record.
+	 *
+	 * @param payload Record payload
+	 * @param parentIds Map that receives the id of the parent context of the decoded context
+	 * @return The context
+	 */
+	private TokenContext decodeContext(byte [] payload, Map<TokenContext, Object> parentIds)
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			TokenContextImpl context = (TokenContextImpl) createContext();
+			context.setId(in.readUTF());
+			String parentId = readString(in);
+			if (parentId != null)
+			{
+				parentIds.put(context, parentId);
+			}
+			context.setLifecycleState(in.readInt());
+			context.setLifecycleRequest(in.readInt());
+			context.setExecutingModelQualifier(readString(in));
+			context.setCurrentSocketQualifier(readString(in));
+			context.setQueueType(readString(in));
+			context.setUserId(readString(in));
+			context.setDebuggerId(readString(in));
+			context.setNodeId(readString(in));
+			context.setPriority(in.readInt());
+			context.setProgressCount(in.readInt());
+			context.setProgressTotal(in.readInt());
+			context.setChildCount(in.readInt());
+			int length = in.readInt();
+			if (length >= 0)
+			{
+				byte [] data = new byte [length];
+				in.readFully(data);
+				context.setContextData(data);
+			}
+
+			// The context data will be deserialized on first access
+			context.onLoad();
+			return context;
+		}
+		catch (IOException e)
+		{
+			throw new PersistenceException("Corrupt token log record.", e);
+		}
+	}
+
+	/**
+	 * Encodes a workflow task record.
+	 *
+	 * @param task Workflow task
+	 * @return The payload
+	 */
+	private static byte [] encodeWorkflowTask(WorkflowTask task)
+	{
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bos);
+			out.writeUTF(task.getId().toString());
+			TokenContext context = task.getTokenContext();
+			writeString(out, context != null ? context.getId().toString() : null);
+			writeString(out, task.getName());
+			writeString(out, task.getDisplayName());
+			writeString(out, task.getDescription());
+			out.writeInt(task.getStatus());
+			writeTimestamp(out, task.getTimeCreated());
+			writeTimestamp(out, task.getTimeAccepted());
+			writeTimestamp(out, task.getTimeCompleted());
+			writeTimestamp(out, task.getDueTime());
+			writeString(out, task.getCreatingUserId());
+			writeString(out, task.getAcceptingUserId());
+			writeString(out, task.getStepName());
+			writeString(out, task.getStepDisplayName());
+			writeString(out, task.getStepDescription());
+			writeString(out, task.getRoleId());
+			writeString(out, task.getUserId());
+			writeString(out, task.getPermissions());
+			out.writeInt(task.getPriority());
+			out.writeBoolean(task.isDeleteAfterCompletion());
+			out.flush();
+			return bos.toByteArray();
+		}
+		catch (IOException e)
+		{
+			// Doesn't happen with byte array streams
+			throw new PersistenceException("Error encoding token log record.", e);
+		}
+	}
+
+	/**
+	 * Decodes a workflow task record.
+	 *
+	 * @param payload Record payload
+	 * @param contexts Restored contexts; maps context ids to {@link TokenContext} objects
+	 * @return The workflow task or null if the token context of the task does not exist any more
+	 */
+	private WorkflowTask decodeWorkflowTask(byte [] payload, Map<Object, TokenContext> contexts)
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			String id = in.readUTF();
+			String contextId = readString(in);
+			TokenContext context = contextId != null ? contexts.get(contextId) : null;
+			if (context == null)
+			{
+				LogUtil.warn(getClass(), "Token context $0 of workflow task $1 does not exist any more, skipping workflow task.", contextId, id);
+				return null;
+			}
+
+			WorkflowTask task = createWorkflowTask(context);
+			((WorkflowTaskImpl) task).setId(id);
+			task.setName(readString(in));
+			task.setDisplayName(readString(in));
+			task.setDescription(readString(in));
+			task.setStatus(in.readInt());
+			task.setTimeCreated(readTimestamp(in));
+			task.setTimeAccepted(readTimestamp(in));
+			task.setTimeCompleted(readTimestamp(in));
+			task.setDueTime(readTimestamp(in));
+			task.setCreatingUserId(readString(in));
+			task.setAcceptingUserId(readString(in));
+			task.setStepName(readString(in));
+			task.setStepDisplayName(readString(in));
+			task.setStepDescription(readString(in));
+			task.setRoleId(readString(in));
+			task.setUserId(readString(in));
+			task.setPermissions(readString(in));
+			task.setPriority(in.readInt());
+			task.setDeleteAfterCompletion(in.readBoolean());
+			task.onLoad();
+			return task;
+		}
+		catch (IOException e)
+		{
+			throw new PersistenceException("Corrupt token log record.", e);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+		throws IOException
+	{
+		out.writeBoolean(s != null);
+		if (s != null)
+		{
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInputStream in)
+		throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeTimestamp(DataOutputStream out, Timestamp t)
+		throws IOException
+	{
+		out.writeLong(t != null ? t.getTime() : Long.MIN_VALUE);
+	}
+
+	private static Timestamp readTimestamp(DataInputStream in)
+		throws IOException
+	{
+		long time = in.readLong();
+		return time != Long.MIN_VALUE ? new Timestamp(time) : null;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Properties
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the directory of the log files.
+	 * @nowarn
+	 */
+	public String getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Sets the directory of the log files.
+	 * @param directory Absolute path or path relative to the current directory (default: "tokenlog")
+	 */
+	public void setDirectory(String directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Gets the size of a log segment in bytes.
+	 * @nowarn
+	 */
+	public int getSegmentSize()
+	{
+		return segmentSize;
+	}
+
+	/**
+	 * Sets the size of a log segment in bytes.
+	 * Each segment is mapped into memory; records that are larger than a segment will get a segment of their own.
+	 * @nowarn
+	 */
+	public void setSegmentSize(int segmentSize)
+	{
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Gets the flag if the log should be forced to the storage device on commit.
+	 * @nowarn
+	 */
+	public boolean isSyncOnCommit()
+	{
+		return syncOnCommit;
+	}
+
+	/**
+	 * Sets the flag if the log should be forced to the storage device on commit.
+	 * If not set, changes are durable only after a segment has been filled or the service has been shut down;
+	 * changes might be lost if the operating system crashes.
+	 * @nowarn
+	 */
+	public void setSyncOnCommit(boolean syncOnCommit)
+	{
+		this.syncOnCommit = syncOnCommit;
+	}
+
+	/**
+	 * Gets the ratio of obsolete records in the sealed segments that triggers a compaction.
+	 * @nowarn
+	 */
+	public double getCompactionThreshold()
+	{
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets the ratio of obsolete records in the sealed segments that triggers a compaction.
+	 * @param compactionThreshold Ratio between 0 and 1 (default: 0.5)
+	 */
+	public void setCompactionThreshold(double compactionThreshold)
+	{
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Helper classes
+	//////////////////////////////////////////////////
+
+	/**
+	 * Changes of a transaction that will be appended to the log on commit.
+	 * Maps the object ids to the payload of their records; a null payload denotes a deleted object.
+	 * Only the last change of an object within a transaction will be written.
+	 */
+	private static class PendingChanges
+	{
+		/** Changed contexts */
+		final Map<Object, byte []> contexts = new LinkedHashMap<Object, byte []>();
+
+		/** Changed workflow tasks */
+		final Map<Object, byte []> tasks = new LinkedHashMap<Object, byte []>();
+
+		/** Parent contexts whose child counter has been changed; will be encoded on commit */
+		final Set<TokenContext> parentContexts = new LinkedHashSet<TokenContext>();
+	}
+
+	/**
+	 * Index update that corresponds to a record of the batch of a commit.
+	 */
+	private static class PendingRecord
+	{
+		/** Index of the record type */
+		final Map<Object, TokenLog.Location> locations;
+
+		/** Id of the object */
+		final Object id;
+
+		/** Flag if the object has been deleted */
+		final boolean deleted;
+
+		PendingRecord(Map<Object, TokenLog.Location> locations, Object id, boolean deleted)
+		{
+			this.locations = locations;
+			this.id = id;
+			this.deleted = deleted;
+		}
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.openbp.core.model.item.process.NodeParam;
+import org.openbp.core.model.item.process.ProcessItem;
+
+/**
+ * Parameter value storage of a token context.
+ *
+ * The map associates context names ("node.socket.param" or "_processvariable") with {@link TokenContextValue} objects.
+ * In addition, the values of node parameters can be accessed by the context slot of the parameter
+ * (see {@link NodeParam#getContextSlot}).
+ * The slot tables hold the same value objects as the map and are filled on first access by name,
+ * so subsequent accesses of a parameter neither hash the parameter name nor allocate new value objects.
+ * The slot tables are used only for values that are attached to the map;
+ * values that are removed or replaced in the map are detached and will be looked up by name again.
+ * When a detached value is added to the map again, the slot tables are discarded.
+ *
+ * The map is not synchronized. A token context will be executed by a single thread at a time only.
+ *
+ * @author Heiko Erhardt
+ */
+public class ParamValueMap extends AbstractMap<String, Object>
+{
+	/** Parameter values (maps context names to {@link TokenContextValue} objects) */
+	private final HashMap<String, Object> values = new HashMap<String, Object>();
+
+	/** Slot tables of the processes the parameters of this context belong to */
+	private IdentityHashMap<ProcessItem, TokenContextValue []> slotTables;
+
+	/** Process that has been accessed most recently */
+	private ProcessItem lastProcess;
+
+	/** Slot table of the process that has been accessed most recently */
+	private TokenContextValue [] lastSlotTable;
+
+	/** Entry set view */
+	private EntrySet entrySet;
+
+	/**
+	 * Default constructor.
+	 */
+	public ParamValueMap()
+	{
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Slot access
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the value of a node parameter.
+	 *
+	 * @param param Node parameter
+	 * @return The value object or null if the context does not contain a value for this parameter
+	 */
+	public TokenContextValue getValue(NodeParam param)
+	{
+		int slot = param.getContextSlot();
+		if (slot < 0)
+		{
+			return (TokenContextValue) values.get(param.getContextName());
+		}
+
+		TokenContextValue [] table = getSlotTable(param.getProcess(), slot);
+		TokenContextValue tcv = table [slot];
+		if (tcv == null || ! tcv.isAttachedTo(this))
+		{
+			tcv = (TokenContextValue) values.get(param.getContextName());
+			table [slot] = tcv;
+		}
+		return tcv;
+	}
+
+	/**
+	 * Gets the value of a node parameter, creating the value object if it does not exist yet.
+	 *
+	 * @param param Node parameter
+	 * @param isPersistent Persistence flag for a new value object
+	 * @return The value object
+	 */
+	public TokenContextValue obtainValue(NodeParam param, boolean isPersistent)
+	{
+		TokenContextValue tcv = getValue(param);
+		if (tcv == null)
+		{
+			tcv = new TokenContextValue();
+			tcv.setPersistentVariable(isPersistent);
+			values.put(param.getContextName(), tcv);
+			tcv.attach(this);
+
+			int slot = param.getContextSlot();
+			if (slot >= 0)
+			{
+				getSlotTable(param.getProcess(), slot) [slot] = tcv;
+			}
+		}
+		return tcv;
+	}
+
+	/**
+	 * Gets the slot table of a process.
+	 *
+	 * @param process Process
+	 * @param slot Slot that is about to be accessed
+	 * @return The slot table; the table size will be greater than the slot index
+	 */
+	private TokenContextValue [] getSlotTable(ProcessItem process, int slot)
+	{
+		TokenContextValue [] table;
+		if (process == lastProcess)
+		{
+			table = lastSlotTable;
+		}
+		else
+		{
+			if (slotTables == null)
+			{
+				slotTables = new IdentityHashMap<ProcessItem, TokenContextValue []>();
+			}
+			table = slotTables.get(process);
+			lastProcess = process;
+		}
+
+		if (table == null || slot >= table.length)
+		{
+			// The process may have allocated new slots since the table was created
+			TokenContextValue [] newTable = new TokenContextValue [Math.max(slot + 1, process.getContextSlotCount())];
+			if (table != null)
+			{
+				System.arraycopy(table, 0, newTable, 0, table.length);
+			}
+			table = newTable;
+			slotTables.put(process, table);
+		}
+
+		lastSlotTable = table;
+		return table;
+	}
+
+	/**
+	 * Marks a value as added to the map.
+	 * If the value has been detached before, the slot tables might refer to it by a name it does not belong to anymore,
+	 * so they will be discarded.
+	 *
+	 * @param value Value that has been added
+	 */
+	private void attach(Object value)
+	{
+		if (value instanceof TokenContextValue)
+		{
+			if (((TokenContextValue) value).attach(this))
+			{
+				clearSlotTables();
+			}
+		}
+	}
+
+	/**
+	 * Marks a value as removed from the map.
+	 *
+	 * @param value Value that has been removed or replaced
+	 */
+	private void detach(Object value)
+	{
+		if (value instanceof TokenContextValue)
+		{
+			((TokenContextValue) value).detach(this);
+		}
+	}
+
+	/**
+	 * Discards the slot tables.
+	 */
+	private void clearSlotTables()
+	{
+		slotTables = null;
+		lastProcess = null;
+		lastSlotTable = null;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Map implementation
+	//////////////////////////////////////////////////
+
+	public int size()
+	{
+		return values.size();
+	}
+
+	public boolean containsKey(Object key)
+	{
+		return values.containsKey(key);
+	}
+
+	public Object get(Object key)
+	{
+		return values.get(key);
+	}
+
+	public Object put(String key, Object value)
+	{
+		Object old = values.put(key, value);
+		if (old != value)
+		{
+			detach(old);
+		}
+		attach(value);
+		return old;
+	}
+
+	public Object remove(Object key)
+	{
+		Object old = values.remove(key);
+		detach(old);
+		return old;
+	}
+
+	public void clear()
+	{
+		for (Iterator<Object> it = values.values().iterator(); it.hasNext();)
+		{
+			detach(it.next());
+		}
+		values.clear();
+
+		clearSlotTables();
+	}
+
+	public Set<Map.Entry<String, Object>> entrySet()
+	{
+		if (entrySet == null)
+		{
+			entrySet = new EntrySet();
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Entry set view that keeps track of values that are removed or replaced using the iterator or the entries.
+	 */
+	private class EntrySet extends AbstractSet<Map.Entry<String, Object>>
+	{
+		public int size()
+		{
+			return values.size();
+		}
+
+		public void clear()
+		{
+			ParamValueMap.this.clear();
+		}
+
+		public Iterator<Map.Entry<String, Object>> iterator()
+		{
+			final Iterator<Map.Entry<String, Object>> it = values.entrySet().iterator();
+
+			return new Iterator<Map.Entry<String, Object>>()
+			{
+				private Map.Entry<String, Object> current;
+
+				public boolean hasNext()
+				{
+					return it.hasNext();
+				}
+
+				public Map.Entry<String, Object> next()
+				{
+					current = it.next();
+					return new Entry(current);
+				}
+
+				public void remove()
+				{
+					Object value = current.getValue();
+					it.remove();
+					detach(value);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Map entry that keeps track of replaced values.
+	 */
+	private class Entry
+		implements Map.Entry<String, Object>
+	{
+		/** Entry of the underlying map */
+		private final Map.Entry<String, Object> entry;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param entry Entry of the underlying map
+		 */
+		Entry(Map.Entry<String, Object> entry)
+		{
+			this.entry = entry;
+		}
+
+		public String getKey()
+		{
+			return entry.getKey();
+		}
+
+		public Object getValue()
+		{
+			return entry.getValue();
+		}
+
+		public Object setValue(Object value)
+		{
+			Object old = entry.setValue(value);
+			if (old != value)
+			{
+				detach(old);
+			}
+			attach(value);
+			return old;
+		}
+
+		public boolean equals(Object o)
+		{
+			return entry.equals(o);
+		}
+
+		public int hashCode()
+		{
+			return entry.hashCode();
+		}
+
+		public String toString()
+		{
+			return entry.toString();
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context;
+
+import java.sql.Blob;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.persistence.PersistenceContextProvider;
+import org.openbp.server.persistence.PersistenceException;
+import org.openbp.server.persistence.TransactionGuard;
+
+/**
+ * Context value store that keeps the values in the OPENBPCONTEXTVALUE table.
+ * The values are written by SQL statements within the current transaction of the persistence context,
+ * so they are committed together with the context data that refers to them.
+ *
+ * @author Heiko Erhardt
+ */
+public class PersistentContextValueStore
+	implements ContextValueStore
+{
+	/** Persistence context provider */
+	private PersistenceContextProvider persistenceContextProvider;
+
+	/**
+	 * Default constructor.
+	 */
+	public PersistentContextValueStore()
+	{
+	}
+
+	/**
+	 * Loads the values of the given context.
+	 *
+	 * @param context Token context
+	 * @return A map that maps value names (Strings) to serialized values (byte arrays)
+	 */
+	public Map loadValues(TokenContext context)
+	{
+		PersistenceContext pc = persistenceContextProvider.obtainPersistenceContext();
+
+		// BLOBs may be read only within the transaction of the query
+		TransactionGuard tg = new TransactionGuard(pc);
+		try
+		{
+			HashMap ret = new HashMap();
+			Collection rows = pc.executeSelect("select CV_NAME, CV_DATA from OPENBPCONTEXTVALUE where CV_CONTEXT_ID = ?", new Object[] { context.getId() }, 0);
+			for (Iterator it = rows.iterator(); it.hasNext();)
+			{
+				Object[] row = getColumnValues(it.next());
+				ret.put(row[0], getBytes(row[1]));
+			}
+			return ret;
+		}
+		catch (RuntimeException e)
+		{
+			tg.doCatch();
+			throw e;
+		}
+		finally
+		{
+			tg.doFinally();
+		}
+	}
+
+	/**
+	 * Stores a value of the given context, replacing the previous value of the same name.
+	 *
+	 * @param context Token context
+	 * @param name Value name
+	 * @param valueHash Hash of the serialized value
+	 * @param data Serialized value
+	 */
+	public void storeValue(TokenContext context, String name, String valueHash, byte[] data)
+	{
+		PersistenceContext pc = persistenceContextProvider.obtainPersistenceContext();
+
+		int count = pc.executeUpdateOrDelete("update OPENBPCONTEXTVALUE set CV_HASH = ?, CV_DATA = ? where CV_CONTEXT_ID = ? and CV_NAME = ?", new Object[] { valueHash, data, context.getId(), name });
+		if (count == 0)
+		{
+			pc.executeUpdateOrDelete("insert into OPENBPCONTEXTVALUE (CV_CONTEXT_ID, CV_NAME, CV_HASH, CV_DATA) values (?, ?, ?, ?)", new Object[] { context.getId(), name, valueHash, data });
+		}
+	}
+
+	/**
+	 * Removes values of the given context.
+	 *
+	 * @param context Token context
+	 * @param names Names of the values to remove (Strings) or null to remove all values of the context
+	 */
+	public void removeValues(TokenContext context, Collection names)
+	{
+		PersistenceContext pc = persistenceContextProvider.obtainPersistenceContext();
+
+		if (names == null)
+		{
+			pc.executeUpdateOrDelete("delete from OPENBPCONTEXTVALUE where CV_CONTEXT_ID = ?", new Object[] { context.getId() });
+			return;
+		}
+		if (names.isEmpty())
+			return;
+
+		StringBuffer sql = new StringBuffer("delete from OPENBPCONTEXTVALUE where CV_CONTEXT_ID = ? and CV_NAME in (");
+		List params = new ArrayList();
+		params.add(context.getId());
+		for (Iterator it = names.iterator(); it.hasNext();)
+		{
+			sql.append(params.size() > 1 ? ", ?" : "?");
+			params.add(it.next());
+		}
+		sql.append(")");
+		pc.executeUpdateOrDelete(sql.toString(), params.toArray());
+	}
+
+	/**
+	 * Gets the column values of a row returned by {@link PersistenceContext#executeSelect}.
+	 *
+	 * @param row Row object (either an Object array or a map of column names to values)
+	 * @return The values of the name and data columns
+	 */
+	private static Object[] getColumnValues(Object row)
+	{
+		if (row instanceof Map)
+		{
+			// Data row, the case of the column names depends on the database
+			Object[] ret = new Object[2];
+			for (Iterator it = ((Map) row).entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry entry = (Map.Entry) it.next();
+				String column = entry.getKey().toString();
+				if (column.equalsIgnoreCase("CV_NAME"))
+					ret[0] = entry.getValue();
+				else if (column.equalsIgnoreCase("CV_DATA"))
+					ret[1] = entry.getValue();
+			}
+			return ret;
+		}
+		return (Object[]) row;
+	}
+
+	/**
+	 * Gets the content of a binary column value.
+	 *
+	 * @param value Column value (a byte array or a BLOB)
+	 * @return The content
+	 */
+	private static byte[] getBytes(Object value)
+	{
+		if (value instanceof Blob)
+		{
+			try
+			{
+				Blob blob = (Blob) value;
+				return blob.getBytes(1L, (int) blob.length());
+			}
+			catch (SQLException e)
+			{
+				throw new PersistenceException("Error reading a token context value.", e);
+			}
+		}
+		return (byte[]) value;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Property access
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the persistence context provider.
+	 * @nowarn
+	 */
+	public PersistenceContextProvider getPersistenceContextProvider()
+	{
+		return persistenceContextProvider;
+	}
+
+	/**
+	 * Sets the persistence context provider.
+	 * Will be set by {@link PersistentTokenContextService#setContextValueStore} if not set explicitly.
+	 * @nowarn
+	 */
+	public void setPersistenceContextProvider(PersistenceContextProvider persistenceContextProvider)
+	{
+		this.persistenceContextProvider = persistenceContextProvider;
+	}
+}
@@ -16,14 +16,23 @@
 package org.openbp.server.context;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.openbp.common.CollectionUtil;
+import org.openbp.common.CommonRegistry;
 import org.openbp.common.logger.LogUtil;
 import org.openbp.common.util.iterator.WrappingIterator;
+import org.openbp.server.persistence.BasicPersistenceContextProvider;
 import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.persistence.PersistenceContextProvider;
 import org.openbp.server.persistence.PersistenceException;
 import org.openbp.server.persistence.PersistenceQuery;
 import org.openbp.server.persistence.PersistentObjectNotFoundException;
@@ -60,6 +69,15 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 	/** Context execution isolation level */
 	private int isolationLevel = ISOLATION_LEVEL_MERGE;
 
+	/** Maximum number of token contexts in the 'in' clause of a query */
+	public static final int MAX_CONTEXTS_PER_QUERY = 500;
+
+	/** Group committer for the updates of suspended tokens or null */
+	private GroupCommitter groupCommitter;
+
+	/** Store for large context values or null */
+	private ContextValueStore contextValueStore;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -76,6 +94,19 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 	 */
 	public void initialize()
 	{
+		if (groupCommitter != null)
+		{
+			enableTransactionChangeTracking();
+			groupCommitter.initialize();
+		}
+		if (contextValueStore instanceof PersistentContextValueStore)
+		{
+			PersistentContextValueStore store = (PersistentContextValueStore) contextValueStore;
+			if (store.getPersistenceContextProvider() == null)
+			{
+				store.setPersistenceContextProvider(getPersistenceContextProvider());
+			}
+		}
 	}
 
 	/**
@@ -83,6 +114,15 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 	 */
 	public void shutdown()
 	{
+		if (groupCommitter != null)
+		{
+			groupCommitter.shutdown();
+		}
+		if (contextValueStore != null)
+		{
+			CommonRegistry.unregister(contextValueStore);
+		}
+
 		PersistenceContext pc = getPersistenceContextProvider().obtainExistingPersistenceContext();
 		if (pc != null)
 		{
@@ -112,6 +152,80 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 		this.isolationLevel = isolationLevel;
 	}
 
+	/**
+	 * Gets the group committer for the updates of suspended tokens.
+	 * @nowarn
+	 */
+	public GroupCommitter getGroupCommitter()
+	{
+		return groupCommitter;
+	}
+
+	/**
+	 * Sets the group committer for the updates of suspended tokens.
+	 * @param groupCommitter Group committer or null to commit the updates within the transaction of the engine thread
+	 */
+	public void setGroupCommitter(final GroupCommitter groupCommitter)
+	{
+		this.groupCommitter = groupCommitter;
+		if (groupCommitter != null && groupCommitter.getPersistenceContextProvider() == null)
+		{
+			groupCommitter.setPersistenceContextProvider(getPersistenceContextProvider());
+		}
+		if (groupCommitter != null)
+		{
+			enableTransactionChangeTracking();
+		}
+	}
+
+	/**
+	 * @nowarn
+	 */
+	public ContextValueStore getContextValueStore()
+	{
+		return contextValueStore;
+	}
+
+	/**
+	 * Sets the store for large context values.
+	 * The store will be registered with the {@link CommonRegistry}, so context values that exceed the
+	 * {@link org.openbp.server.ServerConstants#SYSPROP_CONTEXTDATA_EXTERNALVALUESIZE} setting will be stored by reference.
+	 * @param contextValueStore Store or null to keep all values in the serialized context data
+	 */
+	public void setContextValueStore(final ContextValueStore contextValueStore)
+	{
+		if (this.contextValueStore != null)
+		{
+			CommonRegistry.unregister(this.contextValueStore);
+		}
+		this.contextValueStore = contextValueStore;
+		if (contextValueStore instanceof PersistentContextValueStore)
+		{
+			PersistentContextValueStore store = (PersistentContextValueStore) contextValueStore;
+			if (store.getPersistenceContextProvider() == null)
+			{
+				store.setPersistenceContextProvider(getPersistenceContextProvider());
+			}
+		}
+		if (contextValueStore != null)
+		{
+			CommonRegistry.register(contextValueStore);
+		}
+	}
+
+	/**
+	 * Enables the change tracking of the persistence contexts.
+	 * The group commit relies on an exact result of {@link PersistenceContext#hasTransactionChanges}.
+	 */
+	private void enableTransactionChangeTracking()
+	{
+		PersistenceContextProvider provider = getPersistenceContextProvider();
+		if (provider instanceof BasicPersistenceContextProvider)
+		{
+			((BasicPersistenceContextProvider) provider).setTransactionChangeTracking(true);
+		}
+	}
+
 	/**
 	 * Begins the transaction.
 	 */
@@ -139,6 +253,51 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 		LogUtil.debug(getClass(), "Committing transaction.");
 		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
 		pc.commitTransaction();
+		transactionCommitted();
+	}
+
+	/**
+	 * Saves the given context and commits the recent changes.
+	 * If a group committer has been assigned and the transaction of this thread does not contain any other changes,
+	 * the context is excluded from the transaction of this thread and written by the group committer.
+	 * Otherwise, the context is saved within the transaction of this thread, so the transaction remains atomic.
+	 *
+	 * @param context Context to save
+	 */
+	public void commitContext(final TokenContext context)
+	{
+		if (groupCommitter == null || context.getVersion() == null || context.hasChildContext())
+		{
+			// The context is new or would cascade to its child contexts, so save it within the transaction of this thread
+			saveContext(context);
+			commit();
+			return;
+		}
+
+		// Serialize the context data in this thread
+		context.beforeSave();
+
+		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+		pc.evict(context);
+		if (pc.hasTransactionChanges())
+		{
+			// The update of the context must be committed together with the other changes
+			saveContext(context);
+			commit();
+			return;
+		}
+
+		LogUtil.debug(getClass(), "Committing transaction, token will be written by group commit. [{0}]", context);
+
+		pc.commitTransaction();
+		transactionCommitted();
+
+		if (! groupCommitter.commit(context))
+		{
+			// The group committer has been shut down or is overloaded
+			saveContext(context);
+			commit();
+		}
 	}
 
 	/**
@@ -149,6 +308,7 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
 		pc.rollbackTransaction();
 		pc.release();
+		transactionRolledBack();
 	}
 
 	/**
@@ -199,9 +359,34 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 	{
 		LogUtil.debug(getClass(), "Deleting token. [{0}]", context);
 		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+		if (contextValueStore != null)
+		{
+			contextValueStore.removeValues(context, null);
+		}
 		pc.deleteObject(context);
 	}
 
+	/**
+	 * Removes several contexts from the service.
+	 * The delete statements will be sent as a single JDBC batch if supported by the O/R mapper configuration.
+	 *
+	 * @param contexts Contexts to remove (contains {@link TokenContext} objects)
+	 */
+	public void deleteContexts(final Collection contexts)
+	{
+		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+		for (Iterator it = contexts.iterator(); it.hasNext();)
+		{
+			TokenContext context = (TokenContext) it.next();
+			LogUtil.debug(getClass(), "Deleting token. [{0}]", context);
+			if (contextValueStore != null)
+			{
+				contextValueStore.removeValues(context, null);
+			}
+			pc.deleteObject(context);
+		}
+	}
+
 	/**
 	 * Evicts the context from the cache of the underlying persistence layer, if any.
 	 *
@@ -362,10 +547,48 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 	 * The objects will be sorted by their priority (ascending).
 	 */
 	public Iterator getExecutableContexts(int maxResults)
+	{
+		return getExecutableContexts(maxResults, null);
+	}
+
+	/**
+	 * Gets the token context objects that are ready to execute and are accepted by the given queue type filter.
+	 * The queue type condition is part of the query, so contexts of excluded queue types
+	 * will not take up the result records of the accepted ones.
+	 *
+	 * @param maxResults Maximum number of result records or 0 for all
+	 * @param queueTypeFilter Filter for the queue types of the contexts or null for all contexts
+	 * @return An iterator of {@link TokenContext} objects.
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public Iterator getExecutableContexts(int maxResults, QueueTypeFilter queueTypeFilter)
 	{
 		LogUtil.debug(getClass(), "Performing query for executable tokens.");
 		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
 
+		if (queueTypeFilter != null)
+		{
+			int max = getIsolationLevel() == ISOLATION_LEVEL_SINGLE ? 1 : maxResults;
+			String sql = "select TC_ID from OPENBPTOKENCONTEXT where TC_LIFECYCLE_REQUEST = ? and TC_LIFECYCLE_STATE <> ?";
+			ArrayList params = new ArrayList();
+			params.add(Integer.valueOf(LifecycleRequest.RESUME));
+			params.add(Integer.valueOf(LifecycleState.SELECTED));
+			sql += createQueueTypeCondition(queueTypeFilter, params);
+			sql += " order by TC_PRIORITY";
+
+			ArrayList result = new ArrayList();
+			for (Iterator it = pc.executeSelect(sql, params.toArray(), max).iterator(); it.hasNext();)
+			{
+				Object id = getSingleColumnValue(it.next());
+				TokenContext context = id != null ? getContextById(id) : null;
+				if (context != null)
+				{
+					result.add(context);
+				}
+			}
+			return wrapExecutableContextIterator(result.iterator());
+		}
+
 		// Construct search search criterion for executable token contexts;
 		// don't cache this, depends on current session.
 		PersistenceQuery query = pc.createQuery(TokenContext.class);
@@ -449,6 +672,259 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 		}
 	}
 
+	/**
+	 * Claims token context objects that are ready to execute for execution by the given node.
+	 * The method selects the ids of the executable contexts and marks them as selected by a single
+	 * update statement that repeats the selection condition, so contexts that have been claimed
+	 * by another node in the meantime will not be updated (similar to 'select for update skip locked').
+	 * After the commit, the claimed contexts will be loaded using a single query.
+	 * Claimed contexts that have been cached by the persistence context before the claim will be refreshed,
+	 * since the update has increased their version.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(int maxResults, String nodeId)
+	{
+		return claimExecutableContexts(maxResults, nodeId, 0, 1);
+	}
+
+	/**
+	 * Claims token context objects that are ready to execute and belong to the given partition of the token space
+	 * for execution by the given node.
+	 * The partition of a context is its partition key (see {@link TokenContextUtil#getPartitionKey}) modulo the
+	 * number of partitions, so the partition condition is part of the query.
+	 * Contexts that have been saved before the partition key has been introduced belong to partition 0.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @param partition Partition of the token space that is assigned to the node
+	 * @param partitionCount Number of partitions
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(int maxResults, String nodeId, int partition, int partitionCount)
+	{
+		return claimExecutableContexts(maxResults, nodeId, partition, partitionCount, null);
+	}
+
+	/**
+	 * Claims token context objects that are ready to execute, belong to the given partition of the token space
+	 * and are accepted by the given queue type filter for execution by the given node.
+	 * The queue type condition is part of the query that determines the candidates,
+	 * so contexts of excluded queue types will neither be claimed nor take up the places of the accepted ones.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @param partition Partition of the token space that is assigned to the node
+	 * @param partitionCount Number of partitions
+	 * @param queueTypeFilter Filter for the queue types of the contexts or null for all contexts
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(int maxResults, String nodeId, int partition, int partitionCount, QueueTypeFilter queueTypeFilter)
+	{
+		LogUtil.debug(getClass(), "Claiming executable tokens for node $0.", nodeId);
+		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+
+		int max = maxResults;
+		if (getIsolationLevel() == ISOLATION_LEVEL_SINGLE)
+		{
+			max = 1;
+		}
+
+		String executableCondition = "TC_LIFECYCLE_REQUEST = ? and TC_LIFECYCLE_STATE <> ?";
+		Object[] executableParams = new Object[] { Integer.valueOf(LifecycleRequest.RESUME), Integer.valueOf(LifecycleState.SELECTED) };
+
+		ArrayList ret = new ArrayList();
+		TransactionGuard tg = new TransactionGuard(pc);
+		try
+		{
+			// Determine the candidates
+			String sql = "select TC_ID, TC_VERSION from OPENBPTOKENCONTEXT where " + executableCondition;
+			ArrayList params = new ArrayList(Arrays.asList(executableParams));
+			if (partitionCount > 1)
+			{
+				sql += " and (mod(TC_PARTITION_KEY, ?) = ?";
+				params.add(Integer.valueOf(partitionCount));
+				params.add(Integer.valueOf(partition));
+				if (partition == 0)
+				{
+					sql += " or TC_PARTITION_KEY is null";
+				}
+				sql += ")";
+			}
+			sql += createQueueTypeCondition(queueTypeFilter, params);
+			sql += " order by TC_PRIORITY";
+
+			ArrayList ids = new ArrayList();
+			HashMap versions = new HashMap();
+			for (Iterator it = pc.executeSelect(sql, params.toArray(), max).iterator(); it.hasNext();)
+			{
+				Object row = it.next();
+				Object id = getColumnValue(row, 0, "TC_ID");
+				if (id != null)
+				{
+					ids.add(id);
+					versions.put(id, getColumnValue(row, 1, "TC_VERSION"));
+				}
+			}
+			if (ids.isEmpty())
+				return ret;
+			String idPlaceholders = createSqlPlaceholderList(ids.size());
+
+			// Claim the candidates that are still executable
+			sql = "update OPENBPTOKENCONTEXT set TC_LIFECYCLE_STATE = ?, TC_NODE_ID = ?, TC_VERSION = TC_VERSION + 1 where TC_ID in ("
+				+ idPlaceholders + ") and " + executableCondition;
+			params = new ArrayList();
+			params.add(Integer.valueOf(LifecycleState.SELECTED));
+			params.add(nodeId);
+			params.addAll(ids);
+			params.addAll(Arrays.asList(executableParams));
+			int count = pc.executeUpdateOrDelete(sql, params.toArray());
+			if (count == 0)
+				return ret;
+
+			ArrayList claimedIds = ids;
+			if (count < ids.size())
+			{
+				// Some of the candidates have been claimed by another node, determine our ones
+				sql = "select TC_ID from OPENBPTOKENCONTEXT where TC_ID in (" + idPlaceholders + ") and TC_LIFECYCLE_STATE = ? and TC_NODE_ID = ?";
+				params = new ArrayList(ids);
+				params.add(Integer.valueOf(LifecycleState.SELECTED));
+				params.add(nodeId);
+				HashSet claimedIdSet = new HashSet();
+				for (Iterator it = pc.executeSelect(sql, params.toArray(), 0).iterator(); it.hasNext();)
+				{
+					claimedIdSet.add(getSingleColumnValue(it.next()));
+				}
+				claimedIds = new ArrayList();
+				for (Iterator it = ids.iterator(); it.hasNext();)
+				{
+					Object id = it.next();
+					if (claimedIdSet.contains(id))
+					{
+						claimedIds.add(id);
+					}
+				}
+			}
+			pc.commitTransaction();
+
+			// Load the claimed contexts (in priority order)
+			Map contexts = pc.findByIds(claimedIds, TokenContext.class);
+			for (Iterator it = claimedIds.iterator(); it.hasNext();)
+			{
+				Object id = it.next();
+				TokenContext context = (TokenContext) contexts.get(id);
+				if (context == null)
+					continue;
+
+				// A context that has been cached before the claim still holds its previous version and state
+				Number version = (Number) versions.get(id);
+				if (version == null || context.getVersion() == null || context.getVersion().intValue() != version.intValue() + 1)
+				{
+					LogUtil.debug(getClass(), "Refreshing claimed token. [{0}]", context);
+					pc.refreshObject(context);
+				}
+				ret.add(context);
+			}
+			return ret;
+		}
+		catch (PersistenceException e)
+		{
+			tg.doCatch();
+			throw e;
+		}
+		finally
+		{
+			tg.doFinally();
+		}
+	}
+
+	/**
+	 * Creates the SQL condition that restricts the queue types of the executable contexts.
+	 *
+	 * @param queueTypeFilter Filter for the queue types of the contexts or null for all contexts
+	 * @param params List the values of the placeholders will be added to
+	 * @return The condition including a leading 'and' or an empty string
+	 */
+	private static String createQueueTypeCondition(QueueTypeFilter queueTypeFilter, List params)
+	{
+		if (queueTypeFilter == null)
+			return "";
+
+		Set queueTypes = queueTypeFilter.getQueueTypes();
+		if (queueTypes.isEmpty())
+			return queueTypeFilter.isExclude() ? "" : " and 1 = 0";
+
+		params.addAll(queueTypes);
+		String placeholders = createSqlPlaceholderList(queueTypes.size());
+		if (queueTypeFilter.isExclude())
+			return " and (TC_QUEUE_TYPE is null or TC_QUEUE_TYPE not in (" + placeholders + "))";
+		return " and TC_QUEUE_TYPE in (" + placeholders + ")";
+	}
+
+	/**
+	 * Gets a column value of a row returned by {@link PersistenceContext#executeSelect}.
+	 *
+	 * @param row Row object (either an Object array or a map of column names to values)
+	 * @param index Index of the column in the select list
+	 * @param columnName Name of the column
+	 * @return The column value
+	 */
+	private static Object getColumnValue(Object row, int index, String columnName)
+	{
+		if (row instanceof Map)
+		{
+			// Data row, the case of the column names depends on the database
+			for (Iterator it = ((Map) row).entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry entry = (Map.Entry) it.next();
+				if (columnName.equalsIgnoreCase(entry.getKey().toString()))
+					return entry.getValue();
+			}
+			return null;
+		}
+		return ((Object[]) row)[index];
+	}
+
+	/**
+	 * Gets the value of a single column row returned by {@link PersistenceContext#executeSelect}.
+	 *
+	 * @param row Row object (either the value itself, an Object array or a map of column names to values)
+	 * @return The column value
+	 */
+	private static Object getSingleColumnValue(Object row)
+	{
+		if (row instanceof Object[])
+		{
+			Object[] columns = (Object[]) row;
+			return columns.length > 0 ? columns[0] : null;
+		}
+		if (row instanceof Map)
+		{
+			Iterator it = ((Map) row).values().iterator();
+			return it.hasNext() ? it.next() : null;
+		}
+		return row;
+	}
+
+	private static String createSqlPlaceholderList(int n)
+	{
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < n; ++i)
+		{
+			if (i > 0)
+			{
+				sb.append(", ");
+			}
+			sb.append('?');
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * Gets the child contexts of the specified context.
 	 *
@@ -463,6 +939,106 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 		return children.iterator();
 	}
 
+	/**
+	 * Gets the child contexts of the specified context and their descendants.
+	 * The contexts are retrieved level by level; the children of the contexts of a level are loaded using a single query
+	 * per {@link #MAX_CONTEXTS_PER_QUERY} parent contexts.
+	 *
+	 * @param context Context
+	 * @return A list of {@link TokenContext} objects, parent contexts precede their child contexts
+	 */
+	public List getDescendantContexts(TokenContext context)
+	{
+		LogUtil.debug(getClass(), "Performing query for descendant tokens.");
+		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+
+		List descendants = new ArrayList();
+		List parents = Collections.singletonList(context);
+		while (! parents.isEmpty())
+		{
+			List children = new ArrayList();
+			int n = parents.size();
+			for (int i = 0; i < n; i += MAX_CONTEXTS_PER_QUERY)
+			{
+				PersistenceQuery query = pc.createQuery(TokenContext.class);
+				query.in("parentContext", parents.subList(i, Math.min(i + MAX_CONTEXTS_PER_QUERY, n)));
+				children.addAll(pc.runQuery(query));
+			}
+			descendants.addAll(children);
+			parents = children;
+		}
+		return descendants;
+	}
+
+	/**
+	 * Increases the number of outstanding child contexts of the given context.
+	 * The counter is updated by an SQL update statement; the child count of the context object will not be changed.
+	 *
+	 * @param parentContext Parent context
+	 * @param count Number of child contexts that have been added
+	 */
+	public void addChildCount(TokenContext parentContext, int count)
+	{
+		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+
+		String sql = "update OPENBPTOKENCONTEXT set TC_CHILD_COUNT = coalesce(TC_CHILD_COUNT, 0) + ? where TC_ID = ?";
+		pc.executeUpdateOrDelete(sql, new Object[] { Integer.valueOf(count), parentContext.getId() });
+	}
+
+	/**
+	 * Detaches a child context from its parent context and decrements the number of outstanding child contexts of the parent.
+	 * The counter is decremented by conditional SQL update statements, so the parent context and its child contexts
+	 * will not be loaded and concurrent joins do not depend on the isolation level of the transaction.
+	 * The child count of the context object will not be changed.
+	 * If the counter of the parent context is unknown (i. e. the children have been created before the counter
+	 * has been introduced), the method checks the child contexts of the parent instead.
+	 * Database schemas that have been created before the counter has been introduced can be migrated using the Upgrade-DDL.sql scripts;
+	 * they add the TC_CHILD_COUNT column without a value for the existing contexts.
+	 *
+	 * @param parentContext Parent context
+	 * @param childContext Child context to release
+	 * @return true if this call released the last outstanding child context of the parent context,
+	 * false if other child contexts are outstanding or the last child context has been released before
+	 */
+	public boolean releaseChildContext(TokenContext parentContext, TokenContext childContext)
+	{
+		// Doesn't initialize a lazy child set
+		parentContext.removeChildContext(childContext);
+		childContext.setParentContext(null);
+
+		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+		Object[] params = new Object[] { parentContext.getId() };
+
+		for (;;)
+		{
+			// Other children outstanding?
+			String sql = "update OPENBPTOKENCONTEXT set TC_CHILD_COUNT = TC_CHILD_COUNT - 1 where TC_ID = ? and TC_CHILD_COUNT > 1";
+			if (pc.executeUpdateOrDelete(sql, params) > 0)
+				return false;
+
+			// Are we the last one? Only the transaction that counts down the last child may report the join as completed.
+			sql = "update OPENBPTOKENCONTEXT set TC_CHILD_COUNT = TC_CHILD_COUNT - 1 where TC_ID = ? and TC_CHILD_COUNT = 1";
+			if (pc.executeUpdateOrDelete(sql, params) == 1)
+				return true;
+
+			// The counter has been changed concurrently, is exhausted or is unknown
+			sql = "select TC_CHILD_COUNT from OPENBPTOKENCONTEXT where TC_ID = ?";
+			Iterator it = pc.executeSelect(sql, params, 1).iterator();
+			Object value = it.hasNext() ? getSingleColumnValue(it.next()) : null;
+			if (value == null)
+			{
+				// No counter, check if there are other child contexts
+				return ! parentContext.hasChildContext();
+			}
+			if (((Number) value).intValue() <= 0)
+			{
+				// The last child has been released already
+				LogUtil.warn(getClass(), "Child counter of token $0 has been exhausted, releasing child $1.", parentContext, childContext);
+				return false;
+			}
+		}
+	}
+
 	/**
 	 * Changes the state of all matching token context objects in the context store.
 	 * This method can be used to fix the state of selected or running contexts after a system crash.
@@ -477,14 +1053,19 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 	{
 		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
 
-		String sql = "update OPENBPTOKENCONTEXT set TC_LIFECYCLE_STATE = " + toLifecycleState + ", TC_LIFECYCLE_REQUEST = " + toLifecycleRequest +
-                " where TC_LIFECYCLE_STATE = " + fromLifecycleState;
+		// Increment the version, so a node that still executes one of the tokens will fail to save it
+		String sql = "update OPENBPTOKENCONTEXT set TC_LIFECYCLE_STATE = ?, TC_LIFECYCLE_REQUEST = ?, TC_VERSION = TC_VERSION + 1 where TC_LIFECYCLE_STATE = ?";
+		ArrayList params = new ArrayList();
+		params.add(Integer.valueOf(toLifecycleState));
+		params.add(Integer.valueOf(toLifecycleRequest));
+		params.add(Integer.valueOf(fromLifecycleState));
 		if (nodeId != null)
 		{
-			sql += " and TC_NODE_ID = '" + nodeId + "'";
+			sql += " and TC_NODE_ID = ?";
+			params.add(nodeId);
 		}
 
-		return pc.executeUpdateOrDelete(sql);
+		return pc.executeUpdateOrDelete(sql, params.toArray());
 	}
 
 	//////////////////////////////////////////////////
@@ -535,19 +1116,31 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 	{
 		LogUtil.debug(getClass(), "Performing workflow task query $0.", criteria);
 		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
-		PersistenceQuery query = pc.createQuery(WorkflowTask.class);
 
-		if (criteria != null)
+		List tokenContexts = criteria != null && criteria.getTokenContexts() != null ? new ArrayList(criteria.getTokenContexts()) : null;
+		if (tokenContexts == null || tokenContexts.size() <= MAX_CONTEXTS_PER_QUERY)
 		{
-			configureCriterion(query, criteria);
+			PersistenceQuery query = pc.createQuery(WorkflowTask.class);
+			if (criteria != null)
+			{
+				configureCriterion(query, criteria, tokenContexts);
+			}
+			return pc.runQuery(query).iterator();
 		}
 
-		Collection result = pc.runQuery(query);
-
+		// Query the workflow tasks of a large number of contexts chunk by chunk
+		List result = new ArrayList();
+		int n = tokenContexts.size();
+		for (int i = 0; i < n; i += MAX_CONTEXTS_PER_QUERY)
+		{
+			PersistenceQuery query = pc.createQuery(WorkflowTask.class);
+			configureCriterion(query, criteria, tokenContexts.subList(i, Math.min(i + MAX_CONTEXTS_PER_QUERY, n)));
+			result.addAll(pc.runQuery(query));
+		}
 		return result.iterator();
 	}
 
-	private void configureCriterion(final PersistenceQuery query, final WorkflowTaskCriteria criteria)
+	private void configureCriterion(final PersistenceQuery query, final WorkflowTaskCriteria criteria, final Collection tokenContexts)
 	{
 		if (criteria.getId() != null)
 		{
@@ -584,6 +1177,11 @@ public class PersistentTokenContextService extends TokenContextServiceBase
 			query.eq("tokenContext", criteria.getTokenContext());
 		}
 
+		if (tokenContexts != null)
+		{
+			query.in("tokenContext", tokenContexts);
+		}
+
 		if (criteria.getModel() != null)
 		{
 			query.alias("tokenContext", "tc");
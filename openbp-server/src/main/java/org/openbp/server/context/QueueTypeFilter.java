@@ -0,0 +1,110 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Restricts the queue types of the token contexts that are retrieved for execution.
+ * The filter either includes the given queue types only or excludes them.
+ * Contexts without a queue type are excluded by an including filter and included by an excluding filter.
+ *
+ * @author Heiko Erhardt
+ */
+public class QueueTypeFilter
+{
+	/** Queue types */
+	private final Set queueTypes;
+
+	/** Flag if the queue types are excluded (true) or included (false) */
+	private final boolean exclude;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param queueTypes Queue types (contains Strings)
+	 * @param exclude true to exclude the given queue types, false to include the given queue types only
+	 */
+	private QueueTypeFilter(Collection queueTypes, boolean exclude)
+	{
+		this.queueTypes = Collections.unmodifiableSet(new HashSet(queueTypes));
+		this.exclude = exclude;
+	}
+
+	/**
+	 * Creates a filter that accepts the given queue types only.
+	 *
+	 * @param queueTypes Queue types to accept (contains Strings)
+	 * @return The new filter
+	 */
+	public static QueueTypeFilter include(Collection queueTypes)
+	{
+		return new QueueTypeFilter(queueTypes, false);
+	}
+
+	/**
+	 * Creates a filter that accepts any queue type except the given ones.
+	 *
+	 * @param queueTypes Queue types to reject (contains Strings)
+	 * @return The new filter
+	 */
+	public static QueueTypeFilter exclude(Collection queueTypes)
+	{
+		return new QueueTypeFilter(queueTypes, true);
+	}
+
+	/**
+	 * Checks if a context of the given queue type is accepted by the filter.
+	 *
+	 * @param queueType Queue type of the context or null
+	 * @return true if the context may be retrieved for execution
+	 */
+	public boolean accepts(String queueType)
+	{
+		boolean contained = queueType != null && queueTypes.contains(queueType);
+		return exclude ? ! contained : contained;
+	}
+
+	/**
+	 * Gets the queue types.
+	 * @return An unmodifiable set of queue types (Strings)
+	 */
+	public Set getQueueTypes()
+	{
+		return queueTypes;
+	}
+
+	/**
+	 * Checks if the queue types are excluded.
+	 * @return true if the filter rejects the queue types, false if it accepts the queue types only
+	 */
+	public boolean isExclude()
+	{
+		return exclude;
+	}
+
+	/**
+	 * Returns a string representation of this object.
+	 * @nowarn
+	 */
+	public String toString()
+	{
+		return (exclude ? "exclude " : "include ") + queueTypes;
+	}
+}
@@ -23,6 +23,7 @@ import org.openbp.common.util.observer.EventObserver;
 import org.openbp.common.util.observer.EventObserverMgr;
 import org.openbp.core.OpenBPException;
 import org.openbp.core.model.Model;
+import org.openbp.core.model.item.process.NodeParam;
 import org.openbp.core.model.item.process.NodeSocket;
 import org.openbp.core.model.modelmgr.ModelMgr;
 import org.openbp.server.engine.EngineEvent;
@@ -101,6 +102,20 @@ public interface TokenContext
 	 */
 	public Iterator getChildContexts();
 
+	/**
+	 * Gets the number of child tokens that have not been joined or ended yet.
+	 * The counter is maintained by the token context service (see {@link TokenContextService#addChildCount}).
+	 * Note that persistent token context services maintain this counter in the context store only.
+	 * @nowarn
+	 */
+	public int getChildCount();
+
+	/**
+	 * Sets the number of child tokens that have not been joined or ended yet.
+	 * @nowarn
+	 */
+	public void setChildCount(int childCount);
+
 	//////////////////////////////////////////////////
 	// @@ Execution parameters
 	//////////////////////////////////////////////////
@@ -333,6 +348,26 @@ public interface TokenContext
 	 */
 	public void clearParamValues();
 
+	/**
+	 * Retrieves the value of the specified node parameter.
+	 * Equivalent to {@link #getParamValue(String)} with the context name of the parameter,
+	 * but accesses the value by the context slot of the parameter.
+	 *
+	 * @param param Node parameter
+	 * @return The parameter value or null if no such parameter exists
+	 */
+	public Object getNodeParamValue(NodeParam param);
+
+	/**
+	 * Sets the value of the specified node parameter.
+	 * Equivalent to {@link #setParamValue(String, Object)} with the context name of the parameter,
+	 * but accesses the value by the context slot of the parameter.
+	 *
+	 * @param param Node parameter
+	 * @param value Param value
+	 */
+	public void setNodeParamValue(NodeParam param, Object value);
+
 	/**
 	 * Gets the node parameters (maps node-qualified parameter names (Strings)
 	 * to parameter values (Objects).
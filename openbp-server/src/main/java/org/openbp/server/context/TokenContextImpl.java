@@ -17,10 +17,10 @@ package org.openbp.server.context;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -35,8 +35,7 @@ import org.openbp.common.util.observer.EventObserverMgr;
 import org.openbp.core.CoreConstants;
 import org.openbp.core.engine.EngineException;
 import org.openbp.core.model.Model;
-import org.openbp.core.model.ModelQualifier;
-import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.NodeParam;
 import org.openbp.core.model.item.process.NodeSocket;
 import org.openbp.core.model.modelmgr.ModelMgr;
 import org.openbp.server.ServerConstants;
@@ -71,12 +70,40 @@ public class TokenContextImpl extends PersistentObjectBase
 	 */
 	private transient Set childContextSet;
 
+	/**
+	 * Number of child tokens that have not been joined or ended yet (maintained by the token context service).
+	 * Null if the counter is unknown to the context store.
+	 */
+	private transient Integer childCount;
+
 	/**
 	 * Node parameters (maps node-qualified parameter names (Strings) to
 	 * parameter values (Objects)
 	 */
 	// Note that this is transient, parameter set will be saved as byte array
-	private transient Map paramValues;
+	private transient ParamValueMap paramValues;
+
+	/**
+	 * Flag that determines if the parameter values or the call stack may have been modified
+	 * since the context data has been serialized or deserialized the last time.
+	 */
+	private transient boolean contextDataModified = true;
+
+	/**
+	 * Flag that determines if the serialized context data has been loaded from persistent storage,
+	 * but has not been deserialized yet.
+	 */
+	private transient boolean contextDataPending;
+
+	/**
+	 * Value holders of the parameter values and the values they held when the parameter value map
+	 * has been handed out by {@link #getParamValues} (maps {@link TokenContextValue} objects to values).
+	 * Used to detect modifications of the map if the context data has not been modified otherwise.
+	 */
+	private transient Map paramValueSnapshot;
+
+	/** Flag that determines if the context data is being serialized or deserialized */
+	private transient boolean serializing;
 
 	/**
 	 * Serialized context data. This byte array represents the context data that
@@ -149,6 +176,9 @@ public class TokenContextImpl extends PersistentObjectBase
 	/** Flag that determines if accessing an undefined process variable should cause an exception */
 	private static Boolean strictProcessVariableHandling;
 
+	/** Flag that determines if the context data should be serialized only after a modification of the context */
+	private static Boolean contextDataDirtyTracking;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -245,6 +275,40 @@ public class TokenContextImpl extends PersistentObjectBase
 		return childContextSet.iterator();
 	}
 
+	/*
+	 * @seem TokenContext.getChildCount
+	 */
+	public int getChildCount()
+	{
+		return childCount != null ? childCount.intValue() : 0;
+	}
+
+	/*
+	 * @seem TokenContext.setChildCount
+	 */
+	public void setChildCount(final int childCount)
+	{
+		this.childCount = Integer.valueOf(childCount);
+	}
+
+	/**
+	 * Gets the partition key of the token (see {@link TokenContextUtil#getPartitionKey}).
+	 * @nowarn
+	 */
+	public int getPartitionKey()
+	{
+		return TokenContextUtil.getPartitionKey(getId());
+	}
+
+	/**
+	 * Sets the partition key of the token.
+	 * The partition key is derived from the id of the context, so this method does nothing.
+	 * @nowarn
+	 */
+	public void setPartitionKey(final int partitionKey)
+	{
+	}
+
 	/*
 	 * @seem TokenContext.getExecutingModel
 	 */
@@ -291,10 +355,14 @@ public class TokenContextImpl extends PersistentObjectBase
 	 */
 	public CallStack getCallStack()
 	{
+		ensureContextData();
 		if (callStack == null)
 		{
 			callStack = new CallStackImpl(this);
 		}
+
+		// The call stack may be modified by the caller
+		contextDataModified = true;
 		return callStack;
 	}
 
@@ -303,7 +371,9 @@ public class TokenContextImpl extends PersistentObjectBase
 	 */
 	public void setCallStack(final CallStack callStack)
 	{
+		ensureContextData();
 		this.callStack = callStack;
+		contextDataModified = true;
 	}
 
 	/*
@@ -563,7 +633,7 @@ public class TokenContextImpl extends PersistentObjectBase
 	 */
 	public boolean hasParamValue(final String qualParamName)
 	{
-		return getParamValues().containsKey(qualParamName);
+		return getParamValueMap().containsKey(qualParamName);
 	}
 
 	/*
@@ -571,9 +641,9 @@ public class TokenContextImpl extends PersistentObjectBase
 	 */
 	public Object getParamValue(final String qualParamName)
 	{
-		TokenContextValue tcv = (TokenContextValue) getParamValues().get(qualParamName);
+		TokenContextValue tcv = (TokenContextValue) getParamValueMap().get(qualParamName);
 		if (tcv != null)
-			return tcv.getValue();
+			return accessValue(tcv);
 		return null;
 	}
 
@@ -584,6 +654,7 @@ public class TokenContextImpl extends PersistentObjectBase
 	{
 		TokenContextValue tcv = obtainParamValue(qualParamName, true);
 		tcv.setValue(value);
+		contextDataModified = true;
 	}
 
 	/*
@@ -591,7 +662,31 @@ public class TokenContextImpl extends PersistentObjectBase
 	 */
 	public void removeParamValue(final String qualParamName)
 	{
-		getParamValues().remove(qualParamName);
+		if (getParamValueMap().remove(qualParamName) != null)
+		{
+			contextDataModified = true;
+		}
+	}
+
+	/*
+	 * @seem TokenContext.getNodeParamValue
+	 */
+	public Object getNodeParamValue(final NodeParam param)
+	{
+		TokenContextValue tcv = getParamValueMap().getValue(param);
+		if (tcv != null)
+			return accessValue(tcv);
+		return null;
+	}
+
+	/*
+	 * @seem TokenContext.setNodeParamValue
+	 */
+	public void setNodeParamValue(final NodeParam param, final Object value)
+	{
+		TokenContextValue tcv = getParamValueMap().obtainValue(param, true);
+		tcv.setValue(value);
+		contextDataModified = true;
 	}
 
 	/*
@@ -599,7 +694,8 @@ public class TokenContextImpl extends PersistentObjectBase
 	 */
 	public void clearParamValues()
 	{
-		getParamValues().clear();
+		getParamValueMap().clear();
+		contextDataModified = true;
 	}
 
 	/*
@@ -607,25 +703,103 @@ public class TokenContextImpl extends PersistentObjectBase
 	 */
 	public Map getParamValues()
 	{
+		ParamValueMap map = getParamValueMap();
+		if (serializing)
+			return map;
+
+		// The caller may modify the map and the values it holds
+		if (paramValueSnapshot == null && isContextDataUnmodified())
+		{
+			paramValueSnapshot = new IdentityHashMap();
+			for (Iterator it = map.values().iterator(); it.hasNext();)
+			{
+				TokenContextValue tcv = (TokenContextValue) it.next();
+				paramValueSnapshot.put(tcv, tcv.getValue());
+			}
+		}
+		for (Iterator it = map.values().iterator(); it.hasNext();)
+		{
+			exposeValue((TokenContextValue) it.next());
+		}
+		return map;
+	}
+
+	/**
+	 * Gets the parameter value storage of this context.
+	 * @nowarn
+	 */
+	protected ParamValueMap getParamValueMap()
+	{
+		ensureContextData();
 		if (paramValues == null)
 		{
-			paramValues = Collections.synchronizedMap(new HashMap());
+			paramValues = new ParamValueMap();
 		}
 		return paramValues;
 	}
 
 	protected TokenContextValue obtainParamValue(final String variableName, final boolean isPersistent)
 	{
-		TokenContextValue tcv = (TokenContextValue) getParamValues().get(variableName);
+		TokenContextValue tcv = (TokenContextValue) getParamValueMap().get(variableName);
 		if (tcv == null)
 		{
 			tcv = new TokenContextValue();
 			tcv.setPersistentVariable(isPersistent);
-			getParamValues().put(variableName, tcv);
+			getParamValueMap().put(variableName, tcv);
+			contextDataModified = true;
 		}
 		return tcv;
 	}
 
+	/**
+	 * Gets the value of a parameter value or process variable holder.
+	 * Values that are not immutable may be modified by the caller, so they will be checked for modifications
+	 * when the context is saved (see {@link #exposeValue}).
+	 * A {@link DeferredContextValue} will be resolved and replaced by the resolved value.
+	 *
+	 * @param tcv Value holder
+	 * @return The value
+	 */
+	protected Object accessValue(final TokenContextValue tcv)
+	{
+		Object value = tcv.getValue();
+		if (value instanceof DeferredContextValue)
+		{
+			value = ((DeferredContextValue) value).resolveValue(this);
+			tcv.setValue(value);
+		}
+		exposeValue(tcv);
+		return value;
+	}
+
+	/**
+	 * Marks a persistent value that is not immutable as handed out to the caller.
+	 * If the context data has not been modified yet, the hash of the value will be determined,
+	 * so a modification of the value can be detected when the context is saved.
+	 * Values that cannot be hashed (e. g. persistent objects) cause the context data to be considered modified.
+	 *
+	 * @param tcv Value holder
+	 */
+	protected void exposeValue(final TokenContextValue tcv)
+	{
+		if (tcv.isExposed() || ! tcv.isPersistentVariable() || TokenContextUtil.isImmutableValue(tcv.getValue()))
+			return;
+
+		tcv.setExposed(true);
+		if (tcv.getValueHash() == null && isContextDataUnmodified())
+		{
+			String hash = TokenContextUtil.computeValueHash(this, tcv.getValue());
+			if (hash != null)
+			{
+				tcv.setValueHash(hash);
+			}
+			else
+			{
+				contextDataModified = true;
+			}
+		}
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Process variables
 	//////////////////////////////////////////////////
@@ -664,7 +838,7 @@ public class TokenContextImpl extends PersistentObjectBase
 		TokenContextValue tcv = getProcessVariable(variableName, false);
 		if (tcv != null)
 		{
-			return tcv.getValue();
+			return accessValue(tcv);
 		}
 		return null;
 	}
@@ -678,6 +852,9 @@ public class TokenContextImpl extends PersistentObjectBase
 		if (tcv != null)
 		{
 			tcv.setValue(value);
+
+			// Note that a variable of a parent context has been marked as modified by getProcessVariable
+			contextDataModified = true;
 		}
 	}
 
@@ -698,7 +875,7 @@ public class TokenContextImpl extends PersistentObjectBase
 	public Iterator getProcessVariableNames()
 	{
 		ArrayList ret = new ArrayList();
-		for (Iterator it = getParamValues().keySet().iterator(); it.hasNext();)
+		for (Iterator it = getParamValueMap().keySet().iterator(); it.hasNext();)
 		{
 			String name = (String) it.next();
 			if (TokenContextUtil.isProcessVariableIdentifier(name))
@@ -711,9 +888,20 @@ public class TokenContextImpl extends PersistentObjectBase
 
 	protected TokenContextValue getProcessVariable(final String variableName, boolean mustExist)
 	{
-		for (TokenContext context = this; context != null; context = context.getParentContext())
+		String qualVariableName = CoreConstants.PROCESS_VARIABLE_INDICATOR + variableName;
+		TokenContextValue tcv = (TokenContextValue) getParamValueMap().get(qualVariableName);
+		if (tcv != null)
+			return tcv;
+		for (TokenContext context = getParentContext(); context != null; context = context.getParentContext())
 		{
-			TokenContextValue tcv = (TokenContextValue) context.getParamValues().get(CoreConstants.PROCESS_VARIABLE_INDICATOR + variableName);
+			if (context instanceof TokenContextImpl)
+			{
+				tcv = (TokenContextValue) ((TokenContextImpl) context).getParamValueMap().get(qualVariableName);
+			}
+			else
+			{
+				tcv = (TokenContextValue) context.getParamValues().get(qualVariableName);
+			}
 			if (tcv != null)
 				return tcv;
 		}
@@ -898,7 +1086,9 @@ public class TokenContextImpl extends PersistentObjectBase
 	 */
 	public void onLoad()
 	{
-		applySerialziedContextData();
+		// The context data will be deserialized on first access of the call stack or the parameter values
+		contextDataPending = true;
+		contextDataModified = false;
 	}
 
 	/*
@@ -933,8 +1123,7 @@ public class TokenContextImpl extends PersistentObjectBase
 	{
 		if (executingModelQualifier != null)
 		{
-			ModelQualifier qualifier = new ModelQualifier(executingModelQualifier);
-			executingModel = getModelMgr().getModelByQualifier(qualifier);
+			executingModel = getModelMgr().getModelByQualifierString(executingModelQualifier);
 		}
 		else
 		{
@@ -962,9 +1151,7 @@ public class TokenContextImpl extends PersistentObjectBase
 	{
 		if (currentSocketQualifier != null)
 		{
-			ModelQualifier qualifier = new  ModelQualifier(currentSocketQualifier);
-			qualifier.setItemType(ItemTypes.PROCESS);
-			setCurrentSocket(EngineUtil.determineNodeSocketFromQualifier(qualifier, getModelMgr()));
+			setCurrentSocket(getModelMgr().getNodeSocketByQualifierString(currentSocketQualifier));
 		}
 		else
 		{
@@ -990,6 +1177,19 @@ public class TokenContextImpl extends PersistentObjectBase
 		this.childContextSet = childContextSet;
 	}
 
+	/**
+	 * Deserializes the context data if this has not been done since the context has been read from persistent storage.
+	 */
+	protected void ensureContextData()
+	{
+		if (contextDataPending)
+		{
+			// Reset the flag first, the deserialization accesses the call stack and the parameter values
+			contextDataPending = false;
+			applySerialziedContextData();
+		}
+	}
+
 	/**
 	 * Ensures that the context is deserialized after being read from persistent
 	 * storage.
@@ -999,16 +1199,134 @@ public class TokenContextImpl extends PersistentObjectBase
 		byte[] data = getContextData();
 		if (data != null)
 		{
-			TokenContextUtil.fromByteArray(this, data);
+			serializing = true;
+			try
+			{
+				TokenContextUtil.fromByteArray(this, data);
+			}
+			finally
+			{
+				serializing = false;
+			}
 		}
+
+		// The context now reflects the persistent state
+		contextDataModified = false;
+		paramValueSnapshot = null;
 	}
 
 	/**
 	 * Updates the serialzied context data with actual context values.
+	 * The context data will be serialized only if the context might have been modified since the last
+	 * serialization or deserialization.
+	 * The serialized context data will be replaced only if its content has changed,
+	 * so the O/R mapper may skip writing it.
 	 */
 	protected void updateSerialziedContextData()
 	{
-		setContextData(TokenContextUtil.toByteArray(this));
+		if (contextDataPending)
+		{
+			// Context data has not even been deserialized, so the persistent state is still valid
+			return;
+		}
+
+		byte[] oldData = getContextData();
+		if (isContextDataUnmodified() && ! hasExposedValueChanged())
+		{
+			// Nothing has changed
+			return;
+		}
+
+		byte[] data;
+		serializing = true;
+		try
+		{
+			data = TokenContextUtil.toByteArray(this);
+		}
+		finally
+		{
+			serializing = false;
+		}
+		if (oldData == null || ! Arrays.equals(data, oldData))
+		{
+			setContextData(data);
+		}
+
+		// Reset the flags after the serialization, which accesses the call stack and the parameter values
+		contextDataModified = false;
+		paramValueSnapshot = null;
+		if (paramValues != null)
+		{
+			for (Iterator it = paramValues.values().iterator(); it.hasNext();)
+			{
+				TokenContextValue tcv = (TokenContextValue) it.next();
+				if (tcv.isExposed())
+				{
+					tcv.setExposed(false);
+					if (! tcv.isExternal())
+					{
+						// The hash of a value that is stored by reference is still valid
+						tcv.setValueHash(null);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks if the serialized context data reflects the state of the context, not considering the values that have been handed out.
+	 * @return true if there is serialized context data, the context has not been modified and dirty tracking is enabled
+	 */
+	protected boolean isContextDataUnmodified()
+	{
+		return ! contextDataModified && getContextData() != null && isContextDataDirtyTracking();
+	}
+
+	/**
+	 * Checks if the parameter value map or one of the mutable values that have been handed out has been modified.
+	 * @return true if the parameter value map has been modified or the hash of an exposed value has changed
+	 */
+	protected boolean hasExposedValueChanged()
+	{
+		if (paramValues == null)
+			return false;
+
+		if (paramValueSnapshot != null)
+		{
+			if (paramValueSnapshot.size() != paramValues.size())
+				return true;
+			for (Iterator it = paramValues.values().iterator(); it.hasNext();)
+			{
+				TokenContextValue tcv = (TokenContextValue) it.next();
+				if (! paramValueSnapshot.containsKey(tcv) || paramValueSnapshot.get(tcv) != tcv.getValue())
+					return true;
+			}
+		}
+
+		for (Iterator it = paramValues.values().iterator(); it.hasNext();)
+		{
+			TokenContextValue tcv = (TokenContextValue) it.next();
+			if (! tcv.isExposed())
+				continue;
+			String hash = tcv.getValueHash();
+			if (hash == null || ! hash.equals(TokenContextUtil.computeValueHash(this, tcv.getValue())))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if the context data should be serialized only after a modification of the context.
+	 * @return The value of the {@link ServerConstants#SYSPROP_CONTEXTDATA_DIRTYTRACKING} setting
+	 */
+	protected static boolean isContextDataDirtyTracking()
+	{
+		if (contextDataDirtyTracking == null)
+		{
+			boolean b = SettingUtil.getBooleanSetting(ServerConstants.SYSPROP_CONTEXTDATA_DIRTYTRACKING, true);
+			contextDataDirtyTracking = Boolean.valueOf(b);
+		}
+		return contextDataDirtyTracking.booleanValue();
 	}
 
 	/**
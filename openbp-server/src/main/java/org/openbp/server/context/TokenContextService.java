@@ -15,9 +15,12 @@
  */
 package org.openbp.server.context;
 
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import org.openbp.common.generic.LifecycleSupport;
+import org.openbp.server.engine.ReadyTokenQueue;
 
 /**
  * The token context service provides token context and workflow task management services to the execution engine and the application.
@@ -49,11 +52,32 @@ public interface TokenContextService
 	 */
 	public void commit();
 
+	/**
+	 * Saves the given context and commits the recent changes.
+	 * Called by the engine when a token is suspended; the context must have been committed to the store before.
+	 * The implementation may write the context in a transaction that is shared with other threads (see {@link GroupCommitter}).
+	 * The method returns when the changes have been committed.
+	 *
+	 * @param context Context to save
+	 */
+	public void commitContext(TokenContext context);
+
 	/**
 	 * Rolls back the recent changes (if supported).
 	 */
 	public void rollback();
 
+	/**
+	 * Sets the queue of tokens that are ready for execution.
+	 * The token ids that have been posted to the queue by the current thread will be published
+	 * when the transaction is committed using {@link #commit} or {@link #commitContext}
+	 * and discarded when it is rolled back.
+	 * The engine assigns its queue to the token context service.
+	 *
+	 * @param readyTokenQueue The queue or null
+	 */
+	public void setReadyTokenQueue(ReadyTokenQueue readyTokenQueue);
+
 	/**
 	 * Clears any this token context service might have.
 	 */
@@ -101,6 +125,14 @@ public interface TokenContextService
 	 */
 	public void deleteContext(TokenContext context);
 
+	/**
+	 * Removes several contexts from the service, e. g. a token and its child tokens.
+	 * The contexts must not reference each other.
+	 *
+	 * @param contexts Contexts to remove (contains {@link TokenContext} objects)
+	 */
+	public void deleteContexts(Collection contexts);
+
 	/**
 	 * Evicts the context from the cache of the underlying persistence layer, if any.
 	 *
@@ -135,6 +167,59 @@ public interface TokenContextService
 	 */
 	public Iterator getExecutableContexts(int maxResults);
 
+	/**
+	 * Claims token context objects that are ready to execute for execution by the given node.
+	 * The lifecycle state of the claimed contexts will be set to {@link LifecycleState#SELECTED}
+	 * and their node id will be set to the given node id within a single transaction, which will be committed by the method.
+	 * Contexts that are concurrently claimed by another node will be skipped.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(int maxResults, String nodeId);
+
+	/**
+	 * Claims token context objects that are ready to execute and belong to the given partition of the token space
+	 * for execution by the given node.
+	 * See {@link #claimExecutableContexts(int, String)} and {@link TokenContextUtil#getPartition}.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @param partition Partition of the token space that is assigned to the node
+	 * @param partitionCount Number of partitions
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(int maxResults, String nodeId, int partition, int partitionCount);
+
+	/**
+	 * Gets the token context objects that are ready to execute and are accepted by the given queue type filter.
+	 * See {@link #getExecutableContexts(int)}.
+	 *
+	 * @param maxResults Maximum number of result records or 0 for all
+	 * @param queueTypeFilter Filter for the queue types of the contexts or null for all contexts
+	 * @return An iterator of {@link TokenContext} objects.
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public Iterator getExecutableContexts(int maxResults, QueueTypeFilter queueTypeFilter);
+
+	/**
+	 * Claims token context objects that are ready to execute, belong to the given partition of the token space
+	 * and are accepted by the given queue type filter for execution by the given node.
+	 * See {@link #claimExecutableContexts(int, String, int, int)}.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @param partition Partition of the token space that is assigned to the node
+	 * @param partitionCount Number of partitions
+	 * @param queueTypeFilter Filter for the queue types of the contexts or null for all contexts
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(int maxResults, String nodeId, int partition, int partitionCount, QueueTypeFilter queueTypeFilter);
+
 	/**
 	 * Gets the child contexts of the specified context.
 	 *
@@ -143,6 +228,35 @@ public interface TokenContextService
 	 */
 	public Iterator getChildContexts(TokenContext context);
 
+	/**
+	 * Gets the child contexts of the specified context and their descendants.
+	 *
+	 * @param context Context
+	 * @return A list of {@link TokenContext} objects, parent contexts precede their child contexts
+	 */
+	public List getDescendantContexts(TokenContext context);
+
+	/**
+	 * Increases the number of outstanding child contexts of the given context.
+	 * To be called when child contexts have been created for the context (e. g. by a fork node).
+	 * The counter will be updated by a single atomic operation in the context store.
+	 *
+	 * @param parentContext Parent context
+	 * @param count Number of child contexts that have been added
+	 */
+	public void addChildCount(TokenContext parentContext, int count);
+
+	/**
+	 * Detaches a child context from its parent context and decrements the number of outstanding child contexts of the parent.
+	 * The counter will be updated by a single atomic operation in the context store, so if several
+	 * child contexts are released concurrently, exactly one of them will be reported as the last one.
+	 *
+	 * @param parentContext Parent context
+	 * @param childContext Child context to release
+	 * @return true if there are no more outstanding child contexts of the parent context
+	 */
+	public boolean releaseChildContext(TokenContext parentContext, TokenContext childContext);
+
 	/**
 	 * Changes the state of all matching token context objects in the context store.
 	 * This method can be used to fix the state of selected or running contexts after a system crash.
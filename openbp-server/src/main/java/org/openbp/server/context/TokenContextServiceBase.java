@@ -1,9 +1,13 @@
 package org.openbp.server.context;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import org.openbp.common.util.ToStringHelper;
 import org.openbp.core.model.modelmgr.ModelMgr;
+import org.openbp.server.engine.ReadyTokenQueue;
 import org.openbp.server.persistence.PersistenceContext;
 import org.openbp.server.persistence.PersistenceContextProvider;
 
@@ -21,6 +25,9 @@ public abstract class TokenContextServiceBase
 	/** Model mgr */
 	private ModelMgr modelMgr;
 
+	/** Queue of tokens that are ready for execution */
+	private ReadyTokenQueue readyTokenQueue;
+
 	/**
 	 * Default constructor.
 	 */
@@ -89,6 +96,74 @@ public abstract class TokenContextServiceBase
 		this.modelMgr = modelMgr;
 	}
 
+	/**
+	 * Gets the queue of tokens that are ready for execution.
+	 * @return The queue or null
+	 */
+	public ReadyTokenQueue getReadyTokenQueue()
+	{
+		return readyTokenQueue;
+	}
+
+	/**
+	 * Sets the queue of tokens that are ready for execution.
+	 * @param readyTokenQueue The queue or null
+	 */
+	public void setReadyTokenQueue(ReadyTokenQueue readyTokenQueue)
+	{
+		this.readyTokenQueue = readyTokenQueue;
+	}
+
+	/**
+	 * Publishes the tokens that have been resumed within the transaction of the current thread to the ready token queue.
+	 * To be called by the implementation after the transaction has been committed.
+	 */
+	protected void transactionCommitted()
+	{
+		if (readyTokenQueue != null)
+		{
+			readyTokenQueue.transactionCommitted();
+		}
+	}
+
+	/**
+	 * Discards the tokens that have been resumed within the transaction of the current thread.
+	 * To be called by the implementation after the transaction has been rolled back.
+	 */
+	protected void transactionRolledBack()
+	{
+		if (readyTokenQueue != null)
+		{
+			readyTokenQueue.transactionRolledBack();
+		}
+	}
+
+	/**
+	 * Saves the given context and commits the recent changes.
+	 * The default implementation saves the context and commits the transaction.
+	 *
+	 * @param context Context to save
+	 */
+	public void commitContext(TokenContext context)
+	{
+		saveContext(context);
+		commit();
+	}
+
+	/**
+	 * Removes several contexts from the service.
+	 * The default implementation deletes the contexts one by one using {@link #deleteContext}.
+	 *
+	 * @param contexts Contexts to remove (contains {@link TokenContext} objects)
+	 */
+	public void deleteContexts(Collection contexts)
+	{
+		for (Iterator it = contexts.iterator(); it.hasNext();)
+		{
+			deleteContext((TokenContext) it.next());
+		}
+	}
+
 	/**
 	 * Retrieves a token context by its id.
 	 *
@@ -123,6 +198,163 @@ public abstract class TokenContextServiceBase
 		return childContext;
 	}
 
+	/**
+	 * Gets the child contexts of the specified context and their descendants.
+	 * The default implementation retrieves the child contexts of each context using {@link #getChildContexts}.
+	 *
+	 * @param context Context
+	 * @return A list of {@link TokenContext} objects, parent contexts precede their child contexts
+	 */
+	public List getDescendantContexts(TokenContext context)
+	{
+		List descendants = new ArrayList();
+		for (Iterator it = getChildContexts(context); it.hasNext();)
+		{
+			descendants.add(it.next());
+		}
+		for (int i = 0; i < descendants.size(); ++i)
+		{
+			for (Iterator it = getChildContexts((TokenContext) descendants.get(i)); it.hasNext();)
+			{
+				descendants.add(it.next());
+			}
+		}
+		return descendants;
+	}
+
+	/**
+	 * Gets the token context objects that are ready to execute and are accepted by the given queue type filter.
+	 * The default implementation filters the result of {@link #getExecutableContexts(int)}.
+	 *
+	 * @param maxResults Maximum number of result records or 0 for all
+	 * @param queueTypeFilter Filter for the queue types of the contexts or null for all contexts
+	 * @return An iterator of {@link TokenContext} objects.
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public Iterator getExecutableContexts(int maxResults, QueueTypeFilter queueTypeFilter)
+	{
+		Iterator it = getExecutableContexts(maxResults);
+		if (queueTypeFilter == null)
+			return it;
+
+		List contexts = new ArrayList();
+		while (it.hasNext())
+		{
+			TokenContext context = (TokenContext) it.next();
+			if (queueTypeFilter.accepts(context.getQueueType()))
+			{
+				contexts.add(context);
+			}
+		}
+		return contexts.iterator();
+	}
+
+	/**
+	 * Claims token context objects that are ready to execute for execution by the given node.
+	 * The default implementation claims the contexts of the single partition of the token space.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(int maxResults, String nodeId)
+	{
+		return claimExecutableContexts(maxResults, nodeId, 0, 1);
+	}
+
+	/**
+	 * Claims token context objects that are ready to execute and belong to the given partition of the token space
+	 * for execution by the given node.
+	 * The default implementation marks the contexts returned by {@link #getExecutableContexts(int)} as selected
+	 * and commits them. It does not skip contexts that are claimed concurrently by another node,
+	 * so implementations that are used by several nodes should override this method.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @param partition Partition of the token space that is assigned to the node
+	 * @param partitionCount Number of partitions
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(int maxResults, String nodeId, int partition, int partitionCount)
+	{
+		List ret = new ArrayList();
+		for (Iterator it = getExecutableContexts(partitionCount > 1 ? 0 : maxResults); it.hasNext();)
+		{
+			TokenContext context = (TokenContext) it.next();
+			if (TokenContextUtil.getPartition(context.getId(), partitionCount) != partition)
+				continue;
+
+			context.setLifecycleState(LifecycleState.SELECTED);
+			context.setNodeId(nodeId);
+			saveContext(context);
+			ret.add(context);
+			if (maxResults > 0 && ret.size() == maxResults)
+				break;
+		}
+		if (! ret.isEmpty())
+		{
+			commit();
+		}
+		return ret;
+	}
+
+	/**
+	 * Claims token context objects that are ready to execute, belong to the given partition of the token space
+	 * and are accepted by the given queue type filter for execution by the given node.
+	 * The default implementation ignores the filter and claims all executable contexts of the partition,
+	 * so the caller has to release the contexts it is not able to execute.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @param partition Partition of the token space that is assigned to the node
+	 * @param partitionCount Number of partitions
+	 * @param queueTypeFilter Filter for the queue types of the contexts or null for all contexts
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(int maxResults, String nodeId, int partition, int partitionCount, QueueTypeFilter queueTypeFilter)
+	{
+		return claimExecutableContexts(maxResults, nodeId, partition, partitionCount);
+	}
+
+	/**
+	 * Increases the number of outstanding child contexts of the given context.
+	 * The default implementation maintains the counter in the parent context object.
+	 *
+	 * @param parentContext Parent context
+	 * @param count Number of child contexts that have been added
+	 */
+	public void addChildCount(TokenContext parentContext, int count)
+	{
+		synchronized (parentContext)
+		{
+			parentContext.setChildCount(parentContext.getChildCount() + count);
+		}
+	}
+
+	/**
+	 * Detaches a child context from its parent context and decrements the number of outstanding child contexts of the parent.
+	 * The default implementation maintains the counter in the parent context object.
+	 *
+	 * @param parentContext Parent context
+	 * @param childContext Child context to release
+	 * @return true if there are no more outstanding child contexts of the parent context
+	 */
+	public boolean releaseChildContext(TokenContext parentContext, TokenContext childContext)
+	{
+		synchronized (parentContext)
+		{
+			parentContext.removeChildContext(childContext);
+			childContext.setParentContext(null);
+
+			int count = parentContext.getChildCount() - 1;
+			parentContext.setChildCount(Math.max(count, 0));
+			return count <= 0;
+		}
+	}
+
 	/**
 	 * Creates a context.
 	 * However, the context is not added to the context list.
@@ -3,21 +3,40 @@ package org.openbp.server.context;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.openbp.common.CommonRegistry;
 import org.openbp.common.classloader.ClassLoaderObjectInputStream;
 import org.openbp.common.logger.LogUtil;
+import org.openbp.common.setting.SettingUtil;
 import org.openbp.core.CoreConstants;
 import org.openbp.core.engine.EngineException;
+import org.openbp.core.model.item.process.NodeParam;
 import org.openbp.core.model.item.process.NodeSocket;
 import org.openbp.core.model.item.process.Param;
 import org.openbp.core.model.item.process.ProcessItem;
 import org.openbp.core.model.item.process.ProcessVariable;
+import org.openbp.server.ServerConstants;
+import org.openbp.server.context.serializer.CompactObjectInputStream;
+import org.openbp.server.context.serializer.CompactObjectOutputStream;
+import org.openbp.server.context.serializer.ContextObjectSerializer;
 import org.openbp.server.context.serializer.ContextObjectSerializerRegistry;
+import org.openbp.server.context.serializer.PersistenceContextObjectSerializer;
 import org.openbp.server.engine.EngineTraceException;
 import org.openbp.server.engine.EngineUtil;
 
@@ -90,6 +109,10 @@ public final class TokenContextUtil
 		{
 			return token.getProcessVariableValue(param.getName());
 		}
+		if (param instanceof NodeParam)
+		{
+			return token.getNodeParamValue((NodeParam) param);
+		}
 		return token.getParamValue(param.getContextName());
 	}
 
@@ -130,6 +153,10 @@ public final class TokenContextUtil
 			}
 			context.setProcessVariableValue(param.getName(), value);
 		}
+		else if (param instanceof NodeParam)
+		{
+			token.setNodeParamValue((NodeParam) param, value);
+		}
 		else
 		{
 			token.setParamValue(param.getContextName(), value);
@@ -233,6 +260,50 @@ public final class TokenContextUtil
 		return name != null && name.length() > 0 && name.startsWith(CoreConstants.PROCESS_VARIABLE_INDICATOR);
 	}
 
+	/**
+	 * Determines the partition of the token space a token belongs to.
+	 * Used to distribute the tokens among the nodes of a cluster.
+	 *
+	 * @param contextId Id of the token context
+	 * @param partitionCount Number of partitions
+	 * @return The partition (0 to partitionCount - 1)
+	 */
+	public static int getPartition(Object contextId, int partitionCount)
+	{
+		if (contextId == null || partitionCount <= 1)
+			return 0;
+		return getPartitionKey(contextId) % partitionCount;
+	}
+
+	/**
+	 * Determines the partition key of a token.
+	 * The partition key is stored with the token, so the partition of a token (the partition key modulo
+	 * the number of partitions) can be determined by the database when querying for executable tokens.
+	 *
+	 * @param contextId Id of the token context
+	 * @return The partition key (a non-negative hash code of the id)
+	 */
+	public static int getPartitionKey(Object contextId)
+	{
+		if (contextId == null)
+			return 0;
+		return contextId.toString().hashCode() & 0x7fffffff;
+	}
+
+	/**
+	 * Checks if the given value is an instance of an immutable type.
+	 * Immutable values may be handed out by the token context without the need to assume a modification of the context data.
+	 *
+	 * @param value Value to check
+	 * @return true for null, strings, numbers of the standard number types, booleans, characters and enumerations
+	 */
+	public static boolean isImmutableValue(Object value)
+	{
+		return value == null || value instanceof String || value instanceof Integer || value instanceof Long || value instanceof Boolean
+			|| value instanceof Double || value instanceof BigDecimal || value instanceof Short || value instanceof Byte
+			|| value instanceof Character || value instanceof Float || value instanceof BigInteger || value instanceof Enum;
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Debugging support
 	//////////////////////////////////////////////////
@@ -287,6 +358,30 @@ public final class TokenContextUtil
 	public static final long SERIAL_BASE = 423490238923492892L;
 	public static final long SERIAL_LATEST = 0L;
 
+	/**
+	 * Header of context data in compact format.
+	 * Context data in the original format starts with the magic number of a Java object stream (0xACED).
+	 */
+	private static final byte[] COMPACT_HEADER = { 'O', 'B', 'P' };
+
+	/** Version of the compact format, follows the header */
+	private static final int COMPACT_VERSION_LATEST = 1;
+
+	/** Flag byte of the compact format (follows the version): Content is compressed */
+	private static final int COMPACT_FLAG_COMPRESSED = 1;
+
+	/** Flag that determines if the context data should be written in compact format */
+	private static Boolean compactFormat;
+
+	/** Minimum size of the context data that will be compressed or 0 */
+	private static Integer compressionThreshold;
+
+	/** Minimum serialized size of a context value that will be stored by reference or 0 */
+	private static Integer externalValueSize;
+
+	/** Runtime attribute: Names of the context values that have been stored by reference (a set of strings) */
+	private static final String EXTERNAL_VALUE_NAMES = "_ExternalValueNames";
+
 	/**
 	 * This method is implemented here to support serialization of the node
 	 * socket. See {@link java.io.Serializable} java.io.Serializable for more information on this method.
@@ -327,7 +422,7 @@ public final class TokenContextUtil
 			{
 				out.writeObject(key);
 
-				value = tcv.getValue();
+				value = tcv.getPersistentValue();
 				serializerRegistry.writeObjectToOutputStream(value, out, context, key);
 			}
 			catch (Throwable t)
@@ -480,8 +575,371 @@ public final class TokenContextUtil
 		}
 	}
 
+	/**
+	 * Writes the context in compact format.
+	 * The call stack is written as regular object, parameter values are written using
+	 * {@link ContextObjectSerializerRegistry#writeCompactObjectToOutputStream}.
+	 * @param context Token context
+	 * @param out The current object output stream
+	 * @throws IOException if an I/O problem occured.
+	 */
+	private static void writeCompactObject(TokenContext context, CompactObjectOutputStream out)
+		throws IOException
+	{
+		ContextObjectSerializerRegistry serializerRegistry = (ContextObjectSerializerRegistry) CommonRegistry
+			.lookup(ContextObjectSerializerRegistry.class);
+
+		// Write the call stack
+		out.writeObject(context.getCallStack());
+
+		// Parameter values, each preceeded by a continuation flag
+		Map pv = context.getParamValues();
+		for (Iterator keys = pv.keySet().iterator(); keys.hasNext();)
+		{
+			String key = (String) keys.next();
+
+			TokenContextValue tcv = (TokenContextValue) pv.get(key);
+			if (! tcv.isPersistentVariable())
+				continue;
+
+			Object value = null;
+
+			try
+			{
+				out.writeBoolean(true);
+				out.writeUTF(key);
+
+				value = tcv.getPersistentValue();
+				serializerRegistry.writeCompactObjectToOutputStream(value, out, context, key);
+			}
+			catch (Throwable t)
+			{
+				// Obviously, this is one of the famous serializable objects that are not serializable.
+				String className = value != null ? value.getClass().getName() : "<unknown>";
+				String msg = LogUtil
+					.error(
+						context.getClass(),
+						"Error serializing token context: Serialization of object of type $0 (key $1) failed though object implements the Serializable interface.",
+						className, key, t);
+				throw new EngineException("ContextSerialization", msg, t);
+			}
+		}
+
+		// End of parameter values
+		out.writeBoolean(false);
+	}
+
+	/**
+	 * Reads the context in compact format.
+	 * @param context Token context
+	 * @param in The current object input stream
+	 * @param version Version of the compact format
+	 * @throws IOException if an I/O problem occured
+	 * @throws ClassNotFoundException if a class could not be found
+	 */
+	private static void readCompactObject(TokenContext context, CompactObjectInputStream in, int version)
+		throws IOException, ClassNotFoundException
+	{
+		if (version < 1 || version > COMPACT_VERSION_LATEST)
+		{
+			String msg = LogUtil.error(context.getClass(), "Trying to deserialize a token with an unknown compact format version number (level: $0). [{1}]", Integer.valueOf(version), context);
+			throw new EngineException("ContextDeserialization", msg);
+		}
+
+		ContextObjectSerializerRegistry serializerRegistry = (ContextObjectSerializerRegistry) CommonRegistry
+			.lookup(ContextObjectSerializerRegistry.class);
+
+		CallStack callStack = (CallStack) in.readObject();
+		if (callStack != null)
+		{
+			callStack.setTokenContext(context);
+			((CallStackImpl) callStack).initializeAfterDeserialization(context);
+		}
+		context.setCallStack(callStack);
+
+		while (in.readBoolean())
+		{
+			String key = in.readUTF();
+
+			if (isProcessVariableIdentifier(key))
+			{
+				context.createProcessVariable(key.substring(1), true);
+			}
+
+			Object value = serializerRegistry.readCompactObjectFromInputStream(in, context, key);
+			context.setParamValue(key, value);
+		}
+	}
+
+	/**
+	 * Checks if the given context data has been written in compact format.
+	 *
+	 * @param bytes Context data
+	 * @return true if the data starts with the header of the compact format
+	 */
+	private static boolean isCompactFormat(byte[] bytes)
+	{
+		if (bytes.length < COMPACT_HEADER.length + 2)
+			return false;
+		for (int i = 0; i < COMPACT_HEADER.length; ++i)
+		{
+			if (bytes[i] != COMPACT_HEADER[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isCompactFormatEnabled()
+	{
+		if (compactFormat == null)
+		{
+			boolean b = SettingUtil.getBooleanSetting(ServerConstants.SYSPROP_CONTEXTDATA_COMPACTFORMAT, true);
+			compactFormat = Boolean.valueOf(b);
+		}
+		return compactFormat.booleanValue();
+	}
+
+	private static int getCompressionThreshold()
+	{
+		if (compressionThreshold == null)
+		{
+			int n = SettingUtil.getIntSetting(ServerConstants.SYSPROP_CONTEXTDATA_COMPRESSIONTHRESHOLD, 2000);
+			compressionThreshold = Integer.valueOf(n);
+		}
+		return compressionThreshold.intValue();
+	}
+
+	private static int getExternalValueSize()
+	{
+		if (externalValueSize == null)
+		{
+			int n = SettingUtil.getIntSetting(ServerConstants.SYSPROP_CONTEXTDATA_EXTERNALVALUESIZE, 8192);
+			externalValueSize = Integer.valueOf(n);
+		}
+		return externalValueSize.intValue();
+	}
+
+	/**
+	 * Serializes a single context value.
+	 * Persistent objects will not be serialized, their state is not part of the context data.
+	 *
+	 * @param context Token context
+	 * @param value Value to serialize
+	 * @return The serialized value or null if the value is a persistent object or cannot be serialized
+	 */
+	private static byte[] serializeValue(TokenContext context, Object value)
+	{
+		ContextObjectSerializerRegistry serializerRegistry = (ContextObjectSerializerRegistry) CommonRegistry
+			.lookup(ContextObjectSerializerRegistry.class);
+
+		if (value != null)
+		{
+			for (Iterator it = serializerRegistry.getSerializers().iterator(); it.hasNext();)
+			{
+				ContextObjectSerializer ser = (ContextObjectSerializer) it.next();
+				if (ser.acceptsContextObject(value, context))
+				{
+					if (ser instanceof PersistenceContextObjectSerializer)
+						return null;
+					break;
+				}
+			}
+		}
+
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			serializerRegistry.writeObjectToOutputStream(value, oos, context, null);
+			oos.close();
+			return bos.toByteArray();
+		}
+		catch (Throwable t)
+		{
+			LogUtil.debug(context.getClass(), "Context value of type $0 cannot be serialized separately. [{1}]", value.getClass().getName(), context, t);
+			return null;
+		}
+	}
+
+	/**
+	 * Computes the hash of a context value.
+	 * The hash is used to determine if a mutable value has been modified since the context data has been serialized or deserialized.
+	 *
+	 * @param context Token context
+	 * @param value Value
+	 * @return The SHA-1 hash of the serialized value or null if the value is a persistent object or cannot be serialized
+	 */
+	public static String computeValueHash(TokenContext context, Object value)
+	{
+		byte[] data = serializeValue(context, value);
+		if (data == null)
+			return null;
+		return computeValueHash(data);
+	}
+
+	private static String computeValueHash(byte[] data)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new EngineException("ContextSerialization", "SHA-1 message digest not available.", e);
+		}
+
+		byte[] hash = digest.digest(data);
+		StringBuffer sb = new StringBuffer(hash.length * 2);
+		for (int i = 0; i < hash.length; ++i)
+		{
+			sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Stores the large values of the context in the given context value store.
+	 * Values that have been stored before and that have not been handed out since will not be serialized again.
+	 * Values that are no longer stored by reference will be removed from the store.
+	 *
+	 * @param context Token context
+	 * @param store Context value store
+	 */
+	private static void storeExternalValues(TokenContext context, ContextValueStore store)
+	{
+		int threshold = getExternalValueSize();
+
+		Set oldNames = (Set) context.getRuntimeAttribute(EXTERNAL_VALUE_NAMES);
+		Set names = new HashSet();
+		for (Iterator it = context.getParamValues().entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry entry = (Map.Entry) it.next();
+			String key = (String) entry.getKey();
+			TokenContextValue tcv = (TokenContextValue) entry.getValue();
+			if (! tcv.isPersistentVariable())
+				continue;
+
+			if (tcv.isExternal() && ! tcv.isExposed() && oldNames != null && oldNames.contains(key))
+			{
+				// Unchanged since it has been stored
+				names.add(key);
+				continue;
+			}
+
+			Object value = tcv.getValue();
+			boolean candidate = threshold > 0 && value != null && ! (value instanceof DeferredContextValue);
+			if (candidate && isImmutableValue(value))
+			{
+				// Only strings may be large enough, a character takes at most 3 bytes in serialized form
+				candidate = value instanceof String && ((String) value).length() * 3 >= threshold;
+			}
+			byte[] data = candidate ? serializeValue(context, value) : null;
+			if (data == null || data.length < threshold)
+			{
+				tcv.setExternal(false);
+				continue;
+			}
+
+			String hash = computeValueHash(data);
+			if (! tcv.isExternal() || ! hash.equals(tcv.getValueHash()) || oldNames == null || ! oldNames.contains(key))
+			{
+				store.storeValue(context, key, hash, data);
+			}
+			tcv.setValueHash(hash);
+			tcv.setExternal(true);
+			names.add(key);
+		}
+
+		if (oldNames != null)
+		{
+			Set staleNames = new HashSet(oldNames);
+			staleNames.removeAll(names);
+			if (! staleNames.isEmpty())
+			{
+				store.removeValues(context, staleNames);
+			}
+		}
+		if (names.isEmpty())
+		{
+			context.removeRuntimeAttribute(EXTERNAL_VALUE_NAMES);
+		}
+		else
+		{
+			context.setRuntimeAttribute(EXTERNAL_VALUE_NAMES, names);
+		}
+	}
+
+	/**
+	 * Replaces the references to values that have been stored by reference by the actual values.
+	 * The values are loaded from the context value store using a single query.
+	 *
+	 * @param context Token context
+	 * @throws IOException On read error
+	 * @throws ClassNotFoundException If an object class could not be found
+	 */
+	private static void loadExternalValues(TokenContext context)
+		throws IOException, ClassNotFoundException
+	{
+		context.removeRuntimeAttribute(EXTERNAL_VALUE_NAMES);
+
+		Map references = null;
+		for (Iterator it = context.getParamValues().entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry entry = (Map.Entry) it.next();
+			TokenContextValue tcv = (TokenContextValue) entry.getValue();
+			if (tcv.getValue() instanceof ContextValueReference)
+			{
+				if (references == null)
+				{
+					references = new HashMap();
+				}
+				references.put(entry.getKey(), tcv);
+			}
+		}
+		if (references == null)
+			return;
+
+		ContextValueStore store = (ContextValueStore) CommonRegistry.lookup(ContextValueStore.class);
+		if (store == null)
+		{
+			String msg = LogUtil.error(context.getClass(), "Trying to deserialize a token with values that have been stored by reference, but no context value store is registered. [{0}]", context);
+			throw new EngineException("ContextDeserialization", msg);
+		}
+
+		ContextObjectSerializerRegistry serializerRegistry = (ContextObjectSerializerRegistry) CommonRegistry
+			.lookup(ContextObjectSerializerRegistry.class);
+
+		Map data = store.loadValues(context);
+		for (Iterator it = references.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry entry = (Map.Entry) it.next();
+			String key = (String) entry.getKey();
+			TokenContextValue tcv = (TokenContextValue) entry.getValue();
+			ContextValueReference reference = (ContextValueReference) tcv.getValue();
+
+			byte[] bytes = (byte[]) data.get(key);
+			if (bytes == null)
+			{
+				String msg = LogUtil.error(context.getClass(), "Value $0 that has been stored by reference not found in the context value store. [{1}]", key, context);
+				throw new EngineException("ContextDeserialization", msg);
+			}
+
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			tcv.setValue(serializerRegistry.readObjectFromInputStream(ois, context, key));
+			tcv.setValueHash(reference.getValueHash());
+			tcv.setExternal(true);
+		}
+		context.setRuntimeAttribute(EXTERNAL_VALUE_NAMES, new HashSet(references.keySet()));
+	}
+
 	/**
 	 * This method converts this context into a byte array.
+	 * Depending on the {@link ServerConstants#SYSPROP_CONTEXTDATA_COMPACTFORMAT} setting,
+	 * the context will be written in compact format (optionally compressed) or in the original format.
+	 * If a {@link ContextValueStore} has been registered, values that exceed the
+	 * {@link ServerConstants#SYSPROP_CONTEXTDATA_EXTERNALVALUESIZE} setting will be stored by reference.
 	 * 
 	 * @param context Token context
 	 * @return The hibernated context
@@ -490,20 +948,62 @@ public final class TokenContextUtil
 	{
 		LogUtil.debug(context.getClass(), "Serializing context $0.", context);
 
+		ContextValueStore store = (ContextValueStore) CommonRegistry.lookup(ContextValueStore.class);
+		if (store != null)
+		{
+			storeExternalValues(context, store);
+		}
+
 		try
 		{
 			// Prepare in-memory stream
 			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
 
-			// Perform the actual serialization.
-			writeObject(context, oos);
+			if (! isCompactFormatEnabled())
+			{
+				ObjectOutputStream oos = new ObjectOutputStream(bos);
+
+				// Perform the actual serialization.
+				writeObject(context, oos);
 
+				oos.flush();
+				oos.close();
+
+				// Return the result bytes
+				byte[] ret = bos.toByteArray();
+				return ret;
+			}
+
+			CompactObjectOutputStream oos = new CompactObjectOutputStream(bos);
+			writeCompactObject(context, oos);
 			oos.flush();
 			oos.close();
+			byte[] content = bos.toByteArray();
 
-			// Return the result bytes
-			byte[] ret = bos.toByteArray();
+			int flags = 0;
+			int threshold = getCompressionThreshold();
+			if (threshold > 0 && content.length >= threshold)
+			{
+				ByteArrayOutputStream cos = new ByteArrayOutputStream(content.length / 2);
+				DeflaterOutputStream dos = new DeflaterOutputStream(cos);
+				dos.write(content);
+				dos.close();
+
+				// Keep the compressed data only if it is actually smaller
+				if (cos.size() < content.length)
+				{
+					content = cos.toByteArray();
+					flags |= COMPACT_FLAG_COMPRESSED;
+				}
+			}
+
+			// Header, version and flags, followed by the content
+			int headerLength = COMPACT_HEADER.length;
+			byte[] ret = new byte[headerLength + 2 + content.length];
+			System.arraycopy(COMPACT_HEADER, 0, ret, 0, headerLength);
+			ret[headerLength] = (byte) COMPACT_VERSION_LATEST;
+			ret[headerLength + 1] = (byte) flags;
+			System.arraycopy(content, 0, ret, headerLength + 2, content.length);
 			return ret;
 		}
 		catch (IOException ioe)
@@ -518,6 +1018,7 @@ public final class TokenContextUtil
 
 	/**
 	 * Deserializes the token context from the given byte array.
+	 * Both the compact format and the original format are supported.
 	 * 
 	 * @param context Token context
 	 * @param bytes The hibernated context
@@ -536,10 +1037,34 @@ public final class TokenContextUtil
 			// TODO FIXME 6 At this point in time, we do not have a reference to the executing unit,
 			// so we cannot provide a ClassLoaderObjectInputStream that references the executing unit's class loader :(
 			// ObjectInputStream ois = new ClassLoaderObjectInputStream(new ByteArrayInputStream(bytes));
-			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			if (isCompactFormat(bytes))
+			{
+				int headerLength = COMPACT_HEADER.length;
+				int version = bytes[headerLength] & 0xff;
+				int flags = bytes[headerLength + 1] & 0xff;
+
+				InputStream is = new ByteArrayInputStream(bytes, headerLength + 2, bytes.length - headerLength - 2);
+				if ((flags & COMPACT_FLAG_COMPRESSED) != 0)
+				{
+					is = new InflaterInputStream(is);
+				}
+				CompactObjectInputStream ois = new CompactObjectInputStream(is);
+
+				readCompactObject(context, ois, version);
+			}
+			else
+			{
+				ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+				// Create a new token context and deserialize it from the stream
+				readObject(context, ois);
+			}
+
+			loadExternalValues(context);
 
-			// Create a new token context and deserialize it from the stream
-			readObject(context, ois);
+			ContextObjectSerializerRegistry serializerRegistry = (ContextObjectSerializerRegistry) CommonRegistry
+				.lookup(ContextObjectSerializerRegistry.class);
+			serializerRegistry.contextDeserialized(context);
 
 			LogUtil.debug(context.getClass(), "Deserialized context $0.", context);
 		}
@@ -35,6 +35,21 @@ public class TokenContextValue
 	/** Persistent variable property */
 	private boolean persistentVariable;
 
+	/** Parameter value map the value belongs to or null */
+	private transient ParamValueMap owner;
+
+	/** Flag if the value has been removed from a parameter value map */
+	private transient boolean detached;
+
+	/** Hash of the serialized value as it has been persisted (see {@link TokenContextUtil#computeValueHash}) or null */
+	private transient String valueHash;
+
+	/** Flag if the value is mutable and has been handed out since the context data has been serialized or deserialized */
+	private transient boolean exposed;
+
+	/** Flag if the value is stored by reference in a {@link ContextValueStore} */
+	private transient boolean external;
+
 	/**
 	 * Default constructor.
 	 */
@@ -68,6 +83,22 @@ public class TokenContextValue
 	public void setValue(Object value)
 	{
 		this.value = value;
+
+		// The persistent state of the value is unknown now
+		valueHash = null;
+		exposed = false;
+		external = false;
+	}
+
+	/**
+	 * Gets the value that is written to the serialized context data.
+	 * @return The value or a {@link ContextValueReference} if the value is stored by reference
+	 */
+	public Object getPersistentValue()
+	{
+		if (external)
+			return new ContextValueReference(valueHash);
+		return value;
 	}
 
 	/**
@@ -87,4 +118,101 @@ public class TokenContextValue
 	{
 		this.persistentVariable = persistentVariable;
 	}
+
+	/**
+	 * Gets the hash of the serialized value as it has been persisted.
+	 * @return The hash or null if unknown
+	 */
+	public String getValueHash()
+	{
+		return valueHash;
+	}
+
+	/**
+	 * Sets the hash of the serialized value as it has been persisted.
+	 * @nowarn
+	 */
+	public void setValueHash(String valueHash)
+	{
+		this.valueHash = valueHash;
+	}
+
+	/**
+	 * Checks if the value is mutable and has been handed out since the context data has been serialized or deserialized.
+	 * @nowarn
+	 */
+	public boolean isExposed()
+	{
+		return exposed;
+	}
+
+	/**
+	 * Sets the flag if the value is mutable and has been handed out since the context data has been serialized or deserialized.
+	 * @nowarn
+	 */
+	public void setExposed(boolean exposed)
+	{
+		this.exposed = exposed;
+	}
+
+	/**
+	 * Checks if the value is stored by reference in a {@link ContextValueStore}.
+	 * @nowarn
+	 */
+	public boolean isExternal()
+	{
+		return external;
+	}
+
+	/**
+	 * Sets the flag if the value is stored by reference in a {@link ContextValueStore}.
+	 * @nowarn
+	 */
+	public void setExternal(boolean external)
+	{
+		this.external = external;
+	}
+
+	/**
+	 * Checks if the value belongs to the given parameter value map.
+	 *
+	 * @param map Parameter value map
+	 * @return true if the value has been added to the map and has not been removed from it since
+	 */
+	boolean isAttachedTo(ParamValueMap map)
+	{
+		return owner == map;
+	}
+
+	/**
+	 * Marks the value as added to the given parameter value map.
+	 *
+	 * @param map Parameter value map
+	 * @return true if the value has been removed from a map before and is attached again.
+	 * The slot tables of the map might still refer to the value by its previous name in this case.
+	 */
+	boolean attach(ParamValueMap map)
+	{
+		if (owner == map)
+			return false;
+
+		boolean reattached = detached;
+		owner = map;
+		detached = false;
+		return reattached;
+	}
+
+	/**
+	 * Marks the value as removed from the given parameter value map.
+	 *
+	 * @param map Parameter value map
+	 */
+	void detach(ParamValueMap map)
+	{
+		if (owner == map)
+		{
+			owner = null;
+		}
+		detached = true;
+	}
 }
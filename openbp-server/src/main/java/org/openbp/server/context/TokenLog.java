@@ -0,0 +1,837 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.openbp.common.logger.LogUtil;
+import org.openbp.server.persistence.PersistenceException;
+
+/**
+ * Append-only log of records that is stored in a sequence of memory-mapped segment files.
+ * Used by the {@link LogStructuredTokenContextService}.
+ *
+ * Records are appended to the last (active) segment; when the active segment is full, a new segment is started.
+ * Records are written in batches (see {@link Batch}), e. g. all records of a transaction.
+ * Each batch consists of its length, a checksum and its records; each record consists of its length, a type byte and the payload.
+ * When the log is opened, the records of all segments are replayed in the order they have been written.
+ * A batch that has not been written completely (e. g. due to a crash) is skipped as a whole and ends the replay of its segment,
+ * so either all or none of the records of a batch will be replayed.
+ * The last segment remains the active segment; appending continues after its last valid batch.
+ *
+ * The live records of the sealed segments can be copied to the active segment using {@link #copy};
+ * the sealed segments can be removed afterwards using {@link #removeSegments}.
+ * The number of the first segment that is still in use is kept in a checkpoint file,
+ * so segments that could not be deleted will not be replayed again.
+ *
+ * @author Heiko Erhardt
+ */
+public class TokenLog
+{
+	/** Magic number at the start of each segment file */
+	private static final int SEGMENT_MAGIC = 0x4F42504C;
+
+	/** Version of the segment file format */
+	private static final int SEGMENT_VERSION = 1;
+
+	/** Size of the segment header (magic number and version) */
+	private static final int SEGMENT_HEADER_SIZE = 8;
+
+	/** Size of the batch header (length and checksum) */
+	private static final int BATCH_HEADER_SIZE = 8;
+
+	/** Size of the record header (length and type) */
+	private static final int RECORD_HEADER_SIZE = 5;
+
+	/** Prefix of segment file names */
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	/** Suffix of segment file names */
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/** Name of the checkpoint file */
+	private static final String CHECKPOINT_FILE = "checkpoint";
+
+	/** Directory that contains the segment files */
+	private final File directory;
+
+	/** Regular size of a segment file */
+	private final int segmentSize;
+
+	/** Segments in the order they have been written; the last one is the active segment */
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	/** Active segment or null if the log has not been opened */
+	private Segment activeSegment;
+
+	/** Flag if records have been appended since the last {@link #force} */
+	private boolean dirty;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory Directory that contains the segment files
+	 * @param segmentSize Regular size of a segment file
+	 */
+	public TokenLog(File directory, int segmentSize)
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Open and close
+	//////////////////////////////////////////////////
+
+	/**
+	 * Opens the log and replays its records.
+	 * Appending will continue at the end of the valid records of the last segment.
+	 *
+	 * @param handler Handler that receives the records
+	 * @throws PersistenceException On I/O error
+	 */
+	public synchronized void open(RecordHandler handler)
+	{
+		if (! directory.isDirectory() && ! directory.mkdirs())
+		{
+			throw new PersistenceException("Cannot create token log directory '" + directory + "'.");
+		}
+
+		try
+		{
+			int firstSegment = readCheckpoint();
+
+			int [] numbers = listSegmentNumbers();
+			for (int i = 0; i < numbers.length; ++i)
+			{
+				File file = getSegmentFile(numbers[i]);
+				if (numbers[i] < firstSegment)
+				{
+					// Left over by a compaction
+					file.delete();
+					continue;
+				}
+
+				Segment segment = openSegment(numbers[i], file);
+				segments.add(segment);
+				replaySegment(segment, handler);
+			}
+
+			if (segments.isEmpty())
+			{
+				activeSegment = createSegment(firstSegment, segmentSize);
+				segments.add(activeSegment);
+			}
+			else
+			{
+				// Continue with the last segment
+				activeSegment = segments.get(segments.size() - 1);
+				clearTail(activeSegment);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new PersistenceException("Error opening token log '" + directory + "'.", e);
+		}
+	}
+
+	/**
+	 * Forces the log to the storage device and closes the segment files.
+	 *
+	 * @throws PersistenceException On I/O error
+	 */
+	public synchronized void close()
+	{
+		force();
+		for (Segment segment : segments)
+		{
+			segment.close();
+		}
+		segments.clear();
+		activeSegment = null;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Record access
+	//////////////////////////////////////////////////
+
+	/**
+	 * Appends a batch of records to the log.
+	 * The records will be durable after the next call to {@link #force}.
+	 *
+	 * @param batch Batch of records
+	 * @return Locations of the records in the order they have been added to the batch
+	 * @throws PersistenceException On I/O error
+	 */
+	public synchronized Location [] append(Batch batch)
+	{
+		int n = batch.types.size();
+		ByteBuffer buffer = reserve(BATCH_HEADER_SIZE + batch.length);
+		int offset = buffer.position();
+
+		// Write the records first, so the checksum can be computed from the buffer
+		Location [] locations = new Location [n];
+		buffer.position(offset + BATCH_HEADER_SIZE);
+		for (int i = 0; i < n; ++i)
+		{
+			byte [] payload = batch.payloads.get(i);
+			locations[i] = new Location(activeSegment, buffer.position(), RECORD_HEADER_SIZE + payload.length);
+			buffer.putInt(1 + payload.length);
+			buffer.put(batch.types.get(i).byteValue());
+			buffer.put(payload);
+		}
+
+		writeBatchHeader(buffer, offset, batch.length);
+		commitReservation(buffer, locations);
+		return locations;
+	}
+
+	/**
+	 * Appends a record to the log.
+	 * The record will be durable after the next call to {@link #force}.
+	 *
+	 * @param type Record type
+	 * @param payload Record payload
+	 * @return Location of the record
+	 * @throws PersistenceException On I/O error
+	 */
+	public synchronized Location append(byte type, byte [] payload)
+	{
+		Batch batch = new Batch();
+		batch.add(type, payload);
+		return append(batch)[0];
+	}
+
+	/**
+	 * Copies a record to the end of the log.
+	 * The record will be written as a batch of its own.
+	 *
+	 * @param location Current location of the record
+	 * @return New location of the record
+	 * @throws PersistenceException On I/O error
+	 */
+	public synchronized Location copy(Location location)
+	{
+		ByteBuffer source = location.segment.buffer.duplicate();
+		source.limit(location.offset + location.length);
+		source.position(location.offset);
+
+		ByteBuffer buffer = reserve(BATCH_HEADER_SIZE + location.length);
+		int offset = buffer.position();
+		buffer.position(offset + BATCH_HEADER_SIZE);
+		Location [] locations = new Location [] { new Location(activeSegment, buffer.position(), location.length) };
+		buffer.put(source);
+
+		writeBatchHeader(buffer, offset, location.length);
+		commitReservation(buffer, locations);
+		return locations[0];
+	}
+
+	/**
+	 * Reads the payload of a record.
+	 *
+	 * @param location Location of the record
+	 * @return The payload
+	 */
+	public synchronized byte [] read(Location location)
+	{
+		ByteBuffer buffer = location.segment.buffer.duplicate();
+		buffer.position(location.offset + RECORD_HEADER_SIZE);
+		byte [] payload = new byte [location.length - RECORD_HEADER_SIZE];
+		buffer.get(payload);
+		return payload;
+	}
+
+	/**
+	 * Marks a record as obsolete.
+	 * This updates the statistics that determine if a compaction is worthwhile.
+	 *
+	 * @param location Location of the record
+	 */
+	public synchronized void release(Location location)
+	{
+		location.segment.liveBytes -= location.length;
+	}
+
+	/**
+	 * Forces the records that have been appended to the storage device.
+	 *
+	 * @throws PersistenceException On I/O error
+	 */
+	public synchronized void force()
+	{
+		if (dirty && activeSegment != null)
+		{
+			activeSegment.buffer.force();
+			dirty = false;
+		}
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Segment management
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the segments that have been filled completely.
+	 *
+	 * @return A list of segments, ordered by their age
+	 */
+	public synchronized List<Segment> getSealedSegments()
+	{
+		return new ArrayList<Segment>(segments.subList(0, segments.size() - 1));
+	}
+
+	/**
+	 * Gets the ratio of obsolete record data in the sealed segments.
+	 *
+	 * @return The ratio (0 to 1) or 0 if there are no sealed segments
+	 */
+	public synchronized double getSealedGarbageRatio()
+	{
+		long size = 0L;
+		long live = 0L;
+		for (int i = 0; i < segments.size() - 1; ++i)
+		{
+			Segment segment = segments.get(i);
+			size += segment.position - SEGMENT_HEADER_SIZE;
+			live += segment.liveBytes;
+		}
+		return size > 0L ? (double) (size - live) / size : 0d;
+	}
+
+	/**
+	 * Removes the given sealed segments.
+	 * The live records of the segments must have been copied before.
+	 * Forces the log and advances the checkpoint before the segment files are deleted.
+	 *
+	 * @param obsoleteSegments Segments to remove
+	 * @throws PersistenceException On I/O error
+	 */
+	public synchronized void removeSegments(Collection<Segment> obsoleteSegments)
+	{
+		force();
+
+		segments.removeAll(obsoleteSegments);
+		try
+		{
+			writeCheckpoint(segments.get(0).number);
+		}
+		catch (IOException e)
+		{
+			throw new PersistenceException("Error writing the checkpoint of token log '" + directory + "'.", e);
+		}
+
+		for (Segment segment : obsoleteSegments)
+		{
+			segment.close();
+			if (! segment.file.delete())
+			{
+				// Mapped files cannot be deleted on some platforms; the segment will be deleted when the log is opened again
+				LogUtil.debug(getClass(), "Cannot delete token log segment $0.", segment.file);
+			}
+		}
+	}
+
+	/**
+	 * Reserves space for a record, starting a new segment if the active segment is full.
+	 *
+	 * @param size Size of the record
+	 * @return Buffer of the active segment, positioned at the start of the reserved space
+	 */
+	private ByteBuffer reserve(int size)
+	{
+		if (activeSegment == null)
+		{
+			throw new PersistenceException("Token log '" + directory + "' has not been opened.");
+		}
+
+		if (activeSegment.position + size > activeSegment.buffer.capacity())
+		{
+			// Seal the active segment
+			activeSegment.buffer.force();
+			dirty = false;
+
+			try
+			{
+				activeSegment = createSegment(activeSegment.number + 1, Math.max(segmentSize, SEGMENT_HEADER_SIZE + size));
+			}
+			catch (IOException e)
+			{
+				throw new PersistenceException("Error creating token log segment in '" + directory + "'.", e);
+			}
+			segments.add(activeSegment);
+		}
+
+		ByteBuffer buffer = activeSegment.buffer;
+		buffer.position(activeSegment.position);
+		return buffer;
+	}
+
+	/**
+	 * Writes the header of a batch after its records have been written.
+	 *
+	 * @param buffer Buffer of the active segment
+	 * @param offset Offset of the batch
+	 * @param length Length of the records of the batch
+	 */
+	private void writeBatchHeader(ByteBuffer buffer, int offset, int length)
+	{
+		buffer.putInt(offset, length);
+		buffer.putInt(offset + 4, computeChecksum(buffer, offset + BATCH_HEADER_SIZE, length));
+	}
+
+	/**
+	 * Updates the active segment after a batch has been written.
+	 *
+	 * @param buffer Buffer the batch has been written to, positioned after the batch
+	 * @param locations Locations of the records of the batch
+	 */
+	private void commitReservation(ByteBuffer buffer, Location [] locations)
+	{
+		activeSegment.position = buffer.position();
+		for (int i = 0; i < locations.length; ++i)
+		{
+			activeSegment.liveBytes += locations[i].length;
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Replays the records of a segment.
+	 *
+	 * @param segment Segment
+	 * @param handler Handler that receives the records
+	 */
+	private void replaySegment(Segment segment, RecordHandler handler)
+	{
+		ByteBuffer buffer = segment.buffer;
+		int position = SEGMENT_HEADER_SIZE;
+		int capacity = buffer.capacity();
+
+		while (position + BATCH_HEADER_SIZE <= capacity)
+		{
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + BATCH_HEADER_SIZE + length > capacity)
+			{
+				// End of the segment or incomplete batch
+				break;
+			}
+
+			int start = position + BATCH_HEADER_SIZE;
+			int end = start + length;
+			if (computeChecksum(buffer, start, length) != buffer.getInt(position + 4) || ! isValidBatch(buffer, start, end))
+			{
+				LogUtil.warn(getClass(), "Incomplete batch at offset $0 of token log segment $1, skipping the remainder of the segment.", Integer.valueOf(position), segment.file);
+				break;
+			}
+
+			for (int recordPosition = start; recordPosition < end;)
+			{
+				Location location = new Location(segment, recordPosition, 4 + buffer.getInt(recordPosition));
+				segment.liveBytes += location.length;
+				byte type = buffer.get(recordPosition + 4);
+				handler.handleRecord(type, read(location), location);
+				recordPosition += location.length;
+			}
+
+			position = end;
+		}
+
+		segment.position = position;
+	}
+
+	/**
+	 * Checks if the records of a batch fill the batch exactly.
+	 *
+	 * @param buffer Segment buffer
+	 * @param start Start of the first record
+	 * @param end End of the batch
+	 * @return true if the batch is valid
+	 */
+	private static boolean isValidBatch(ByteBuffer buffer, int start, int end)
+	{
+		int position = start;
+		while (position + RECORD_HEADER_SIZE <= end)
+		{
+			int length = buffer.getInt(position);
+			if (length <= 0)
+				return false;
+			position += 4 + length;
+		}
+		return position == end;
+	}
+
+	/**
+	 * Computes the checksum of a region of a buffer.
+	 *
+	 * @param buffer Buffer
+	 * @param offset Start of the region
+	 * @param length Length of the region
+	 * @return The checksum
+	 */
+	private static int computeChecksum(ByteBuffer buffer, int offset, int length)
+	{
+		byte [] data = new byte [length];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset);
+		source.get(data);
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Clears the space after the last valid record of a segment.
+	 * This removes the remainder of an incomplete record, so it won't be mistaken for a record
+	 * that is appended to the segment later.
+	 *
+	 * @param segment Segment
+	 */
+	private void clearTail(Segment segment)
+	{
+		MappedByteBuffer buffer = segment.buffer;
+		byte [] zeros = new byte [4096];
+		boolean cleared = false;
+		for (int position = segment.position; position < buffer.capacity(); position += zeros.length)
+		{
+			int length = Math.min(zeros.length, buffer.capacity() - position);
+			for (int i = 0; i < length; ++i)
+			{
+				if (buffer.get(position + i) != 0)
+				{
+					buffer.position(position);
+					buffer.put(zeros, 0, length);
+					cleared = true;
+					break;
+				}
+			}
+		}
+		if (cleared)
+		{
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Creates a new segment file.
+	 *
+	 * @param number Segment number
+	 * @param size Size of the segment file
+	 * @return The new segment
+	 * @throws IOException On I/O error
+	 */
+	private Segment createSegment(int number, int size)
+		throws IOException
+	{
+		File file = getSegmentFile(number);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0L);
+		raf.setLength(size);
+		Segment segment = new Segment(number, file, raf);
+		segment.buffer.putInt(0, SEGMENT_MAGIC);
+		segment.buffer.putInt(4, SEGMENT_VERSION);
+		segment.position = SEGMENT_HEADER_SIZE;
+		return segment;
+	}
+
+	/**
+	 * Opens an existing segment file.
+	 *
+	 * @param number Segment number
+	 * @param file Segment file
+	 * @return The segment
+	 * @throws IOException On I/O error or if the file is not a segment file
+	 */
+	private Segment openSegment(int number, File file)
+		throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if (raf.length() < SEGMENT_HEADER_SIZE)
+		{
+			raf.close();
+			throw new IOException("Token log segment '" + file + "' is truncated.");
+		}
+
+		Segment segment = new Segment(number, file, raf);
+		if (segment.buffer.getInt(0) != SEGMENT_MAGIC || segment.buffer.getInt(4) != SEGMENT_VERSION)
+		{
+			segment.close();
+			throw new IOException("File '" + file + "' is not a token log segment of version " + SEGMENT_VERSION + ".");
+		}
+		return segment;
+	}
+
+	/**
+	 * Gets the numbers of the existing segment files.
+	 *
+	 * @return The segment numbers in ascending order
+	 */
+	private int [] listSegmentNumbers()
+	{
+		String [] names = directory.list();
+		int [] numbers = new int [names != null ? names.length : 0];
+		int n = 0;
+		for (int i = 0; i < numbers.length; ++i)
+		{
+			String name = names[i];
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+			{
+				try
+				{
+					numbers[n++] = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				}
+				catch (NumberFormatException e)
+				{
+					// Not a segment file
+				}
+			}
+		}
+		int [] ret = new int [n];
+		System.arraycopy(numbers, 0, ret, 0, n);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * Gets the file of the segment with the given number.
+	 *
+	 * @param number Segment number
+	 * @return The file
+	 */
+	private File getSegmentFile(int number)
+	{
+		String digits = "0000000000" + number;
+		return new File(directory, SEGMENT_PREFIX + digits.substring(digits.length() - 10) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Reads the number of the first segment that is in use.
+	 *
+	 * @return The segment number or 0 if there is no checkpoint
+	 * @throws IOException On I/O error
+	 */
+	private int readCheckpoint()
+		throws IOException
+	{
+		File file = new File(directory, CHECKPOINT_FILE);
+		if (! file.exists())
+			return 0;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			return raf.readInt();
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the number of the first segment that is in use.
+	 * The checkpoint file is replaced atomically.
+	 *
+	 * @param firstSegment Segment number
+	 * @throws IOException On I/O error
+	 */
+	private void writeCheckpoint(int firstSegment)
+		throws IOException
+	{
+		File tmpFile = new File(directory, CHECKPOINT_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try
+		{
+			out.write(ByteBuffer.allocate(4).putInt(firstSegment).array());
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+
+		File file = new File(directory, CHECKPOINT_FILE);
+		if (! tmpFile.renameTo(file))
+		{
+			// Some platforms do not replace an existing file on rename
+			file.delete();
+			if (! tmpFile.renameTo(file))
+				throw new IOException("Cannot rename '" + tmpFile + "' to '" + file + "'.");
+		}
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Helper classes
+	//////////////////////////////////////////////////
+
+	/**
+	 * Batch of records that will be written to the log at once.
+	 */
+	public static final class Batch
+	{
+		/** Record types */
+		final List<Byte> types = new ArrayList<Byte>();
+
+		/** Record payloads */
+		final List<byte []> payloads = new ArrayList<byte []>();
+
+		/** Length of the records including their headers */
+		int length;
+
+		/**
+		 * Adds a record to the batch.
+		 *
+		 * @param type Record type
+		 * @param payload Record payload
+		 */
+		public void add(byte type, byte [] payload)
+		{
+			types.add(Byte.valueOf(type));
+			payloads.add(payload);
+			length += RECORD_HEADER_SIZE + payload.length;
+		}
+
+		/**
+		 * Gets the number of records of the batch.
+		 * @nowarn
+		 */
+		public int size()
+		{
+			return types.size();
+		}
+	}
+
+	/**
+	 * Receives the records of the log when it is opened.
+	 */
+	public static interface RecordHandler
+	{
+		/**
+		 * Handles a record.
+		 *
+		 * @param type Record type
+		 * @param payload Record payload
+		 * @param location Location of the record
+		 */
+		public void handleRecord(byte type, byte [] payload, Location location);
+	}
+
+	/**
+	 * Location of a record in the log.
+	 */
+	public static final class Location
+	{
+		/** Segment */
+		final Segment segment;
+
+		/** Offset of the record in the segment */
+		final int offset;
+
+		/** Length of the record including its header (length and type) */
+		final int length;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param segment Segment
+		 * @param offset Offset of the record in the segment
+		 * @param length Length of the record including its header
+		 */
+		Location(Segment segment, int offset, int length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Gets the segment.
+		 * @nowarn
+		 */
+		public Segment getSegment()
+		{
+			return segment;
+		}
+	}
+
+	/**
+	 * Memory-mapped segment file.
+	 */
+	public static final class Segment
+	{
+		/** Segment number */
+		final int number;
+
+		/** Segment file */
+		final File file;
+
+		/** File access */
+		private final RandomAccessFile raf;
+
+		/** Mapped file content */
+		final MappedByteBuffer buffer;
+
+		/** Write position */
+		int position;
+
+		/** Number of bytes of live records */
+		int liveBytes;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param number Segment number
+		 * @param file Segment file
+		 * @param raf File access
+		 * @throws IOException On I/O error
+		 */
+		Segment(int number, File file, RandomAccessFile raf)
+			throws IOException
+		{
+			this.number = number;
+			this.file = file;
+			this.raf = raf;
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, raf.length());
+		}
+
+		/**
+		 * Closes the segment file.
+		 */
+		void close()
+		{
+			try
+			{
+				raf.close();
+			}
+			catch (IOException e)
+			{
+				LogUtil.warn(TokenLog.class, "Error closing token log segment $0.", file, e);
+			}
+		}
+	}
+}
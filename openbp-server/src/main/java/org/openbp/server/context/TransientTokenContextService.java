@@ -16,11 +16,14 @@
 package org.openbp.server.context;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.openbp.common.CollectionUtil;
 import org.openbp.common.CommonUtil;
@@ -34,6 +37,12 @@ import org.openbp.core.engine.EngineException;
  * The {@link #getExecutableContexts} method will check this internal list for pending contexts.
  * The contexts are not persisted by the service.
  *
+ * Contexts that are ready for execution are kept in a priority queue, so retrieving the executable contexts
+ * does not need to scan all managed contexts.
+ * A context is added to the queue when it is passed to {@link #addContext}, {@link #saveContext} or
+ * {@link #changeContextState} while its lifecycle request is {@link LifecycleRequest#RESUME}.
+ * Queue entries of contexts that are not executable any more are discarded when they are polled from the queue.
+ *
  * @author Author: Heiko Erhardt
  */
 public class TransientTokenContextService extends TokenContextServiceBase
@@ -51,6 +60,15 @@ public class TransientTokenContextService extends TokenContextServiceBase
 	/** Map of managed workflows */
 	private final HashMap workflowTasks;
 
+	/** Queue of contexts that are ready for execution (contains {@link ExecutableEntry} objects) */
+	private final PriorityBlockingQueue executableQueue;
+
+	/** Queue entries of the executable contexts; maps {@link TokenContext} objects to {@link ExecutableEntry} objects */
+	private final ConcurrentHashMap executableIndex;
+
+	/** Sequence number of the next queue entry */
+	private final AtomicLong executableSequence;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -62,6 +80,9 @@ public class TransientTokenContextService extends TokenContextServiceBase
 	{
 		contexts = new LinkedHashMap();
 		workflowTasks = new HashMap();
+		executableQueue = new PriorityBlockingQueue();
+		executableIndex = new ConcurrentHashMap();
+		executableSequence = new AtomicLong();
 	}
 
 	//////////////////////////////////////////////////
@@ -92,6 +113,7 @@ public class TransientTokenContextService extends TokenContextServiceBase
 	public void commit()
 	{
 		// No commit/rollback support
+		transactionCommitted();
 	}
 
 	/**
@@ -101,6 +123,7 @@ public class TransientTokenContextService extends TokenContextServiceBase
 	public void rollback()
 	{
 		// No commit/rollback support
+		transactionRolledBack();
 	}
 
 	/**
@@ -127,17 +150,20 @@ public class TransientTokenContextService extends TokenContextServiceBase
 		{
 			contexts.put(context, context);
 		}
+		enqueueExecutableContext(context);
 		return context;
 	}
 
 	/**
 	 * Save the changes to a context.
+	 * Adds the context to the queue of executable contexts if its lifecycle request is {@link LifecycleRequest#RESUME}.
 	 *
 	 * @param context Context to save
 	 * @return The saved object
 	 */
 	public TokenContext saveContext(final TokenContext context)
 	{
+		enqueueExecutableContext(context);
 		return context;
 	}
 
@@ -152,6 +178,25 @@ public class TransientTokenContextService extends TokenContextServiceBase
 		{
 			contexts.remove(context);
 		}
+		executableIndex.remove(context);
+	}
+
+	/**
+	 * Removes several contexts from the service.
+	 *
+	 * @param contextsToDelete Contexts to remove (contains {@link TokenContext} objects)
+	 */
+	public void deleteContexts(final Collection contextsToDelete)
+	{
+		synchronized (contexts)
+		{
+			for (Iterator it = contextsToDelete.iterator(); it.hasNext();)
+			{
+				Object context = it.next();
+				contexts.remove(context);
+				executableIndex.remove(context);
+			}
+		}
 	}
 
 	/**
@@ -192,37 +237,246 @@ public class TransientTokenContextService extends TokenContextServiceBase
 
 	/**
 	 * Gets the token context objects that are ready to execute.
+	 * The contexts will remain in the queue of executable contexts until they are claimed or not executable any more.
 	 *
-	 * @param maxResults Maximum number of result records or 0 for all (ignored)
+	 * @param maxResults Maximum number of result records or 0 for all
 	 * @return An iterator of {@link TokenContext} objects
+	 * The objects will be sorted by their priority (ascending).
 	 */
 	public Iterator getExecutableContexts(final int maxResults)
+	{
+		return getExecutableContexts(maxResults, null);
+	}
+
+	/**
+	 * Gets the token context objects that are ready to execute and are accepted by the given queue type filter.
+	 * The contexts will remain in the queue of executable contexts until they are claimed or not executable any more.
+	 *
+	 * @param maxResults Maximum number of result records or 0 for all
+	 * @param queueTypeFilter Filter for the queue types of the contexts or null for all contexts
+	 * @return An iterator of {@link TokenContext} objects
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public Iterator getExecutableContexts(final int maxResults, final QueueTypeFilter queueTypeFilter)
 	{
 		ArrayList ret = new ArrayList();
+		ArrayList entries = new ArrayList();
 
-		synchronized (contexts)
+		for (ExecutableEntry entry; (maxResults <= 0 || ret.size() < maxResults) && (entry = (ExecutableEntry) executableQueue.poll()) != null;)
 		{
-			for (Iterator it = contexts.keySet().iterator(); it.hasNext();)
+			TokenContext context = entry.context;
+			if (executableIndex.get(context) != entry)
 			{
-				TokenContext context = (TokenContext) it.next();
+				// Context has been removed from the service
+				continue;
+			}
 
-				if (context.getLifecycleRequest() == LifecycleRequest.RESUME)
+			if (context.getLifecycleRequest() == LifecycleRequest.RESUME)
+			{
+				if (queueTypeFilter == null || queueTypeFilter.accepts(context.getQueueType()))
+				{
 					ret.add(context);
+				}
+				entries.add(entry);
+			}
+			else
+			{
+				discardExecutableEntry(entry);
 			}
 		}
 
-		// Sort by priority
-		Collections.sort(ret, new Comparator()
+		// Put the entries back, the contexts have not been claimed
+		executableQueue.addAll(entries);
+
+		return ret.iterator();
+	}
+
+	/**
+	 * Claims token context objects that are ready to execute for execution by the given node.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(final int maxResults, final String nodeId)
+	{
+		return claimExecutableContexts(maxResults, nodeId, 0, 1);
+	}
+
+	/**
+	 * Claims token context objects that are ready to execute and belong to the given partition of the token space
+	 * for execution by the given node.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @param partition Partition of the token space that is assigned to the node
+	 * @param partitionCount Number of partitions
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(final int maxResults, final String nodeId, final int partition, final int partitionCount)
+	{
+		return claimExecutableContexts(maxResults, nodeId, partition, partitionCount, null);
+	}
+
+	/**
+	 * Claims token context objects that are ready to execute, belong to the given partition of the token space
+	 * and are accepted by the given queue type filter for execution by the given node.
+	 * Contexts that are rejected by the filter remain in the queue of executable contexts.
+	 *
+	 * @param maxResults Maximum number of contexts to claim or 0 for all
+	 * @param nodeId System name of the node that claims the contexts
+	 * @param partition Partition of the token space that is assigned to the node
+	 * @param partitionCount Number of partitions
+	 * @param queueTypeFilter Filter for the queue types of the contexts or null for all contexts
+	 * @return A list of {@link TokenContext} objects (may be empty).
+	 * The objects will be sorted by their priority (ascending).
+	 */
+	public List claimExecutableContexts(final int maxResults, final String nodeId, final int partition, final int partitionCount, final QueueTypeFilter queueTypeFilter)
+	{
+		ArrayList ret = new ArrayList();
+		ArrayList otherPartitionEntries = null;
+
+		for (ExecutableEntry entry; (maxResults <= 0 || ret.size() < maxResults) && (entry = (ExecutableEntry) executableQueue.poll()) != null;)
 		{
-			public int compare(Object o1, Object o2)
+			TokenContext context = entry.context;
+			if (executableIndex.get(context) != entry)
 			{
-				int p1 = ((TokenContext) o1).getPriority();
-				int p2 = ((TokenContext) o2).getPriority();
-				return p1 - p2;
+				// Context has been removed from the service
+				continue;
 			}
-		});
 
-		return ret.iterator();
+			if (partitionCount > 1 && TokenContextUtil.getPartition(context.getId(), partitionCount) != partition
+				|| queueTypeFilter != null && ! queueTypeFilter.accepts(context.getQueueType()))
+			{
+				// Belongs to another node or is excluded by the filter, keep it in the queue
+				if (otherPartitionEntries == null)
+				{
+					otherPartitionEntries = new ArrayList();
+				}
+				otherPartitionEntries.add(entry);
+				continue;
+			}
+
+			boolean claimed = false;
+			synchronized (context)
+			{
+				if (isExecutable(context))
+				{
+					context.setLifecycleState(LifecycleState.SELECTED);
+					context.setNodeId(nodeId);
+					claimed = true;
+				}
+			}
+
+			if (claimed)
+			{
+				executableIndex.remove(context, entry);
+				ret.add(context);
+			}
+			else
+			{
+				discardExecutableEntry(entry);
+			}
+		}
+
+		if (otherPartitionEntries != null)
+		{
+			executableQueue.addAll(otherPartitionEntries);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Adds the given context to the queue of executable contexts if it is ready for execution
+	 * and not already contained in the queue.
+	 *
+	 * @param context Context
+	 */
+	protected void enqueueExecutableContext(final TokenContext context)
+	{
+		if (isExecutable(context) && ! executableIndex.containsKey(context))
+		{
+			ExecutableEntry entry = new ExecutableEntry(context, executableSequence.incrementAndGet());
+			if (executableIndex.putIfAbsent(context, entry) == null)
+			{
+				executableQueue.offer(entry);
+			}
+		}
+	}
+
+	/**
+	 * Discards a queue entry of a context that has been found to be not executable.
+	 * If the context has become executable again in the meantime, a new entry will be queued.
+	 *
+	 * @param entry Queue entry that has been polled from the queue
+	 */
+	private void discardExecutableEntry(final ExecutableEntry entry)
+	{
+		if (executableIndex.remove(entry.context, entry))
+		{
+			// The context might have been saved as executable after we have checked it
+			enqueueExecutableContext(entry.context);
+		}
+	}
+
+	/**
+	 * Checks if the given context is ready for execution.
+	 *
+	 * @param context Context
+	 * @return true if the lifecycle request of the context is {@link LifecycleRequest#RESUME} and it has not been selected for execution yet
+	 */
+	private static boolean isExecutable(final TokenContext context)
+	{
+		return context.getLifecycleRequest() == LifecycleRequest.RESUME && context.getLifecycleState() != LifecycleState.SELECTED;
+	}
+
+	/**
+	 * Entry of the executable context queue.
+	 * The priority of the context is recorded when the entry is created, so the queue order
+	 * will not be affected by later changes of the priority.
+	 * Contexts having the same priority are ordered by the time they have been queued.
+	 */
+	private static final class ExecutableEntry
+		implements Comparable
+	{
+		/** Context */
+		final TokenContext context;
+
+		/** Priority of the context */
+		final int priority;
+
+		/** Sequence number */
+		final long sequence;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param context Context
+		 * @param sequence Sequence number
+		 */
+		ExecutableEntry(final TokenContext context, final long sequence)
+		{
+			this.context = context;
+			this.priority = context.getPriority();
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Compares the entries by priority and sequence number.
+		 * @nowarn
+		 */
+		public int compareTo(final Object o)
+		{
+			ExecutableEntry other = (ExecutableEntry) o;
+			if (priority != other.priority)
+				return priority < other.priority ? -1 : 1;
+			if (sequence != other.sequence)
+				return sequence < other.sequence ? -1 : 1;
+			return 0;
+		}
 	}
 
 	private boolean match(final TokenContext context, final TokenContextCriteria criteria)
@@ -302,6 +556,7 @@ public class TransientTokenContextService extends TokenContextServiceBase
 
 				context.setLifecycleState(toLifecycleState);
 				context.setLifecycleRequest(toLifecycleRequest);
+				enqueueExecutableContext(context);
 				++ret;
 			}
 		}
@@ -420,6 +675,18 @@ public class TransientTokenContextService extends TokenContextServiceBase
 				return false;
 		}
 
+		if (criteria.getTokenContext() != null)
+		{
+			if (criteria.getTokenContext() != task.getTokenContext())
+				return false;
+		}
+
+		if (criteria.getTokenContexts() != null)
+		{
+			if (! criteria.getTokenContexts().contains(task.getTokenContext()))
+				return false;
+		}
+
 		if (! matchCriterionBase(task, criteria))
 			return false;
 
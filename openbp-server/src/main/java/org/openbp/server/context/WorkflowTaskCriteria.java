@@ -15,6 +15,8 @@
  */
 package org.openbp.server.context;
 
+import java.util.Collection;
+
 import org.openbp.core.model.Model;
 
 /**
@@ -52,6 +54,9 @@ public class WorkflowTaskCriteria extends CriteriaBase
 	/** Token context of this workflow task */
 	private TokenContext tokenContext;
 
+	/** Token contexts the workflow task may belong to (contains {@link TokenContext} objects) */
+	private Collection tokenContexts;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -210,4 +215,23 @@ public class WorkflowTaskCriteria extends CriteriaBase
 	{
 		this.tokenContext = tokenContext;
 	}
+
+	/**
+	 * Gets the token contexts the workflow task may belong to.
+	 * @return A collection of {@link TokenContext} objects or null
+	 */
+	public Collection getTokenContexts()
+	{
+		return tokenContexts;
+	}
+
+	/**
+	 * Sets the token contexts the workflow task may belong to.
+	 * Use this instead of {@link #setTokenContext} in order to retrieve the workflow tasks of several tokens using a single query.
+	 * @param tokenContexts A collection of {@link TokenContext} objects or null
+	 */
+	public void setTokenContexts(Collection tokenContexts)
+	{
+		this.tokenContexts = tokenContexts;
+	}
 }
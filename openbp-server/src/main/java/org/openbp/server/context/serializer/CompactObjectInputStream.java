@@ -0,0 +1,120 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context.serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Object input stream for context data in compact format.
+ * The stream holds the serializer and object handle tables of the compact format
+ * and resolves the {@link CompactObjectReference} objects written by the {@link CompactObjectOutputStream}.
+ *
+ * @author Heiko Erhardt
+ */
+public class CompactObjectInputStream extends ObjectInputStream
+{
+	/** Serializers that have been used in the stream so far (contains {@link ContextObjectSerializer} objects) */
+	private List serializerTable = new ArrayList();
+
+	/** Dates, array lists and hash maps that have been read using type tags; the list index denotes the handle */
+	private List handleTable = new ArrayList();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in Input stream to read from
+	 * @throws IOException On read error
+	 */
+	public CompactObjectInputStream(InputStream in)
+		throws IOException
+	{
+		super(in);
+		enableResolveObject(true);
+	}
+
+	/**
+	 * Resolves references to objects that have been read using type tags.
+	 * @see java.io.ObjectInputStream#resolveObject(java.lang.Object)
+	 */
+	protected Object resolveObject(Object obj)
+		throws IOException
+	{
+		if (obj instanceof CompactObjectReference)
+		{
+			return getObject(((CompactObjectReference) obj).getHandle());
+		}
+		return obj;
+	}
+
+	/**
+	 * Gets a serializer that has been used before in this stream.
+	 *
+	 * @param id Serializer id
+	 * @return The serializer
+	 * @throws IOException If the id is invalid
+	 */
+	ContextObjectSerializer getSerializer(int id)
+		throws IOException
+	{
+		if (id >= serializerTable.size())
+		{
+			throw new IOException("Invalid context object serializer id " + id + ".");
+		}
+		return (ContextObjectSerializer) serializerTable.get(id);
+	}
+
+	/**
+	 * Registers a serializer that is used for the first time in this stream.
+	 *
+	 * @param serializer Serializer
+	 */
+	void addSerializer(ContextObjectSerializer serializer)
+	{
+		serializerTable.add(serializer);
+	}
+
+	/**
+	 * Gets an object that has been read using type tags before.
+	 *
+	 * @param handle Handle of the object
+	 * @return The object
+	 * @throws IOException If the handle is invalid
+	 */
+	Object getObject(int handle)
+		throws IOException
+	{
+		if (handle < 0 || handle >= handleTable.size())
+		{
+			throw new IOException("Invalid object handle " + handle + " in compact context data.");
+		}
+		return handleTable.get(handle);
+	}
+
+	/**
+	 * Registers an object that has been read using type tags.
+	 * Objects must be registered in the same order as they have been written.
+	 *
+	 * @param obj Date, array list or hash map
+	 */
+	void addHandle(Object obj)
+	{
+		handleTable.add(obj);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context.serializer;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Object output stream for context data in compact format.
+ * The stream holds the serializer and object handle tables of the compact format.
+ *
+ * Dates, array lists and hash maps that have been written using type tags are registered in the handle table.
+ * If such an object is encountered again when a serializer writes an object graph to this stream,
+ * it will be replaced by a {@link CompactObjectReference} that denotes its handle.
+ * Vice versa, objects of this kind that have been written by a serializer are remembered,
+ * so subsequent compact occurrences can be written as back references of the object stream.
+ * So shared instances remain shared regardless of the way they have been written.
+ *
+ * @author Heiko Erhardt
+ */
+public class CompactObjectOutputStream extends ObjectOutputStream
+{
+	/** Serializers that have been used in the stream so far (contains {@link ContextObjectSerializer} objects) */
+	private List serializerTable = new ArrayList();
+
+	/** Dates, array lists and hash maps that have been written using type tags (maps the objects to their handles (Integers)) */
+	private Map handleTable = new IdentityHashMap();
+
+	/** Dates, array lists and hash maps that have been written using Java serialization (maps the objects to Boolean.TRUE) */
+	private Map serializedObjects = new IdentityHashMap();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out Output stream to write to
+	 * @throws IOException On write error
+	 */
+	public CompactObjectOutputStream(OutputStream out)
+		throws IOException
+	{
+		super(out);
+		enableReplaceObject(true);
+	}
+
+	/**
+	 * Replaces objects that have been written using type tags by a reference to their handle.
+	 * @see java.io.ObjectOutputStream#replaceObject(java.lang.Object)
+	 */
+	protected Object replaceObject(Object obj)
+		throws IOException
+	{
+		if (ContextObjectSerializerRegistry.isShareableValue(obj))
+		{
+			Integer handle = (Integer) handleTable.get(obj);
+			if (handle != null)
+			{
+				return new CompactObjectReference(handle.intValue());
+			}
+			serializedObjects.put(obj, Boolean.TRUE);
+		}
+		return obj;
+	}
+
+	/**
+	 * Gets the id of a serializer that has been used before in this stream.
+	 *
+	 * @param serializer Serializer
+	 * @return The serializer id or -1 if the serializer is used for the first time
+	 */
+	int getSerializerId(ContextObjectSerializer serializer)
+	{
+		return serializerTable.indexOf(serializer);
+	}
+
+	/**
+	 * Registers a serializer that is used for the first time in this stream.
+	 *
+	 * @param serializer Serializer
+	 */
+	void addSerializer(ContextObjectSerializer serializer)
+	{
+		serializerTable.add(serializer);
+	}
+
+	/**
+	 * Gets the handle of an object that has been written using type tags before.
+	 *
+	 * @param obj Date, array list or hash map
+	 * @return The handle or -1 if the object has not been written using type tags yet
+	 */
+	int getHandle(Object obj)
+	{
+		Integer handle = (Integer) handleTable.get(obj);
+		return handle != null ? handle.intValue() : -1;
+	}
+
+	/**
+	 * Registers an object that is about to be written using type tags.
+	 *
+	 * @param obj Date, array list or hash map
+	 */
+	void addHandle(Object obj)
+	{
+		handleTable.put(obj, Integer.valueOf(handleTable.size()));
+	}
+
+	/**
+	 * Checks if an object has been written using Java serialization before.
+	 *
+	 * @param obj Date, array list or hash map
+	 * @return true if the object is part of an object graph that has been written by a serializer
+	 */
+	boolean isSerializedObject(Object obj)
+	{
+		return serializedObjects.containsKey(obj);
+	}
+}
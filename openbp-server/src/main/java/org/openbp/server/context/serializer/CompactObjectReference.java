@@ -0,0 +1,52 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context.serializer;
+
+import java.io.Serializable;
+
+/**
+ * Placeholder for an object that has been written using type tags of the compact format
+ * when the object is encountered again within an object graph that is written by a serializer.
+ *
+ * @author Heiko Erhardt
+ */
+final class CompactObjectReference
+	implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/** Handle of the object */
+	private final int handle;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param handle Handle of the object
+	 */
+	CompactObjectReference(int handle)
+	{
+		this.handle = handle;
+	}
+
+	/**
+	 * Gets the handle of the object.
+	 * @nowarn
+	 */
+	int getHandle()
+	{
+		return handle;
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.context.serializer;
+
+import org.openbp.server.context.TokenContext;
+
+/**
+ * Optional interface for a {@link ContextObjectSerializer} that needs to post-process
+ * the parameter values of a token context after all values have been deserialized.
+ *
+ * @author Heiko Erhardt
+ */
+public interface ContextDeserializationListener
+{
+	/**
+	 * Called after the context data of a token context has been deserialized.
+	 *
+	 * @param context Token context
+	 */
+	public void contextDeserialized(TokenContext context);
+}
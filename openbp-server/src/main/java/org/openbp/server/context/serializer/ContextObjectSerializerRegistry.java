@@ -18,8 +18,14 @@ package org.openbp.server.context.serializer;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.openbp.server.context.TokenContext;
 
@@ -31,6 +37,76 @@ import org.openbp.server.context.TokenContext;
  */
 public final class ContextObjectSerializerRegistry
 {
+	//////////////////////////////////////////////////
+	// @@ Type tags of the compact format
+	//////////////////////////////////////////////////
+
+	/** Type tag: Null value */
+	private static final int TAG_NULL = 0;
+
+	/** Type tag: String, written as UTF */
+	private static final int TAG_STRING = 1;
+
+	/** Type tag: Boolean true */
+	private static final int TAG_TRUE = 2;
+
+	/** Type tag: Boolean false */
+	private static final int TAG_FALSE = 3;
+
+	/** Type tag: Integer */
+	private static final int TAG_INTEGER = 4;
+
+	/** Type tag: Long */
+	private static final int TAG_LONG = 5;
+
+	/** Type tag: Short */
+	private static final int TAG_SHORT = 6;
+
+	/** Type tag: Byte */
+	private static final int TAG_BYTE = 7;
+
+	/** Type tag: Character */
+	private static final int TAG_CHARACTER = 8;
+
+	/** Type tag: Double */
+	private static final int TAG_DOUBLE = 9;
+
+	/** Type tag: Float */
+	private static final int TAG_FLOAT = 10;
+
+	/** Type tag: BigDecimal, written as string */
+	private static final int TAG_BIGDECIMAL = 11;
+
+	/** Type tag: BigInteger, written as string */
+	private static final int TAG_BIGINTEGER = 12;
+
+	/** Type tag: java.util.Date, written as time in milliseconds */
+	private static final int TAG_DATE = 13;
+
+	/** Type tag: java.util.ArrayList, written as size and tagged elements */
+	private static final int TAG_ARRAYLIST = 14;
+
+	/** Type tag: java.util.HashMap, written as size and tagged keys and values */
+	private static final int TAG_HASHMAP = 15;
+
+	/** Type tag: Object written by a serializer that has been used before in the stream; followed by the serializer id */
+	private static final int TAG_SERIALIZER = 16;
+
+	/** Type tag: Object written by a serializer that is used for the first time in the stream; followed by the serializer class name */
+	private static final int TAG_SERIALIZER_DEFINITION = 17;
+
+	/** Type tag: Date, array list or hash map that has been written using type tags before in the stream; followed by the handle of the object */
+	private static final int TAG_REFERENCE = 18;
+
+	/** Type tag: Date, array list or hash map that has been written by a serializer before in the stream; followed by the object written using Java serialization */
+	private static final int TAG_SERIALIZED_REFERENCE = 19;
+
+	/** Maximum nesting level of collections that are written using type tags */
+	private static final int MAX_COMPACT_NESTING = 8;
+
+	/** Maximum length of strings that are written using type tags (UTF encoding is limited to 64K) */
+	private static final int MAX_COMPACT_STRING_LENGTH = 65535 / 3;
+
 	//////////////////////////////////////////////////
 	// @@ Properties
 	//////////////////////////////////////////////////
@@ -125,6 +201,408 @@ public final class ContextObjectSerializerRegistry
 		throw new IOException("No context object serializer of type " + serializerClassName + " found.");
 	}
 
+	/**
+	 * Writes an object to an output stream using the compact format.
+	 * Strings, numbers, booleans, dates and array lists and hash maps of such values will be written using type tags.
+	 * All other objects will be written by the first serializer that accepts the object.
+	 * Instead of the class name of the serializer, a numeric serializer id will be written
+	 * for each but the first use of a serializer within the stream.
+	 *
+	 * Dates, array lists and hash maps that occur more than once within the values of the stream
+	 * are written only once, further occurrences are written as references to the first one.
+	 * The stream keeps a single handle table for the values written using type tags and the objects written by serializers,
+	 * so shared instances remain shared after deserialization.
+	 *
+	 * @param object Object to write
+	 * @param out Output stream to write to; use the same stream for all objects of the context
+	 * @param context Context to be serialized/deserialized
+	 * @param key Name of the context variable that is about to be deserialized
+	 * @throws IOException On write error
+	 */
+	public void writeCompactObjectToOutputStream(Object object, CompactObjectOutputStream out, TokenContext context, String key)
+		throws IOException
+	{
+		if (isCompactValue(object, 0))
+		{
+			writeCompactValue(object, out);
+			return;
+		}
+
+		int n = serializers.size();
+		for (int i = 0; i < n; ++i)
+		{
+			ContextObjectSerializer ser = (ContextObjectSerializer) serializers.get(i);
+
+			if (ser.acceptsContextObject(object, context))
+			{
+				// Write serializer id or class name first
+				int id = out.getSerializerId(ser);
+				if (id >= 0)
+				{
+					out.writeByte(TAG_SERIALIZER);
+					out.writeByte(id);
+				}
+				else
+				{
+					out.addSerializer(ser);
+					out.writeByte(TAG_SERIALIZER_DEFINITION);
+					out.writeUTF(ser.getClass().getName());
+				}
+
+				// Let the serialzier do its job
+				ser.writeContextObject(object, out, context, key);
+
+				return;
+			}
+		}
+
+		throw new IOException("No context object serializer found for object of type " + object.getClass().getName() + ".");
+	}
+
+	/**
+	 * Reads an object from an output stream that has been written using the compact format.
+	 * The output stream is guaranteed to be written by the writeCompactObjectToOutputStream method of this class.
+	 *
+	 * @param in Input stream to read from
+	 * @param context Context to be serialized/deserialized
+	 * @param key Name of the context variable that is about to be deserialized
+	 * @return The reconstituted object
+	 * @throws IOException On read error
+	 * @throws ClassNotFoundException If an object class could not be found
+	 */
+	public Object readCompactObjectFromInputStream(CompactObjectInputStream in, TokenContext context, String key)
+		throws IOException, ClassNotFoundException
+	{
+		int tag = in.readUnsignedByte();
+
+		ContextObjectSerializer ser;
+		if (tag == TAG_SERIALIZER)
+		{
+			ser = in.getSerializer(in.readUnsignedByte());
+		}
+		else if (tag == TAG_SERIALIZER_DEFINITION)
+		{
+			String serializerClassName = in.readUTF();
+			ser = findSerializer(serializerClassName);
+			in.addSerializer(ser);
+		}
+		else
+		{
+			return readCompactValue(tag, in);
+		}
+
+		// Let the serialzier do its job
+		return ser.readContextObject(in, context, key);
+	}
+
+	private ContextObjectSerializer findSerializer(String serializerClassName)
+		throws IOException
+	{
+		int n = serializers.size();
+		for (int i = 0; i < n; ++i)
+		{
+			ContextObjectSerializer ser = (ContextObjectSerializer) serializers.get(i);
+
+			if (ser.getClass().getName().equals(serializerClassName))
+			{
+				return ser;
+			}
+		}
+
+		throw new IOException("No context object serializer of type " + serializerClassName + " found.");
+	}
+
+	/**
+	 * Checks if the given value can be written using type tags.
+	 * Collections qualify only if they are plain array lists or hash maps that contain values of this kind only,
+	 * so any object that might be processed by a serializer will still be passed to the serializer.
+	 *
+	 * @param object Object to check
+	 * @param level Nesting level
+	 * @return true if the object can be written by the {@link #writeCompactValue} method
+	 */
+	private static boolean isCompactValue(Object object, int level)
+	{
+		if (object == null)
+			return true;
+
+		Class cls = object.getClass();
+		if (cls == String.class)
+			return ((String) object).length() <= MAX_COMPACT_STRING_LENGTH;
+		if (cls == Boolean.class || cls == Integer.class || cls == Long.class || cls == Short.class || cls == Byte.class
+			|| cls == Character.class || cls == Double.class || cls == Float.class || cls == BigDecimal.class
+			|| cls == BigInteger.class || cls == Date.class)
+			return true;
+
+		if (level >= MAX_COMPACT_NESTING)
+			return false;
+
+		if (cls == ArrayList.class)
+		{
+			List list = (List) object;
+			int n = list.size();
+			for (int i = 0; i < n; ++i)
+			{
+				if (! isCompactValue(list.get(i), level + 1))
+					return false;
+			}
+			return true;
+		}
+
+		if (cls == HashMap.class)
+		{
+			for (Iterator it = ((Map) object).entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry entry = (Map.Entry) it.next();
+				if (! isCompactValue(entry.getKey(), level + 1) || ! isCompactValue(entry.getValue(), level + 1))
+					return false;
+			}
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks if the given value is a date, array list or hash map written using type tags that might be shared.
+	 *
+	 * @param object Object to check
+	 * @return true if the object is registered in the handle table of the stream when written using type tags
+	 */
+	static boolean isShareableValue(Object object)
+	{
+		if (object == null)
+			return false;
+		Class cls = object.getClass();
+		return cls == Date.class || cls == ArrayList.class || cls == HashMap.class;
+	}
+
+	private static void writeCompactValue(Object object, CompactObjectOutputStream out)
+		throws IOException
+	{
+		if (object == null)
+		{
+			out.writeByte(TAG_NULL);
+			return;
+		}
+
+		Class cls = object.getClass();
+		if (isShareableValue(object))
+		{
+			// Mutable values might be shared, so write them only once
+			int handle = out.getHandle(object);
+			if (handle >= 0)
+			{
+				out.writeByte(TAG_REFERENCE);
+				out.writeInt(handle);
+				return;
+			}
+			if (out.isSerializedObject(object))
+			{
+				// Part of an object written by a serializer, let the object stream write a back reference
+				out.writeByte(TAG_SERIALIZED_REFERENCE);
+				out.writeObject(object);
+				return;
+			}
+			out.addHandle(object);
+		}
+
+		if (cls == String.class)
+		{
+			out.writeByte(TAG_STRING);
+			out.writeUTF((String) object);
+		}
+		else if (cls == Boolean.class)
+		{
+			out.writeByte(((Boolean) object).booleanValue() ? TAG_TRUE : TAG_FALSE);
+		}
+		else if (cls == Integer.class)
+		{
+			out.writeByte(TAG_INTEGER);
+			out.writeInt(((Integer) object).intValue());
+		}
+		else if (cls == Long.class)
+		{
+			out.writeByte(TAG_LONG);
+			out.writeLong(((Long) object).longValue());
+		}
+		else if (cls == Short.class)
+		{
+			out.writeByte(TAG_SHORT);
+			out.writeShort(((Short) object).shortValue());
+		}
+		else if (cls == Byte.class)
+		{
+			out.writeByte(TAG_BYTE);
+			out.writeByte(((Byte) object).byteValue());
+		}
+		else if (cls == Character.class)
+		{
+			out.writeByte(TAG_CHARACTER);
+			out.writeChar(((Character) object).charValue());
+		}
+		else if (cls == Double.class)
+		{
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble(((Double) object).doubleValue());
+		}
+		else if (cls == Float.class)
+		{
+			out.writeByte(TAG_FLOAT);
+			out.writeFloat(((Float) object).floatValue());
+		}
+		else if (cls == BigDecimal.class)
+		{
+			out.writeByte(TAG_BIGDECIMAL);
+			out.writeUTF(object.toString());
+		}
+		else if (cls == BigInteger.class)
+		{
+			out.writeByte(TAG_BIGINTEGER);
+			out.writeUTF(object.toString());
+		}
+		else if (cls == Date.class)
+		{
+			out.writeByte(TAG_DATE);
+			out.writeLong(((Date) object).getTime());
+		}
+		else if (cls == ArrayList.class)
+		{
+			List list = (List) object;
+			int n = list.size();
+			out.writeByte(TAG_ARRAYLIST);
+			out.writeInt(n);
+			for (int i = 0; i < n; ++i)
+			{
+				writeCompactValue(list.get(i), out);
+			}
+		}
+		else if (cls == HashMap.class)
+		{
+			Map map = (Map) object;
+			out.writeByte(TAG_HASHMAP);
+			out.writeInt(map.size());
+			for (Iterator it = map.entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry entry = (Map.Entry) it.next();
+				writeCompactValue(entry.getKey(), out);
+				writeCompactValue(entry.getValue(), out);
+			}
+		}
+		else
+		{
+			throw new IOException("Cannot write object of type " + cls.getName() + " in compact format.");
+		}
+	}
+
+	private static Object readCompactValue(int tag, CompactObjectInputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		switch (tag)
+		{
+		case TAG_NULL:
+			return null;
+
+		case TAG_STRING:
+			return in.readUTF();
+
+		case TAG_TRUE:
+			return Boolean.TRUE;
+
+		case TAG_FALSE:
+			return Boolean.FALSE;
+
+		case TAG_INTEGER:
+			return Integer.valueOf(in.readInt());
+
+		case TAG_LONG:
+			return Long.valueOf(in.readLong());
+
+		case TAG_SHORT:
+			return Short.valueOf(in.readShort());
+
+		case TAG_BYTE:
+			return Byte.valueOf(in.readByte());
+
+		case TAG_CHARACTER:
+			return Character.valueOf(in.readChar());
+
+		case TAG_DOUBLE:
+			return new Double(in.readDouble());
+
+		case TAG_FLOAT:
+			return new Float(in.readFloat());
+
+		case TAG_BIGDECIMAL:
+			return new BigDecimal(in.readUTF());
+
+		case TAG_BIGINTEGER:
+			return new BigInteger(in.readUTF());
+
+		case TAG_DATE:
+		{
+			Date date = new Date(in.readLong());
+			in.addHandle(date);
+			return date;
+		}
+
+		case TAG_ARRAYLIST:
+		{
+			int n = in.readInt();
+			ArrayList list = new ArrayList(n);
+
+			// Register the list before its elements in the same order as the writer does
+			in.addHandle(list);
+			for (int i = 0; i < n; ++i)
+			{
+				list.add(readCompactValue(in.readUnsignedByte(), in));
+			}
+			return list;
+		}
+
+		case TAG_HASHMAP:
+		{
+			int n = in.readInt();
+			HashMap map = new HashMap();
+			in.addHandle(map);
+			for (int i = 0; i < n; ++i)
+			{
+				Object key = readCompactValue(in.readUnsignedByte(), in);
+				Object value = readCompactValue(in.readUnsignedByte(), in);
+				map.put(key, value);
+			}
+			return map;
+		}
+
+		case TAG_REFERENCE:
+			return in.getObject(in.readInt());
+
+		case TAG_SERIALIZED_REFERENCE:
+			return in.readObject();
+		}
+
+		throw new IOException("Invalid type tag " + tag + " in compact context data.");
+	}
+
+	/**
+	 * Notifies the serializers that implement the {@link ContextDeserializationListener} interface
+	 * that the context data of a token context has been deserialized.
+	 *
+	 * @param context Token context
+	 */
+	public void contextDeserialized(TokenContext context)
+	{
+		int n = serializers.size();
+		for (int i = 0; i < n; ++i)
+		{
+			Object serializer = serializers.get(i);
+			if (serializer instanceof ContextDeserializationListener)
+			{
+				((ContextDeserializationListener) serializer).contextDeserialized(context);
+			}
+		}
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Property access
 	//////////////////////////////////////////////////
@@ -19,11 +19,18 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.openbp.common.ReflectUtil;
 import org.openbp.common.logger.LogUtil;
 import org.openbp.core.engine.EngineException;
+import org.openbp.server.context.DeferredContextValue;
 import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextValue;
 import org.openbp.server.persistence.PersistenceContext;
 import org.openbp.server.persistence.PersistenceContextProvider;
 
@@ -31,14 +38,23 @@ import org.openbp.server.persistence.PersistenceContextProvider;
  * Context object serializer class that supports the regular Java serialization.
  * This should be used as last serializer in the serializer chain.
  *
+ * Persistent objects are serialized as references (class name and primary key).
+ * By default, the references are resolved lazily when the parameter value or process variable is accessed,
+ * so persistent objects that are not used by the token will never be loaded.
+ * If lazy resolution has been switched off, all references of a token will be resolved after the token has been deserialized,
+ * loading the objects of each class using a single query ({@link PersistenceContext#findByIds}).
+ *
  * @author Heiko Erhardt
  */
 public class PersistenceContextObjectSerializer extends JavaSerializationContextObjectSerializer
-	implements ContextObjectSerializer
+	implements ContextObjectSerializer, ContextDeserializationListener
 {
 	/** Persistence context provider */
 	private PersistenceContextProvider persistenceContextProvider;
 
+	/** Flag if references to persistent objects should be resolved on first access */
+	private boolean lazyResolution = true;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -68,6 +84,25 @@ public class PersistenceContextObjectSerializer extends JavaSerializationContext
 		this.persistenceContextProvider = persistenceContextProvider;
 	}
 
+	/**
+	 * Gets the flag if references to persistent objects should be resolved on first access.
+	 * @nowarn
+	 */
+	public boolean isLazyResolution()
+	{
+		return lazyResolution;
+	}
+
+	/**
+	 * Sets the flag if references to persistent objects should be resolved on first access.
+	 * If false, the references will be resolved in a batch after the token context has been deserialized.
+	 * @nowarn
+	 */
+	public void setLazyResolution(boolean lazyResolution)
+	{
+		this.lazyResolution = lazyResolution;
+	}
+
 	//////////////////////////////////////////////////
 	// @@ ContextObjectSerializer implementation
 	//////////////////////////////////////////////////
@@ -78,6 +113,11 @@ public class PersistenceContextObjectSerializer extends JavaSerializationContext
 	 */
 	public boolean acceptsContextObject(Object object, TokenContext context)
 	{
+		if (object instanceof PersistentObjectReference)
+		{
+			// Reference that has not been resolved yet
+			return true;
+		}
 		return isSerializableObject(object, getPersistenceContextProvider());
 	}
 
@@ -89,7 +129,10 @@ public class PersistenceContextObjectSerializer extends JavaSerializationContext
 	{
 		Object objectToSerialize = object;
 
-		objectToSerialize = createSerializableObjectReference(objectToSerialize, context, key, getPersistenceContextProvider());
+		if (! (objectToSerialize instanceof PersistentObjectReference))
+		{
+			objectToSerialize = createSerializableObjectReference(objectToSerialize, context, key, getPersistenceContextProvider());
+		}
 
 		super.writeContextObject(objectToSerialize, out, context, key);
 	}
@@ -102,11 +145,107 @@ public class PersistenceContextObjectSerializer extends JavaSerializationContext
 	{
 		Object value = super.readContextObject(in, context, key);
 
-		value = resolveSerializableObjectReference(value, context, key, getPersistenceContextProvider());
+		if (value instanceof PersistentObjectReference)
+		{
+			// Defer the resolution until the value is accessed or the context has been deserialized completely
+			PersistentObjectReference por = (PersistentObjectReference) value;
+			por.setPersistenceContextProvider(getPersistenceContextProvider());
+			por.setVariableName(key);
+		}
 
 		return value;
 	}
 
+	//////////////////////////////////////////////////
+	// @@ ContextDeserializationListener implementation
+	//////////////////////////////////////////////////
+
+	/**
+	 * Resolves all references to persistent objects in batch mode if lazy resolution has been switched off.
+	 * @see org.openbp.server.context.serializer.ContextDeserializationListener#contextDeserialized(TokenContext context)
+	 */
+	public void contextDeserialized(TokenContext context)
+	{
+		if (! lazyResolution)
+		{
+			resolveObjectReferences(context, getPersistenceContextProvider());
+		}
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Static helpers
+	//////////////////////////////////////////////////
+
+	/**
+	 * Resolves all unresolved references to persistent objects that are held by the parameter values
+	 * and process variables of the given context.
+	 * The objects of each class are loaded using a single query.
+	 *
+	 * @param context Token context
+	 * @param pcp Persistence context provider
+	 */
+	public static void resolveObjectReferences(TokenContext context, PersistenceContextProvider pcp)
+	{
+		// Collect the value holders of unresolved references by class name
+		Map holdersByClass = null;
+		for (Iterator it = context.getParamValues().values().iterator(); it.hasNext();)
+		{
+			TokenContextValue tcv = (TokenContextValue) it.next();
+			if (! (tcv.getValue() instanceof PersistentObjectReference))
+				continue;
+
+			String className = ((PersistentObjectReference) tcv.getValue()).getClassName();
+			if (holdersByClass == null)
+			{
+				holdersByClass = new HashMap();
+			}
+			List holders = (List) holdersByClass.get(className);
+			if (holders == null)
+			{
+				holders = new ArrayList();
+				holdersByClass.put(className, holders);
+			}
+			holders.add(tcv);
+		}
+		if (holdersByClass == null)
+			return;
+
+		PersistenceContext pc = pcp.obtainPersistenceContext();
+		for (Iterator itClasses = holdersByClass.entrySet().iterator(); itClasses.hasNext();)
+		{
+			Map.Entry entry = (Map.Entry) itClasses.next();
+			Class cls = ReflectUtil.loadClass((String) entry.getKey());
+			List holders = (List) entry.getValue();
+
+			if (pc == null)
+			{
+				String msg = LogUtil.error(PersistenceContextObjectSerializer.class, "Error obtaining persistence context for deserialization of persistent objects of type $0. [{1}]", cls.getName(), context);
+				throw new EngineException("ContextDeserialization", msg);
+			}
+
+			int n = holders.size();
+			ArrayList ids = new ArrayList(n);
+			for (int i = 0; i < n; ++i)
+			{
+				ids.add(((PersistentObjectReference) ((TokenContextValue) holders.get(i)).getValue()).getObjectId());
+			}
+
+			Map loaded = pc.findByIds(ids, cls);
+			for (int i = 0; i < n; ++i)
+			{
+				TokenContextValue tcv = (TokenContextValue) holders.get(i);
+				PersistentObjectReference por = (PersistentObjectReference) tcv.getValue();
+				Object o = loaded.get(por.getObjectId());
+				if (o == null)
+				{
+					String msg = LogUtil.error(PersistenceContextObjectSerializer.class, "Persistent object of type $0 not found when deserializing token (id: $1, variable: $2). [{3}]", cls.getName(), por.getObjectId(), por.getVariableName(), context);
+					throw new EngineException("ContextDeserialization", msg);
+				}
+				tcv.setValue(o);
+			}
+		}
+	}
+
 	public static boolean isSerializableObject(Object object, PersistenceContextProvider pcp)
 	{
 		if (object != null)
@@ -206,11 +345,13 @@ public class PersistenceContextObjectSerializer extends JavaSerializationContext
 
 	/**
 	 * This container class denotes a reference to a persistent object.
+	 * After deserialization, the reference acts as placeholder for the persistent object
+	 * until it is accessed.
 	 *
 	 * @author Heiko Erhardt
 	 */
 	private static class PersistentObjectReference
-		implements Serializable
+		implements Serializable, DeferredContextValue
 	{
 		static final long serialVersionUID = 5005715612921697992L;
 		
@@ -220,6 +361,12 @@ public class PersistenceContextObjectSerializer extends JavaSerializationContext
 		/** Primary key */
 		private Object objectId;
 
+		/** Persistence context provider used to resolve the reference */
+		private transient PersistenceContextProvider persistenceContextProvider;
+
+		/** Name of the context variable that holds the reference (for error messages) */
+		private transient String variableName;
+
 		/**
 		 * Default constructor.
 		 *
@@ -249,5 +396,41 @@ public class PersistenceContextObjectSerializer extends JavaSerializationContext
 		{
 			return objectId;
 		}
+
+		/**
+		 * Sets the persistence context provider used to resolve the reference.
+		 * @nowarn
+		 */
+		public void setPersistenceContextProvider(PersistenceContextProvider persistenceContextProvider)
+		{
+			this.persistenceContextProvider = persistenceContextProvider;
+		}
+
+		/**
+		 * Gets the name of the context variable that holds the reference.
+		 * @nowarn
+		 */
+		public String getVariableName()
+		{
+			return variableName;
+		}
+
+		/**
+		 * Sets the name of the context variable that holds the reference.
+		 * @nowarn
+		 */
+		public void setVariableName(String variableName)
+		{
+			this.variableName = variableName;
+		}
+
+		/**
+		 * Loads the referenced persistent object.
+		 * @see org.openbp.server.context.DeferredContextValue#resolveValue(TokenContext context)
+		 */
+		public Object resolveValue(TokenContext context)
+		{
+			return resolveSerializableObjectReference(this, context, variableName, persistenceContextProvider);
+		}
 	}
 }
@@ -15,13 +15,15 @@
  */
 package org.openbp.server.engine;
 
+import java.util.List;
+
 import org.openbp.server.context.LifecycleState;
 import org.openbp.server.context.TokenContext;
 import org.openbp.server.context.WorkflowTask;
 
 /**
  * Implementation of the OpenBP process engine that automatically committs any operation.
- * The class calls the {@link EngineImpl#commitTokenContextTransaction} method after calling the {@link #startToken}, {@link #resumeToken} or
+ * The class calls the {@link EngineImpl#commitTokenContextTransaction} method after calling the {@link #startToken}, {@link #resumeToken}, {@link #resumeTokens} or
  * {@link #resumeWorkflow} methods.
  *
  * @author Heiko Erhardt
@@ -64,6 +66,31 @@ public class AutoCommittingEngineImpl extends EngineImpl
 		}
 	}
 
+	/**
+	 * Method override that automatically commits the transaction.
+	 * The transaction will be committed once for all tokens.
+	 *
+	 * @param contexts List of token contexts ({@link TokenContext} objects)
+	 */
+	public void resumeTokens(final List contexts)
+	{
+		boolean commit = false;
+		for (int i = 0, n = contexts.size(); i < n; ++i)
+		{
+			if (((TokenContext) contexts.get(i)).getLifecycleState() != LifecycleState.IDLING)
+			{
+				commit = true;
+				break;
+			}
+		}
+
+		super.resumeTokens(contexts);
+		if (commit)
+		{
+			commitTokenContextTransaction();
+		}
+	}
+
 	/**
 	 * Method override that automatically commits the transaction.
 	 *
@@ -0,0 +1,392 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.openbp.common.logger.LogUtil;
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.context.TokenContextUtil;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.persistence.PersistenceContextProvider;
+import org.openbp.server.persistence.PersistenceException;
+import org.openbp.server.persistence.TransactionGuard;
+
+/**
+ * Registry of the engine nodes of a cluster that share the same token context store.
+ *
+ * Each engine runner that has been assigned a node registry registers its node in the OPENBPNODE table
+ * and updates the heartbeat time of the node regularly (see {@link #heartbeat}).
+ * Nodes that have not sent a heartbeat for the {@link #setNodeTimeout node timeout} are considered dead.
+ * Their registration will be removed and the tokens that had been selected by or were running on them
+ * will be suspended with a resumption request, so they will be picked up by the remaining nodes.
+ *
+ * The token space is partitioned among the living nodes by the hash code of the token id
+ * (see {@link TokenContextUtil#getPartition}), so the nodes don't compete for the same tokens.
+ * When a node joins or leaves the cluster, the partitions will be redistributed with the next heartbeat.
+ *
+ * If the registration of a node has been removed by another node although the node is still alive
+ * (e. g. because its heartbeat has been delayed), the node has been fenced: its tokens have been reclaimed and
+ * may be executed by other nodes already. The reclaim increments the version of the reclaimed tokens, so the
+ * transactions of the tokens that are still in flight on the fenced node will fail with an optimistic locking error.
+ * The {@link #heartbeat} method reports the fencing and does not register the node again; the node does not own
+ * any tokens until it rejoins the cluster with a subsequent heartbeat. The engine runner will rejoin only after
+ * the executions that had been in flight when the node was fenced have ended.
+ *
+ * Note that the heartbeat times are taken from the system clock of the nodes,
+ * so the node timeout must be considerably larger than the clock difference between the nodes.
+ *
+ * @author Heiko Erhardt
+ */
+public class ClusterNodeRegistry
+{
+	/** Default heartbeat interval in milli seconds */
+	public static final int DEFAULT_HEARTBEAT_INTERVAL = 10000;
+
+	/** Default node timeout in milli seconds */
+	public static final int DEFAULT_NODE_TIMEOUT = 60000;
+
+	/** Persistence context provider */
+	private PersistenceContextProvider persistenceContextProvider;
+
+	/** Token context service */
+	private TokenContextService tokenContextService;
+
+	/** Heartbeat interval in milli seconds */
+	private int heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+
+	/** Time in milli seconds after which a node that did not send a heartbeat is considered dead */
+	private int nodeTimeout = DEFAULT_NODE_TIMEOUT;
+
+	/** Partition of the token space that is assigned to this node */
+	private volatile int partition;
+
+	/** Number of partitions (i. e. number of living nodes) */
+	private volatile int partitionCount = 1;
+
+	/** Flag if this node is registered as a living node */
+	private volatile boolean registered;
+
+	/**
+	 * Default constructor.
+	 */
+	public ClusterNodeRegistry()
+	{
+	}
+
+	/**
+	 * Registers the given node or updates its heartbeat time.
+	 * Also removes nodes that have timed out, reclaims their tokens and recomputes the partition of this node.
+	 *
+	 * If this node had been registered, but its registration has been removed by another node, the node has been fenced.
+	 * In this case, the method will not register the node again, but return false.
+	 * The next call will register the node again. The caller should make sure that the executions that had been
+	 * in flight when the node was fenced have ended before it calls the method again.
+	 *
+	 * @param nodeId System name of this node
+	 * @return true if the node is registered, false if the node has been fenced
+	 */
+	public boolean heartbeat(String nodeId)
+	{
+		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+
+		Long now = Long.valueOf(System.currentTimeMillis());
+		long deadline = now.longValue() - nodeTimeout;
+
+		TransactionGuard tg = new TransactionGuard(pc);
+		try
+		{
+			// Register or update our node
+			int count = pc.executeUpdateOrDelete("update OPENBPNODE set NODE_HEARTBEAT = ? where NODE_ID = ?", new Object[] { now, nodeId });
+			if (count == 0)
+			{
+				if (registered)
+				{
+					// Another node considered us dead and has reclaimed our tokens
+					pc.commitTransaction();
+					fence(nodeId);
+					return false;
+				}
+
+				LogUtil.info(getClass(), "Registering cluster node $0.", nodeId);
+				pc.executeUpdateOrDelete("insert into OPENBPNODE (NODE_ID, NODE_HEARTBEAT) values (?, ?)", new Object[] { nodeId, now });
+			}
+
+			// Determine the living nodes (sorted by id, so each node will compute the same partitioning)
+			List liveNodes = new ArrayList();
+			Collection rows = pc.executeSelect("select NODE_ID, NODE_HEARTBEAT from OPENBPNODE order by NODE_ID", 0);
+			for (Iterator it = rows.iterator(); it.hasNext();)
+			{
+				Object[] row = getColumnValues(it.next());
+				String id = (String) row[0];
+				long heartbeat = ((Number) row[1]).longValue();
+
+				if (heartbeat >= deadline || id.equals(nodeId))
+				{
+					liveNodes.add(id);
+				}
+				else
+				{
+					reclaimNode(pc, id, deadline);
+				}
+			}
+
+			pc.commitTransaction();
+
+			int index = liveNodes.indexOf(nodeId);
+			if (index < 0)
+			{
+				// Our registration has been removed concurrently
+				fence(nodeId);
+				return false;
+			}
+
+			if (! registered || liveNodes.size() != partitionCount || index != partition)
+			{
+				LogUtil.info(getClass(), "Cluster node $0 is assigned partition $1 of $2.", nodeId, Integer.valueOf(index), Integer.valueOf(liveNodes.size()));
+			}
+			partition = index;
+			partitionCount = liveNodes.size();
+			registered = true;
+			return true;
+		}
+		catch (PersistenceException e)
+		{
+			tg.doCatch();
+			throw e;
+		}
+		finally
+		{
+			tg.doFinally();
+		}
+	}
+
+	/**
+	 * Marks this node as fenced.
+	 * The node will not own any tokens until it has been registered again.
+	 *
+	 * @param nodeId System name of this node
+	 */
+	protected void fence(String nodeId)
+	{
+		LogUtil.warn(getClass(), "Cluster node $0 has been fenced by another node, its tokens have been reclaimed.", nodeId);
+		registered = false;
+		partition = 0;
+		partitionCount = 1;
+	}
+
+	/**
+	 * Removes the registration of a dead node and reclaims its tokens.
+	 * If several nodes try to reclaim the same node, only the one that succeeds in removing the registration will reclaim the tokens.
+	 *
+	 * @param pc Persistence context
+	 * @param nodeId System name of the dead node
+	 * @param deadline Heartbeat time before which the node is considered dead
+	 */
+	protected void reclaimNode(PersistenceContext pc, String nodeId, long deadline)
+	{
+		int count = pc.executeUpdateOrDelete("delete from OPENBPNODE where NODE_ID = ? and NODE_HEARTBEAT < ?", new Object[] { nodeId, Long.valueOf(deadline) });
+		if (count == 0)
+		{
+			// Node has sent a heartbeat in the meantime or has been reclaimed by another node
+			return;
+		}
+
+		TokenContextService tcs = getTokenContextService();
+		int n = tcs.changeContextState(LifecycleState.SELECTED, LifecycleState.SUSPENDED, LifecycleRequest.RESUME, nodeId);
+		n += tcs.changeContextState(LifecycleState.RUNNING, LifecycleState.SUSPENDED, LifecycleRequest.RESUME, nodeId);
+
+		LogUtil.warn(getClass(), "Cluster node $0 timed out, reclaimed $1 tokens.", nodeId, Integer.valueOf(n));
+	}
+
+	/**
+	 * Removes the registration of the given node.
+	 * To be called when the node shuts down regularly.
+	 *
+	 * @param nodeId System name of this node
+	 */
+	public void unregister(String nodeId)
+	{
+		PersistenceContext pc = getPersistenceContextProvider().obtainPersistenceContext();
+
+		TransactionGuard tg = new TransactionGuard(pc);
+		try
+		{
+			LogUtil.info(getClass(), "Unregistering cluster node $0.", nodeId);
+			pc.executeUpdateOrDelete("delete from OPENBPNODE where NODE_ID = ?", new Object[] { nodeId });
+			pc.commitTransaction();
+
+			registered = false;
+			partition = 0;
+			partitionCount = 1;
+		}
+		catch (PersistenceException e)
+		{
+			tg.doCatch();
+			throw e;
+		}
+		finally
+		{
+			tg.doFinally();
+		}
+	}
+
+	/**
+	 * Checks if the given token belongs to the partition of this node.
+	 *
+	 * @param contextId Id of the token context
+	 * @return true if this node should execute the token, false if the token belongs to another node
+	 * or this node is not registered
+	 */
+	public boolean isOwnToken(Object contextId)
+	{
+		if (! registered)
+			return false;
+		int count = partitionCount;
+		if (count <= 1)
+			return true;
+		return TokenContextUtil.getPartition(contextId, count) == partition;
+	}
+
+	private static Object[] getColumnValues(Object row)
+	{
+		if (row instanceof Map)
+		{
+			// Data row, the case of the column names depends on the database
+			Object[] ret = new Object[2];
+			for (Iterator it = ((Map) row).entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry entry = (Map.Entry) it.next();
+				String column = entry.getKey().toString();
+				if (column.equalsIgnoreCase("NODE_ID"))
+					ret[0] = entry.getValue();
+				else if (column.equalsIgnoreCase("NODE_HEARTBEAT"))
+					ret[1] = entry.getValue();
+			}
+			return ret;
+		}
+		return (Object[]) row;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Property access
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the partition of the token space that is assigned to this node.
+	 * @nowarn
+	 */
+	public int getPartition()
+	{
+		return partition;
+	}
+
+	/**
+	 * Gets the number of partitions (i. e. number of living nodes).
+	 * @nowarn
+	 */
+	public int getPartitionCount()
+	{
+		return partitionCount;
+	}
+
+	/**
+	 * Checks if this node is registered as a living node.
+	 * @return false if the node has not been registered yet, has been unregistered or has been fenced
+	 */
+	public boolean isRegistered()
+	{
+		return registered;
+	}
+
+	/**
+	 * Gets the persistence context provider.
+	 * @nowarn
+	 */
+	public PersistenceContextProvider getPersistenceContextProvider()
+	{
+		return persistenceContextProvider;
+	}
+
+	/**
+	 * Sets the persistence context provider.
+	 * @nowarn
+	 */
+	public void setPersistenceContextProvider(PersistenceContextProvider persistenceContextProvider)
+	{
+		this.persistenceContextProvider = persistenceContextProvider;
+	}
+
+	/**
+	 * Gets the token context service.
+	 * @nowarn
+	 */
+	public TokenContextService getTokenContextService()
+	{
+		return tokenContextService;
+	}
+
+	/**
+	 * Sets the token context service.
+	 * @nowarn
+	 */
+	public void setTokenContextService(TokenContextService tokenContextService)
+	{
+		this.tokenContextService = tokenContextService;
+	}
+
+	/**
+	 * Gets the heartbeat interval in milli seconds.
+	 * @nowarn
+	 */
+	public int getHeartbeatInterval()
+	{
+		return heartbeatInterval;
+	}
+
+	/**
+	 * Sets the heartbeat interval in milli seconds.
+	 * @nowarn
+	 */
+	public void setHeartbeatInterval(int heartbeatInterval)
+	{
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * Gets the time in milli seconds after which a node that did not send a heartbeat is considered dead.
+	 * @nowarn
+	 */
+	public int getNodeTimeout()
+	{
+		return nodeTimeout;
+	}
+
+	/**
+	 * Sets the time in milli seconds after which a node that did not send a heartbeat is considered dead.
+	 * @nowarn
+	 */
+	public void setNodeTimeout(int nodeTimeout)
+	{
+		this.nodeTimeout = nodeTimeout;
+	}
+}
@@ -15,6 +15,8 @@
  */
 package org.openbp.server.engine;
 
+import java.util.List;
+
 import org.openbp.common.util.observer.EventObserver;
 import org.openbp.core.OpenBPException;
 import org.openbp.core.handler.HandlerDefinition;
@@ -61,6 +63,16 @@ public interface Engine
 	 */
 	public void resumeToken(TokenContext context);
 
+	/**
+	 * Resumes the given tokens at their current position.
+	 * Equivalent to calling {@link #resumeToken} for each token, however the changes will be flushed
+	 * to the database only once, allowing the persistence layer to batch the inserts and updates.
+	 * The method commits the changes to the database.
+	 *
+	 * @param contexts List of token contexts ({@link TokenContext} objects)
+	 */
+	public void resumeTokens(List contexts);
+
 	/**
 	 * Resumes a suspended workflow.
 	 * - Assigns the workflow to the current user if desired.<br>
@@ -132,6 +144,16 @@ public interface Engine
 	 */
 	public void changeTokenState(TokenContext context, int lifecycleState, int lifecycleRequest);
 
+	/**
+	 * Notifies the engine that the given token is ready for execution (for internal use only).
+	 * If a {@link ReadyTokenQueue} has been configured, the token will be dispatched by the engine runner
+	 * as soon as the current transaction has been committed.
+	 * Otherwise, the token will be picked up by the next poll of the engine runner.
+	 *
+	 * @param context Context that holds the token's state information
+	 */
+	public void notifyTokenReady(TokenContext context);
+
 	//////////////////////////////////////////////////
 	// @@ Internal: Token execution
 	//////////////////////////////////////////////////
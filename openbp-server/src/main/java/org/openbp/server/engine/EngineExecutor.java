@@ -29,6 +29,7 @@ import org.openbp.core.engine.ExpressionConstants;
 import org.openbp.core.handler.HandlerTypes;
 import org.openbp.core.model.item.process.ControlLink;
 import org.openbp.core.model.item.process.DataLink;
+import org.openbp.core.model.item.process.DataLinkImpl;
 import org.openbp.core.model.item.process.InitialNode;
 import org.openbp.core.model.item.process.Node;
 import org.openbp.core.model.item.process.NodeParam;
@@ -43,10 +44,13 @@ import org.openbp.server.context.SessionRegistry;
 import org.openbp.server.context.TokenContext;
 import org.openbp.server.context.TokenContextService;
 import org.openbp.server.context.TokenContextUtil;
+import org.openbp.server.engine.metrics.EngineMetrics;
 import org.openbp.server.engine.script.ExpressionParser;
+import org.openbp.server.engine.script.MemberPath;
 import org.openbp.server.engine.script.ScriptEngine;
 import org.openbp.server.engine.script.ScriptUtil;
 import org.openbp.server.handler.HandlerContext;
+import org.openbp.server.persistence.PersistenceContext;
 
 /**
  * Helper class that executes a portion of work.
@@ -70,6 +74,9 @@ public class EngineExecutor
 	/** Session timeout */
 	private long sessionTimeout = -1L;
 
+	/** Flag if the token has been suspended in memory and shall be parked in the memory suspend registry */
+	private boolean memorySuspended;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -119,6 +126,15 @@ public class EngineExecutor
 
 	public void executeTransaction()
 	{
+		EngineMetrics metrics = engine.getEngineMetrics();
+		long start = metrics != null ? System.nanoTime() : 0L;
+		NodeSocket startSocket = context.getCurrentSocket();
+		ProcessItem process = startSocket != null ? startSocket.getProcess() : null;
+
+		// A token that has been claimed by the engine runner is already committed at its current position,
+		// so if it fails before the next commit, it can be replayed from there.
+		boolean coalesce = context.getLifecycleState() == LifecycleState.SELECTED && engine.isTransactionCoalescing(process);
+
 		try
 		{
 			LogUtil.debug(getClass(), "Starting execution of context $0.", context);
@@ -149,7 +165,10 @@ public class EngineExecutor
 
 			TokenContextService contextService = engine.getTokenContextService();
 			contextService.saveContext(context);
-			contextService.commit();
+			if (! coalesce)
+			{
+				engine.commitTokenContextTransaction();
+			}
 
 			do
 			{
@@ -157,10 +176,19 @@ public class EngineExecutor
 			}
 			while (context.getLifecycleState() == LifecycleState.RUNNING);
 
-			// The application should not set the lifecycle state by itself, however in order to prevent
-			// leaving this loop w/o committing the transaction, we do a commit here
-			// (the commit will check if we have a transaction running at all).
-			contextService.commit();
+			if (! memorySuspended)
+			{
+				// The application should not set the lifecycle state by itself, however in order to prevent
+				// leaving this loop w/o committing the transaction, we do a commit here
+				// (the commit will check if we have a transaction running at all).
+				// The idle state of a memory-suspended token is a mere memory state that will not be committed.
+				engine.commitTokenContextTransaction();
+			}
+
+			if (metrics != null && process != null)
+			{
+				metrics.recordProcessExecution(process, System.nanoTime() - start);
+			}
 
 			LogUtil.debug(getClass(), "Finished execution of context $0.", context);
 		}
@@ -168,6 +196,11 @@ public class EngineExecutor
 		{
 			LogUtil.error(getClass(), "Error occured executing a process. [{0}]", context, t);
 
+			if (metrics != null)
+			{
+				metrics.executionFailed();
+			}
+
 			if (engine.isRollbackOnError())
 			{
 				// We shall try to perform a rollback...
@@ -193,6 +226,28 @@ public class EngineExecutor
 			}
 			context.removeRuntimeAttribute(TokenContext.RUNTIME_ATTRIBUTE_THREAD);
 		}
+
+		if (memorySuspended)
+		{
+			releasePersistenceContext();
+
+			// Park the token only after this thread has finished with it, so it can be resumed by another thread right away
+			engine.getMemorySuspendRegistry().park(context);
+		}
+	}
+
+	/**
+	 * Releases the persistence context of the current thread after a token has been suspended in memory.
+	 * The work of the token has been committed before, so a parked token does not hold a database session or connection.
+	 * The thread that resumes the token will save the token using its own persistence context.
+	 */
+	private void releasePersistenceContext()
+	{
+		PersistenceContext pc = engine.getPersistenceContextProvider().obtainExistingPersistenceContext();
+		if (pc != null)
+		{
+			pc.release();
+		}
 	}
 
 	//////////////////////////////////////////////////
@@ -278,7 +333,17 @@ public class EngineExecutor
 
 				// *** Execute the node ***
 				ModelObjectExecutor executor = engine.getModelObjectExecutorMgr().getExecutor(currentNode);
-				executor.executeModelObject(currentNode, this);
+				EngineMetrics metrics = engine.getEngineMetrics();
+				if (metrics != null)
+				{
+					long start = System.nanoTime();
+					executor.executeModelObject(currentNode, this);
+					metrics.recordNodeExecution(currentNode, System.nanoTime() - start);
+				}
+				else
+				{
+					executor.executeModelObject(currentNode, this);
+				}
 			}
 			else
 			{
@@ -371,10 +436,24 @@ public class EngineExecutor
 	 */
 	private void handleLifecycleRequest()
 	{
-		TokenContextService contextService = engine.getTokenContextService();
-
 		int lifecycleRequest = context.getLifecycleRequest();
 
+		if (lifecycleRequest == LifecycleRequest.SUSPEND_MEMORY && engine.getMemorySuspendRegistry() != null)
+		{
+			LogUtil.trace(getClass(), "Suspending token (memory suspend). [{0}]", context);
+
+			// Commit the work that has been performed so far with the token still running,
+			// so the token does not keep its transaction open while it is parked.
+			// The idle state of the token is a mere memory state that will not be committed.
+			context.setLifecycleRequest(LifecycleRequest.NONE);
+			engine.commitTokenContextTransaction();
+			engine.changeTokenState(context, LifecycleState.IDLING, LifecycleRequest.NONE);
+
+			// This ends the execution loop and releases the thread; the token will be parked when the execution has finished.
+			memorySuspended = true;
+			return;
+		}
+
 		if (lifecycleRequest == LifecycleRequest.SUSPEND_MEMORY)
 		{
 			LogUtil.trace(getClass(), "Suspending token (memory suspend). [{0}]", context);
@@ -406,15 +485,14 @@ public class EngineExecutor
 
 			engine.changeTokenState(context, LifecycleState.SUSPENDED, LifecycleRequest.NONE);
 
-			contextService.saveContext(context);
-			contextService.commit();
+			engine.commitTokenContext(context);
 		}
 		else if (lifecycleRequest == LifecycleRequest.STOP)
 		{
 			// Normally terminate processing
 			LogUtil.trace(getClass(), "Completing token. [{0}]", context);
 			engine.endToken(context);
-			contextService.commit();
+			engine.commitTokenContextTransaction();
 		}
 		else if (lifecycleRequest == LifecycleRequest.ABORT)
 		{
@@ -502,7 +580,7 @@ public class EngineExecutor
 
 			  case ControlLink.TA_COMMIT:
 				contextService.saveContext(context);
-				contextService.commit();
+				engine.commitTokenContextTransaction();
 				break;
 
 			  case ControlLink.TA_ROLLBACK_BEGIN:
@@ -528,7 +606,7 @@ public class EngineExecutor
 
 				engine.changeTokenState(context, LifecycleState.SUSPENDED, LifecycleRequest.NONE);
 				contextService.saveContext(context);
-				contextService.commit();
+				engine.commitTokenContextTransaction();
 			}
 		}
 
@@ -543,12 +621,12 @@ public class EngineExecutor
 		TokenContextService contextService = engine.getTokenContextService();
 
 		Object contextId = context.getId();
-		contextService.rollback();
+		engine.rollbackTokenContextTransaction();
 
 		context = contextService.getContextById(contextId);
 		engine.changeTokenState(context, lifecycleState, LifecycleRequest.NONE);
 		contextService.saveContext(context);
-		contextService.commit();
+		engine.commitTokenContextTransaction();
 
 		// TODO Fix 3 What to do with child/root context? Maybe call endToken with a parameter?
 	}
@@ -701,39 +779,44 @@ public class EngineExecutor
 			}
 
 			// Now evaluate parameter expressions and check for required parameters
-			for (int i = 0; i < nParams; ++i)
+			ScriptEngine scriptEngine = null;
+			try
 			{
-				NodeParam param = (NodeParam) paramList.get(i);
+				for (int i = 0; i < nParams; ++i)
+				{
+					NodeParam param = (NodeParam) paramList.get(i);
 
-				Object value = null;
-				boolean required = ! param.isOptional();
+					Object value = null;
+					boolean required = ! param.isOptional();
 
-				String expression = param.getExpression();
-				if (expression != null)
-				{
-					// Evaluate the expression before checking the parameters
-					if (ScriptUtil.isConstantExpression(expression))
+					String expression = param.getExpression();
+					if (expression != null)
 					{
-						// Evaluate constant expressions only if we do not yet have a parameter value
-						value = TokenContextUtil.getParamValue(context, param);
-
-						if (value == null)
+						// Evaluate the expression before checking the parameters
+						if (ScriptUtil.isConstantExpression(expression))
 						{
-							value = ScriptUtil.getConstantExpressionValue(expression);
+							// Evaluate constant expressions only if we do not yet have a parameter value
+							value = TokenContextUtil.getParamValue(context, param);
 
-							if (value != null)
+							if (value == null)
 							{
-								// Finally, we have a value. Assign it to to the parameter
-								TokenContextUtil.setParamValue(context, param, value);
+								value = ScriptUtil.getConstantExpressionValue(expression);
+
+								if (value != null)
+								{
+									// Finally, we have a value. Assign it to to the parameter
+									TokenContextUtil.setParamValue(context, param, value);
+								}
 							}
 						}
-					}
-					else
-					{
-						// Evaluate a script expression
-						ScriptEngine scriptEngine = engine.getScriptEngineFactory().obtainScriptEngine(context);
-						try
+						else
 						{
+							// Evaluate a script expression; the script engine is obtained once per socket
+							if (scriptEngine == null)
+							{
+								scriptEngine = engine.getScriptEngineFactory().obtainScriptEngine(context);
+							}
+
 							// Evaluate the expression
 							scriptEngine.prepareNodeParamExecution(param);
 							value = scriptEngine.executeScript(expression, "entry parameter script", param.getQualifier().toString());
@@ -742,23 +825,26 @@ public class EngineExecutor
 							// Assign the result to the parameter
 							TokenContextUtil.setParamValue(context, param, value);
 						}
-						finally
+					}
+					else
+					{
+						if (required)
 						{
-							engine.getScriptEngineFactory().releaseScriptEngine(scriptEngine);
+							value = TokenContextUtil.getParamValue(context, param);
 						}
 					}
+
+					if (required && value == null)
+						// This is an error in this case
+						throw new EngineException("RequiredParameterMissing", "Required parameter '" + param.getQualifier() + "' not present");
 				}
-				else
+			}
+			finally
+			{
+				if (scriptEngine != null)
 				{
-					if (required)
-					{
-						value = TokenContextUtil.getParamValue(context, param);
-					}
+					engine.getScriptEngineFactory().releaseScriptEngine(scriptEngine);
 				}
-
-				if (required && value == null)
-					// This is an error in this case
-					throw new EngineException("RequiredParameterMissing", "Required parameter '" + param.getQualifier() + "' not present");
 			}
 		}
 	}
@@ -776,36 +862,41 @@ public class EngineExecutor
 		if (paramList != null)
 		{
 			int nParams = paramList.size();
-			for (int i = 0; i < nParams; ++i)
+			ScriptEngine scriptEngine = null;
+			try
 			{
-				NodeParam param = (NodeParam) paramList.get(i);
-
-				String expression = param.getExpression();
-				if (expression != null)
+				for (int i = 0; i < nParams; ++i)
 				{
-					// Evaluate the expression before checking the parameters
-					if (ScriptUtil.isConstantExpression(expression))
-					{
-						// Evaluate constant expressions only if we do not yet have a parameter value
-						Object value = TokenContextUtil.getParamValue(context, param);
+					NodeParam param = (NodeParam) paramList.get(i);
 
-						if (value == null)
+					String expression = param.getExpression();
+					if (expression != null)
+					{
+						// Evaluate the expression before checking the parameters
+						if (ScriptUtil.isConstantExpression(expression))
 						{
-							value = ScriptUtil.getConstantExpressionValue(expression);
+							// Evaluate constant expressions only if we do not yet have a parameter value
+							Object value = TokenContextUtil.getParamValue(context, param);
 
-							if (value != null)
+							if (value == null)
 							{
-								// Finally, we have a value. Assign it to to the parameter
-								TokenContextUtil.setParamValue(context, param, value);
+								value = ScriptUtil.getConstantExpressionValue(expression);
+
+								if (value != null)
+								{
+									// Finally, we have a value. Assign it to to the parameter
+									TokenContextUtil.setParamValue(context, param, value);
+								}
 							}
 						}
-					}
-					else
-					{
-						// Evaluate a script expression
-						ScriptEngine scriptEngine = engine.getScriptEngineFactory().obtainScriptEngine(context);
-						try
+						else
 						{
+							// Evaluate a script expression; the script engine is obtained once per socket
+							if (scriptEngine == null)
+							{
+								scriptEngine = engine.getScriptEngineFactory().obtainScriptEngine(context);
+							}
+
 							// Evaluate the expression
 							scriptEngine.prepareNodeParamExecution(param);
 							Object value = scriptEngine.executeScript(expression, "exit parameter script", param.getQualifier().toString());
@@ -814,13 +905,16 @@ public class EngineExecutor
 							// Assign the result to the parameter
 							TokenContextUtil.setParamValue(context, param, value);
 						}
-						finally
-						{
-							engine.getScriptEngineFactory().releaseScriptEngine(scriptEngine);
-						}
 					}
 				}
 			}
+			finally
+			{
+				if (scriptEngine != null)
+				{
+					engine.getScriptEngineFactory().releaseScriptEngine(scriptEngine);
+				}
+			}
 		}
 	}
 
@@ -836,21 +930,16 @@ public class EngineExecutor
 
 		ProcessItem process = param.getProcess();
 
-		for (Iterator itVar = process.getProcessVariables(); itVar.hasNext();)
+		// Execute all links from process variables that are connected to this parameter
+		List links = process.getProcessVariableLinks(param);
+		if (links != null)
 		{
-			ProcessVariable global = (ProcessVariable) itVar.next();
-
-			for (Iterator itLink = global.getDataLinks(); itLink.hasNext();)
+			int n = links.size();
+			for (int i = 0; i < n; ++i)
 			{
-				DataLink link = (DataLink) itLink.next();
-
-				Param targetParam = link.getTargetParam();
-				if (targetParam == param)
-				{
-					// We found a global that is connected to this parameter, execute the link
-					executeDataLink(link);
-					foundLink = true;
-				}
+				DataLink link = (DataLink) links.get(i);
+				executeDataLink(link);
+				foundLink = true;
 			}
 		}
 
@@ -959,15 +1048,27 @@ public class EngineExecutor
 
 			parser.setContextPrefix(contextPrefix);
 
+			// The member path expression is compiled once and kept with the data link
+			DataLinkImpl linkImpl = link instanceof DataLinkImpl ? (DataLinkImpl) link : null;
+			MemberPath path = linkImpl != null ? (MemberPath) linkImpl.getCompiledSourceMemberPath() : null;
+			if (path == null)
+			{
+				String expr;
+				if (sourceMember.startsWith(ExpressionConstants.MEMBER_OPERATOR))
+					expr = paramName + sourceMember;
+				else if (sourceMember.startsWith(ExpressionConstants.REFERENCE_KEY_OPERATOR))
+					expr = paramName + sourceMember;
+				else
+					expr = paramName + ExpressionConstants.MEMBER_OPERATOR + sourceMember;
+				path = MemberPath.compile(expr);
+				if (linkImpl != null)
+				{
+					linkImpl.setCompiledSourceMemberPath(path);
+				}
+			}
+
 			// Any members that are missing in the path will cause a null value to be returned
-			String expr;
-			if (sourceMember.startsWith(ExpressionConstants.MEMBER_OPERATOR))
-				expr = paramName + sourceMember;
-			else if (sourceMember.startsWith(ExpressionConstants.REFERENCE_KEY_OPERATOR))
-				expr = paramName + sourceMember;
-			else
-				expr = paramName + ExpressionConstants.MEMBER_OPERATOR + sourceMember;
-			value = parser.getContextPathValue(expr, null, 0);
+			value = parser.getContextPathValue(path, 0);
 		}
 		else
 		{
@@ -1004,9 +1105,20 @@ public class EngineExecutor
 
 			parser.setContextPrefix(contextPrefix);
 
+			DataLinkImpl linkImpl = link instanceof DataLinkImpl ? (DataLinkImpl) link : null;
+			MemberPath path = linkImpl != null ? (MemberPath) linkImpl.getCompiledTargetMemberPath() : null;
+			if (path == null)
+			{
+				path = MemberPath.compile(targetMember);
+				if (linkImpl != null)
+				{
+					linkImpl.setCompiledTargetMemberPath(path);
+				}
+			}
+
 			// Provide the target parameter type and the 'create all objects' flag to the parser,
 			// so any members that are missing in the path will be created on the fly.
-			parser.setContextPathValue(targetMember, value, targetParam.getDataType(), ExpressionParser.CREATE_ALL_OBJECTS);
+			parser.setContextPathValue(path, value, targetParam.getDataType(), ExpressionParser.CREATE_ALL_OBJECTS);
 		}
 		else
 		{
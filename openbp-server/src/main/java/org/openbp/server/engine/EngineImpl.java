@@ -16,9 +16,14 @@
 package org.openbp.server.engine;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import org.openbp.common.logger.LogUtil;
+import org.openbp.common.setting.SettingUtil;
 import org.openbp.common.util.observer.EventObserver;
 import org.openbp.common.util.observer.EventObserverMgr;
 import org.openbp.core.OpenBPException;
@@ -28,12 +33,14 @@ import org.openbp.core.model.Model;
 import org.openbp.core.model.ModelException;
 import org.openbp.core.model.ModelQualifier;
 import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.ForkNode;
 import org.openbp.core.model.item.process.InitialNode;
 import org.openbp.core.model.item.process.Node;
 import org.openbp.core.model.item.process.NodeSocket;
 import org.openbp.core.model.item.process.ProcessItem;
 import org.openbp.core.model.item.process.WorkflowNode;
 import org.openbp.core.model.modelmgr.ModelMgr;
+import org.openbp.server.ServerConstants;
 import org.openbp.server.context.LifecycleRequest;
 import org.openbp.server.context.LifecycleState;
 import org.openbp.server.context.SessionRegistry;
@@ -41,6 +48,7 @@ import org.openbp.server.context.TokenContext;
 import org.openbp.server.context.TokenContextService;
 import org.openbp.server.context.WorkflowTask;
 import org.openbp.server.context.WorkflowTaskCriteria;
+import org.openbp.server.engine.metrics.EngineMetrics;
 import org.openbp.server.engine.script.ScriptEngine;
 import org.openbp.server.engine.script.ScriptEngineFactory;
 import org.openbp.server.handler.Handler;
@@ -68,6 +76,12 @@ public class EngineImpl
 	/** Flag that determines if an automatic rollback should be performed on unhandled errors */
 	private boolean rollbackOnError = true;
 
+	/** Flag that determines if the transactions of straight-through token executions should be coalesced */
+	private boolean transactionCoalescing = SettingUtil.getBooleanSetting(ServerConstants.SYSPROP_ENGINE_TRANSACTIONCOALESCING, false);
+
+	/** Qualified names of processes whose transactions should be coalesced regardless of the transaction coalescing flag */
+	private Set<String> transactionCoalescingProcesses;
+
 	/** Model manager */
 	private ModelMgr modelMgr;
 
@@ -89,6 +103,15 @@ public class EngineImpl
 	/** Model object executor manager */
 	private ModelObjectExecutorMgr modelObjectExecutorMgr;
 
+	/** Queue of tokens that are ready for execution or null if the engine runner shall poll for executable tokens */
+	private ReadyTokenQueue readyTokenQueue;
+
+	/** Engine metrics or null if no metrics shall be collected */
+	private EngineMetrics engineMetrics;
+
+	/** Registry of tokens that have been suspended in memory or null if memory suspension blocks the execution thread */
+	private MemorySuspendRegistry memorySuspendRegistry;
+
 	//////////////////////////////////////////////////
 	// @@ Construction and data members
 	//////////////////////////////////////////////////
@@ -128,6 +151,7 @@ public class EngineImpl
 		context.setLifecycleRequest(LifecycleRequest.RESUME);
 		tokenContextService.addContext(context);
 		flushTokenContextChanges();
+		notifyTokenReady(context);
 	}
 
 	/**
@@ -148,12 +172,81 @@ public class EngineImpl
 			throw new OpenBPException("InvalidLifecycleState", msg);
 		}
 
+		if (lifecycleState == LifecycleState.IDLING)
+		{
+			resumeMemorySuspendedToken(context);
+			return;
+		}
+
 		context.setLifecycleRequest(LifecycleRequest.RESUME);
+		tokenContextService.saveContext(context);
+		flushTokenContextChanges();
+		notifyTokenReady(context);
+	}
 
-		if (lifecycleState != LifecycleState.IDLING)
+	/**
+	 * Resumes the given tokens at their current position.
+	 * Equivalent to calling {@link #resumeToken} for each token, however the changes will be flushed
+	 * to the database only once, allowing the persistence layer to batch the inserts and updates.
+	 * The method commits the changes to the database.
+	 *
+	 * @param contexts List of token contexts ({@link TokenContext} objects)
+	 */
+	public void resumeTokens(final List contexts)
+	{
+		int n = contexts.size();
+		ArrayList savedContexts = new ArrayList(n);
+
+		for (int i = 0; i < n; ++i)
 		{
+			TokenContext context = (TokenContext) contexts.get(i);
+			LogUtil.trace(getClass(), "Requesting resumption of token. [{0}]", context);
+
+			int lifecycleState = context.getLifecycleState();
+			if (lifecycleState != LifecycleState.SUSPENDED && lifecycleState != LifecycleState.IDLING)
+			{
+				String msg = LogUtil.error(getClass(), "Token has invalid lifecycle state for operation resumeTokens. [{0}]", context);
+				throw new OpenBPException("InvalidLifecycleState", msg);
+			}
+
+			if (lifecycleState == LifecycleState.IDLING)
+			{
+				resumeMemorySuspendedToken(context);
+				continue;
+			}
+
+			context.setLifecycleRequest(LifecycleRequest.RESUME);
 			tokenContextService.saveContext(context);
+			savedContexts.add(context);
+		}
+
+		if (! savedContexts.isEmpty())
+		{
+			// Flush once for all tokens so the inserts can be sent to the database in JDBC batches
 			flushTokenContextChanges();
+			for (Iterator it = savedContexts.iterator(); it.hasNext();)
+			{
+				notifyTokenReady((TokenContext) it.next());
+			}
+		}
+	}
+
+	/**
+	 * Resumes a token that has been suspended in memory.
+	 * If a memory suspend registry has been configured, the token will be dispatched by the registry,
+	 * otherwise the resumption request will wake up the thread that is blocked by the token.
+	 *
+	 * @param context Token context
+	 */
+	private void resumeMemorySuspendedToken(final TokenContext context)
+	{
+		if (memorySuspendRegistry != null)
+		{
+			memorySuspendRegistry.resume(context);
+		}
+		else
+		{
+			context.setLifecycleRequest(LifecycleRequest.RESUME);
 		}
 	}
 
@@ -205,6 +298,7 @@ public class EngineImpl
 		// Update the workflow task in the persistent storage
 		tokenContextService.saveWorkflowTask(workflowTask);
 		flushTokenContextChanges();
+		notifyTokenReady(context);
 	}
 
 	/**
@@ -239,12 +333,41 @@ public class EngineImpl
 		tokenContextService.flush();
 	}
 
+	/**
+	 * Saves the given token context and commits the token context transaction.
+	 * Called when a token is suspended; the token context service may write the context using a group commit.
+	 *
+	 * @param context Token context to save
+	 */
+	public void commitTokenContext(TokenContext context)
+	{
+		if (engineMetrics != null)
+		{
+			long start = System.nanoTime();
+			tokenContextService.commitContext(context);
+			engineMetrics.recordCommit(System.nanoTime() - start);
+		}
+		else
+		{
+			tokenContextService.commitContext(context);
+		}
+	}
+
 	/**
 	 * Commits the transaction on the token context store.
 	 */
 	public void commitTokenContextTransaction()
 	{
-		tokenContextService.commit();
+		if (engineMetrics != null)
+		{
+			long start = System.nanoTime();
+			tokenContextService.commit();
+			engineMetrics.recordCommit(System.nanoTime() - start);
+		}
+		else
+		{
+			tokenContextService.commit();
+		}
 	}
 
 	/**
@@ -273,6 +396,11 @@ public class EngineImpl
 			EngineUtil.createProcessVariables(context.getCurrentSocket().getProcess(), context);
 		}
 
+		if (engineMetrics != null)
+		{
+			engineMetrics.tokenStarted();
+		}
+
 		if (hasActiveObservers(EngineEvent.BEGIN_TOKEN, context))
 		{
 			fireEngineEvent(new EngineEvent(EngineEvent.BEGIN_TOKEN, context, this));
@@ -286,49 +414,68 @@ public class EngineImpl
 	 * Also sets the state of the workflow task that is associated with this context (if any) to {@link WorkflowTask#STATUS_COMPLETED}.
 	 * Also raises the engine events {@link EngineEvent#BEFORE_END_TOKEN} and {@link EngineEvent#AFTER_END_TOKEN}.
 	 *
+	 * The token and its child tokens are ended in a single pass:
+	 * The descendants of the token are retrieved level by level (see {@link TokenContextService#getDescendantContexts}),
+	 * the workflow tasks of all tokens are retrieved using a single query per chunk of tokens and the tokens that can be deleted
+	 * are passed to the token context service as a whole.
+	 *
 	 * @param context Context that holds the token's state information
 	 */
 	public void endToken(final TokenContext context)
 	{
-		LogUtil.trace(getClass(), "Ending token. [{0}]", context);
-		if (hasActiveObservers(EngineEvent.BEFORE_END_TOKEN, context))
+		// Collect the token and all of its descendants.
+		List contexts = new ArrayList();
+		contexts.add(context);
+		contexts.addAll(tokenContextService.getDescendantContexts(context));
+		for (int i = 0; i < contexts.size(); ++i)
 		{
-			fireEngineEvent(new EngineEvent(EngineEvent.BEFORE_END_TOKEN, context, this));
-		}
+			TokenContext tc = (TokenContext) contexts.get(i);
 
-		WorkflowTaskCriteria criteria = new WorkflowTaskCriteria();
-		criteria.setTokenContext(context);
-		criteria.setStatus(WorkflowTask.STATUS_RESUMED);
-
-		// We may delete the context only if we may delete all WF tasks
-		boolean deleteContext = true;
-		for (Iterator itTask = tokenContextService.getworkflowTasks(criteria); itTask.hasNext();)
-		{
-			WorkflowTask workflowTask = (WorkflowTask) itTask.next();
-			if (workflowTask.getId() != null)
+			// Detach the children, there is no need to count down the children of a token that ends
+			if (i > 0)
 			{
-				if (! workflowTask.isDeleteAfterCompletion())
+				TokenContext parent = tc.getParentContext();
+				if (parent != null)
 				{
-					deleteContext = false;
+					parent.removeChildContext(tc);
 				}
+				tc.setParentContext(null);
 			}
-		}
 
-		// End all child contexts.
-		// Copy the list in order to prevent a concurrent modification exception
-		for (Iterator it = tokenContextService.getChildContexts(context); it.hasNext();)
-		{
-			TokenContext childContext = (TokenContext) it.next();
-			endToken(childContext);
+			LogUtil.trace(getClass(), "Ending token. [{0}]", tc);
+			if (engineMetrics != null)
+			{
+				engineMetrics.tokenEnded();
+			}
+			if (hasActiveObservers(EngineEvent.BEFORE_END_TOKEN, tc))
+			{
+				fireEngineEvent(new EngineEvent(EngineEvent.BEFORE_END_TOKEN, tc, this));
+			}
 		}
 
+		// Count down the outstanding children of the parent
 		TokenContext parentContext = context.getParentContext();
+		boolean lastChild = false;
 		if (parentContext != null)
 		{
-			parentContext.removeChildContext(context);
+			lastChild = tokenContextService.releaseChildContext(parentContext, context);
 		}
 		context.setParentContext(null);
 
+		// Complete the workflow tasks of all tokens; the token context service splits large lists into several queries.
+		// We may delete a context only if we may delete all of its WF tasks.
+		WorkflowTaskCriteria criteria = new WorkflowTaskCriteria();
+		if (contexts.size() == 1)
+		{
+			criteria.setTokenContext(context);
+		}
+		else
+		{
+			criteria.setTokenContexts(contexts);
+		}
+		criteria.setStatus(WorkflowTask.STATUS_RESUMED);
+
+		Set keptContextIds = null;
 		for (Iterator itTask = tokenContextService.getworkflowTasks(criteria); itTask.hasNext();)
 		{
 			WorkflowTask workflowTask = (WorkflowTask) itTask.next();
@@ -340,34 +487,76 @@ public class EngineImpl
 				}
 				else
 				{
-					if (workflowTask != null)
+					workflowTask.setStatus(WorkflowTask.STATUS_COMPLETED);
+					tokenContextService.saveWorkflowTask(workflowTask);
+
+					if (keptContextIds == null)
 					{
-						workflowTask.setStatus(WorkflowTask.STATUS_COMPLETED);
-						tokenContextService.saveWorkflowTask(workflowTask);
+						keptContextIds = new HashSet();
 					}
+					keptContextIds.add(workflowTask.getTokenContext().getId());
 				}
 			}
 		}
 
-		if (deleteContext && context.getId() != null)
+		// Set the context state to 'complete' to prevent further processing, even if the context is deleted
+		List deletedContexts = new ArrayList(contexts.size());
+		for (Iterator it = contexts.iterator(); it.hasNext();)
 		{
-			tokenContextService.deleteContext(context);
+			TokenContext tc = (TokenContext) it.next();
+			changeTokenState(tc, LifecycleState.COMPLETED, LifecycleRequest.NONE);
 
-			// After deleting the context, nevertheless set the context state to 'complete' to prevent further processing.
-			changeTokenState(context, LifecycleState.COMPLETED, LifecycleRequest.NONE);
+			if (tc.getId() != null && (keptContextIds == null || ! keptContextIds.contains(tc.getId())))
+			{
+				deletedContexts.add(tc);
+			}
+			else
+			{
+				tokenContextService.saveContext(tc);
+			}
 		}
-		else
+		if (! deletedContexts.isEmpty())
 		{
-			changeTokenState(context, LifecycleState.COMPLETED, LifecycleRequest.NONE);
-			tokenContextService.saveContext(context);
+			tokenContextService.deleteContexts(deletedContexts);
+		}
+
+		// Children end before their parents
+		for (int i = contexts.size() - 1; i >= 0; --i)
+		{
+			TokenContext tc = (TokenContext) contexts.get(i);
+			if (hasActiveObservers(EngineEvent.AFTER_END_TOKEN, tc))
+			{
+				fireEngineEvent(new EngineEvent(EngineEvent.AFTER_END_TOKEN, tc, this));
+			}
 		}
 
-		if (hasActiveObservers(EngineEvent.AFTER_END_TOKEN, context))
+		if (lastChild)
 		{
-			fireEngineEvent(new EngineEvent(EngineEvent.AFTER_END_TOKEN, context, this));
+			resumeParentContext(parentContext);
 		}
 	}
 
+	/**
+	 * Continues a parent token after its last outstanding child token has ended without reaching a join node.
+	 * A parent token that is suspended at its fork node waits for its children to join.
+	 * Since there is no join node to continue at, the parent token ends as well.
+	 * A parent token that has continued at the resume socket of its fork node is not affected.
+	 *
+	 * @param parentContext Parent context
+	 */
+	private void resumeParentContext(final TokenContext parentContext)
+	{
+		if (parentContext.getLifecycleState() != LifecycleState.SUSPENDED)
+			return;
+
+		NodeSocket currentSocket = parentContext.getCurrentSocket();
+		if (currentSocket == null || ! (currentSocket.getNode() instanceof ForkNode))
+			return;
+
+		LogUtil.trace(getClass(), "Ending parent token after all of its child tokens have ended. [{0}]", parentContext);
+		endToken(parentContext);
+	}
+
 	/**
 	 * Changes the lifecycle state and lifecycle request of the given token.
 	 * Also raises the engine event {@link EngineEvent#TOKEN_STATE_CHANGE}.
@@ -392,6 +581,22 @@ public class EngineImpl
 		}
 	}
 
+	/**
+	 * Notifies the engine that the given token is ready for execution (for internal use only).
+	 * If a {@link ReadyTokenQueue} has been configured, the token will be dispatched by the engine runner
+	 * as soon as the current transaction has been committed.
+	 * Otherwise, the token will be picked up by the next poll of the engine runner.
+	 *
+	 * @param context Context that holds the token's state information
+	 */
+	public void notifyTokenReady(final TokenContext context)
+	{
+		if (readyTokenQueue != null && context.getLifecycleRequest() == LifecycleRequest.RESUME)
+		{
+			readyTokenQueue.post(context.getId());
+		}
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Internal: Token execution
 	//////////////////////////////////////////////////
@@ -440,6 +645,8 @@ public class EngineImpl
 				nextSocket = currentSocket.getNode().getDefaultExitSocket();
 			hc.setNextSocket(nextSocket);
 
+			long start = engineMetrics != null ? System.nanoTime() : 0L;
+
 			// Execute the handler
 			if (handlerDef.getHandlerClassName() != null)
 			{
@@ -494,6 +701,11 @@ public class EngineImpl
 				}
 			}
 
+			if (engineMetrics != null)
+			{
+				engineMetrics.recordHandlerExecution(handlerDef, System.nanoTime() - start);
+			}
+
 			return hc;
 		}
 		return null;
@@ -887,6 +1099,64 @@ public class EngineImpl
 		this.rollbackOnError = rollbackOnError;
 	}
 
+	/**
+	 * Checks if the transactions of the given process should be coalesced.
+	 * If so, the engine will not commit the running state of a token that has been claimed by the engine runner
+	 * before executing the first step. The token context will be persisted only at transaction control links,
+	 * wait states and the end of the token. If the execution fails before the first commit, the token will be
+	 * rolled back to the position it has been claimed at.
+	 *
+	 * @param process Process the token execution starts in or null
+	 * @return
+	 * true: Defer the first commit to the next transaction boundary.<br>
+	 * false: Commit the running state before executing the first step.
+	 */
+	public boolean isTransactionCoalescing(ProcessItem process)
+	{
+		if (transactionCoalescing)
+			return true;
+		if (process == null || transactionCoalescingProcesses == null)
+			return false;
+		return transactionCoalescingProcesses.contains(process.getQualifier().toUntypedString());
+	}
+
+	/**
+	 * Gets the flag that determines if the transactions of straight-through token executions should be coalesced.
+	 * @nowarn
+	 */
+	public boolean isTransactionCoalescing()
+	{
+		return transactionCoalescing;
+	}
+
+	/**
+	 * Sets the flag that determines if the transactions of straight-through token executions should be coalesced.
+	 * Default: Value of the {@link ServerConstants#SYSPROP_ENGINE_TRANSACTIONCOALESCING} system property or false.
+	 * @nowarn
+	 */
+	public void setTransactionCoalescing(boolean transactionCoalescing)
+	{
+		this.transactionCoalescing = transactionCoalescing;
+	}
+
+	/**
+	 * Gets the qualified names of processes whose transactions should be coalesced regardless of the transaction coalescing flag.
+	 * @nowarn
+	 */
+	public Set<String> getTransactionCoalescingProcesses()
+	{
+		return transactionCoalescingProcesses;
+	}
+
+	/**
+	 * Sets the qualified names of processes whose transactions should be coalesced regardless of the transaction coalescing flag.
+	 * @param transactionCoalescingProcesses Set of untyped process qualifiers (e. g. "/MyModel/MyProcess") or null
+	 */
+	public void setTransactionCoalescingProcesses(Set<String> transactionCoalescingProcesses)
+	{
+		this.transactionCoalescingProcesses = transactionCoalescingProcesses;
+	}
+
 	/**
 	 * Gets the model manager.
 	 * @nowarn
@@ -921,6 +1191,10 @@ public class EngineImpl
 	public void setTokenContextService(final TokenContextService tokenContextService)
 	{
 		this.tokenContextService = tokenContextService;
+		if (tokenContextService != null && readyTokenQueue != null)
+		{
+			tokenContextService.setReadyTokenQueue(readyTokenQueue);
+		}
 	}
 
 	/**
@@ -1014,4 +1288,65 @@ public class EngineImpl
 	{
 		this.modelObjectExecutorMgr = modelObjectExecutorMgr;
 	}
+
+	/**
+	 * Gets the queue of tokens that are ready for execution.
+	 * @return The queue or null if the engine runner shall poll for executable tokens
+	 */
+	public ReadyTokenQueue getReadyTokenQueue()
+	{
+		return readyTokenQueue;
+	}
+
+	/**
+	 * Sets the queue of tokens that are ready for execution.
+	 * The queue will also be assigned to the token context service, which publishes the posted tokens on commit.
+	 * Make sure to assign the same queue to the engine runner.
+	 * @param readyTokenQueue The queue or null if the engine runner shall poll for executable tokens
+	 */
+	public void setReadyTokenQueue(final ReadyTokenQueue readyTokenQueue)
+	{
+		this.readyTokenQueue = readyTokenQueue;
+		if (tokenContextService != null)
+		{
+			tokenContextService.setReadyTokenQueue(readyTokenQueue);
+		}
+	}
+
+	/**
+	 * Gets the engine metrics.
+	 * @return The metrics or null if no metrics shall be collected
+	 */
+	public EngineMetrics getEngineMetrics()
+	{
+		return engineMetrics;
+	}
+
+	/**
+	 * Sets the engine metrics.
+	 * @param engineMetrics The metrics or null if no metrics shall be collected
+	 */
+	public void setEngineMetrics(final EngineMetrics engineMetrics)
+	{
+		this.engineMetrics = engineMetrics;
+	}
+
+	/**
+	 * Gets the registry of tokens that have been suspended in memory.
+	 * @return The registry or null if memory suspension blocks the execution thread
+	 */
+	public MemorySuspendRegistry getMemorySuspendRegistry()
+	{
+		return memorySuspendRegistry;
+	}
+
+	/**
+	 * Sets the registry of tokens that have been suspended in memory.
+	 * Make sure to assign the same registry to the engine runner.
+	 * @param memorySuspendRegistry The registry or null if memory suspension shall block the execution thread
+	 */
+	public void setMemorySuspendRegistry(final MemorySuspendRegistry memorySuspendRegistry)
+	{
+		this.memorySuspendRegistry = memorySuspendRegistry;
+	}
 }
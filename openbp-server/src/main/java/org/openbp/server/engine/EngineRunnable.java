@@ -36,6 +36,9 @@ public class EngineRunnable
 	/** Context id */
 	private final Object contextId;
 
+	/** Token context that has been resumed from a memory suspension or null to load the context by its id */
+	private final TokenContext memoryContext;
+
 	/**
 	 * Constructor.
 	 *
@@ -46,6 +49,21 @@ public class EngineRunnable
 	{
 		this.engineRunner = engineRunner;
 		this.contextId = contextId;
+		this.memoryContext = null;
+	}
+
+	/**
+	 * Constructor for tokens that have been resumed from a memory suspension.
+	 * The given context will be executed as it is instead of being loaded from the token context store.
+	 *
+	 * @param engineRunner Engine runner
+	 * @param memoryContext Token context
+	 */
+	public EngineRunnable(EngineRunner engineRunner, TokenContext memoryContext)
+	{
+		this.engineRunner = engineRunner;
+		this.contextId = memoryContext.getId();
+		this.memoryContext = memoryContext;
 	}
 
 	/**
@@ -54,7 +72,7 @@ public class EngineRunnable
 	public void run()
 	{
 		TokenContextService tokenContextService = engineRunner.getEngine().getTokenContextService();
-		TokenContext context = tokenContextService.getContextById(contextId);
+		TokenContext context = memoryContext != null ? memoryContext : tokenContextService.getContextById(contextId);
 
 		String oldThreadName = null;
 		try
@@ -1,10 +1,12 @@
 package org.openbp.server.engine;
 
 import java.util.Iterator;
+import java.util.List;
 
 import org.openbp.common.logger.LogUtil;
 import org.openbp.server.context.LifecycleRequest;
 import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.QueueTypeFilter;
 import org.openbp.server.context.TokenContext;
 import org.openbp.server.context.TokenContextService;
 
@@ -41,6 +43,27 @@ public abstract class EngineRunner
 	/** Idle time for {@link #mainExecutionLoop()} in milli seconds When there are no contexts available for execution */
 	private int idleTime;
 
+	/** Queue of tokens that are ready for execution or null to poll the token context service only */
+	private ReadyTokenQueue readyTokenQueue;
+
+	/** Default interval of the executable context sweep in milli seconds if a ready token queue is used */
+	public static final int DEFAULT_SWEEP_TIME = 10000;
+
+	/** Interval of the executable context sweep in milli seconds if a ready token queue is used */
+	private int sweepTime = DEFAULT_SWEEP_TIME;
+
+	/** Registry of the cluster nodes or null if this engine does not run in a cluster */
+	private ClusterNodeRegistry clusterNodeRegistry;
+
+	/** Flag if this node has been fenced by another cluster node and has not rejoined the cluster yet */
+	private boolean nodeFenced;
+
+	/** Flag that determines if executable contexts are claimed in a single transaction instead of being selected one by one */
+	private boolean claimContexts;
+
+	/** Registry of tokens that have been suspended in memory or null if memory suspension blocks the execution thread */
+	private MemorySuspendRegistry memorySuspendRegistry;
+
 	/** Flag if the execution loop shall be stopped */
 	private boolean executionLoopStopRequested;
 
@@ -68,6 +91,17 @@ public abstract class EngineRunner
 	 * Main execution loop.
 	 * Use this method in the thread that reads pending token contexts and distributes them for execution.
 	 * The method returns after the {@link #requestExecutionLoopEnd} has been called and the sleepTime has elapsed.
+	 *
+	 * If a {@link ReadyTokenQueue} has been assigned to the engine runner, tokens that have been resumed
+	 * by this engine will be dispatched as soon as they are posted to the queue.
+	 * The token context service will be queried only every {@link #setSweepTime sweep time} milliseconds
+	 * in order to pick up tokens that have been resumed by other cluster nodes.
+	 *
+	 * If a {@link ClusterNodeRegistry} has been assigned to the engine runner, the loop will send regular heartbeats
+	 * and will execute only tokens that belong to the partition of the token space that has been assigned to this node.
+	 * If the node has been fenced by another node, the loop will not dispatch any tokens and will rejoin the cluster
+	 * after the executions that have been in flight have ended.
+	 *
 	 * @param sleepTime When there are no contexts available for execution,
 	 * the method will sleep for the supplied sleep time in milli seconds.
 	 */
@@ -77,28 +111,97 @@ public abstract class EngineRunner
 		{
 			executionLoopRuning = true;
 
+			long nextSweep = 0L;
+			long nextHeartbeat = 0L;
 			while (! executionLoopStopRequested)
 			{
-				executePendingContextsInDifferentThread();
+				boolean idle = true;
 
-				// This will clear the o/r mapper cache, so we won't have caching problems.
-				getEngine().getTokenContextService().clearCache();
+				if (clusterNodeRegistry != null && System.currentTimeMillis() >= nextHeartbeat)
+				{
+					sendHeartbeat();
+					nextHeartbeat = System.currentTimeMillis() + clusterNodeRegistry.getHeartbeatInterval();
+				}
 
-				try
+				if (memorySuspendRegistry != null)
 				{
-					Thread.sleep(sleepTime);
+					// Retry tokens that have been resumed from a memory suspension while the threads were busy
+					memorySuspendRegistry.dispatchResumedContexts();
 				}
-				catch (InterruptedException e)
+
+				if (clusterNodeRegistry == null || clusterNodeRegistry.isRegistered())
+				{
+					if (readyTokenQueue == null || System.currentTimeMillis() >= nextSweep)
+					{
+						executePendingContextsInDifferentThread();
+
+						// This will clear the o/r mapper cache, so we won't have caching problems.
+						getEngine().getTokenContextService().clearCache();
+
+						nextSweep = System.currentTimeMillis() + sweepTime;
+					}
+
+					if (readyTokenQueue != null)
+					{
+						// Wait for ready tokens instead of sleeping; sleep only if the runner refuses further contexts.
+						idle = ! executeReadyContextsInDifferentThread(sleepTime);
+					}
+				}
+
+				if (idle)
 				{
+					try
+					{
+						Thread.sleep(sleepTime);
+					}
+					catch (InterruptedException e)
+					{
+					}
 				}
 			}
 		}
 		finally
 		{
+			if (clusterNodeRegistry != null)
+			{
+				try
+				{
+					clusterNodeRegistry.unregister(systemNameProvider.getSystemName());
+				}
+				catch (RuntimeException e)
+				{
+					LogUtil.error(getClass(), "Error unregistering cluster node.", e);
+				}
+			}
+
 			executionLoopRuning = false;
 		}
 	}
 
+	/**
+	 * Sends a heartbeat to the cluster node registry.
+	 * Errors will be logged only, so a temporary database problem will not terminate the main execution loop.
+	 * If the node has been fenced, the heartbeat that rejoins the cluster will be sent only after the executions
+	 * that have been in flight have ended; their tokens may have been picked up by other nodes already.
+	 */
+	protected void sendHeartbeat()
+	{
+		if (nodeFenced && getNumberOfExecutingContexts() > 0)
+		{
+			LogUtil.debug(getClass(), "Waiting for $0 executing tokens to end before rejoining the cluster.", Integer.valueOf(getNumberOfExecutingContexts()));
+			return;
+		}
+
+		try
+		{
+			nodeFenced = ! clusterNodeRegistry.heartbeat(systemNameProvider.getSystemName());
+		}
+		catch (RuntimeException e)
+		{
+			LogUtil.error(getClass(), "Error sending heartbeat to the cluster node registry.", e);
+		}
+	}
+
 	/**
 	 * Checks if the main execution loop is currently running.
 	 * @nowarn
@@ -199,15 +302,27 @@ public abstract class EngineRunner
 	 */
 	public int executePendingContextsInDifferentThread()
 	{
+		if (claimContexts)
+			return executeClaimedContextsInDifferentThread();
+
+		if (! isAcceptingContexts())
+			return 0;
+
 		TokenContextService tcs = getEngine().getTokenContextService();
 		int nAcceptedContexts = 0;
 
 		try
 		{
-			for (Iterator it = tcs.getExecutableContexts(fetchSize); it.hasNext() && ! executionLoopStopRequested;)
+			for (Iterator it = tcs.getExecutableContexts(fetchSize, determineQueueTypeFilter()); it.hasNext() && ! executionLoopStopRequested;)
 			{
 				TokenContext context = (TokenContext) it.next();
 
+				if (clusterNodeRegistry != null && ! clusterNodeRegistry.isOwnToken(context.getId()))
+				{
+					// Belongs to another node
+					continue;
+				}
+
 				if (! runContext(context))
 					break;
 
@@ -223,6 +338,141 @@ public abstract class EngineRunner
 		return nAcceptedContexts;
 	}
 
+	/**
+	 * Claims token contexts that are ready for execution and executes them in a different thread.
+	 * The method will claim the executable contexts for this node using
+	 * {@link TokenContextService#claimExecutableContexts}, which marks them as selected in a single transaction.
+	 * Each context retrieved will be executed using the thread distribution
+	 * strategy of the particular {@link EngineRunner} implementation.
+	 * Claimed contexts that could not be passed to a thread will be released again.
+	 * @return The number of contexts that have been claimed for execution and passed to the thread pool
+	 */
+	protected int executeClaimedContextsInDifferentThread()
+	{
+		if (! isAcceptingContexts())
+			return 0;
+
+		TokenContextService tcs = getEngine().getTokenContextService();
+		int nAcceptedContexts = 0;
+
+		try
+		{
+			QueueTypeFilter queueTypeFilter = determineQueueTypeFilter();
+			List contexts;
+			if (clusterNodeRegistry != null)
+			{
+				contexts = tcs.claimExecutableContexts(fetchSize, systemNameProvider.getSystemName(), clusterNodeRegistry.getPartition(), clusterNodeRegistry.getPartitionCount(), queueTypeFilter);
+			}
+			else
+			{
+				contexts = tcs.claimExecutableContexts(fetchSize, systemNameProvider.getSystemName(), 0, 1, queueTypeFilter);
+			}
+			int n = contexts.size();
+			for (int i = 0; i < n; ++i)
+			{
+				TokenContext context = (TokenContext) contexts.get(i);
+
+				if (engine.hasActiveObservers(EngineEvent.TOKEN_STATE_CHANGE, context))
+				{
+					engine.fireEngineEvent(new EngineEvent(EngineEvent.TOKEN_STATE_CHANGE, context, engine));
+				}
+
+				if (executionLoopStopRequested || ! runContext(context))
+				{
+					releaseClaimedContexts(contexts.subList(i, n));
+					break;
+				}
+
+				++nAcceptedContexts;
+			}
+		}
+		finally
+		{
+			// Reset the token context service
+			tcs.rollback();
+		}
+
+		return nAcceptedContexts;
+	}
+
+	/**
+	 * Releases contexts that have been claimed for execution by this node, but have not been executed.
+	 * The contexts will be suspended, so they will be picked up again by the next query for executable contexts.
+	 *
+	 * @param contexts Contexts to release (contains {@link TokenContext} objects)
+	 */
+	protected void releaseClaimedContexts(List contexts)
+	{
+		TokenContextService tcs = getEngine().getTokenContextService();
+
+		int n = contexts.size();
+		for (int i = 0; i < n; ++i)
+		{
+			TokenContext context = (TokenContext) contexts.get(i);
+			if (context.getLifecycleState() == LifecycleState.SELECTED)
+			{
+				engine.changeTokenState(context, LifecycleState.SUSPENDED, context.getLifecycleRequest());
+				tcs.saveContext(context);
+			}
+		}
+		tcs.commit();
+	}
+
+	/**
+	 * Executes the token contexts that have been posted to the ready token queue in a different thread.
+	 * The method waits up to the given time for the first token to be posted and then drains the queue.
+	 * Each context retrieved will be executed using the thread distribution
+	 * strategy of the particular {@link EngineRunner} implementation.
+	 * Tokens that are not executable any more (e. g. because they have been picked up by another node)
+	 * will be skipped.
+	 *
+	 * @param waitTime Time in milli seconds to wait for the first token to be posted
+	 * @return false if the engine runner refused to accept further contexts (e. g. since the execution thread pool is currently full),
+	 * true otherwise. Contexts that have been refused will be picked up by the next sweep.
+	 */
+	public boolean executeReadyContextsInDifferentThread(long waitTime)
+	{
+		if (readyTokenQueue == null)
+			return true;
+
+		TokenContextService tcs = getEngine().getTokenContextService();
+		boolean accepted = true;
+
+		Object id = readyTokenQueue.poll(waitTime);
+		if (id == null)
+			return true;
+
+		try
+		{
+			for (; id != null && ! executionLoopStopRequested; id = readyTokenQueue.poll(0L))
+			{
+				TokenContext context = tcs.getContextById(id);
+				if (context == null)
+					continue;
+
+				if (context.getLifecycleRequest() != LifecycleRequest.RESUME || context.getLifecycleState() == LifecycleState.SELECTED)
+				{
+					// Already selected by another node or not resumed any more
+					continue;
+				}
+
+				if (! runContext(context))
+				{
+					accepted = false;
+					break;
+				}
+			}
+		}
+		finally
+		{
+			// Reset the token context service
+			tcs.rollback();
+			tcs.clearCache();
+		}
+
+		return accepted;
+	}
+
 	/**
 	 * Executes token contexts that are ready for execution immediately in this thread.
 	 * The method will query the executable contexts using the token context service.
@@ -303,9 +553,70 @@ public abstract class EngineRunner
 	 */
 	protected abstract boolean runContext(TokenContext context);
 
+	/**
+	 * Checks if the engine runner is able to accept further contexts.
+	 * If not, the query for executable contexts will be skipped, so no contexts are claimed only to be released again.
+	 * The default implementation always returns true.
+	 *
+	 * @return true if a context may be retrieved for execution
+	 */
+	protected boolean isAcceptingContexts()
+	{
+		return true;
+	}
+
+	/**
+	 * Determines the queue type filter for the query of executable contexts.
+	 * The default implementation returns null.
+	 *
+	 * @return The filter or null if all queue types may be retrieved
+	 */
+	protected QueueTypeFilter determineQueueTypeFilter()
+	{
+		return null;
+	}
+
+	/**
+	 * Executes a token that has been resumed from a memory suspension in a different thread.
+	 * In contrast to {@link #runContext}, the context will not be saved to the token context store before it is executed.
+	 *
+	 * @param context Context to execute
+	 * @return true if the context has been passed to an execution thread,
+	 * false if the engine runner refuses further contexts (e. g. since the execution thread pool is currently full)
+	 */
+	public boolean runMemoryContext(TokenContext context)
+	{
+		int previousLifecycleState = context.getLifecycleState();
+		engine.changeTokenState(context, LifecycleState.SELECTED, LifecycleRequest.RESUME);
+		context.setNodeId(systemNameProvider.getSystemName());
+
+		if (executeRunnable(context, new EngineRunnable(this, context)))
+			return true;
+
+		// Refused, restore the previous state
+		engine.changeTokenState(context, previousLifecycleState, LifecycleRequest.RESUME);
+		return false;
+	}
+
+	/**
+	 * Executes an engine runnable using the thread distribution strategy of the particular {@link EngineRunner} implementation.
+	 * The default implementation creates a new thread.
+	 *
+	 * @param context Context to execute
+	 * @param runnable Runnable that executes the context
+	 * @return true if the runnable has been passed to an execution thread, false if it has been rejected
+	 */
+	protected boolean executeRunnable(TokenContext context, Runnable runnable)
+	{
+		Thread t = new Thread(runnable);
+		t.start();
+		return true;
+	}
+
 	/**
 	 * Prepares a runnable object that can be used to execute a token context.
-	 * The method will also the the lifecycle state of the context to {@link LifecycleState#SELECTED}.
+	 * The method will also the the lifecycle state of the context to {@link LifecycleState#SELECTED}
+	 * unless the context has already been claimed for execution.
 	 *
 	 * @param context Context to execute
 	 * @return The new EngineRunnable object that refers the given context or null if an engine event observer
@@ -324,13 +635,16 @@ public abstract class EngineRunner
 			}
 		}
 
-		// Update the state of the context
-		engine.changeTokenState(context, LifecycleState.SELECTED, context.getLifecycleRequest());
-		context.setNodeId(systemNameProvider.getSystemName());
+		if (context.getLifecycleState() != LifecycleState.SELECTED)
+		{
+			// Update the state of the context
+			engine.changeTokenState(context, LifecycleState.SELECTED, context.getLifecycleRequest());
+			context.setNodeId(systemNameProvider.getSystemName());
 
-		TokenContextService tcs = getEngine().getTokenContextService();
-		tcs.saveContext(context);
-		tcs.commit();
+			TokenContextService tcs = getEngine().getTokenContextService();
+			tcs.saveContext(context);
+			tcs.commit();
+		}
 
 		// Run it using the engine thread pool
 		Object id = context.getId();
@@ -374,6 +688,107 @@ public abstract class EngineRunner
 		this.idleTime = idleTime;
 	}
 
+	/**
+	 * Gets the registry of the cluster nodes.
+	 * @return The registry or null if this engine does not run in a cluster
+	 */
+	public ClusterNodeRegistry getClusterNodeRegistry()
+	{
+		return clusterNodeRegistry;
+	}
+
+	/**
+	 * Sets the registry of the cluster nodes.
+	 * If set, the engine runner will register this node and execute the tokens in its partition of the token space only.
+	 * The nodes of the cluster must have distinct system names (see {@link #setSystemNameProvider}).
+	 * @param clusterNodeRegistry The registry or null if this engine does not run in a cluster
+	 */
+	public void setClusterNodeRegistry(ClusterNodeRegistry clusterNodeRegistry)
+	{
+		this.clusterNodeRegistry = clusterNodeRegistry;
+	}
+
+	/**
+	 * Gets the flag that determines if executable contexts are claimed in a single transaction instead of being selected one by one.
+	 * @nowarn
+	 */
+	public boolean isClaimContexts()
+	{
+		return claimContexts;
+	}
+
+	/**
+	 * Sets the flag that determines if executable contexts are claimed in a single transaction instead of being selected one by one.
+	 * If set, the pending contexts will be retrieved using {@link TokenContextService#claimExecutableContexts}.
+	 * This prevents several cluster nodes from selecting the same context and saves a transaction per context.
+	 * @nowarn
+	 */
+	public void setClaimContexts(boolean claimContexts)
+	{
+		this.claimContexts = claimContexts;
+	}
+
+	/**
+	 * Gets the registry of tokens that have been suspended in memory.
+	 * @return The registry or null if memory suspension blocks the execution thread
+	 */
+	public MemorySuspendRegistry getMemorySuspendRegistry()
+	{
+		return memorySuspendRegistry;
+	}
+
+	/**
+	 * Sets the registry of tokens that have been suspended in memory.
+	 * Make sure to assign the same registry to the engine.
+	 * Tokens that are resumed using this registry will be executed by this engine runner.
+	 * @param memorySuspendRegistry The registry or null if memory suspension shall block the execution thread
+	 */
+	public void setMemorySuspendRegistry(MemorySuspendRegistry memorySuspendRegistry)
+	{
+		this.memorySuspendRegistry = memorySuspendRegistry;
+		if (memorySuspendRegistry != null)
+		{
+			memorySuspendRegistry.setEngineRunner(this);
+		}
+	}
+
+	/**
+	 * Gets the queue of tokens that are ready for execution.
+	 * @return The queue or null if the runner polls the token context service only
+	 */
+	public ReadyTokenQueue getReadyTokenQueue()
+	{
+		return readyTokenQueue;
+	}
+
+	/**
+	 * Sets the queue of tokens that are ready for execution.
+	 * Make sure to assign the same queue to the engine.
+	 * @param readyTokenQueue The queue or null if the runner shall poll the token context service only
+	 */
+	public void setReadyTokenQueue(ReadyTokenQueue readyTokenQueue)
+	{
+		this.readyTokenQueue = readyTokenQueue;
+	}
+
+	/**
+	 * Gets the interval of the executable context sweep in milli seconds if a ready token queue is used.
+	 * @nowarn
+	 */
+	public int getSweepTime()
+	{
+		return sweepTime;
+	}
+
+	/**
+	 * Sets the interval of the executable context sweep in milli seconds if a ready token queue is used.
+	 * @nowarn
+	 */
+	public void setSweepTime(int sweepTime)
+	{
+		this.sweepTime = sweepTime;
+	}
+
 	/**
 	 * Gets the number of executing contexts.
 	 * @nowarn
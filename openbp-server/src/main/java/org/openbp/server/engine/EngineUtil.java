@@ -27,19 +27,19 @@ import org.openbp.common.logger.LogUtil;
 import org.openbp.common.util.CopyUtil;
 import org.openbp.common.util.observer.EventObserverMgr;
 import org.openbp.core.engine.EngineException;
-import org.openbp.core.model.ModelException;
 import org.openbp.core.model.ModelQualifier;
-import org.openbp.core.model.item.ItemTypes;
 import org.openbp.core.model.item.process.Node;
 import org.openbp.core.model.item.process.NodeParam;
 import org.openbp.core.model.item.process.NodeSocket;
 import org.openbp.core.model.item.process.Param;
 import org.openbp.core.model.item.process.ProcessItem;
+import org.openbp.core.model.item.process.ProcessUtil;
 import org.openbp.core.model.item.process.ProcessVariable;
 import org.openbp.core.model.item.process.RollbackDataBehavior;
 import org.openbp.core.model.item.process.RollbackPositionBehavior;
 import org.openbp.core.model.modelmgr.ModelMgr;
 import org.openbp.server.context.CallStack;
+import org.openbp.server.context.DeferredContextValue;
 import org.openbp.server.context.ProgressInfo;
 import org.openbp.server.context.TokenContext;
 import org.openbp.server.context.TokenContextService;
@@ -318,38 +318,7 @@ public class EngineUtil
 	 */
 	public static NodeSocket determineNodeSocketFromQualifier(ModelQualifier qualifier, ModelMgr modelMgr)
 	{
-		if (qualifier != null)
-		{
-			qualifier.setItemType(ItemTypes.PROCESS);
-
-			try
-			{
-				ProcessItem process = (ProcessItem) modelMgr.getItemByQualifier(qualifier, true);
-
-				String objectPath = qualifier.getObjectPath();
-				if (objectPath != null)
-				{
-					String nodeName = null;
-					String socketName = null;
-
-					int i = objectPath.indexOf(ModelQualifier.OBJECT_DELIMITER_CHAR);
-					if (i >= 0)
-					{
-						nodeName = objectPath.substring(0, i);
-						socketName = objectPath.substring(i + 1);
-
-						Node node = process.getNodeByName(nodeName);
-
-						return node != null ? node.getSocketByName(socketName) : null;
-					}
-				}
-			}
-			catch (ModelException e)
-			{
-				// Fall thru (same handling as no socket found).
-			}
-		}
-		return null;
+		return ProcessUtil.determineNodeSocketFromQualifier(qualifier, modelMgr);
 	}
 
 	public static TokenContext rollbackAndContinue(TokenContext contextArg, int rollbackDataBehavior, int rollbackPositionBehavior, Engine engine)
@@ -459,7 +428,8 @@ public class EngineUtil
 			TokenContextValue tcv = (TokenContextValue) entry.getValue();
 			Object value = tcv.getValue();
 
-			if (value != null)
+			// Unresolved references to persistent objects can be kept as they are
+			if (value != null && ! (value instanceof DeferredContextValue))
 			{
 				if (PersistenceContextObjectSerializer.isSerializableObject(value, pcp))
 				{
@@ -0,0 +1,205 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.openbp.common.logger.LogUtil;
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.TokenContext;
+
+/**
+ * Registry of tokens that have been suspended in memory ({@link LifecycleRequest#SUSPEND_MEMORY}).
+ *
+ * If a memory suspend registry has been assigned to both the engine and the engine runner,
+ * a token that requests a memory suspension will not block its engine thread.
+ * Instead, the token is parked in this registry after its execution thread has finished with it.
+ * The suspension itself is never written to the token context store.
+ * Call {@link #resume} in order to continue the token; it will be handed back to the engine runner
+ * for execution in one of its threads.
+ *
+ * A token that receives a {@link LifecycleRequest#RESUME} request before it has been parked
+ * will be resumed immediately.
+ * Tokens that cannot be passed to the engine runner because its threads are busy
+ * will be dispatched by the next iteration of the {@link EngineRunner#mainExecutionLoop()}.
+ *
+ * @author Heiko Erhardt
+ */
+public class MemorySuspendRegistry
+{
+	/** Parked token contexts; maps context ids to {@link TokenContext} objects */
+	private final Map<Object, TokenContext> parkedContexts = new ConcurrentHashMap<Object, TokenContext>();
+
+	/** Resumed token contexts that could not be passed to the engine runner yet */
+	private final Queue<TokenContext> resumedContexts = new ConcurrentLinkedQueue<TokenContext>();
+
+	/** Engine runner that executes resumed tokens */
+	private EngineRunner engineRunner;
+
+	/**
+	 * Default constructor.
+	 */
+	public MemorySuspendRegistry()
+	{
+	}
+
+	/**
+	 * Parks a token that has been suspended in memory (for internal use only).
+	 * Called by the engine after the execution thread has finished with the token.
+	 *
+	 * @param context Token context
+	 */
+	public void park(TokenContext context)
+	{
+		synchronized (context)
+		{
+			if (context.getLifecycleRequest() != LifecycleRequest.RESUME)
+			{
+				LogUtil.trace(getClass(), "Parking token (memory suspend). [{0}]", context);
+				parkedContexts.put(context.getId(), context);
+				return;
+			}
+		}
+
+		// Resumed while we were finishing the execution
+		dispatch(context);
+	}
+
+	/**
+	 * Resumes a token that has been suspended in memory.
+	 * The token will be executed by a thread of the engine runner.
+	 *
+	 * @param context Token context
+	 * @return true if the token has been parked in this registry, false if it is not parked (yet).
+	 * A token that is not parked yet will be resumed as soon as it has been parked.
+	 */
+	public boolean resume(TokenContext context)
+	{
+		TokenContext parkedContext;
+		synchronized (context)
+		{
+			context.setLifecycleRequest(LifecycleRequest.RESUME);
+			parkedContext = parkedContexts.remove(context.getId());
+		}
+
+		if (parkedContext == null)
+			return false;
+
+		dispatch(parkedContext);
+		return true;
+	}
+
+	/**
+	 * Resumes a token that has been suspended in memory.
+	 *
+	 * @param contextId Id of the token context
+	 * @return true if the token has been resumed, false if no token with this id has been parked
+	 */
+	public boolean resume(Object contextId)
+	{
+		TokenContext context = parkedContexts.get(contextId);
+		if (context == null)
+			return false;
+		return resume(context);
+	}
+
+	/**
+	 * Gets a token that has been suspended in memory.
+	 *
+	 * @param contextId Id of the token context
+	 * @return The token context or null if no token with this id has been parked
+	 */
+	public TokenContext getParkedContext(Object contextId)
+	{
+		return parkedContexts.get(contextId);
+	}
+
+	/**
+	 * Gets a list of all tokens that have been suspended in memory.
+	 *
+	 * @return A list of {@link TokenContext} objects
+	 */
+	public List<TokenContext> getParkedContexts()
+	{
+		return new ArrayList<TokenContext>(parkedContexts.values());
+	}
+
+	/**
+	 * Gets the number of tokens that have been suspended in memory.
+	 * @nowarn
+	 */
+	public int getNumberOfParkedContexts()
+	{
+		return parkedContexts.size();
+	}
+
+	/**
+	 * Passes resumed tokens that have been refused by the engine runner to the engine runner again.
+	 * Called by the main execution loop of the engine runner.
+	 *
+	 * @return true if all resumed tokens have been accepted by the engine runner
+	 */
+	public boolean dispatchResumedContexts()
+	{
+		for (TokenContext context; (context = resumedContexts.peek()) != null;)
+		{
+			if (engineRunner == null || ! engineRunner.runMemoryContext(context))
+				return false;
+			resumedContexts.remove(context);
+		}
+		return true;
+	}
+
+	/**
+	 * Passes a resumed token to the engine runner.
+	 *
+	 * @param context Token context
+	 */
+	protected void dispatch(TokenContext context)
+	{
+		LogUtil.trace(getClass(), "Resuming token (memory suspend). [{0}]", context);
+
+		if (engineRunner == null || ! resumedContexts.isEmpty() || ! engineRunner.runMemoryContext(context))
+		{
+			// Keep the order of resumption; the main execution loop of the engine runner will pick it up
+			resumedContexts.add(context);
+		}
+	}
+
+	/**
+	 * Gets the engine runner that executes resumed tokens.
+	 * @nowarn
+	 */
+	public EngineRunner getEngineRunner()
+	{
+		return engineRunner;
+	}
+
+	/**
+	 * Sets the engine runner that executes resumed tokens.
+	 * Will be set by {@link EngineRunner#setMemorySuspendRegistry}.
+	 * @nowarn
+	 */
+	public void setEngineRunner(EngineRunner engineRunner)
+	{
+		this.engineRunner = engineRunner;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openbp.common.logger.LogUtil;
+
+/**
+ * In-process queue of token context ids that are ready for execution.
+ *
+ * If a ready token queue has been assigned to both the engine and the engine runner,
+ * the engine will post the ids of tokens that have been resumed by this process
+ * (see {@link Engine#resumeToken}, {@link Engine#startToken}, fork and join nodes) to this queue.
+ * The {@link EngineRunner#mainExecutionLoop()} will dispatch these tokens immediately,
+ * using the executable context query of the token context service only as a slow safety sweep
+ * for tokens that have been resumed by other cluster nodes or by other applications.
+ *
+ * Since a token that has been resumed may not be picked up by an engine thread before the transaction
+ * that resumed it has been committed, posted token ids are held back in a thread-local list
+ * until the token context service reports the commit of the transaction ({@link #transactionCommitted}).
+ * The engine runner will check the state of each token before executing it, so stale or duplicate entries are harmless.
+ *
+ * @author Heiko Erhardt
+ */
+public class ReadyTokenQueue
+{
+	/** Default capacity of the queue */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/** Capacity of the queue */
+	private int capacity = DEFAULT_CAPACITY;
+
+	/** Queue of token context ids that are ready for execution (created on first use, see {@link #obtainQueue}) */
+	private volatile BlockingQueue<Object> readyIds;
+
+	/** Token context ids that have been posted within the current transaction of this thread */
+	private final ThreadLocal<List<Object>> pendingIds = new ThreadLocal<List<Object>>();
+
+	/**
+	 * Default constructor.
+	 */
+	public ReadyTokenQueue()
+	{
+	}
+
+	/**
+	 * Posts the id of a token that is ready for execution.
+	 * The id will be published to the engine runner when the current transaction of this thread has been committed.
+	 *
+	 * @param contextId Context id; null values will be ignored
+	 */
+	public void post(Object contextId)
+	{
+		if (contextId == null)
+			return;
+
+		List<Object> l = pendingIds.get();
+		if (l == null)
+		{
+			l = new ArrayList<Object>();
+			pendingIds.set(l);
+		}
+		l.add(contextId);
+	}
+
+	/**
+	 * Publishes the token ids that have been posted by this thread to the engine runner.
+	 * To be called after the transaction that resumed the tokens has been committed.
+	 */
+	public void transactionCommitted()
+	{
+		List<Object> l = pendingIds.get();
+		if (l == null || l.isEmpty())
+			return;
+
+		BlockingQueue<Object> q = obtainQueue();
+		int n = l.size();
+		for (int i = 0; i < n; ++i)
+		{
+			if (! q.offer(l.get(i)))
+			{
+				// Queue is full; the token will be picked up by the next sweep of the engine runner.
+				LogUtil.debug(getClass(), "Ready token queue is full, leaving token $0 to the engine runner sweep.", l.get(i));
+				break;
+			}
+		}
+		l.clear();
+	}
+
+	/**
+	 * Discards the token ids that have been posted by this thread.
+	 * To be called after the transaction that resumed the tokens has been rolled back.
+	 */
+	public void transactionRolledBack()
+	{
+		List<Object> l = pendingIds.get();
+		if (l != null)
+		{
+			l.clear();
+		}
+	}
+
+	/**
+	 * Retrieves and removes the next token context id that is ready for execution.
+	 *
+	 * @param waitTime Time in milliseconds to wait for a token id to become available or 0 not to wait at all
+	 * @return The context id or null if the wait time has elapsed
+	 */
+	public Object poll(long waitTime)
+	{
+		BlockingQueue<Object> q = obtainQueue();
+		if (waitTime <= 0L)
+		{
+			return q.poll();
+		}
+
+		try
+		{
+			return q.poll(waitTime, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the number of token ids that are waiting to be dispatched.
+	 * @nowarn
+	 */
+	public int size()
+	{
+		return obtainQueue().size();
+	}
+
+	/**
+	 * Removes all token ids from the queue.
+	 */
+	public void clear()
+	{
+		obtainQueue().clear();
+	}
+
+	/**
+	 * Gets the queue, creating it with the configured capacity on first use.
+	 * The queue is created lazily because the capacity is set after construction;
+	 * once it exists, access does not require a lock.
+	 *
+	 * @return The queue
+	 */
+	private BlockingQueue<Object> obtainQueue()
+	{
+		BlockingQueue<Object> q = readyIds;
+		if (q == null)
+		{
+			synchronized (this)
+			{
+				q = readyIds;
+				if (q == null)
+				{
+					q = new LinkedBlockingQueue<Object>(capacity);
+					readyIds = q;
+				}
+			}
+		}
+		return q;
+	}
+
+	/**
+	 * Gets the capacity of the queue.
+	 * @nowarn
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Sets the capacity of the queue.
+	 * Ids that do not fit into the queue will be left to the sweep of the engine runner.
+	 * Must be called before the queue is used for the first time.
+	 * @nowarn
+	 */
+	public void setCapacity(int capacity)
+	{
+		this.capacity = capacity;
+	}
+}
@@ -27,6 +27,7 @@ import org.openbp.core.model.item.process.NodeSocket;
 import org.openbp.core.model.item.process.RollbackDataBehavior;
 import org.openbp.core.model.item.process.RollbackPositionBehavior;
 import org.openbp.server.context.CallStack;
+import org.openbp.server.context.DeferredContextValue;
 import org.openbp.server.context.ProgressInfo;
 import org.openbp.server.context.TokenContext;
 import org.openbp.server.context.TokenContextService;
@@ -176,7 +177,8 @@ public class StandardRollbackProcessor
 			TokenContextValue tcv = (TokenContextValue) entry.getValue();
 			Object value = tcv.getValue();
 
-			if (value != null)
+			// Unresolved references to persistent objects can be kept as they are
+			if (value != null && ! (value instanceof DeferredContextValue))
 			{
 				if (PersistenceContextObjectSerializer.isSerializableObject(value, pcp))
 				{
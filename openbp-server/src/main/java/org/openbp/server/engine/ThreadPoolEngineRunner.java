@@ -15,8 +15,15 @@
  */
 package org.openbp.server.engine;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
+import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.QueueTypeFilter;
 import org.openbp.server.context.TokenContext;
 import org.openbp.server.context.TokenContextService;
 import org.springframework.core.task.TaskRejectedException;
@@ -30,6 +37,13 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
  * For a description of its properties, see the
  * <a href="http://static.springframework.org/spring/docs/2.0.x/api/org/springframework/scheduling/concurrent/ThreadPoolTaskExecutor.html">Spring Framework ThreadPoolTaskExecutor class</a>.
  *
+ * Tokens may be routed to separate executors depending on the queue type of the node they are positioned at
+ * (see {@link #setQueueExecutors}). The thread count of each executor determines the share of the engine capacity
+ * that is granted to the respective queue type. If the executor of a queue type is saturated, the tokens of this
+ * queue type will be left in the database until the next poll, while the tokens of other queue types will still be executed.
+ * The queue types of saturated executors are excluded from the query for executable tokens (see {@link #determineQueueTypeFilter}).
+ * So a flood of long-running tokens of one queue type will not starve the tokens of other queue types.
+ *
  * @author Heiko Erhardt
  */
 public class ThreadPoolEngineRunner extends EngineRunner
@@ -37,6 +51,9 @@ public class ThreadPoolEngineRunner extends EngineRunner
 	/** Executor used to execute the pending contexts */
 	private ThreadPoolTaskExecutor executor;
 
+	/** Table of executors for particular queue types (maps queue types (String) to executors (ThreadPoolTaskExecutor)) */
+	private Map queueExecutors;
+
 	/**
 	 * Default constructor.
 	 */
@@ -54,17 +71,70 @@ public class ThreadPoolEngineRunner extends EngineRunner
 	 */
 	protected boolean runContext(TokenContext context)
 	{
-		boolean rejected = true;
+		ThreadPoolTaskExecutor contextExecutor = determineExecutor(context);
+		if (queueExecutors != null && isSaturated(contextExecutor))
+		{
+			// Back-pressure: Leave the context in the database until its executor has become available again,
+			// but continue with the contexts of other queue types unless all executors are busy.
+			if (context.getLifecycleState() == LifecycleState.SELECTED)
+			{
+				// The context has been claimed for this node; suspend it, so it will be picked up again
+				resetContextState(context, LifecycleState.SUSPENDED);
+			}
+			return ! isFullySaturated();
+		}
+
 		int previousLifecycleState = context.getLifecycleState();
-		try
+		if (previousLifecycleState == LifecycleState.SELECTED)
+		{
+			// The context has been claimed for this node; suspend it on rejection, so it will be picked up again
+			previousLifecycleState = LifecycleState.SUSPENDED;
+		}
+		Runnable runnable = prepareEngineRunnable(context);
+		boolean rejected = runnable == null || ! executeRunnable(context, runnable);
+		if (rejected)
 		{
-			Runnable runnable = prepareEngineRunnable(context);
-			if (runnable != null)
+			// Thread pool rejects any execution, so reset the state of the context
+			resetContextState(context, previousLifecycleState);
+
+			if (queueExecutors != null)
 			{
-				getExecutor().execute(runnable);
-				rejected = false;
+				return ! isFullySaturated();
 			}
 		}
+
+		return ! rejected;
+	}
+
+	/**
+	 * Resets the lifecycle state of a context that has not been executed and saves the context.
+	 *
+	 * @param context Context
+	 * @param lifecycleState New lifecycle state
+	 */
+	protected void resetContextState(TokenContext context, int lifecycleState)
+	{
+		getEngine().changeTokenState(context, lifecycleState, context.getLifecycleRequest());
+		TokenContextService tcs = getEngine().getTokenContextService();
+		tcs.saveContext(context);
+		tcs.commit();
+	}
+
+	/**
+	 * Executes an engine runnable using the executor that has been configured for the queue type of the context.
+	 *
+	 * @param context Context to execute
+	 * @param runnable Runnable that executes the context
+	 * @return true if the runnable has been passed to an execution thread, false if it has been rejected
+	 */
+	protected boolean executeRunnable(TokenContext context, Runnable runnable)
+	{
+		ThreadPoolTaskExecutor contextExecutor = determineExecutor(context);
+		try
+		{
+			contextExecutor.execute(runnable);
+			return true;
+		}
 		catch (RejectedExecutionException e)
 		{
 			// Ok, expected exception
@@ -73,16 +143,115 @@ public class ThreadPoolEngineRunner extends EngineRunner
 		{
 			// Ok, expected exception
 		}
-		if (rejected)
+		return false;
+	}
+
+	/**
+	 * Checks if any executor is able to accept further contexts.
+	 * If all executors are saturated, the engine runner will not query for executable contexts at all.
+	 *
+	 * @return true if a context may be retrieved for execution
+	 */
+	protected boolean isAcceptingContexts()
+	{
+		if (queueExecutors != null)
+			return ! isFullySaturated();
+		return ! isSaturated(getExecutor());
+	}
+
+	/**
+	 * Determines the queue type filter for the query of executable contexts.
+	 * The queue types of saturated executors will be excluded from the query, so their tokens
+	 * will neither be retrieved nor take up the places of the tokens of other queue types.
+	 *
+	 * @return The filter or null if all queue types may be retrieved
+	 */
+	protected QueueTypeFilter determineQueueTypeFilter()
+	{
+		if (queueExecutors == null)
+			return null;
+
+		List saturatedQueueTypes = new ArrayList();
+		List availableQueueTypes = new ArrayList();
+		for (Iterator it = queueExecutors.entrySet().iterator(); it.hasNext();)
 		{
-			// Thread pool rejects any execution, so reset the state of the context
-			getEngine().changeTokenState(context, previousLifecycleState, context.getLifecycleRequest());
-			TokenContextService tcs = getEngine().getTokenContextService();
-			tcs.saveContext(context);
-			tcs.commit();
+			Map.Entry entry = (Map.Entry) it.next();
+			if (isSaturated((ThreadPoolTaskExecutor) entry.getValue()))
+			{
+				saturatedQueueTypes.add(entry.getKey());
+			}
+			else
+			{
+				availableQueueTypes.add(entry.getKey());
+			}
 		}
 
-		return ! rejected;
+		if (isSaturated(getExecutor()))
+		{
+			// Only the queue types that have an executor of their own can be executed
+			return QueueTypeFilter.include(availableQueueTypes);
+		}
+		if (saturatedQueueTypes.isEmpty())
+			return null;
+		return QueueTypeFilter.exclude(saturatedQueueTypes);
+	}
+
+	/**
+	 * Determines the executor that will execute the given context.
+	 *
+	 * @param context Context to execute
+	 * @return The executor that has been configured for the queue type of the context or the default executor
+	 */
+	protected ThreadPoolTaskExecutor determineExecutor(TokenContext context)
+	{
+		if (queueExecutors != null)
+		{
+			String queueType = context.getQueueType();
+			if (queueType != null)
+			{
+				ThreadPoolTaskExecutor queueExecutor = (ThreadPoolTaskExecutor) queueExecutors.get(queueType);
+				if (queueExecutor != null)
+					return queueExecutor;
+			}
+		}
+		return getExecutor();
+	}
+
+	/**
+	 * Checks if the default executor and all queue executors are saturated.
+	 * @return true if no executor can accept any further context
+	 */
+	protected boolean isFullySaturated()
+	{
+		if (! isSaturated(getExecutor()))
+			return false;
+		for (Iterator it = queueExecutors.values().iterator(); it.hasNext();)
+		{
+			if (! isSaturated((ThreadPoolTaskExecutor) it.next()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if the given executor is saturated, i. e. all of its threads are busy and its queue is full.
+	 *
+	 * @param taskExecutor Executor to check
+	 * @return true if the executor will not accept any further context
+	 */
+	protected boolean isSaturated(ThreadPoolTaskExecutor taskExecutor)
+	{
+		ThreadPoolExecutor tpe;
+		try
+		{
+			tpe = taskExecutor.getThreadPoolExecutor();
+		}
+		catch (IllegalStateException e)
+		{
+			// Executor not initialized yet
+			return false;
+		}
+		return tpe.getActiveCount() >= tpe.getMaximumPoolSize() && tpe.getQueue().remainingCapacity() == 0;
 	}
 
 	/**
@@ -102,4 +271,24 @@ public class ThreadPoolEngineRunner extends EngineRunner
 	{
 		this.executor = executor;
 	}
+
+	/**
+	 * Gets the table of executors for particular queue types.
+	 * @return A map that maps queue types (String) to executors (ThreadPoolTaskExecutor) or null
+	 */
+	public Map getQueueExecutors()
+	{
+		return queueExecutors;
+	}
+
+	/**
+	 * Sets the table of executors for particular queue types.
+	 * Tokens that are positioned at a node of a queue type that is not contained in this table
+	 * will be executed by the default executor (see {@link #setExecutor}).
+	 * @param queueExecutors A map that maps queue types (String) to executors (ThreadPoolTaskExecutor) or null
+	 */
+	public void setQueueExecutors(Map queueExecutors)
+	{
+		this.queueExecutors = queueExecutors;
+	}
 }
@@ -15,20 +15,29 @@
  */
 package org.openbp.server.engine.executor;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.openbp.common.CollectionUtil;
 import org.openbp.common.logger.LogUtil;
+import org.openbp.common.setting.SettingUtil;
 import org.openbp.core.CoreConstants;
 import org.openbp.core.OpenBPException;
 import org.openbp.core.engine.EngineException;
 import org.openbp.core.model.ModelObject;
+import org.openbp.core.model.ModelQualifier;
 import org.openbp.core.model.item.process.ForkNode;
+import org.openbp.core.model.item.process.NodeParam;
 import org.openbp.core.model.item.process.NodeSocket;
 import org.openbp.core.model.item.process.Param;
+import org.openbp.server.ServerConstants;
 import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.LifecycleState;
 import org.openbp.server.context.TokenContext;
 import org.openbp.server.context.TokenContextUtil;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.engine.Engine;
 import org.openbp.server.engine.EngineExecutor;
 import org.openbp.server.engine.EngineUtil;
 import org.openbp.server.engine.ModelObjectExecutorBase;
@@ -36,10 +45,26 @@ import org.openbp.server.engine.ModelObjectExecutorBase;
 /**
  * Executor for fork nodes.
  *
+ * The child tokens are created in chunks (see {@link ServerConstants#SYSPROP_FORK_CHUNKSIZE}).
+ * The values of the entry socket parameters that are passed to the children are determined only once for all children.
+ * Each chunk of child tokens is saved using a single flush ({@link Engine#resumeTokens}),
+ * so the persistence layer may send the inserts to the database in JDBC batches.
+ * Optionally, the transaction is committed after each chunk (see {@link ServerConstants#SYSPROP_FORK_COMMITCHUNKS}).
+ * In this case, the number of child tokens that have been committed is saved with the parent token
+ * (see {@link #FORK_PROGRESS_PARAM}). If the execution of the fork fails after a chunk has been committed
+ * and the parent token is executed again, the fork will skip the collection elements that have been forked before,
+ * so the children are not created twice. This requires the collection to return its elements in the same order.
+ *
  * @author Heiko Erhardt
  */
 public class ForkNodeExecutor extends ModelObjectExecutorBase
 {
+	/** Default number of child tokens that are flushed to the database in a single batch */
+	public static final int DEFAULT_CHUNK_SIZE = 500;
+
+	/** Name of the parameter of the fork node entry socket that holds the number of committed child tokens */
+	public static final String FORK_PROGRESS_PARAM = "ForkProgress";
+
 	/**
 	 * Executes a process element.
 	 *
@@ -52,6 +77,8 @@ public class ForkNodeExecutor extends ModelObjectExecutorBase
 		TokenContext context = ee.getTokenContext();
 		NodeSocket entrySocket = context.getCurrentSocket();
 		ForkNode node = (ForkNode) entrySocket.getNode();
+		Engine engine = getEngine();
+		TokenContextService contextService = engine.getTokenContextService();
 
 		NodeSocket defaultOutSocket = node.getDefaultExitSocket();
 		if (defaultOutSocket == null)
@@ -64,39 +91,75 @@ public class ForkNodeExecutor extends ModelObjectExecutorBase
 		if (collectionParamValue != null)
 		{
 			// Automatic fork node based on input collection
-			if (defaultOutSocket.getParamByName(CoreConstants.FORK_COLLECTION_ELEMENT_PARAM) == null)
+			Param outParam = defaultOutSocket.getParamByName(CoreConstants.FORK_COLLECTION_ELEMENT_PARAM);
+			if (outParam == null)
 			{
 				String msg = LogUtil.error(getClass(), "Fork node having a $0 input parameter requires a $1 output parameter. [{2}]", CoreConstants.FORK_COLLECTION_PARAM, CoreConstants.FORK_COLLECTION_ELEMENT_PARAM, context);
 				throw new EngineException("NoCollectionElementForFork", msg);
 			}
 
+			// Determine the values to pass to the children only once
+			List sharedData = collectSocketData(entrySocket, context, defaultOutSocket);
+
+			int chunkSize = SettingUtil.getIntSetting(ServerConstants.SYSPROP_FORK_CHUNKSIZE, DEFAULT_CHUNK_SIZE);
+			boolean commitChunks = SettingUtil.getBooleanSetting(ServerConstants.SYSPROP_FORK_COMMITCHUNKS, false);
+
+			// Skip the elements that have been forked by a previous execution that failed after a commit
+			String progressParamName = getProgressParamName(entrySocket);
+			int forkedElements = 0;
+			Integer progress = (Integer) context.getParamValue(progressParamName);
+			if (progress != null)
+			{
+				forkedElements = progress.intValue();
+				LogUtil.info(getClass(), "Fork node $0 continues after $1 child tokens that have been created before. [{2}]", node.getQualifier(), progress, context);
+			}
+
+			List chunk = new ArrayList();
+			int index = 0;
 			Iterator it = CollectionUtil.iterator(collectionParamValue);
 			while (it.hasNext())
 			{
 				Object collectionElement = it.next();
+				if (index++ < forkedElements)
+					continue;
 
 				// Create a new child context
-				TokenContext childContext = getEngine().getTokenContextService().createChildContext(context);
+				TokenContext childContext = createChildContext(context);
 
 				// Provide the collection element to it
-				Param outParam = defaultOutSocket.getParamByName(CoreConstants.FORK_COLLECTION_ELEMENT_PARAM); 
-				if (outParam != null)
-				{
-					// If the exit socket contains a 'WorkflowTask' parameter, set it
-					TokenContextUtil.setParamValue(childContext, outParam, collectionElement);
-				}
+				TokenContextUtil.setParamValue(childContext, outParam, collectionElement);
 
 				// Copy the data of the node entry socket in the current context
 				// to the exit socket in the child context.
-				EngineUtil.copySocketData(entrySocket, context, defaultOutSocket, childContext);
+				applySocketData(sharedData, childContext);
 
 				childContext.setCurrentSocket(defaultOutSocket);
-				getEngine().resumeToken(childContext);
+				chunk.add(childContext);
+
+				if (chunkSize > 0 && chunk.size() >= chunkSize)
+				{
+					if (commitChunks && it.hasNext())
+					{
+						resumeChunk(context, chunk, progressParamName, index);
+					}
+					else
+					{
+						resumeChunk(context, chunk, null, 0);
+					}
+				}
+			}
+			resumeChunk(context, chunk, null, 0);
+
+			// The last chunk is committed along with the parent token, so the progress is not needed any more
+			if (context.hasParamValue(progressParamName))
+			{
+				context.removeParamValue(progressParamName);
 			}
 		}
 		else
 		{
 			// Iterate all exit sockets
+			List children = new ArrayList();
 			for (Iterator itOutSockets = node.getSockets(false); itOutSockets.hasNext();)
 			{
 				final NodeSocket outSocket = (NodeSocket) itOutSockets.next();
@@ -105,19 +168,20 @@ public class ForkNodeExecutor extends ModelObjectExecutorBase
 					continue;
 
 				// Create a new child context
-				TokenContext childContext = getEngine().getTokenContextService().createChildContext(context);
+				TokenContext childContext = createChildContext(context);
 
 				// Copy the data of the node entry socket in the current context
 				// to the exit socket in the child context.
 				EngineUtil.copySocketData(entrySocket, context, outSocket, childContext);
 
 				childContext.setCurrentSocket(outSocket);
-				getEngine().resumeToken(childContext);
+				children.add(childContext);
 			}
+			resumeChunk(context, children, null, 0);
 		}
 
 		// When there is a 'Resume' exit socket, let's continue there; otherwise simply end
-		NodeSocket nextSocket = getEngine().resolveSocketRef(CoreConstants.FORK_RESUME, entrySocket, context, false);
+		NodeSocket nextSocket = engine.resolveSocketRef(CoreConstants.FORK_RESUME, entrySocket, context, false);
 		if (nextSocket != null)
 		{
 			context.setCurrentSocket(nextSocket);
@@ -128,4 +192,100 @@ public class ForkNodeExecutor extends ModelObjectExecutorBase
 			context.setLifecycleRequest(LifecycleRequest.SUSPEND_IMMEDIATE);
 		}
 	}
+
+	/**
+	 * Creates a child token of the given token that can be resumed.
+	 *
+	 * @param context Parent token context
+	 * @return The new child token context
+	 */
+	private TokenContext createChildContext(TokenContext context)
+	{
+		TokenContext childContext = getEngine().getTokenContextService().createChildContext(context);
+
+		// The child will be resumed at the exit socket of the fork node
+		childContext.setLifecycleState(LifecycleState.SUSPENDED);
+		return childContext;
+	}
+
+	/**
+	 * Registers a chunk of child tokens with the parent token, resumes them and clears the chunk.
+	 *
+	 * @param context Parent token context
+	 * @param chunk List of child token contexts
+	 * @param progressParamName Name of the parameter that records the progress of the fork in the parent token
+	 * if the transaction should be committed after the tokens have been saved or null
+	 * @param progress Number of collection elements that have been forked including this chunk
+	 */
+	private void resumeChunk(TokenContext context, List chunk, String progressParamName, int progress)
+	{
+		if (chunk.isEmpty())
+			return;
+
+		TokenContextService contextService = getEngine().getTokenContextService();
+
+		// The join node will count down the outstanding children
+		contextService.addChildCount(context, chunk.size());
+
+		getEngine().resumeTokens(chunk);
+		chunk.clear();
+
+		if (progressParamName != null)
+		{
+			// Save the progress with the children, so a retry of the fork will not create them again
+			context.setParamValue(progressParamName, Integer.valueOf(progress));
+			contextService.saveContext(context);
+			getEngine().commitTokenContextTransaction();
+		}
+	}
+
+	/**
+	 * Gets the name of the parameter that records the number of committed child tokens in the parent token.
+	 *
+	 * @param entrySocket Entry socket of the fork node
+	 * @return The qualified parameter name ("node.socket.ForkProgress")
+	 */
+	private static String getProgressParamName(NodeSocket entrySocket)
+	{
+		return entrySocket.getNode().getName() + ModelQualifier.OBJECT_DELIMITER + entrySocket.getName() + ModelQualifier.OBJECT_DELIMITER + FORK_PROGRESS_PARAM;
+	}
+
+	/**
+	 * Determines the parameter values of the source socket that map to parameters of the destination socket.
+	 * Corresponds to {@link EngineUtil#copySocketData}, but retrieves the values only once for any number of target contexts.
+	 *
+	 * @param srcSocket Source socket
+	 * @param srcContext Source token context
+	 * @param destSocket Destination socket
+	 * @return A list of alternating destination parameters ({@link NodeParam}) and values
+	 */
+	private static List collectSocketData(NodeSocket srcSocket, TokenContext srcContext, NodeSocket destSocket)
+	{
+		List data = new ArrayList();
+		for (Iterator it = srcSocket.getParams(); it.hasNext();)
+		{
+			NodeParam srcParam = (NodeParam) it.next();
+			NodeParam destParam = destSocket.getParamByName(srcParam.getName());
+			if (destParam != null)
+			{
+				data.add(destParam);
+				data.add(TokenContextUtil.getParamValue(srcContext, srcParam));
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Sets the parameter values determined by {@link #collectSocketData} in the given context.
+	 *
+	 * @param data List of alternating destination parameters and values
+	 * @param destContext Destination token context
+	 */
+	private static void applySocketData(List data, TokenContext destContext)
+	{
+		for (int i = 0, n = data.size(); i < n; i += 2)
+		{
+			TokenContextUtil.setParamValue(destContext, (NodeParam) data.get(i), data.get(i + 1));
+		}
+	}
 }
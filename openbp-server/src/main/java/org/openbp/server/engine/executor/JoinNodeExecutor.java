@@ -55,8 +55,13 @@ public class JoinNodeExecutor extends ModelObjectExecutorBase
 			// Our token ends here
 			context.setLifecycleRequest(LifecycleRequest.STOP);
 
+			// Count down the outstanding children of the parent; the last child continues the parent at the regular exit.
+			// This detaches the child from its parent, so ending the token won't count it again.
+			TokenContextService contextService = getEngine().getTokenContextService();
+			boolean lastChild = contextService.releaseChildContext(parentContext, context);
+
 			NodeSocket parentNextSocket = null;
-			if (parentContext.hasChildContext())
+			if (! lastChild)
 			{
 				parentNextSocket = getEngine().resolveSocketRef(CoreConstants.INCOMPLETE_SOCKET_NAME, entrySocket, parentContext, false);
 			}
@@ -75,8 +80,8 @@ public class JoinNodeExecutor extends ModelObjectExecutorBase
 				parentContext.setCurrentSocket(parentNextSocket);
 				parentContext.setLifecycleRequest(LifecycleRequest.RESUME);
 
-				TokenContextService contextService = getEngine().getTokenContextService();
 				contextService.saveContext(parentContext);
+				getEngine().notifyTokenReady(parentContext);
 			}
 		}
 		else
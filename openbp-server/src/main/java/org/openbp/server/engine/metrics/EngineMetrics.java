@@ -0,0 +1,493 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.engine.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openbp.common.generic.LifecycleSupport;
+import org.openbp.common.logger.LogUtil;
+import org.openbp.core.handler.HandlerDefinition;
+import org.openbp.core.model.ModelObject;
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.core.model.item.process.Node;
+import org.openbp.core.model.item.process.ProcessItem;
+import org.openbp.core.model.modelmgr.ModelNotificationObserver;
+import org.openbp.server.engine.EngineRunner;
+import org.openbp.server.engine.ReadyTokenQueue;
+
+/**
+ * Built-in metrics of the process engine.
+ *
+ * If engine metrics have been assigned to the engine (see {@link org.openbp.server.engine.EngineImpl#setEngineMetrics}),
+ * the engine maintains counters and latency histograms per process, per node and per handler and
+ * measures the duration of the token context transaction commits.
+ * In contrast to engine trace events, recording a measurement does not lock,
+ * so the metrics may be enabled in production systems.
+ * The statistics are keyed by the qualifier strings of the model objects, so the metrics do not retain
+ * model objects that have been replaced by a model update.
+ * The metrics should be registered as model notification observer; the statistics of updated model objects
+ * will be discarded then.
+ *
+ * The metrics will be registered as MXBean at the platform MBean server when initialized (see {@link #setObjectName}).
+ *
+ * @author Heiko Erhardt
+ */
+public class EngineMetrics
+	implements EngineMetricsMXBean, LifecycleSupport, ModelNotificationObserver
+{
+	/** Default JMX object name */
+	public static final String DEFAULT_OBJECT_NAME = "org.openbp:type=EngineMetrics";
+
+	/** JMX object name or null not to register the metrics at the MBean server */
+	private String objectName = DEFAULT_OBJECT_NAME;
+
+	/** Engine runner that provides the execution gauges (optional) */
+	private EngineRunner engineRunner;
+
+	/** Name the metrics have been registered with at the MBean server */
+	private ObjectName registeredName;
+
+	/** Number of started tokens */
+	private final AtomicLong tokensStarted = new AtomicLong();
+
+	/** Number of ended tokens */
+	private final AtomicLong tokensEnded = new AtomicLong();
+
+	/** Number of failed token executions */
+	private final AtomicLong executionErrors = new AtomicLong();
+
+	/** Commit durations */
+	private final LatencyHistogram commitHistogram = new LatencyHistogram();
+
+	/** Execution durations per process (maps process qualifier strings to {@link LatencyHistogram} objects) */
+	private final ConcurrentMap<String, LatencyHistogram> processHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	/** Execution durations per node (maps node qualifier strings to {@link LatencyHistogram} objects) */
+	private final ConcurrentMap<String, LatencyHistogram> nodeHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	/** Execution durations per handler (maps handler names (see {@link #getHandlerName}) to {@link LatencyHistogram} objects) */
+	private final ConcurrentMap<String, LatencyHistogram> handlerHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	/**
+	 * Default constructor.
+	 */
+	public EngineMetrics()
+	{
+	}
+
+	//////////////////////////////////////////////////
+	// @@ LifecycleSupport implementation
+	//////////////////////////////////////////////////
+
+	/**
+	 * Registers the metrics at the platform MBean server.
+	 * Registration errors will be logged only.
+	 */
+	public synchronized void initialize()
+	{
+		if (objectName == null || registeredName != null)
+			return;
+
+		try
+		{
+			ObjectName name = new ObjectName(objectName);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name))
+			{
+				// Left over by a previous instance
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			registeredName = name;
+		}
+		catch (Exception e)
+		{
+			LogUtil.warn(getClass(), "Cannot register engine metrics as MBean $0.", objectName, e);
+		}
+	}
+
+	/**
+	 * Unregisters the metrics from the platform MBean server.
+	 */
+	public synchronized void shutdown()
+	{
+		if (registeredName == null)
+			return;
+
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		}
+		catch (Exception e)
+		{
+			LogUtil.warn(getClass(), "Cannot unregister engine metrics MBean $0.", registeredName, e);
+		}
+		registeredName = null;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ ModelNotificationObserver implementation
+	//////////////////////////////////////////////////
+
+	/**
+	 * Notification method for model updates.
+	 * Discards the statistics of the updated model object and its sub objects.
+	 *
+	 * @param qualifier Qualifier of the object that has been updated
+	 * @param mode Type of model update
+	 */
+	public void modelUpdated(ModelQualifier qualifier, int mode)
+	{
+		if (qualifier == null)
+		{
+			resetModelStatistics();
+			return;
+		}
+
+		String name = qualifier.toString();
+		removeStatistics(processHistograms, name);
+		removeStatistics(nodeHistograms, name);
+		removeStatistics(handlerHistograms, name);
+	}
+
+	/**
+	 * Resets all models.
+	 * Discards the statistics of all model objects.
+	 */
+	public void requestModelReset()
+	{
+		resetModelStatistics();
+	}
+
+	/**
+	 * Removes the statistics of a model object and its sub objects.
+	 *
+	 * @param histograms Histogram map
+	 * @param name Qualifier string of the model object
+	 */
+	private static void removeStatistics(ConcurrentMap<String, LatencyHistogram> histograms, String name)
+	{
+		int l = name.length();
+		for (Iterator<String> it = histograms.keySet().iterator(); it.hasNext();)
+		{
+			String key = it.next();
+			if (key.startsWith(name))
+			{
+				if (key.length() == l)
+				{
+					it.remove();
+				}
+				else
+				{
+					char c = key.charAt(l);
+					if (c == ModelQualifier.PATH_DELIMITER_CHAR || c == ModelQualifier.OBJECT_DELIMITER_CHAR || c == ' ')
+					{
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Recording
+	//////////////////////////////////////////////////
+
+	/**
+	 * Counts a started token.
+	 */
+	public void tokenStarted()
+	{
+		tokensStarted.incrementAndGet();
+	}
+
+	/**
+	 * Counts an ended token.
+	 */
+	public void tokenEnded()
+	{
+		tokensEnded.incrementAndGet();
+	}
+
+	/**
+	 * Counts a failed token execution.
+	 */
+	public void executionFailed()
+	{
+		executionErrors.incrementAndGet();
+	}
+
+	/**
+	 * Records the duration of a token context transaction commit.
+	 *
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void recordCommit(long nanos)
+	{
+		commitHistogram.record(nanos);
+	}
+
+	/**
+	 * Records the duration of a token execution.
+	 *
+	 * @param process Process the token was executing when the execution started
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void recordProcessExecution(ProcessItem process, long nanos)
+	{
+		obtainHistogram(processHistograms, process.getQualifier().toString()).record(nanos);
+	}
+
+	/**
+	 * Records the duration of a node execution.
+	 *
+	 * @param node Node
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void recordNodeExecution(Node node, long nanos)
+	{
+		obtainHistogram(nodeHistograms, node.getQualifier().toString()).record(nanos);
+	}
+
+	/**
+	 * Records the duration of a handler execution.
+	 *
+	 * @param handlerDef Handler definition
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void recordHandlerExecution(HandlerDefinition handlerDef, long nanos)
+	{
+		obtainHistogram(handlerHistograms, getHandlerName(handlerDef)).record(nanos);
+	}
+
+	/**
+	 * Gets the histogram of the given key, creating it if necessary.
+	 *
+	 * @param histograms Histogram map
+	 * @param key Key name
+	 * @return The histogram
+	 */
+	private static LatencyHistogram obtainHistogram(ConcurrentMap<String, LatencyHistogram> histograms, String key)
+	{
+		LatencyHistogram histogram = histograms.get(key);
+		if (histogram == null)
+		{
+			histogram = new LatencyHistogram();
+			LatencyHistogram existing = histograms.putIfAbsent(key, histogram);
+			if (existing != null)
+			{
+				histogram = existing;
+			}
+		}
+		return histogram;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ EngineMetricsMXBean implementation
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the number of tokens that have been started.
+	 * @nowarn
+	 */
+	public long getTokensStarted()
+	{
+		return tokensStarted.get();
+	}
+
+	/**
+	 * Gets the number of tokens that have been ended.
+	 * @nowarn
+	 */
+	public long getTokensEnded()
+	{
+		return tokensEnded.get();
+	}
+
+	/**
+	 * Gets the number of token executions that have failed with an unhandled error.
+	 * @nowarn
+	 */
+	public long getExecutionErrors()
+	{
+		return executionErrors.get();
+	}
+
+	/**
+	 * Gets the number of token contexts that are currently being executed by the engine runner.
+	 * @nowarn
+	 */
+	public int getExecutingContexts()
+	{
+		return engineRunner != null ? engineRunner.getNumberOfExecutingContexts() : 0;
+	}
+
+	/**
+	 * Gets the number of tokens in the ready token queue of the engine runner.
+	 * @nowarn
+	 */
+	public int getReadyQueueSize()
+	{
+		if (engineRunner != null)
+		{
+			ReadyTokenQueue queue = engineRunner.getReadyTokenQueue();
+			if (queue != null)
+				return queue.size();
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the statistics of the token context transaction commits.
+	 * @nowarn
+	 */
+	public LatencyStatistics getCommitStatistics()
+	{
+		return commitHistogram.createStatistics();
+	}
+
+	/**
+	 * Gets the statistics of the token executions per process.
+	 * @return A map that maps process qualifiers to statistics
+	 */
+	public Map<String, LatencyStatistics> getProcessStatistics()
+	{
+		return createStatistics(processHistograms);
+	}
+
+	/**
+	 * Gets the statistics of the node executions per node.
+	 * @return A map that maps node qualifiers to statistics
+	 */
+	public Map<String, LatencyStatistics> getNodeStatistics()
+	{
+		return createStatistics(nodeHistograms);
+	}
+
+	/**
+	 * Gets the statistics of the handler executions per handler.
+	 * @return A map that maps handler class names (or node qualifiers for script handlers) to statistics
+	 */
+	public Map<String, LatencyStatistics> getHandlerStatistics()
+	{
+		return createStatistics(handlerHistograms);
+	}
+
+	/**
+	 * Resets all counters and statistics.
+	 */
+	public void reset()
+	{
+		tokensStarted.set(0L);
+		tokensEnded.set(0L);
+		executionErrors.set(0L);
+		commitHistogram.reset();
+		resetModelStatistics();
+	}
+
+	/**
+	 * Discards the statistics of all processes, nodes and handlers.
+	 */
+	public void resetModelStatistics()
+	{
+		processHistograms.clear();
+		nodeHistograms.clear();
+		handlerHistograms.clear();
+	}
+
+	/**
+	 * Creates a snapshot of the statistics of the given histograms.
+	 *
+	 * @param histograms Histogram map
+	 * @return A map that maps the key names to statistics, sorted by name
+	 */
+	private static Map<String, LatencyStatistics> createStatistics(ConcurrentMap<String, LatencyHistogram> histograms)
+	{
+		Map<String, LatencyStatistics> ret = new TreeMap<String, LatencyStatistics>();
+		for (Iterator<Map.Entry<String, LatencyHistogram>> it = histograms.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry<String, LatencyHistogram> entry = it.next();
+			ret.put(entry.getKey(), entry.getValue().createStatistics());
+		}
+		return ret;
+	}
+
+	/**
+	 * Determines the statistics key of a handler.
+	 *
+	 * @param handlerDef Handler definition
+	 * @return The qualifier of the owner of the handler, followed by the handler class name in parentheses
+	 */
+	private static String getHandlerName(HandlerDefinition handlerDef)
+	{
+		String className = handlerDef.getHandlerClassName();
+		ModelObject owner = handlerDef.getOwner();
+		if (owner == null)
+			return className;
+		if (className == null)
+			return owner.getQualifier().toString();
+		return owner.getQualifier().toString() + " (" + className + ")";
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Property access
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the JMX object name.
+	 * @nowarn
+	 */
+	public String getObjectName()
+	{
+		return objectName;
+	}
+
+	/**
+	 * Sets the JMX object name.
+	 * @param objectName The name or null not to register the metrics at the MBean server
+	 */
+	public void setObjectName(String objectName)
+	{
+		this.objectName = objectName;
+	}
+
+	/**
+	 * Gets the engine runner that provides the execution gauges.
+	 * @nowarn
+	 */
+	public EngineRunner getEngineRunner()
+	{
+		return engineRunner;
+	}
+
+	/**
+	 * Sets the engine runner that provides the execution gauges.
+	 * @nowarn
+	 */
+	public void setEngineRunner(EngineRunner engineRunner)
+	{
+		this.engineRunner = engineRunner;
+	}
+}
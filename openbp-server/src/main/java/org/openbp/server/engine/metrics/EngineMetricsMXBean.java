@@ -0,0 +1,87 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.engine.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of the engine metrics.
+ * All durations are given in microseconds.
+ *
+ * @author Heiko Erhardt
+ */
+public interface EngineMetricsMXBean
+{
+	/**
+	 * Gets the number of tokens that have been started.
+	 * @nowarn
+	 */
+	public long getTokensStarted();
+
+	/**
+	 * Gets the number of tokens that have been ended.
+	 * @nowarn
+	 */
+	public long getTokensEnded();
+
+	/**
+	 * Gets the number of token executions that have failed with an unhandled error.
+	 * @nowarn
+	 */
+	public long getExecutionErrors();
+
+	/**
+	 * Gets the number of token contexts that are currently being executed by the engine runner.
+	 * @nowarn
+	 */
+	public int getExecutingContexts();
+
+	/**
+	 * Gets the number of tokens in the ready token queue of the engine runner.
+	 * @nowarn
+	 */
+	public int getReadyQueueSize();
+
+	/**
+	 * Gets the statistics of the token context transaction commits.
+	 * @nowarn
+	 */
+	public LatencyStatistics getCommitStatistics();
+
+	/**
+	 * Gets the statistics of the token executions per process,
+	 * i. e. the time from the start of the execution of a token until the token has been suspended or ended.
+	 * @return A map that maps process qualifiers to statistics
+	 */
+	public Map<String, LatencyStatistics> getProcessStatistics();
+
+	/**
+	 * Gets the statistics of the node executions per node.
+	 * @return A map that maps node qualifiers to statistics
+	 */
+	public Map<String, LatencyStatistics> getNodeStatistics();
+
+	/**
+	 * Gets the statistics of the handler executions per handler.
+	 * @return A map that maps handler class names (or node qualifiers for script handlers) to statistics
+	 */
+	public Map<String, LatencyStatistics> getHandlerStatistics();
+
+	/**
+	 * Resets all counters and statistics.
+	 */
+	public void reset();
+}
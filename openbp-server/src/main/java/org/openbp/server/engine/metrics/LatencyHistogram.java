@@ -0,0 +1,213 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.engine.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram.
+ * The histogram records durations in nanoseconds in logarithmic buckets, where each power of two is divided
+ * into {@link #SUB_BUCKETS} linear sub buckets. This limits the relative error of the percentile values to 25 %
+ * while requiring a fixed amount of memory, independent of the number of recorded values.
+ *
+ * Recording a value does not allocate any objects and does not block, so the histogram can be updated
+ * by any number of threads concurrently. Reading the histogram while it is being updated may return
+ * slightly inconsistent values, which is acceptable for monitoring purposes.
+ *
+ * @author Heiko Erhardt
+ */
+public class LatencyHistogram
+{
+	/** Number of bits that determine the sub bucket */
+	private static final int SUB_BUCKET_BITS = 2;
+
+	/** Number of sub buckets per power of two */
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Number of buckets (covers the entire positive long range) */
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	/** Bucket counts */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	/** Number of recorded values */
+	private final AtomicLong count = new AtomicLong();
+
+	/** Sum of the recorded values */
+	private final AtomicLong sum = new AtomicLong();
+
+	/** Maximum recorded value */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Default constructor.
+	 */
+	public LatencyHistogram()
+	{
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos Duration in nanoseconds; negative values will be treated as 0
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0L)
+		{
+			nanos = 0L;
+		}
+
+		buckets.incrementAndGet(getBucketIndex(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current;
+		while (nanos > (current = max.get()))
+		{
+			if (max.compareAndSet(current, nanos))
+				break;
+		}
+	}
+
+	/**
+	 * Resets the histogram.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; ++i)
+		{
+			buckets.set(i, 0L);
+		}
+		count.set(0L);
+		sum.set(0L);
+		max.set(0L);
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 * @nowarn
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * Gets the sum of the recorded values in nanoseconds.
+	 * @nowarn
+	 */
+	public long getSum()
+	{
+		return sum.get();
+	}
+
+	/**
+	 * Gets the maximum recorded value in nanoseconds.
+	 * @nowarn
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Estimates the value at the given percentile.
+	 * The method returns the upper bound of the bucket that contains the percentile, limited by the maximum recorded value.
+	 *
+	 * @param percentile Percentile (0 to 100)
+	 * @return The value in nanoseconds or 0 if no values have been recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = 0L;
+		long[] counts = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; ++i)
+		{
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0L)
+			return 0L;
+
+		long rank = (long) Math.ceil(total * percentile / 100d);
+		if (rank < 1L)
+		{
+			rank = 1L;
+		}
+
+		long seen = 0L;
+		for (int i = 0; i < BUCKET_COUNT; ++i)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				return Math.min(getBucketUpperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Creates a snapshot of the statistics of this histogram.
+	 * @return The statistics (durations in microseconds)
+	 */
+	public LatencyStatistics createStatistics()
+	{
+		long n = getCount();
+		double mean = n > 0L ? getSum() / (double) n / 1000d : 0d;
+		return new LatencyStatistics(n, mean, getPercentile(50d) / 1000d, getPercentile(90d) / 1000d, getPercentile(99d) / 1000d, getMax() / 1000d);
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Bucket computation
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the bucket index of the given value.
+	 *
+	 * @param value Value (must not be negative)
+	 * @return The bucket index
+	 */
+	static int getBucketIndex(long value)
+	{
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest value that is recorded in the given bucket.
+	 *
+	 * @param index Bucket index
+	 * @return The upper bound
+	 */
+	static long getBucketUpperBound(int index)
+	{
+		if (index < SUB_BUCKETS)
+			return index;
+
+		int msb = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		int shift = msb - SUB_BUCKET_BITS;
+		long lower = ((long) (SUB_BUCKETS + sub)) << shift;
+		return lower + (1L << shift) - 1L;
+	}
+}
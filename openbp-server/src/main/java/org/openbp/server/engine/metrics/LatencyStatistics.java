@@ -0,0 +1,130 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.engine.metrics;
+
+import java.io.Serializable;
+
+/**
+ * Snapshot of the statistics of a {@link LatencyHistogram}.
+ * All durations are given in microseconds.
+ * This class will be published as composite data by the {@link EngineMetricsMXBean}.
+ *
+ * @author Heiko Erhardt
+ */
+public class LatencyStatistics
+	implements Serializable
+{
+	/** Number of recorded values */
+	private long count;
+
+	/** Mean duration */
+	private double mean;
+
+	/** 50th percentile (median) */
+	private double p50;
+
+	/** 90th percentile */
+	private double p90;
+
+	/** 99th percentile */
+	private double p99;
+
+	/** Maximum duration */
+	private double max;
+
+	/**
+	 * Value constructor.
+	 *
+	 * @param count Number of recorded values
+	 * @param mean Mean duration
+	 * @param p50 50th percentile (median)
+	 * @param p90 90th percentile
+	 * @param p99 99th percentile
+	 * @param max Maximum duration
+	 */
+	public LatencyStatistics(long count, double mean, double p50, double p90, double p99, double max)
+	{
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.max = max;
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 * @nowarn
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Gets the mean duration.
+	 * @nowarn
+	 */
+	public double getMean()
+	{
+		return mean;
+	}
+
+	/**
+	 * Gets the 50th percentile (median).
+	 * @nowarn
+	 */
+	public double getP50()
+	{
+		return p50;
+	}
+
+	/**
+	 * Gets the 90th percentile.
+	 * @nowarn
+	 */
+	public double getP90()
+	{
+		return p90;
+	}
+
+	/**
+	 * Gets the 99th percentile.
+	 * @nowarn
+	 */
+	public double getP99()
+	{
+		return p99;
+	}
+
+	/**
+	 * Gets the maximum duration.
+	 * @nowarn
+	 */
+	public double getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * Returns a string representation of this object.
+	 * @nowarn
+	 */
+	public String toString()
+	{
+		return "count=" + count + ", mean=" + mean + ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99 + ", max=" + max;
+	}
+}
@@ -24,6 +24,7 @@ import java.util.Map;
 import org.openbp.common.ReflectException;
 import org.openbp.common.ReflectUtil;
 import org.openbp.common.property.PropertyAccessUtil;
+import org.openbp.common.property.PropertyAccessor;
 import org.openbp.common.property.PropertyException;
 import org.openbp.common.string.parser.StringParser;
 import org.openbp.common.string.parser.StringParserException;
@@ -613,6 +614,194 @@ public class ExpressionParser
 		}
 	}
 
+	//////////////////////////////////////////////////
+	// @@ Precompiled context path access
+	//////////////////////////////////////////////////
+
+	/**
+	 * Evaluates a precompiled expression denoting an object or a member of an object and returns the expression value.
+	 * The result is the same as calling {@link #getContextPathValue(String, Object, int)} with a null base object.
+	 *
+	 * @param path Precompiled expression
+	 * @param mode Param that specifies how errors should be treated.
+	 * Use a combination of the following parameters:<br>
+	 * {@link ExpressionParser#OBJECT_MUST_EXIST} | {@link ExpressionParser#MEMBER_MUST_EXIST}<br>
+	 * The default (0) will not cause any exceptions if the object or a member are null.
+	 * @return The value of the expression or null if the expression value itself is null or
+	 * if a member in the chain in the object specification is null
+	 * @throws OpenBPException If the expression evaluation fails (depending on the mode parameter)
+	 */
+	public Object getContextPathValue(MemberPath path, int mode)
+	{
+		if (! path.isCompiled())
+		{
+			return getContextPathValue(path.getExpression(), null, mode);
+		}
+
+		String ident = path.getObjectName();
+		Object value = getBaseObject(ident);
+		if (value == null)
+		{
+			// Object not found in list
+			if ((mode & OBJECT_MUST_EXIST) != 0)
+			{
+				throw newError("Expression.ObjectNotFound", "Object '" + ident + "' does not exist", null, path);
+			}
+			return null;
+		}
+
+		int n = path.getMemberCount();
+		for (int i = 0; i < n; ++i)
+		{
+			ident = path.getMemberName(i);
+
+			// Access the property
+			try
+			{
+				value = path.getMember(i).getValue(value);
+			}
+			catch (PropertyException e)
+			{
+				throw newError("Expression.PropertyAccessFailed", e.getMessage(), e.getCause(), path);
+			}
+
+			if (value == null && i < n - 1)
+			{
+				if ((mode & MEMBER_MUST_EXIST) != 0)
+				{
+					throw newError("Expression.Null", "Expression member '" + ident + "' evaluated to null", null, path);
+				}
+				return null;
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Sets a property of an object that is specified by a precompiled expression.
+	 * The result is the same as calling {@link #setContextPathValue(String, Object, DataTypeItem, int)}.
+	 *
+	 * @param path Precompiled expression
+	 * @param value Property value to set
+	 * @param topLevelDataType Data type of the context object the expression refers to.<br>
+	 * E.g., the expression "Order.Buyer.Name" would refer to the data type "Order".
+	 * @param mode Param that specifies how errors should be treated.
+	 * Use a combination of the following parameters:<br>
+	 * {@link ExpressionParser#CREATE_TOP_LEVEL_OBJECT} | {@link ExpressionParser#CREATE_INTERMEDIATE_OBJECTS} | {@link ExpressionParser#CREATE_ALL_OBJECTS}<br>
+	 * The default (0) will cause an exception if an object does not exist.
+	 * @throws OpenBPException If the expression evaluation fails (depending on the mode parameter)
+	 */
+	public void setContextPathValue(MemberPath path, Object value, DataTypeItem topLevelDataType, int mode)
+	{
+		int n = path.getMemberCount();
+		String ident = path.getObjectName();
+
+		if (! path.isCompiled() || ((topLevelDataType == null || topLevelDataType.isSimpleType()) && (n > 0 || ident.indexOf(ExpressionConstants.MEMBER_OPERATOR_CHAR) >= 0)))
+		{
+			// Let the regular method evaluate the expression or report the member access error
+			setContextPathValue(path.getExpression(), value, topLevelDataType, mode);
+			return;
+		}
+
+		if (topLevelDataType == null || topLevelDataType.isSimpleType())
+		{
+			setContextObject(ident, value);
+			return;
+		}
+
+		// Get the first object
+		Object base = getBaseObject(ident);
+		if (base == null)
+		{
+			// Object not found in list, try to create it
+			if ((mode & CREATE_TOP_LEVEL_OBJECT) == 0)
+			{
+				// We do not automatically create top level objects
+				throw newError("Expression.ObjectNotFound", "Object '" + ident + "' does not exist in object context", null, path);
+			}
+
+			// Create the object and add it to the context
+			base = createBeanInstance((ComplexTypeItem) topLevelDataType);
+			setContextObject(ident, base);
+		}
+
+		DataTypeItem dataType = topLevelDataType;
+		for (int i = 0; i < n; ++i)
+		{
+			ident = path.getMemberName(i);
+			PropertyAccessor member = path.getMember(i);
+
+			// Keep the current data type up to date
+			if (dataType instanceof ComplexTypeItem)
+			{
+				DataMember dataMember = ((ComplexTypeItem) dataType).getMember(ident);
+				if (dataMember != null)
+					dataType = dataMember.getDataType();
+			}
+
+			if (i == n - 1)
+			{
+				// Last part of the expression, set the property value
+				try
+				{
+					member.setValue(base, value);
+				}
+				catch (PropertyException e)
+				{
+					throw newError("Expression.PropertyAccessFailed", e.getMessage(), e.getCause(), path);
+				}
+				return;
+			}
+
+			// Get the object the property value refers to
+			Object propValue = null;
+			try
+			{
+				propValue = member.getValue(base);
+			}
+			catch (PropertyException e)
+			{
+				throw newError("Expression.PropertyAccessFailed", e.getMessage(), e.getCause(), path);
+			}
+
+			if (propValue == null)
+			{
+				if ((mode & CREATE_INTERMEDIATE_OBJECTS) == 0)
+				{
+					// We do not automatically create intermediate objects
+					throw newError("Expression.Null", "Property '" + ident + "' evaluated to null", null, path);
+				}
+
+				// Object not found in list, try to create it
+				if (dataType == null)
+				{
+					throw newError("Expression.ObjectNotFound", "Object '" + ident + "' does not exist in object context and no data type has been specified in order to create it", null, path);
+				}
+				if (dataType.isSimpleType())
+				{
+					throw newError("Expression.CouldNotCreateInstance", "Cannot create an instance of simple type '" + dataType.getName() + "' to resolve the member chain.", null, path);
+				}
+
+				// Create the object
+				propValue = createBeanInstance((ComplexTypeItem) dataType);
+
+				// Set the property accordingly
+				try
+				{
+					member.setValue(base, propValue);
+				}
+				catch (PropertyException e)
+				{
+					throw newError("Expression.PropertyAccessFailed", e.getMessage(), e.getCause(), path);
+				}
+			}
+
+			// Now we have a new base object we can continue with
+			base = propValue;
+		}
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Direct access to context objects
 	//////////////////////////////////////////////////
@@ -856,6 +1045,21 @@ public class ExpressionParser
 		return new EngineException(errorCode, throwable);
 	}
 
+	/**
+	 * Throws an error.
+	 *
+	 * @param errorCode Error code
+	 * @param msg Error Message
+	 * @param throwable Throwable
+	 * @param path Precompiled expression
+	 * @return A new OpenBPException
+	 */
+	private OpenBPException newError(String errorCode, String msg, Throwable throwable, MemberPath path)
+	{
+		msg = msg + "\nExpression = '" + path.getExpression() + "'";
+		return new EngineException(errorCode, msg, throwable);
+	}
+
 	/**
 	 * Gets the persistence context provider.
 	 * @nowarn
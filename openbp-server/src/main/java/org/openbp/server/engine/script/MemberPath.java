@@ -0,0 +1,220 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.engine.script;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openbp.common.property.PropertyAccessor;
+import org.openbp.common.string.parser.StringParser;
+import org.openbp.common.string.parser.StringParserException;
+import org.openbp.core.engine.ExpressionConstants;
+
+/**
+ * Precompiled context path expression for use with the {@link ExpressionParser}.
+ *
+ * Member paths that consist of a context object name and a chain of property names only
+ * (e. g. "Order.Buyer.Name") are parsed once and evaluated by walking a chain of
+ * {@link PropertyAccessor} objects.
+ * Any other expressions (index specifications, reference key operators) are not compiled;
+ * the expression parser will evaluate them from the expression string.
+ *
+ * Member paths are immutable (except for the method caches of the property accessors)
+ * and may be shared among threads.
+ *
+ * @author Heiko Erhardt
+ */
+public final class MemberPath
+{
+	/** Expression string */
+	private final String expression;
+
+	/** Name of the context object the expression refers to or null if the expression could not be compiled */
+	private final String objectName;
+
+	/** Names of the members of the path */
+	private final String [] memberNames;
+
+	/** Accessors for the members of the path */
+	private final PropertyAccessor [] members;
+
+	/**
+	 * Private constructor.
+	 *
+	 * @param expression Expression string
+	 * @param objectName Name of the context object or null
+	 * @param memberNames Names of the members of the path or null
+	 */
+	private MemberPath(String expression, String objectName, String [] memberNames)
+	{
+		this.expression = expression;
+		this.objectName = objectName;
+		this.memberNames = memberNames;
+
+		if (memberNames != null)
+		{
+			members = new PropertyAccessor [memberNames.length];
+			for (int i = 0; i < memberNames.length; ++i)
+			{
+				members [i] = new PropertyAccessor(memberNames [i]);
+			}
+		}
+		else
+		{
+			members = null;
+		}
+	}
+
+	/**
+	 * Compiles an expression.
+	 *
+	 * @param expression Expression to compile<br>
+	 * For a description of the expression syntax, see the comment of the {@link ExpressionParser} class.
+	 * @return The member path; if the expression is not a simple member path,
+	 * the {@link #isCompiled} method of the returned object will return false.
+	 */
+	public static MemberPath compile(String expression)
+	{
+		StringParser sp = new StringParser(expression);
+
+		try
+		{
+			sp.skipSpace();
+
+			String ident = sp.getIdentifier();
+			if (ident == null)
+				return new MemberPath(expression, null, null);
+
+			// Collect an identifier of the form "ident1\.ident2"
+			StringBuffer sb = null;
+			for (;;)
+			{
+				if (sp.getChar() != '\\' || sp.getChar(1) != ExpressionConstants.MEMBER_OPERATOR_CHAR)
+					break;
+				sp.nextChar(2);
+
+				String s = sp.getIdentifier();
+				if (s == null)
+					return new MemberPath(expression, null, null);
+
+				if (sb == null)
+				{
+					sb = new StringBuffer(ident);
+				}
+				sb.append(ExpressionConstants.MEMBER_OPERATOR_CHAR);
+				sb.append(s);
+			}
+			String objectName = sb != null ? sb.toString() : ident;
+
+			List<String> memberNames = new ArrayList<String>();
+			for (;;)
+			{
+				char c = sp.getChar();
+				if (c == 0)
+					break;
+
+				if (c != ExpressionConstants.MEMBER_OPERATOR_CHAR)
+				{
+					// Index specification, reference key operator or syntax error
+					return new MemberPath(expression, null, null);
+				}
+				sp.nextChar();
+				sp.skipSpace();
+
+				ident = sp.getIdentifier();
+				if (ident == null)
+					return new MemberPath(expression, null, null);
+				memberNames.add(ident);
+				sp.skipSpace();
+			}
+
+			return new MemberPath(expression, objectName, memberNames.toArray(new String [memberNames.size()]));
+		}
+		catch (StringParserException e)
+		{
+			// Leave the error reporting to the expression parser
+			return new MemberPath(expression, null, null);
+		}
+	}
+
+	/**
+	 * Checks if the expression could be compiled.
+	 * @return true if the path can be evaluated using the accessors of this object,
+	 * false if the expression string needs to be evaluated
+	 */
+	public boolean isCompiled()
+	{
+		return objectName != null;
+	}
+
+	/**
+	 * Gets the expression string.
+	 * @nowarn
+	 */
+	public String getExpression()
+	{
+		return expression;
+	}
+
+	/**
+	 * Gets the name of the context object the expression refers to.
+	 * @return The name or null if the expression could not be compiled
+	 */
+	public String getObjectName()
+	{
+		return objectName;
+	}
+
+	/**
+	 * Gets the number of members of the path.
+	 * @nowarn
+	 */
+	public int getMemberCount()
+	{
+		return members != null ? members.length : 0;
+	}
+
+	/**
+	 * Gets the name of a member of the path.
+	 *
+	 * @param i Index of the member
+	 * @nowarn
+	 */
+	public String getMemberName(int i)
+	{
+		return memberNames [i];
+	}
+
+	/**
+	 * Gets the accessor of a member of the path.
+	 *
+	 * @param i Index of the member
+	 * @nowarn
+	 */
+	public PropertyAccessor getMember(int i)
+	{
+		return members [i];
+	}
+
+	/**
+	 * Returns a string representation of this object.
+	 * @nowarn
+	 */
+	public String toString()
+	{
+		return expression;
+	}
+}
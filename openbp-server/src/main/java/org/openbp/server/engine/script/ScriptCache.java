@@ -0,0 +1,214 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.engine.script;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import bsh.PreparsedScript;
+
+/**
+ * LRU cache of parsed bean shell scripts.
+ *
+ * The cache is shared by all script engines of a script engine factory.
+ * A parsed script must not be evaluated by several threads concurrently (see {@link PreparsedScript}),
+ * so each thread keeps the scripts it parsed separately.
+ * Scripts are keyed by their text and the class loader that was active when they were parsed,
+ * since the parsed script caches the classes it resolved.
+ * The class loaders are referenced weakly. However, as the parsed scripts may refer to classes of their class loader,
+ * the cache should be cleared when the models have been reloaded in order to release the scripts of the previous model class loaders.
+ *
+ * @author Heiko Erhardt
+ */
+public class ScriptCache
+{
+	/** Default maximum number of cached scripts */
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	/** Key that denotes the null class loader */
+	private static final Object NULL_CLASS_LOADER = new Object();
+
+	/** Maximum number of cached scripts per thread and class loader */
+	private final int maxSize;
+
+	/** Scripts of the current thread */
+	private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>();
+
+	/** Scripts of all threads that used the cache (maps threads to their {@link ThreadCache}) */
+	private final Map<Thread, ThreadCache> threadCaches = new WeakHashMap<Thread, ThreadCache>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxSize Maximum number of cached scripts per thread and class loader
+	 */
+	public ScriptCache(int maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets a script that has been parsed by the current thread from the cache.
+	 *
+	 * @param script Script text
+	 * @param classLoader Class loader the script will be evaluated with or null
+	 * @return The parsed script or null if the script is not cached
+	 */
+	public PreparsedScript get(String script, ClassLoader classLoader)
+	{
+		return obtainThreadCache().get(script, classLoader);
+	}
+
+	/**
+	 * Adds a script that has been parsed by the current thread to the cache.
+	 *
+	 * @param script Script text
+	 * @param classLoader Class loader the script will be evaluated with or null
+	 * @param parsedScript Parsed script
+	 */
+	public void put(String script, ClassLoader classLoader, PreparsedScript parsedScript)
+	{
+		obtainThreadCache().put(script, classLoader, parsedScript);
+	}
+
+	/**
+	 * Removes all scripts of all threads from the cache.
+	 * Should be called when the models have been reloaded.
+	 */
+	public void clear()
+	{
+		synchronized (threadCaches)
+		{
+			for (ThreadCache tc : threadCaches.values())
+			{
+				tc.clear();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of scripts that are cached for the current thread.
+	 * @nowarn
+	 */
+	public int size()
+	{
+		return obtainThreadCache().size();
+	}
+
+	/**
+	 * Gets the maximum number of cached scripts per thread and class loader.
+	 * @nowarn
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Gets the scripts of the current thread.
+	 * @return The thread cache
+	 */
+	private ThreadCache obtainThreadCache()
+	{
+		ThreadCache tc = threadCache.get();
+		if (tc == null)
+		{
+			tc = new ThreadCache();
+			threadCache.set(tc);
+			synchronized (threadCaches)
+			{
+				threadCaches.put(Thread.currentThread(), tc);
+			}
+		}
+		return tc;
+	}
+
+	/**
+	 * Scripts of a single thread.
+	 * Accessed by its thread only, except for {@link #clear}, so the synchronization is uncontended.
+	 */
+	private final class ThreadCache
+	{
+		/** Table of cached scripts (maps class loaders to tables that map script texts to {@link PreparsedScript} objects in access order) */
+		private final Map<Object, Map<String, PreparsedScript>> scriptsByClassLoader = new WeakHashMap<Object, Map<String, PreparsedScript>>();
+
+		/**
+		 * Gets a parsed script.
+		 *
+		 * @param script Script text
+		 * @param classLoader Class loader or null
+		 * @return The parsed script or null
+		 */
+		synchronized PreparsedScript get(String script, ClassLoader classLoader)
+		{
+			Map<String, PreparsedScript> scripts = scriptsByClassLoader.get(getKey(classLoader));
+			return scripts != null ? scripts.get(script) : null;
+		}
+
+		/**
+		 * Adds a parsed script.
+		 *
+		 * @param script Script text
+		 * @param classLoader Class loader or null
+		 * @param parsedScript Parsed script
+		 */
+		synchronized void put(String script, ClassLoader classLoader, PreparsedScript parsedScript)
+		{
+			Object key = getKey(classLoader);
+			Map<String, PreparsedScript> scripts = scriptsByClassLoader.get(key);
+			if (scripts == null)
+			{
+				scripts = new LinkedHashMap<String, PreparsedScript>(16, 0.75f, true)
+				{
+					protected boolean removeEldestEntry(Map.Entry<String, PreparsedScript> eldest)
+					{
+						return size() > maxSize;
+					}
+				};
+				scriptsByClassLoader.put(key, scripts);
+			}
+			scripts.put(script, parsedScript);
+		}
+
+		/**
+		 * Removes all scripts.
+		 */
+		synchronized void clear()
+		{
+			scriptsByClassLoader.clear();
+		}
+
+		/**
+		 * Gets the number of scripts.
+		 * @nowarn
+		 */
+		synchronized int size()
+		{
+			int n = 0;
+			for (Map<String, PreparsedScript> scripts : scriptsByClassLoader.values())
+			{
+				n += scripts.size();
+			}
+			return n;
+		}
+
+		private Object getKey(ClassLoader classLoader)
+		{
+			return classLoader != null ? classLoader : NULL_CLASS_LOADER;
+		}
+	}
+}
@@ -24,23 +24,95 @@
  */
 package org.openbp.server.engine.script;
 
-import java.util.Deque;
-import java.util.LinkedList;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.openbp.common.generic.LifecycleSupport;
+import org.openbp.common.logger.LogUtil;
+import org.openbp.core.engine.EngineException;
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.core.model.modelmgr.ModelNotificationObserver;
 import org.openbp.server.context.TokenContext;
 
 /**
  * Default implementation of the factory for script engines.
  * The class will cache script engine instances.
  *
+ * Each thread keeps the script engine it used last for itself, so the engine threads usually
+ * do not need to access the shared pool at all.
+ * Engines that are released while the thread already holds an engine (e. g. nested script executions)
+ * are returned to a shared pool that holds at most {@link #setMaxIdleEngines maxIdleEngines} instances;
+ * any additional instances will be discarded.
+ * The shared pool can be prewarmed by the {@link #initialize} method.
+ *
+ * The factory creates at most {@link #setMaxEngines maxEngines} engines, including the engines that are in use
+ * and the engines that are reserved by threads.
+ * If this limit has been reached, the factory takes over an engine that is reserved by another thread
+ * or waits up to {@link #setMaxWaitTime maxWaitTime} milliseconds for an engine to be released.
+ *
+ * The factory should be registered as model notification observer so the script cache
+ * will be cleared when the models are updated.
+ *
  * @author Heiko Erhardt
  */
 public class ScriptEngineFactoryImpl
-	implements ScriptEngineFactory
+	implements ScriptEngineFactory, LifecycleSupport, ModelNotificationObserver
 {
-	/** Script engine pool */
-	private static final Deque<ScriptEngine> idleScriptEngines = new LinkedList<ScriptEngine>();
-	
+	/** Default maximum number of idle script engines in the shared pool */
+	public static final int DEFAULT_MAX_IDLE_ENGINES = 64;
+
+	/** Default maximum number of script engines */
+	public static final int DEFAULT_MAX_ENGINES = 256;
+
+	/** Default maximum time to wait for a script engine in milliseconds */
+	public static final long DEFAULT_MAX_WAIT_TIME = 10000L;
+
+	/** Shared pool of idle script engines */
+	private final Queue<ScriptEngineImpl> idleScriptEngines = new ConcurrentLinkedQueue<ScriptEngineImpl>();
+
+	/** Number of engines in the shared pool (ConcurrentLinkedQueue.size() is not a constant-time operation) */
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/** Number of engines that have been created and not discarded yet */
+	private final AtomicInteger engineCount = new AtomicInteger();
+
+	/** Number of threads that are waiting for an engine to be released */
+	private final AtomicInteger waitCount = new AtomicInteger();
+
+	/** Monitor the waiting threads wait on */
+	private final Object waitLock = new Object();
+
+	/** Holder of the script engine that is reserved for the current thread; holds null while the engine is in use */
+	private final ThreadLocal<ThreadEngineHolder> threadScriptEngine = new ThreadLocal<ThreadEngineHolder>();
+
+	/** Holders of the reserved script engines of all threads */
+	private final Queue<ThreadEngineHolder> threadEngineHolders = new ConcurrentLinkedQueue<ThreadEngineHolder>();
+
+	/** Maximum number of idle script engines in the shared pool */
+	private int maxIdleEngines = DEFAULT_MAX_IDLE_ENGINES;
+
+	/** Maximum number of script engines or 0 for no limit */
+	private int maxEngines = DEFAULT_MAX_ENGINES;
+
+	/** Maximum time to wait for a script engine in milliseconds */
+	private long maxWaitTime = DEFAULT_MAX_WAIT_TIME;
+
+	/** Number of script engines to create on initialization */
+	private int prewarmEngines;
+
+	/** Flag if each thread should keep a script engine for itself */
+	private boolean threadAffine = true;
+
+	/** Maximum number of parsed scripts to cache or 0 to disable the script cache */
+	private int scriptCacheSize = ScriptCache.DEFAULT_MAX_SIZE;
+
+	/** Cache of parsed scripts that is shared by all script engines created by this factory */
+	private ScriptCache scriptCache;
+
 	/**
 	 * Default constructor.
 	 */
@@ -48,6 +120,85 @@ public class ScriptEngineFactoryImpl
 	{
 	}
 
+	//////////////////////////////////////////////////
+	// @@ LifecycleSupport implementation
+	//////////////////////////////////////////////////
+
+	/**
+	 * Initializes the factory.
+	 * Creates the number of script engines specified by the {@link #setPrewarmEngines prewarmEngines} property
+	 * and puts them into the shared pool.
+	 */
+	public void initialize()
+	{
+		int n = Math.min(prewarmEngines, maxIdleEngines);
+		for (int i = idleCount.get(); i < n && reserveEngine(); ++i)
+		{
+			idleScriptEngines.add(createScriptEngine());
+			idleCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Shuts down the factory.
+	 * Discards the engines of the shared pool and the engines that are reserved by any thread.
+	 */
+	public void shutdown()
+	{
+		for (ScriptEngineImpl engine = pollIdleEngine(); engine != null; engine = pollIdleEngine())
+		{
+			discardEngine();
+		}
+
+		for (Iterator<ThreadEngineHolder> it = threadEngineHolders.iterator(); it.hasNext();)
+		{
+			if (it.next().getAndSet(null) != null)
+			{
+				discardEngine();
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////
+	// @@ ModelNotificationObserver implementation
+	//////////////////////////////////////////////////
+
+	/**
+	 * Notification method for model updates.
+	 * Clears the script cache, the cached scripts may refer to classes of the previous model class loader.
+	 *
+	 * @param qualifier Qualifier of the object that has been updated
+	 * @param mode Type of model update
+	 */
+	public void modelUpdated(ModelQualifier qualifier, int mode)
+	{
+		clearScriptCache();
+	}
+
+	/**
+	 * Resets all models.
+	 * Clears the script cache.
+	 */
+	public void requestModelReset()
+	{
+		clearScriptCache();
+	}
+
+	/**
+	 * Removes all parsed scripts from the script cache.
+	 */
+	public synchronized void clearScriptCache()
+	{
+		if (scriptCache != null)
+		{
+			scriptCache.clear();
+		}
+	}
+
+	//////////////////////////////////////////////////
+	// @@ ScriptEngineFactory implementation
+	//////////////////////////////////////////////////
+
 	/**
 	 * Obtains a new instance of the script engine.
 	 * Make sure to return each instance to the script engine pool using the method {@link #releaseScriptEngine(ScriptEngine)}.
@@ -56,20 +207,33 @@ public class ScriptEngineFactoryImpl
 	 */
 	public ScriptEngine obtainScriptEngine(TokenContext context)
 	{
-		ScriptEngine engine;
-		synchronized (idleScriptEngines)
+		ScriptEngineImpl engine = null;
+
+		// Take the thread's engine, marking it as being in use
+		ThreadEngineHolder holder = threadScriptEngine.get();
+		if (holder != null)
+		{
+			engine = holder.getAndSet(null);
+		}
+
+		if (engine == null)
+		{
+			engine = pollIdleEngine();
+		}
+
+		if (engine == null)
 		{
-			if (!idleScriptEngines.isEmpty())
+			if (reserveEngine())
 			{
-				engine = idleScriptEngines.removeLast();
+				engine = createScriptEngine();
 			}
 			else
 			{
-				engine = new ScriptEngineImpl();
+				engine = waitForEngine();
 			}
 		}
 
-		engine.setContext(new TokenContextToExpressionContextAdapter(context));
+		engine.setTokenContext(context);
 
 		return engine;
 	}
@@ -81,12 +245,348 @@ public class ScriptEngineFactoryImpl
 	 */
 	public void releaseScriptEngine(ScriptEngine scriptEngine)
 	{
-		if (scriptEngine != null)
+		if (! (scriptEngine instanceof ScriptEngineImpl))
+			return;
+
+		ScriptEngineImpl engine = (ScriptEngineImpl) scriptEngine;
+		engine.reset();
+
+		// Do not reserve the engine for this thread if other threads are waiting for an engine
+		if (threadAffine && waitCount.get() == 0)
+		{
+			ThreadEngineHolder holder = obtainThreadEngineHolder();
+			if (holder.compareAndSet(null, engine))
+				return;
+		}
+
+		if (idleCount.incrementAndGet() <= maxIdleEngines)
+		{
+			idleScriptEngines.add(engine);
+		}
+		else
+		{
+			// Pool is full, discard the engine
+			idleCount.decrementAndGet();
+			discardEngine();
+		}
+
+		if (waitCount.get() > 0)
+		{
+			synchronized (waitLock)
+			{
+				waitLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Gets the holder of the engine that is reserved for the current thread, creating it if necessary.
+	 *
+	 * @return The holder
+	 */
+	private ThreadEngineHolder obtainThreadEngineHolder()
+	{
+		ThreadEngineHolder holder = threadScriptEngine.get();
+		if (holder == null)
+		{
+			// Discard the engines of threads that have terminated
+			for (Iterator<ThreadEngineHolder> it = threadEngineHolders.iterator(); it.hasNext();)
+			{
+				ThreadEngineHolder h = it.next();
+				if (! h.isThreadAlive())
+				{
+					it.remove();
+					if (h.getAndSet(null) != null)
+					{
+						discardEngine();
+					}
+				}
+			}
+
+			holder = new ThreadEngineHolder();
+			threadScriptEngine.set(holder);
+			threadEngineHolders.add(holder);
+		}
+		return holder;
+	}
+
+	/**
+	 * Takes an engine from the shared pool.
+	 *
+	 * @return The engine or null if the pool is empty
+	 */
+	private ScriptEngineImpl pollIdleEngine()
+	{
+		ScriptEngineImpl engine = idleScriptEngines.poll();
+		if (engine != null)
 		{
-			synchronized(idleScriptEngines)
+			idleCount.decrementAndGet();
+		}
+		return engine;
+	}
+
+	/**
+	 * Takes over an engine that is reserved by another thread.
+	 *
+	 * @return The engine or null if no thread holds an idle engine
+	 */
+	private ScriptEngineImpl takeThreadEngine()
+	{
+		for (Iterator<ThreadEngineHolder> it = threadEngineHolders.iterator(); it.hasNext();)
+		{
+			ThreadEngineHolder holder = it.next();
+			if (! holder.isThreadAlive())
 			{
-				idleScriptEngines.addLast(scriptEngine);
+				it.remove();
 			}
+			ScriptEngineImpl engine = holder.getAndSet(null);
+			if (engine != null)
+				return engine;
+		}
+		return null;
+	}
+
+	/**
+	 * Counts an engine that is about to be created.
+	 *
+	 * @return true if the engine may be created, false if the maximum number of engines has been reached
+	 */
+	private boolean reserveEngine()
+	{
+		if (engineCount.incrementAndGet() <= maxEngines || maxEngines <= 0)
+			return true;
+		engineCount.decrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Uncounts an engine that has been discarded.
+	 */
+	private void discardEngine()
+	{
+		engineCount.decrementAndGet();
+	}
+
+	/**
+	 * Waits for an engine if the maximum number of engines has been reached.
+	 * Takes over the engine of another thread or waits until an engine has been released.
+	 *
+	 * @return The engine
+	 * @throws EngineException If no engine became available within the maximum wait time
+	 */
+	private ScriptEngineImpl waitForEngine()
+	{
+		long deadline = System.currentTimeMillis() + maxWaitTime;
+
+		waitCount.incrementAndGet();
+		try
+		{
+			for (;;)
+			{
+				ScriptEngineImpl engine = pollIdleEngine();
+				if (engine == null)
+				{
+					engine = takeThreadEngine();
+				}
+				if (engine == null && reserveEngine())
+				{
+					engine = createScriptEngine();
+				}
+				if (engine != null)
+					return engine;
+
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+				{
+					String msg = LogUtil.error(getClass(), "No script engine available within $0 ms, all $1 script engines are in use.", Long.valueOf(maxWaitTime), Integer.valueOf(maxEngines));
+					throw new EngineException("NoScriptEngine", msg);
+				}
+
+				synchronized (waitLock)
+				{
+					// Limit the wait; a release might have happened between the checks above and the wait
+					waitLock.wait(Math.min(wait, 100L));
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			String msg = LogUtil.error(getClass(), "Interrupted while waiting for a script engine.");
+			throw new EngineException("NoScriptEngine", msg);
+		}
+		finally
+		{
+			waitCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Creates a new script engine.
+	 *
+	 * @return The new engine
+	 */
+	protected ScriptEngineImpl createScriptEngine()
+	{
+		ScriptEngineImpl engine = new ScriptEngineImpl();
+		engine.setScriptCache(getScriptCache());
+		return engine;
+	}
+
+	//////////////////////////////////////////////////
+	// @@ Properties
+	//////////////////////////////////////////////////
+
+	/**
+	 * Gets the cache of parsed scripts that is shared by all script engines created by this factory.
+	 * @return The cache or null if the script cache has been disabled
+	 */
+	public synchronized ScriptCache getScriptCache()
+	{
+		if (scriptCache == null && scriptCacheSize > 0)
+		{
+			scriptCache = new ScriptCache(scriptCacheSize);
+		}
+		return scriptCache;
+	}
+
+	/**
+	 * Gets the maximum number of parsed scripts to cache.
+	 * @nowarn
+	 */
+	public int getScriptCacheSize()
+	{
+		return scriptCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of parsed scripts to cache.
+	 * @param scriptCacheSize Cache size or 0 to parse the scripts on each execution
+	 */
+	public void setScriptCacheSize(int scriptCacheSize)
+	{
+		this.scriptCacheSize = scriptCacheSize;
+	}
+
+	/**
+	 * Gets the maximum number of idle script engines in the shared pool.
+	 * @nowarn
+	 */
+	public int getMaxIdleEngines()
+	{
+		return maxIdleEngines;
+	}
+
+	/**
+	 * Sets the maximum number of idle script engines in the shared pool.
+	 * @nowarn
+	 */
+	public void setMaxIdleEngines(int maxIdleEngines)
+	{
+		this.maxIdleEngines = maxIdleEngines;
+	}
+
+	/**
+	 * Gets the maximum number of script engines.
+	 * @nowarn
+	 */
+	public int getMaxEngines()
+	{
+		return maxEngines;
+	}
+
+	/**
+	 * Sets the maximum number of script engines.
+	 * Should be at least the number of threads that execute scripts concurrently.
+	 * @param maxEngines Maximum number of engines or 0 for no limit
+	 */
+	public void setMaxEngines(int maxEngines)
+	{
+		this.maxEngines = maxEngines;
+	}
+
+	/**
+	 * Gets the maximum time to wait for a script engine in milliseconds.
+	 * @nowarn
+	 */
+	public long getMaxWaitTime()
+	{
+		return maxWaitTime;
+	}
+
+	/**
+	 * Sets the maximum time to wait for a script engine in milliseconds.
+	 * @nowarn
+	 */
+	public void setMaxWaitTime(long maxWaitTime)
+	{
+		this.maxWaitTime = maxWaitTime;
+	}
+
+	/**
+	 * Gets the number of script engines that have been created and not discarded yet.
+	 * @nowarn
+	 */
+	public int getEngineCount()
+	{
+		return engineCount.get();
+	}
+
+	/**
+	 * Gets the number of script engines to create on initialization.
+	 * @nowarn
+	 */
+	public int getPrewarmEngines()
+	{
+		return prewarmEngines;
+	}
+
+	/**
+	 * Sets the number of script engines to create on initialization.
+	 * Usually, this corresponds to the number of engine threads.
+	 * @nowarn
+	 */
+	public void setPrewarmEngines(int prewarmEngines)
+	{
+		this.prewarmEngines = prewarmEngines;
+	}
+
+	/**
+	 * Gets the flag if each thread should keep a script engine for itself.
+	 * @nowarn
+	 */
+	public boolean isThreadAffine()
+	{
+		return threadAffine;
+	}
+
+	/**
+	 * Sets the flag if each thread should keep a script engine for itself.
+	 * Should be switched off if scripts are executed by a large number of short-lived threads.
+	 * @nowarn
+	 */
+	public void setThreadAffine(boolean threadAffine)
+	{
+		this.threadAffine = threadAffine;
+	}
+
+	/**
+	 * Holder of the script engine that is reserved for a thread.
+	 * Other threads may take over the engine if the maximum number of engines has been reached.
+	 */
+	private static final class ThreadEngineHolder extends AtomicReference<ScriptEngineImpl>
+	{
+		/** Thread the engine is reserved for */
+		private final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+
+		/**
+		 * Checks if the thread the engine is reserved for is still alive.
+		 * @nowarn
+		 */
+		boolean isThreadAlive()
+		{
+			Thread t = thread.get();
+			return t != null && t.isAlive();
 		}
 	}
 }
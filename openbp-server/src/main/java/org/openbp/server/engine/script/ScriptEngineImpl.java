@@ -33,6 +33,7 @@ import org.openbp.server.handler.HandlerContext;
 import bsh.EvalError;
 import bsh.Interpreter;
 import bsh.NameSpace;
+import bsh.PreparsedScript;
 import bsh.Primitive;
 import bsh.TargetError;
 
@@ -69,6 +70,18 @@ public class ScriptEngineImpl
 	/** Name space used for expression context access from within scripts */
 	private ScriptNameSpace scriptNameSpace;
 
+	/** Interpreter used to evaluate parsed scripts in the script name space */
+	private Interpreter evalInterpreter;
+
+	/** Class loader that has been assigned to the interpreter or null */
+	private ClassLoader classLoader;
+
+	/** Cache of parsed scripts or null if scripts should be parsed on each execution */
+	private ScriptCache scriptCache;
+
+	/** Token context adapter that is reused by {@link #setTokenContext} */
+	private TokenContextToExpressionContextAdapter tokenContextAdapter;
+
 	//////////////////////////////////////////////////
 	// @@ Construction
 	//////////////////////////////////////////////////
@@ -87,6 +100,9 @@ public class ScriptEngineImpl
 
 		NameSpace globalNameSpace = interpreter.getNameSpace();
 		scriptNameSpace = new ScriptNameSpace(this, globalNameSpace);
+
+		// Corresponds to the local interpreter that is created by Interpreter.eval for each evaluation
+		evalInterpreter = new Interpreter(null, infoStream, debugStream, false, scriptNameSpace, interpreter, "<?>");
 	}
 
 	//////////////////////////////////////////////////
@@ -120,13 +136,68 @@ public class ScriptEngineImpl
 				if (classLoader != null)
 				{
 					interpreter.setClassLoader(classLoader);
+					this.classLoader = classLoader;
 				}
 			}
 		}
-		else
+		else if (classLoader != null)
 		{
 			interpreter.setClassLoader(null);
+			classLoader = null;
+		}
+	}
+
+	/**
+	 * Sets a token context as expression context.
+	 * The token context adapter will be reused for subsequent calls.
+	 *
+	 * @param tokenContext Token context
+	 */
+	public void setTokenContext(TokenContext tokenContext)
+	{
+		if (tokenContextAdapter == null)
+		{
+			tokenContextAdapter = new TokenContextToExpressionContextAdapter(tokenContext);
+		}
+		else
+		{
+			tokenContextAdapter.setTokenContext(tokenContext);
 		}
+		setContext(tokenContextAdapter);
+	}
+
+	/**
+	 * Resets the script engine before it is returned to the script engine pool.
+	 * Detaches the engine from its context and drops all variables from the script namespace.
+	 */
+	public void reset()
+	{
+		context = null;
+		if (tokenContextAdapter != null)
+		{
+			tokenContextAdapter.setTokenContext(null);
+		}
+
+		// Drop any variables the scripts have defined themselves
+		scriptNameSpace.clear();
+	}
+
+	/**
+	 * Gets the cache of parsed scripts.
+	 * @return The cache or null if scripts are parsed on each execution
+	 */
+	public ScriptCache getScriptCache()
+	{
+		return scriptCache;
+	}
+
+	/**
+	 * Sets the cache of parsed scripts.
+	 * @param scriptCache The cache or null if scripts should be parsed on each execution
+	 */
+	public void setScriptCache(ScriptCache scriptCache)
+	{
+		this.scriptCache = scriptCache;
 	}
 
 	//////////////////////////////////////////////////
@@ -271,22 +342,25 @@ public class ScriptEngineImpl
 	 */
 	public Object executeScript(String script, String fileType, String fileName)
 	{
-		script = script.trim();
-		if (script.length() > 0)
-		{
-			char c = script.charAt(script.length() - 1);
-			if (c != ';' && c != '}')
-			{
-				script += ";";
-			}
-		}
-
 		Throwable error = null;
 		String errMsg;
 
 		try
 		{
-			StringReader reader = new StringReader(script);
+			if (scriptCache != null)
+			{
+				// The parsed script caches the classes it resolved, so it is specific to the class loader
+				ClassLoader cl = classLoader != null ? classLoader : Thread.currentThread().getContextClassLoader();
+				PreparsedScript parsedScript = scriptCache.get(script, cl);
+				if (parsedScript == null)
+				{
+					parsedScript = PreparsedScript.parse(normalizeScript(script), "<?>");
+					scriptCache.put(script, cl, parsedScript);
+				}
+				return parsedScript.eval(evalInterpreter, scriptNameSpace);
+			}
+
+			StringReader reader = new StringReader(normalizeScript(script));
 			Object value = interpreter.eval(reader, scriptNameSpace, "<?>");
 			return value;
 		}
@@ -330,6 +404,26 @@ public class ScriptEngineImpl
 	// @@ Helpers
 	//////////////////////////////////////////////////
 
+	/**
+	 * Trims the script and terminates it with a semicolon if necessary.
+	 *
+	 * @param script Script
+	 * @return The normalized script
+	 */
+	private static String normalizeScript(String script)
+	{
+		script = script.trim();
+		if (script.length() > 0)
+		{
+			char c = script.charAt(script.length() - 1);
+			if (c != ';' && c != '}')
+			{
+				script += ";";
+			}
+		}
+		return script;
+	}
+
 	/**
 	 * Sets a variable in the global namespace of the script interpreter.
 	 *
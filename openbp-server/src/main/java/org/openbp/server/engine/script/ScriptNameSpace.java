@@ -104,14 +104,7 @@ public class ScriptNameSpace extends NameSpace
 	 */
 	public void removeVariable(String name)
 	{
-		try
-		{
-			super.setVariable(name, null, false);
-		}
-		catch (UtilEvalError e)
-		{
-			// Never happens
-		}
+		unsetVariable(name);
 	}
 
 	//////////////////////////////////////////////////
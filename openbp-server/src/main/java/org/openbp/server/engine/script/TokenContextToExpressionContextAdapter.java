@@ -39,6 +39,25 @@ public class TokenContextToExpressionContextAdapter
 		this.tokenContext = tokenContext;
 	}
 
+	/**
+	 * Gets the token context.
+	 * @nowarn
+	 */
+	public TokenContext getTokenContext()
+	{
+		return tokenContext;
+	}
+
+	/**
+	 * Sets the token context.
+	 * Allows to reuse the adapter for another token.
+	 * @nowarn
+	 */
+	public void setTokenContext(TokenContext tokenContext)
+	{
+		this.tokenContext = tokenContext;
+	}
+
 	/**
 	 * Gets an object from the context.
 	 *
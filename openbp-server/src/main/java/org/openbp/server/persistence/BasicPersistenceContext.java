@@ -15,6 +15,11 @@
  */
 package org.openbp.server.persistence;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 import org.openbp.common.ReflectException;
 import org.openbp.common.ReflectUtil;
 import org.openbp.common.logger.LogUtil;
@@ -34,6 +39,9 @@ public abstract class BasicPersistenceContext
 	/** Persistence context provider that created this context */
 	private BasicPersistenceContextProvider persistenceContextProvider;
 
+	/** Attributes of the context (maps attribute names to values) or null */
+	private Map attributes;
+
 	/**
 	 * Constructor.
 	 *
@@ -51,6 +59,40 @@ public abstract class BasicPersistenceContext
 	public void release()
 	{
 		persistenceContextProvider.unbindThreadContext(this);
+		attributes = null;
+	}
+
+	/**
+	 * Gets an attribute of the context.
+	 *
+	 * @param name Name of the attribute
+	 * @return The attribute value or null if no such attribute exists
+	 */
+	public Object getAttribute(String name)
+	{
+		return attributes != null ? attributes.get(name) : null;
+	}
+
+	/**
+	 * Sets an attribute of the context.
+	 *
+	 * @param name Name of the attribute
+	 * @param value Value of the attribute or null to remove the attribute
+	 */
+	public void setAttribute(String name, Object value)
+	{
+		if (value != null)
+		{
+			if (attributes == null)
+			{
+				attributes = new HashMap();
+			}
+			attributes.put(name, value);
+		}
+		else if (attributes != null)
+		{
+			attributes.remove(name);
+		}
 	}
 
 	/**
@@ -108,6 +150,31 @@ public abstract class BasicPersistenceContext
 		return ret;
 	}
 
+	/**
+	 * Finds several objects of the same type by their primary keys.
+	 * The default implementation calls {@link #findById} for each primary key.
+	 *
+	 * @param ids Primary keys
+	 * @param cls Type of object to lookup (usually a class implementing PeristentObject)
+	 * @return A map that maps the primary keys to the objects; objects that cannot be found will not be contained in the map
+	 * @throws PersistenceException On error
+	 */
+	public Map findByIds(Collection ids, Class cls)
+		throws PersistenceException
+	{
+		HashMap ret = new HashMap();
+		for (Iterator it = ids.iterator(); it.hasNext();)
+		{
+			Object id = it.next();
+			Object o = findById(id, cls);
+			if (o != null)
+			{
+				ret.put(id, o);
+			}
+		}
+		return ret;
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Helpers
 	//////////////////////////////////////////////////
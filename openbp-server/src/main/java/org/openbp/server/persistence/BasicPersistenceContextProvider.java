@@ -40,6 +40,9 @@ public abstract class BasicPersistenceContextProvider
 	/** Lifecycle listeners */
 	private List <EntityLifecycleListener> listenerList = new ArrayList<EntityLifecycleListener> ();
 
+	/** Flag if the persistence contexts should track the changes written within the current transaction (see {@link PersistenceContext#hasTransactionChanges}) */
+	private volatile boolean transactionChangeTracking;
+
 	/** Thread local that holds the persistence context bound to this thread */
 	protected ThreadLocal threadContext = new ThreadLocal();
 
@@ -266,4 +269,25 @@ public abstract class BasicPersistenceContextProvider
 	{
 		this.classMappingRegistry = classMappingRegistry;
 	}
+
+	/**
+	 * Checks if the persistence contexts should track the changes written within the current transaction.
+	 * @nowarn
+	 */
+	public boolean isTransactionChangeTracking()
+	{
+		return transactionChangeTracking;
+	}
+
+	/**
+	 * Sets the flag if the persistence contexts should track the changes written within the current transaction.
+	 * Tracking the changes may add some overhead to each write, so it is enabled only by components
+	 * that rely on an exact result of {@link PersistenceContext#hasTransactionChanges} (e. g. the {@link org.openbp.server.context.GroupCommitter}).
+	 * Applies to persistence contexts that are created after the flag has been set.
+	 * @nowarn
+	 */
+	public void setTransactionChangeTracking(boolean transactionChangeTracking)
+	{
+		this.transactionChangeTracking = transactionChangeTracking;
+	}
 }
@@ -16,6 +16,7 @@
 package org.openbp.server.persistence;
 
 import java.util.Collection;
+import java.util.Map;
 
 /**
  * Context object that contains information regarding access to a persistence store.
@@ -44,6 +45,23 @@ public interface PersistenceContext
 	 */
 	public void release();
 
+	/**
+	 * Gets an attribute of the context.
+	 * Attributes can be used to associate transaction-related data with the context; they are discarded when the context is released.
+	 *
+	 * @param name Name of the attribute
+	 * @return The attribute value or null if no such attribute exists
+	 */
+	public Object getAttribute(String name);
+
+	/**
+	 * Sets an attribute of the context.
+	 *
+	 * @param name Name of the attribute
+	 * @param value Value of the attribute or null to remove the attribute
+	 */
+	public void setAttribute(String name, Object value);
+
 	/**
 	 * Determines if the given class is managed by this persistence context.
 	 *
@@ -121,6 +139,18 @@ public interface PersistenceContext
 	public Object findById(Object id, Class cls)
 		throws PersistenceException;
 
+	/**
+	 * Finds several objects of the same type by their primary keys.
+	 * Implementations should load the objects using as few queries as possible.
+	 *
+	 * @param ids Primary keys
+	 * @param cls Type of object to lookup (usually a class implementing PeristentObject)
+	 * @return A map that maps the primary keys to the objects; objects that cannot be found will not be contained in the map
+	 * @throws PersistenceException On error
+	 */
+	public Map findByIds(Collection ids, Class cls)
+		throws PersistenceException;
+
 	/**
 	 * Creates a query descriptor object for the given object class.
 	 *
@@ -189,6 +219,29 @@ public interface PersistenceContext
 	public Collection executeSelect(String sql, int maxResults)
 		throws PersistenceException;
 
+	/**
+	 * Runs the given SQL update or delete statement using bound parameters.
+	 *
+	 * @param sql An SQL update statement containing a '?' placeholder for each parameter
+	 * @param params Parameter values in the order of the placeholders or null
+	 * @return The number of rows affected.
+	 * @throws PersistenceException On error
+	 */
+	public int executeUpdateOrDelete(String sql, Object[] params)
+		throws PersistenceException;
+
+	/**
+	 * Runs the given SQL select statement using bound parameters.
+	 *
+	 * @param sql SQL query to run containing a '?' placeholder for each parameter
+	 * @param params Parameter values in the order of the placeholders or null
+	 * @param maxResults Maximum number of result rows or 0 for unlimited
+	 * @return A list of result elements (contains Object or Object[] elements, depending if this was a single column or multi-column query)
+	 * @throws PersistenceException On error
+	 */
+	public Collection executeSelect(String sql, Object[] params, int maxResults)
+		throws PersistenceException;
+
 	//////////////////////////////////////////////////
 	// @@ Transaction control
 	//////////////////////////////////////////////////
@@ -201,6 +254,18 @@ public interface PersistenceContext
 	public boolean isTransactionActive()
 		throws PersistenceException;
 
+	/**
+	 * Checks if the current transaction contains any changes.
+	 * This includes pending changes of persistent objects as well as changes that have already been written
+	 * to the persistent storage (e. g. by a flush or an SQL statement), but have not been committed yet.
+	 * Unless change tracking has been enabled (see {@link BasicPersistenceContextProvider#setTransactionChangeTracking}),
+	 * the result is conservative and may report changes for any active transaction.
+	 *
+	 * @return true if committing the transaction would write or commit any changes
+	 */
+	public boolean hasTransactionChanges()
+		throws PersistenceException;
+
 	/**
 	 * Begins a new transaction.
 	 * Does nothing if a transaction is already running.
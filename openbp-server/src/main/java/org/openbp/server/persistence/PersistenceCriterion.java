@@ -49,6 +49,9 @@ public class PersistenceCriterion
 	/** Operator constant for the 'null' expression */
 	public static final String OPERATOR_NULL = "null";
 
+	/** Operator constant for the 'in' expression; the operand is a collection of values */
+	public static final String OPERATOR_IN = "in";
+
 	/** Operator constant for the 'alias' expression */
 	public static final String OPERATOR_ALIAS = "alias";
 
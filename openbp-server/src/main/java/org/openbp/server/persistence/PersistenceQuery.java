@@ -16,6 +16,7 @@
 package org.openbp.server.persistence;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
@@ -193,6 +194,17 @@ public class PersistenceQuery
 		addCriterion(property, PersistenceCriterion.OPERATOR_NULL, null);
 	}
 
+	/**
+	 * Adds an 'in' expression.
+	 *
+	 * @param property Attribute name or relation path
+	 * @param values Values to compare to
+	 */
+	public void in(final String property, final Collection values)
+	{
+		addCriterion(property, PersistenceCriterion.OPERATOR_IN, values);
+	}
+
 	/**
 	 * Adds an alias to a related entity.
 	 *
@@ -206,6 +206,35 @@ public class DummyPersistenceContext extends BasicPersistenceContext
 		throw new PersistenceException("Operation not supported by dummy persistence context.");
 	}
 
+	/**
+	 * Runs the given SQL update or delete statement using bound parameters.
+	 *
+	 * @param sql An SQL update statement containing a '?' placeholder for each parameter
+	 * @param params Parameter values in the order of the placeholders or null
+	 * @return The number of rows affected.
+	 * @throws PersistenceException On error
+	 */
+	public int executeUpdateOrDelete(String sql, Object[] params)
+		throws PersistenceException
+	{
+		return 0;
+	}
+
+	/**
+	 * Runs the given SQL select statement using bound parameters.
+	 *
+	 * @param sql SQL query to run containing a '?' placeholder for each parameter
+	 * @param params Parameter values in the order of the placeholders or null
+	 * @param maxResults Maximum number of result rows or 0 for unlimited
+	 * @return A list of result elements (contains Object or Object[] elements, depending if this was a single column or multi-column query)
+	 * @throws PersistenceException On error
+	 */
+	public Collection executeSelect(String sql, Object[] params, int maxResults)
+		throws PersistenceException
+	{
+		throw new PersistenceException("Operation not supported by dummy persistence context.");
+	}
+
 	//////////////////////////////////////////////////
 	// @@ Transaction control
 	//////////////////////////////////////////////////
@@ -221,6 +250,17 @@ public class DummyPersistenceContext extends BasicPersistenceContext
 		return false;
 	}
 
+	/**
+	 * Checks if the current transaction contains any changes.
+	 *
+	 * @return Always false
+	 */
+	public boolean hasTransactionChanges()
+		throws PersistenceException
+	{
+		return false;
+	}
+
 	/**
 	 * Begins a new transaction.
 	 * Does nothing if a transaction is already running.
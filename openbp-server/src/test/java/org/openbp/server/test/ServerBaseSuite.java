@@ -38,9 +38,23 @@ public class ServerBaseSuite extends TestCaseBase
         suite.addTest(new TestSuite(org.openbp.server.test.StartStopTest.class));
         suite.addTest(new TestSuite(org.openbp.server.test.engine.ExecutorTest.class));
         suite.addTest(new TestSuite(org.openbp.server.test.engine.PriorityTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.engine.EngineMetricsTest.class));
         suite.addTest(new TestSuite(org.openbp.server.test.engine.ShutdownTest.class));
         suite.addTest(new TestSuite(org.openbp.server.test.script.ScriptEngineTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.script.ScriptCacheTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.script.ScriptEngineFactoryTest.class));
         suite.addTest(new TestSuite(org.openbp.server.test.model.modelinspection.ModelInspectorUtilTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.context.CompactContextDataTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.context.ParamValueMapTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.context.TokenLogTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.context.LogStructuredTokenContextServiceTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.model.ModelReloadTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.model.QualifierCacheTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.model.ProcessVariableLinkIndexTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.engine.MemberPathTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.engine.TransactionCoalescingTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.context.QueueTypeFilterTest.class));
+        suite.addTest(new TestSuite(org.openbp.server.test.context.ExecutableQueueTest.class));
         return suite;
     }
 }
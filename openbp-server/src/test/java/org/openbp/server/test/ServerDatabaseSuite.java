@@ -42,6 +42,20 @@ public class ServerDatabaseSuite extends TestCaseBase
         suite.addTest(new TestSuite(org.openbp.server.test.RollbackLocalErrorHandlerTest.class));
         suite.addTest(new TestSuite(org.openbp.server.test.RollbackTest.class));
         suite.addTest(new TestSuite(org.openbp.server.test.SubProcessTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.context.ContextDataDirtyTrackingTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.context.ContextValueStoreTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.context.ClaimExecutableContextsTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.engine.QueueExecutorSaturationTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.context.QueueTypeFilterTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.engine.MemorySuspendTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.context.JoinCounterTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.engine.ForkRetryTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.context.GroupCommitTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.engine.ReadyTokenQueueTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.engine.ClusterNodeRegistryTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.context.EndTokenTreeTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.engine.TransactionCoalescingTest.class));
+		suite.addTest(new TestSuite(org.openbp.server.test.context.FindByIdsTest.class));
 		return suite;
 	}
 }
@@ -0,0 +1,145 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.context.TokenContextUtil;
+import org.openbp.server.test.base.TestCaseBase;
+import org.openbp.server.test.base.TestCaseSyncMgr;
+
+/**
+ * Test case that claims executable tokens for the partitions of a cluster and releases them again.
+ *
+ * @author Heiko Erhardt
+ */
+public class ClaimExecutableContextsTest extends TestCaseBase
+{
+	private static final int NUM_TOKENS = 8;
+
+	public ClaimExecutableContextsTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+
+		// Make sure there are no executable tokens left by other tests
+		getProcessFacade().executePendingContextsInThisThread();
+
+		// Create tokens of partition 1 that have a higher priority than the tokens of partition 0
+		HashSet partition0Ids = new HashSet();
+		HashSet partition1Ids = new HashSet();
+		ArrayList signalIds = new ArrayList();
+		for (int i = 0; partition0Ids.size() < NUM_TOKENS / 2 || partition1Ids.size() < NUM_TOKENS / 2; ++i)
+		{
+			TokenContext tc = createToken();
+			int partition = TokenContextUtil.getPartition(tc.getId(), 2);
+			HashSet ids = partition == 0 ? partition0Ids : partition1Ids;
+			if (ids.size() == NUM_TOKENS / 2)
+				continue;
+
+			HashMap initialParams = new HashMap();
+			String signalId = "ClaimTest" + i;
+			initialParams.put("SignalId", signalId);
+			initialParams.put("SignalValue", "Done");
+			tc.setPriority(partition == 0 ? 10 : 1);
+			getProcessFacade().startToken(tc, SIMPLE_SIGNAL_SET_PROCESS_STARTREF, initialParams);
+			ids.add(tc.getId());
+			signalIds.add(signalId);
+		}
+		tokenContextService.commit();
+
+		// A node must find the tokens of its partition although the tokens of the other partition come first
+		List claimed = tokenContextService.claimExecutableContexts(1, "NodeA", 0, 2);
+		assertEquals(1, claimed.size());
+		checkClaimed(claimed, partition0Ids, "NodeA");
+
+		List claimedA = tokenContextService.claimExecutableContexts(0, "NodeA", 0, 2);
+		assertEquals(NUM_TOKENS / 2 - 1, claimedA.size());
+		checkClaimed(claimedA, partition0Ids, "NodeA");
+		claimedA.addAll(claimed);
+
+		List claimedB = tokenContextService.claimExecutableContexts(0, "NodeB", 1, 2);
+		assertEquals(NUM_TOKENS / 2, claimedB.size());
+		checkClaimed(claimedB, partition1Ids, "NodeB");
+
+		// Claimed tokens must not be claimed again
+		assertEquals(0, tokenContextService.claimExecutableContexts(0, "NodeA", 0, 2).size());
+		assertEquals(0, tokenContextService.claimExecutableContexts(0, "NodeC", 0, 1).size());
+
+		// Release the tokens of node A, they may be claimed by another node
+		int count = tokenContextService.changeContextState(LifecycleState.SELECTED, LifecycleState.SUSPENDED, LifecycleRequest.RESUME, "NodeA");
+		assertEquals(NUM_TOKENS / 2, count);
+		tokenContextService.commit();
+		tokenContextService.clearCache();
+
+		List claimedC = tokenContextService.claimExecutableContexts(0, "NodeC", 0, 1);
+		assertEquals(NUM_TOKENS / 2, claimedC.size());
+		checkClaimed(claimedC, partition0Ids, "NodeC");
+
+		// Tokens that are still cached must reflect the claim and remain writable
+		tokenContextService.changeContextState(LifecycleState.SELECTED, LifecycleState.SUSPENDED, LifecycleRequest.RESUME, "NodeB");
+		tokenContextService.commit();
+		List claimedD = tokenContextService.claimExecutableContexts(0, "NodeD", 1, 2);
+		assertEquals(NUM_TOKENS / 2, claimedD.size());
+		checkClaimed(claimedD, partition1Ids, "NodeD");
+		for (Iterator it = claimedD.iterator(); it.hasNext();)
+		{
+			TokenContext tc = (TokenContext) it.next();
+			assertTrue(claimedB.contains(tc));
+			tc.setPriority(2);
+			tokenContextService.saveContext(tc);
+		}
+		tokenContextService.commit();
+
+		// Release all tokens and execute them
+		tokenContextService.changeContextState(LifecycleState.SELECTED, LifecycleState.SUSPENDED, LifecycleRequest.RESUME, null);
+		tokenContextService.commit();
+		tokenContextService.clearCache();
+		getProcessFacade().executePendingContextsInThisThread();
+
+		for (Iterator it = signalIds.iterator(); it.hasNext();)
+		{
+			assertEquals("Done", TestCaseSyncMgr.getInstance().getSignal(null, (String) it.next()));
+		}
+		assertEquals(0, tokenContextService.claimExecutableContexts(0, "NodeC", 0, 1).size());
+	}
+
+	private void checkClaimed(List claimed, HashSet expectedIds, String nodeId)
+	{
+		ArrayList ids = new ArrayList();
+		for (Iterator it = claimed.iterator(); it.hasNext();)
+		{
+			TokenContext tc = (TokenContext) it.next();
+			assertTrue(expectedIds.contains(tc.getId()));
+			assertFalse(ids.contains(tc.getId()));
+			assertEquals(LifecycleState.SELECTED, tc.getLifecycleState());
+			assertEquals(nodeId, tc.getNodeId());
+			ids.add(tc.getId());
+		}
+	}
+}
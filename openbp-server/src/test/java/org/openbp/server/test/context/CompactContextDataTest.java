@@ -0,0 +1,142 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextUtil;
+import org.openbp.server.test.ComplexParam;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that serializes the context data of a token in compact format and deserializes it again.
+ *
+ * @author Heiko Erhardt
+ */
+public class CompactContextDataTest extends TestCaseBase
+{
+	public CompactContextDataTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		Date date = new Date(1262304000000L);
+
+		List list = new ArrayList();
+		list.add("Text");
+		list.add(Integer.valueOf(42));
+		list.add(new BigDecimal("12.50"));
+		list.add(date);
+		list.add(date);
+
+		Map map = new HashMap();
+		map.put("List", list);
+		map.put("Date", date);
+		map.put("Null", null);
+
+		ComplexParam complexParam = new ComplexParam();
+		complexParam.setTitle("Complex");
+
+		// Written by the Java serialization serializer, shares its members with values written using type tags
+		SerializableHolder holder = new SerializableHolder();
+		holder.list = list;
+		holder.date = date;
+		holder.map = new HashMap();
+		holder.map.put("Key", "Value");
+		SerializableHolder bean = new SerializableHolder();
+		bean.map = new HashMap();
+		bean.map.put("Key", "Bean");
+
+		TokenContext tc = createToken();
+		tc.setParamValue("Node.Out.List", list);
+		tc.setParamValue("Node.Out.SameList", list);
+		tc.setParamValue("Node.Out.Map", map);
+		tc.setParamValue("Node.Out.Date", date);
+		tc.setParamValue("Node.Out.Complex", complexParam);
+		tc.setParamValue("Node.Out.SameComplex", complexParam);
+		tc.setParamValue("Node.Out.Boolean", Boolean.TRUE);
+		tc.setParamValue("Node.Out.Null", null);
+		tc.setParamValue("Node.Out.Holder", holder);
+		tc.setParamValue("Node.Out.HolderMap", holder.map);
+		tc.setParamValue("Node.Out.Bean", bean);
+		tc.setParamValue("Node.Out.BeanMap", bean.map);
+
+		byte[] data = TokenContextUtil.toByteArray(tc);
+		assertEquals('O', data[0]);
+
+		TokenContext tc2 = createToken();
+		TokenContextUtil.fromByteArray(tc2, data);
+
+		// Values
+		List list2 = (List) tc2.getParamValue("Node.Out.List");
+		assertEquals(list, list2);
+		Map map2 = (Map) tc2.getParamValue("Node.Out.Map");
+		assertEquals(map, map2);
+		assertEquals(date, tc2.getParamValue("Node.Out.Date"));
+		assertEquals("Complex", ((ComplexParam) tc2.getParamValue("Node.Out.Complex")).getTitle());
+		assertEquals(Boolean.TRUE, tc2.getParamValue("Node.Out.Boolean"));
+		assertNull(tc2.getParamValue("Node.Out.Null"));
+
+		// Shared instances must remain shared
+		assertSame(list2, tc2.getParamValue("Node.Out.SameList"));
+		assertSame(list2, map2.get("List"));
+		Date date2 = (Date) tc2.getParamValue("Node.Out.Date");
+		assertSame(date2, list2.get(3));
+		assertSame(date2, list2.get(4));
+		assertSame(date2, map2.get("Date"));
+		assertSame(tc2.getParamValue("Node.Out.Complex"), tc2.getParamValue("Node.Out.SameComplex"));
+
+		// Also if they are shared between values written using type tags and values written by a serializer,
+		// no matter which one has been written first
+		SerializableHolder holder2 = (SerializableHolder) tc2.getParamValue("Node.Out.Holder");
+		assertSame(list2, holder2.list);
+		assertSame(date2, holder2.date);
+		assertEquals("Value", holder2.map.get("Key"));
+		assertSame(holder2.map, tc2.getParamValue("Node.Out.HolderMap"));
+		SerializableHolder bean2 = (SerializableHolder) tc2.getParamValue("Node.Out.Bean");
+		assertEquals("Bean", bean2.map.get("Key"));
+		assertSame(bean2.map, tc2.getParamValue("Node.Out.BeanMap"));
+
+		// A modification must be visible through all references
+		list2.add("Added");
+		assertEquals("Added", ((List) tc2.getParamValue("Node.Out.SameList")).get(5));
+		assertEquals("Added", holder2.list.get(5));
+	}
+
+	/**
+	 * Serializable object that refers to values that can be written using type tags.
+	 */
+	public static class SerializableHolder
+		implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		List list;
+
+		Date date;
+
+		Map map;
+	}
+}
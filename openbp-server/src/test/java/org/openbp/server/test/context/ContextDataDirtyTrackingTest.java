@@ -0,0 +1,121 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that makes sure that modifications of the context data of a token that has been read from
+ * persistent storage are saved although the context data is serialized only if it has been modified.
+ *
+ * @author Heiko Erhardt
+ */
+public class ContextDataDirtyTrackingTest extends TestCaseBase
+{
+	public ContextDataDirtyTrackingTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+
+		HashMap initialParams = new HashMap();
+		initialParams.put("SignalId", "DirtyTrackingTest");
+
+		TokenContext tc = createToken();
+		tc.createProcessVariable("DirtyTrackingVar", true);
+		tc.setProcessVariableValue("DirtyTrackingVar", "Initial");
+		getProcessFacade().startToken(tc, SIMPLE_SIGNAL_WAIT_PROCESS_STARTREF, initialParams);
+		Object id = tc.getId();
+
+		// Reload the token and modify the process variable only
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		tc.setProcessVariableValue("DirtyTrackingVar", "Modified");
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		assertEquals("Modified", tc.getProcessVariableValue("DirtyTrackingVar"));
+
+		// Modifications of a parameter value
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		tc.setParamValue("DirtyTrackingParam", "Param");
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		assertEquals("Param", tc.getParamValue("DirtyTrackingParam"));
+		assertEquals("Modified", tc.getProcessVariableValue("DirtyTrackingVar"));
+
+		// Saving an unmodified token must not change its context data
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		byte[] data = tc.getContextData();
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+		assertSame(data, tc.getContextData());
+
+		// Reading a mutable value must not change the context data
+		ArrayList list = new ArrayList();
+		list.add("First");
+		tc.setProcessVariableValue("DirtyTrackingVar", list);
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		data = tc.getContextData();
+		assertEquals(1, ((List) tc.getProcessVariableValue("DirtyTrackingVar")).size());
+		tc.getParamValues();
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+		assertSame(data, tc.getContextData());
+
+		// A modification of the value that has been read must be detected
+		((List) tc.getProcessVariableValue("DirtyTrackingVar")).add("Second");
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+		assertNotSame(data, tc.getContextData());
+
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		assertEquals(2, ((List) tc.getProcessVariableValue("DirtyTrackingVar")).size());
+
+		// So must a modification of the parameter value map
+		tc.getParamValues().remove("DirtyTrackingParam");
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		assertFalse(tc.hasParamValue("DirtyTrackingParam"));
+
+		tokenContextService.deleteContext(tc);
+		tokenContextService.commit();
+	}
+}
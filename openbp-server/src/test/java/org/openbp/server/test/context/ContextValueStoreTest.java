@@ -0,0 +1,143 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.openbp.server.context.PersistentContextValueStore;
+import org.openbp.server.context.PersistentTokenContextService;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that stores a large process variable by reference and makes sure that it is written
+ * only if it has been modified.
+ *
+ * @author Heiko Erhardt
+ */
+public class ContextValueStoreTest extends TestCaseBase
+{
+	public ContextValueStoreTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		if (! (tokenContextService instanceof PersistentTokenContextService))
+			return;
+		PersistentTokenContextService persistentService = (PersistentTokenContextService) tokenContextService;
+
+		CountingContextValueStore store = new CountingContextValueStore();
+		persistentService.setContextValueStore(store);
+		try
+		{
+			performStoreTest(tokenContextService, store);
+		}
+		finally
+		{
+			persistentService.setContextValueStore(null);
+		}
+	}
+
+	private void performStoreTest(TokenContextService tokenContextService, CountingContextValueStore store)
+	{
+		HashMap initialParams = new HashMap();
+		initialParams.put("SignalId", "ContextValueStoreTest");
+
+		byte[] largeValue = new byte[20000];
+		Arrays.fill(largeValue, (byte) 42);
+
+		TokenContext tc = createToken();
+		tc.createProcessVariable("LargeVar", true);
+		tc.setProcessVariableValue("LargeVar", largeValue);
+		tc.createProcessVariable("SmallVar", true);
+		tc.setProcessVariableValue("SmallVar", "Initial");
+		getProcessFacade().startToken(tc, SIMPLE_SIGNAL_WAIT_PROCESS_STARTREF, initialParams);
+		Object id = tc.getId();
+
+		// The large value is stored by reference
+		assertEquals(1, store.storeCount);
+		assertEquals(1, countValues(id));
+		assertTrue(tc.getContextData().length < largeValue.length);
+
+		// Modifying a small value must not write the large one again
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		assertTrue(Arrays.equals(largeValue, (byte[]) tc.getProcessVariableValue("LargeVar")));
+		tc.setProcessVariableValue("SmallVar", "Modified");
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+		assertEquals(1, store.storeCount);
+
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		assertEquals("Modified", tc.getProcessVariableValue("SmallVar"));
+		assertTrue(Arrays.equals(largeValue, (byte[]) tc.getProcessVariableValue("LargeVar")));
+
+		// Modifying the large value writes it again
+		((byte[]) tc.getProcessVariableValue("LargeVar"))[0] = 1;
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+		assertEquals(2, store.storeCount);
+
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		assertEquals(1, ((byte[]) tc.getProcessVariableValue("LargeVar"))[0]);
+
+		// Removing the large value removes it from the store
+		tc.removeProcessVariableValue("LargeVar");
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+		assertEquals(0, countValues(id));
+
+		// So does deleting the context
+		tc.createProcessVariable("LargeVar", true);
+		tc.setProcessVariableValue("LargeVar", largeValue);
+		tokenContextService.saveContext(tc);
+		tokenContextService.commit();
+		assertEquals(1, countValues(id));
+
+		tokenContextService.deleteContext(tc);
+		tokenContextService.commit();
+		assertEquals(0, countValues(id));
+	}
+
+	private int countValues(Object id)
+	{
+		PersistenceContext pc = getProcessServer().getEngine().getPersistenceContextProvider().obtainPersistenceContext();
+		return pc.executeSelect("select CV_NAME from OPENBPCONTEXTVALUE where CV_CONTEXT_ID = ?", new Object[] { id }, 0).size();
+	}
+
+	/**
+	 * Context value store that counts the values it stores.
+	 */
+	private static class CountingContextValueStore extends PersistentContextValueStore
+	{
+		/** Number of values stored */
+		private int storeCount;
+
+		public void storeValue(TokenContext context, String name, String valueHash, byte[] data)
+		{
+			++storeCount;
+			super.storeValue(context, name, valueHash, data);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.openbp.server.context.PersistentTokenContextService;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.context.WorkflowTask;
+import org.openbp.server.context.WorkflowTaskCriteria;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that ends a token that has more descendants than fit into a single query.
+ *
+ * @author Heiko Erhardt
+ */
+public class EndTokenTreeTest extends TestCaseBase
+{
+	/** Number of child tokens of the root token */
+	private static final int NUM_CHILDREN = 3;
+
+	/** Number of child tokens of each child token; the tree exceeds the maximum number of contexts per query */
+	private static final int NUM_GRANDCHILDREN = PersistentTokenContextService.MAX_CONTEXTS_PER_QUERY / NUM_CHILDREN + 10;
+
+	public EndTokenTreeTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+
+		HashMap initialParams = new HashMap();
+		initialParams.put("SignalId", "EndTokenTreeTest");
+
+		TokenContext root = createToken();
+		getProcessFacade().startToken(root, SIMPLE_SIGNAL_WAIT_PROCESS_STARTREF, initialParams);
+		Object rootId = root.getId();
+
+		List ids = new ArrayList();
+		TokenContext keptContext = null;
+		for (int i = 0; i < NUM_CHILDREN; ++i)
+		{
+			TokenContext child = createChild(root);
+			ids.add(child.getId());
+			for (int j = 0; j < NUM_GRANDCHILDREN; ++j)
+			{
+				TokenContext grandchild = createChild(child);
+				ids.add(grandchild.getId());
+				keptContext = grandchild;
+			}
+		}
+
+		// The workflow task of the last grandchild shall be kept, so its context must be kept as well
+		WorkflowTask task = tokenContextService.createWorkflowTask(keptContext);
+		task.setName("EndTokenTreeTask");
+		task.setStatus(WorkflowTask.STATUS_RESUMED);
+		task.setDeleteAfterCompletion(false);
+		tokenContextService.addWorkflowTask(task);
+		tokenContextService.commit();
+
+		tokenContextService.clearCache();
+		root = tokenContextService.getContextById(rootId);
+		assertEquals(ids.size(), tokenContextService.getDescendantContexts(root).size());
+
+		getProcessServer().getEngine().endToken(root);
+		tokenContextService.commit();
+		tokenContextService.clearCache();
+
+		assertNull(tokenContextService.getContextById(rootId));
+		for (Iterator it = ids.iterator(); it.hasNext();)
+		{
+			Object id = it.next();
+			TokenContext context = tokenContextService.getContextById(id);
+			if (id.equals(keptContext.getId()))
+			{
+				assertNotNull(context);
+				assertNull(context.getParentContext());
+			}
+			else
+			{
+				assertNull(context);
+			}
+		}
+
+		WorkflowTaskCriteria criteria = new WorkflowTaskCriteria();
+		criteria.setName("EndTokenTreeTask");
+		Iterator it = tokenContextService.getworkflowTasks(criteria);
+		task = (WorkflowTask) it.next();
+		assertEquals(WorkflowTask.STATUS_COMPLETED, task.getStatus());
+		assertFalse(it.hasNext());
+
+		tokenContextService.deleteWorkflowTask(task);
+		tokenContextService.deleteContext(task.getTokenContext());
+		tokenContextService.commit();
+	}
+
+	private TokenContext createChild(TokenContext parent)
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+
+		TokenContext child = tokenContextService.createChildContext(parent);
+		return tokenContextService.addContext(child);
+	}
+}
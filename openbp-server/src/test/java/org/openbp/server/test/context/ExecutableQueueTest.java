@@ -0,0 +1,113 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.context.TransientTokenContextService;
+import org.openbp.server.test.base.TestCaseBase;
+import org.openbp.server.test.base.TestCaseSyncMgr;
+
+/**
+ * Test case that makes sure that the transient token context service returns and claims
+ * the executable tokens in the order of their priority and queueing time.
+ *
+ * @author Heiko Erhardt
+ */
+public class ExecutableQueueTest extends TestCaseBase
+{
+	public ExecutableQueueTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		if (! (tokenContextService instanceof TransientTokenContextService))
+			return;
+
+		// Make sure there are no executable tokens left by other tests
+		getProcessFacade().executePendingContextsInThisThread();
+
+		TokenContext tc1 = startSimpleSignalSetProcess("ExecutableQueueTest1", "Done", 3);
+		TokenContext tc2 = startSimpleSignalSetProcess("ExecutableQueueTest2", "Done", 1);
+		TokenContext tc3 = startSimpleSignalSetProcess("ExecutableQueueTest3", "Done", 2);
+		TokenContext tc4 = startSimpleSignalSetProcess("ExecutableQueueTest4", "Done", 1);
+
+		// Ordered by priority, then by queueing order; retrieving the tokens does not remove them from the queue
+		checkExecutable(0, new TokenContext [] { tc2, tc4, tc3, tc1 });
+		checkExecutable(2, new TokenContext [] { tc2, tc4 });
+		checkExecutable(0, new TokenContext [] { tc2, tc4, tc3, tc1 });
+
+		// Saving a queued token again does not queue it twice
+		tokenContextService.saveContext(tc2);
+		tokenContextService.saveContext(tc2);
+		checkExecutable(0, new TokenContext [] { tc2, tc4, tc3, tc1 });
+
+		// Deleted tokens are dropped
+		tokenContextService.deleteContext(tc3);
+		checkExecutable(0, new TokenContext [] { tc2, tc4, tc1 });
+
+		// Tokens that are not executable any more are dropped, saving them as executable queues them again
+		tc4.setLifecycleRequest(LifecycleRequest.NONE);
+		checkExecutable(0, new TokenContext [] { tc2, tc1 });
+		tc4.setLifecycleRequest(LifecycleRequest.RESUME);
+		tokenContextService.saveContext(tc4);
+		checkExecutable(0, new TokenContext [] { tc2, tc4, tc1 });
+
+		// Claimed tokens are removed from the queue
+		List claimed = tokenContextService.claimExecutableContexts(1, "NodeA");
+		assertEquals(Arrays.asList(new TokenContext [] { tc2 }), claimed);
+		assertEquals(LifecycleState.SELECTED, tc2.getLifecycleState());
+		assertEquals("NodeA", tc2.getNodeId());
+		tokenContextService.saveContext(tc2);
+		checkExecutable(0, new TokenContext [] { tc4, tc1 });
+
+		// Released tokens are queued after the tokens of the same priority
+		assertEquals(1, tokenContextService.changeContextState(LifecycleState.SELECTED, LifecycleState.SUSPENDED, LifecycleRequest.RESUME, "NodeA"));
+		checkExecutable(0, new TokenContext [] { tc4, tc2, tc1 });
+
+		claimed = tokenContextService.claimExecutableContexts(0, "NodeB");
+		assertEquals(Arrays.asList(new TokenContext [] { tc4, tc2, tc1 }), claimed);
+		checkExecutable(0, new TokenContext [0]);
+
+		// Release the claimed tokens and execute them
+		tokenContextService.changeContextState(LifecycleState.SELECTED, LifecycleState.SUSPENDED, LifecycleRequest.RESUME, "NodeB");
+		getProcessFacade().executePendingContextsInThisThread();
+		assertEquals("Done", TestCaseSyncMgr.getInstance().getSignal(null, "ExecutableQueueTest1"));
+		assertEquals("Done", TestCaseSyncMgr.getInstance().getSignal(null, "ExecutableQueueTest2"));
+		assertNull(TestCaseSyncMgr.getInstance().getSignal(null, "ExecutableQueueTest3"));
+		assertEquals("Done", TestCaseSyncMgr.getInstance().getSignal(null, "ExecutableQueueTest4"));
+	}
+
+	private void checkExecutable(int maxResults, TokenContext [] expected)
+	{
+		List contexts = new ArrayList();
+		for (Iterator it = getProcessServer().getTokenContextService().getExecutableContexts(maxResults); it.hasNext();)
+		{
+			contexts.add(it.next());
+		}
+		assertEquals(Arrays.asList(expected), contexts);
+	}
+}
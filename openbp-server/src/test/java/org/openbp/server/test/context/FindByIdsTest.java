@@ -0,0 +1,98 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.openbp.server.context.PersistentTokenContextService;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that loads a number of token contexts by their ids that exceeds the number of ids
+ * the persistence layer puts into a single query.
+ *
+ * @author Heiko Erhardt
+ */
+public class FindByIdsTest extends TestCaseBase
+{
+	/** Number of tokens; the Hibernate implementation needs two queries for these */
+	private static final int NUM_TOKENS = 600;
+
+	public FindByIdsTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		if (! (tokenContextService instanceof PersistentTokenContextService))
+			return;
+
+		ArrayList ids = new ArrayList();
+		for (int i = 0; i < NUM_TOKENS; ++i)
+		{
+			TokenContext tc = createToken();
+			tc.setPriority(i);
+			tokenContextService.addContext(tc);
+			ids.add(tc.getId());
+		}
+		tokenContextService.commit();
+		tokenContextService.clearCache();
+
+		try
+		{
+			PersistenceContext pc = obtainPersistenceContext();
+
+			// All tokens are found, regardless of the query they have been loaded by
+			Map found = pc.findByIds(ids, TokenContext.class);
+			assertEquals(NUM_TOKENS, found.size());
+			for (int i = 0; i < NUM_TOKENS; ++i)
+			{
+				TokenContext tc = (TokenContext) found.get(ids.get(i));
+				assertNotNull(tc);
+				assertEquals(ids.get(i), tc.getId());
+				assertEquals(i, tc.getPriority());
+			}
+
+			// Ids that cannot be found are omitted
+			List someIds = new ArrayList(ids.subList(0, 3));
+			someIds.add("FindByIdsTest.Unknown");
+			found = pc.findByIds(someIds, TokenContext.class);
+			assertEquals(3, found.size());
+			assertFalse(found.containsKey("FindByIdsTest.Unknown"));
+
+			assertTrue(pc.findByIds(Collections.EMPTY_LIST, TokenContext.class).isEmpty());
+		}
+		finally
+		{
+			tokenContextService.clearCache();
+			tokenContextService.deleteContexts(obtainPersistenceContext().findByIds(ids, TokenContext.class).values());
+			tokenContextService.commit();
+		}
+	}
+
+	private PersistenceContext obtainPersistenceContext()
+	{
+		return getProcessServer().getEngine().getPersistenceContextProvider().obtainPersistenceContext();
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.HashMap;
+
+import org.openbp.server.context.GroupCommitter;
+import org.openbp.server.context.PersistentTokenContextService;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that commits token context updates using a group committer.
+ * Makes sure that the group commit is used only if the transaction does not contain any other changes.
+ *
+ * @author Heiko Erhardt
+ */
+public class GroupCommitTest extends TestCaseBase
+{
+	public GroupCommitTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		if (! (tokenContextService instanceof PersistentTokenContextService))
+			return;
+		PersistentTokenContextService service = (PersistentTokenContextService) tokenContextService;
+
+		GroupCommitter groupCommitter = new GroupCommitter();
+		groupCommitter.setMaxDelay(0);
+		GroupCommitter oldGroupCommitter = service.getGroupCommitter();
+		service.setGroupCommitter(groupCommitter);
+
+		// The change tracking applies to persistence contexts that are created from now on
+		getProcessServer().getEngine().getPersistenceContextProvider().obtainPersistenceContext().release();
+
+		Object id1 = startToken();
+		Object id2 = startToken();
+		service.commit();
+
+		try
+		{
+			// An update without any other changes is written by the group committer
+			service.clearCache();
+			service.begin();
+			TokenContext tc1 = service.getContextById(id1);
+			tc1.setPriority(1);
+			service.commitContext(tc1);
+			assertEquals(1L, groupCommitter.getNumberOfCommittedContexts());
+			assertPriority(id1, 1);
+
+			// An update along with changes of other objects must be committed in the same transaction
+			service.clearCache();
+			service.begin();
+			tc1 = service.getContextById(id1);
+			TokenContext tc2 = service.getContextById(id2);
+			tc2.setPriority(2);
+			service.saveContext(tc2);
+			tc1.setPriority(3);
+			service.commitContext(tc1);
+			assertEquals(1L, groupCommitter.getNumberOfCommittedContexts());
+			assertPriority(id1, 3);
+			assertPriority(id2, 2);
+
+			// The same applies to changes that have been written by an SQL statement
+			service.clearCache();
+			service.begin();
+			tc1 = service.getContextById(id1);
+			PersistenceContext pc = getProcessServer().getEngine().getPersistenceContextProvider().obtainPersistenceContext();
+			pc.executeUpdateOrDelete("update OPENBPTOKENCONTEXT set TC_PRIORITY = 4 where TC_ID = ?", new Object[] { id2 });
+			tc1.setPriority(5);
+			service.commitContext(tc1);
+			assertEquals(1L, groupCommitter.getNumberOfCommittedContexts());
+			assertPriority(id1, 5);
+			assertPriority(id2, 4);
+
+			// An update that is not picked up by the committer thread within the commit timeout is written by the engine thread
+			GroupCommitter stalledCommitter = new GroupCommitter()
+			{
+				public synchronized void initialize()
+				{
+					// Never start the committer thread
+				}
+			};
+			stalledCommitter.setCommitTimeout(50L);
+			service.setGroupCommitter(stalledCommitter);
+			service.clearCache();
+			service.begin();
+			tc1 = service.getContextById(id1);
+			tc1.setPriority(6);
+			service.commitContext(tc1);
+			assertEquals(0L, stalledCommitter.getNumberOfCommittedContexts());
+			assertPriority(id1, 6);
+
+			// After the shutdown, the committer rejects any updates and the engine thread writes the context itself
+			service.setGroupCommitter(groupCommitter);
+			groupCommitter.shutdown();
+			service.clearCache();
+			service.begin();
+			tc1 = service.getContextById(id1);
+			tc1.setPriority(7);
+			assertNull(groupCommitter.submit(tc1));
+			service.commitContext(tc1);
+			assertEquals(1L, groupCommitter.getNumberOfCommittedContexts());
+			assertPriority(id1, 7);
+		}
+		finally
+		{
+			service.setGroupCommitter(oldGroupCommitter);
+			groupCommitter.shutdown();
+
+			service.clearCache();
+			service.deleteContext(service.getContextById(id1));
+			service.deleteContext(service.getContextById(id2));
+			service.commit();
+		}
+	}
+
+	private Object startToken()
+	{
+		HashMap initialParams = new HashMap();
+		initialParams.put("SignalId", "GroupCommitTest");
+
+		TokenContext tc = createToken();
+		getProcessFacade().startToken(tc, SIMPLE_SIGNAL_WAIT_PROCESS_STARTREF, initialParams);
+		return tc.getId();
+	}
+
+	private void assertPriority(Object id, int priority)
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		tokenContextService.clearCache();
+		assertEquals(priority, tokenContextService.getContextById(id).getPriority());
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.HashMap;
+
+import org.openbp.server.context.PersistentTokenContextService;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that counts down the outstanding child tokens of a parent token the way the join node does.
+ *
+ * @author Heiko Erhardt
+ */
+public class JoinCounterTest extends TestCaseBase
+{
+	public JoinCounterTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+
+		HashMap initialParams = new HashMap();
+		initialParams.put("SignalId", "JoinCounterTest");
+
+		TokenContext parent = createToken();
+		getProcessFacade().startToken(parent, SIMPLE_SIGNAL_WAIT_PROCESS_STARTREF, initialParams);
+		Object parentId = parent.getId();
+
+		// Counter maintained by the fork node
+		TokenContext child1 = createChild(parent);
+		TokenContext child2 = createChild(parent);
+		TokenContext child3 = createChild(parent);
+		tokenContextService.addChildCount(parent, 3);
+		tokenContextService.commit();
+
+		// The join node releases the children in transactions of their own
+		tokenContextService.clearCache();
+		parent = tokenContextService.getContextById(parentId);
+		child1 = tokenContextService.getContextById(child1.getId());
+		child2 = tokenContextService.getContextById(child2.getId());
+		child3 = tokenContextService.getContextById(child3.getId());
+
+		assertFalse(releaseChild(parent, child1));
+		assertFalse(releaseChild(parent, child2));
+		assertTrue(releaseChild(parent, child3));
+		assertNull(child3.getParentContext());
+
+		if (tokenContextService instanceof PersistentTokenContextService)
+		{
+			// The join has been completed already, so releasing another child must not report the last child again
+			TokenContext child6 = createChild(parent);
+			tokenContextService.commit();
+			assertFalse(releaseChild(parent, child6));
+
+			// Children that have been created before the counter has been introduced
+			TokenContext child4 = createChild(parent);
+			TokenContext child5 = createChild(parent);
+			tokenContextService.commit();
+
+			PersistenceContext pc = getProcessServer().getEngine().getPersistenceContextProvider().obtainPersistenceContext();
+			pc.executeUpdateOrDelete("update OPENBPTOKENCONTEXT set TC_CHILD_COUNT = null where TC_ID = ?", new Object[] { parentId });
+			tokenContextService.commit();
+
+			tokenContextService.clearCache();
+			parent = tokenContextService.getContextById(parentId);
+			child4 = tokenContextService.getContextById(child4.getId());
+			child5 = tokenContextService.getContextById(child5.getId());
+
+			assertFalse(releaseChild(parent, child4));
+			assertTrue(releaseChild(parent, child5));
+		}
+
+		tokenContextService.clearCache();
+		parent = tokenContextService.getContextById(parentId);
+		tokenContextService.deleteContext(parent);
+		tokenContextService.commit();
+	}
+
+	private TokenContext createChild(TokenContext parent)
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+
+		TokenContext child = tokenContextService.createChildContext(parent);
+		return tokenContextService.addContext(child);
+	}
+
+	private boolean releaseChild(TokenContext parent, TokenContext child)
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+
+		boolean lastChild = tokenContextService.releaseChildContext(parent, child);
+		tokenContextService.deleteContext(child);
+		tokenContextService.commit();
+		return lastChild;
+	}
+}
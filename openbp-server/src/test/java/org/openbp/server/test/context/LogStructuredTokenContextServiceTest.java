@@ -0,0 +1,351 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.LogStructuredTokenContextService;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.WorkflowTask;
+import org.openbp.server.context.WorkflowTaskCriteria;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that saves token contexts using the log-structured token context service
+ * and restores them from the log.
+ *
+ * @author Heiko Erhardt
+ */
+public class LogStructuredTokenContextServiceTest extends TestCaseBase
+{
+	/** Size of a segment; small, so the log will consist of several segments */
+	private static final int SEGMENT_SIZE = 4096;
+
+	public LogStructuredTokenContextServiceTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		File directory = File.createTempFile("tokenlog", "");
+		directory.delete();
+
+		try
+		{
+			testRestore(directory);
+			testChangeContextState(directory);
+			testWorkflowTasks(directory);
+			testChildCount(directory);
+			testTornCommit(directory);
+			testCompaction(directory);
+			testReleasedPersistenceContext(directory);
+		}
+		finally
+		{
+			File [] files = directory.listFiles();
+			for (int i = 0; files != null && i < files.length; ++i)
+			{
+				files[i].delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Contexts that were running when the service was stopped must be restored as suspended contexts that are to be resumed.
+	 */
+	private void testRestore(File directory)
+	{
+		LogStructuredTokenContextService service = createService(directory);
+		TokenContext runningContext = service.createContext();
+		runningContext.setLifecycleState(LifecycleState.RUNNING);
+		runningContext.setNodeId("node1");
+		service.addContext(runningContext);
+		TokenContext idlingContext = service.createContext();
+		idlingContext.setLifecycleState(LifecycleState.IDLING);
+		idlingContext.setPriority(3);
+		service.addContext(idlingContext);
+		service.commit();
+		service.shutdown();
+
+		service = createService(directory);
+		runningContext = service.getContextById(runningContext.getId());
+		assertEquals(LifecycleState.SUSPENDED, runningContext.getLifecycleState());
+		assertEquals(LifecycleRequest.RESUME, runningContext.getLifecycleRequest());
+		assertEquals("node1", runningContext.getNodeId());
+		idlingContext = service.getContextById(idlingContext.getId());
+		assertEquals(LifecycleState.IDLING, idlingContext.getLifecycleState());
+		assertEquals(3, idlingContext.getPriority());
+		service.deleteContext(runningContext);
+		service.deleteContext(idlingContext);
+		service.commit();
+		service.shutdown();
+	}
+
+	/**
+	 * A state change of several contexts must be written to the log.
+	 */
+	private void testChangeContextState(File directory)
+	{
+		LogStructuredTokenContextService service = createService(directory);
+		TokenContext context1 = service.createContext();
+		context1.setLifecycleState(LifecycleState.IDLING);
+		context1.setNodeId("node1");
+		service.addContext(context1);
+		TokenContext context2 = service.createContext();
+		context2.setLifecycleState(LifecycleState.IDLING);
+		context2.setNodeId("node2");
+		service.addContext(context2);
+		service.commit();
+
+		assertEquals(1, service.changeContextState(LifecycleState.IDLING, LifecycleState.SUSPENDED, LifecycleRequest.RESUME, "node1"));
+		service.commit();
+		service.shutdown();
+
+		service = createService(directory);
+		context1 = service.getContextById(context1.getId());
+		assertEquals(LifecycleState.SUSPENDED, context1.getLifecycleState());
+		assertEquals(LifecycleRequest.RESUME, context1.getLifecycleRequest());
+		context2 = service.getContextById(context2.getId());
+		assertEquals(LifecycleState.IDLING, context2.getLifecycleState());
+		service.deleteContext(context1);
+		service.deleteContext(context2);
+		service.commit();
+		service.shutdown();
+	}
+
+	/**
+	 * Added, changed and deleted workflow tasks must be restored with their token context.
+	 */
+	private void testWorkflowTasks(File directory)
+	{
+		LogStructuredTokenContextService service = createService(directory);
+		TokenContext context = service.createContext();
+		service.addContext(context);
+		WorkflowTask task1 = service.createWorkflowTask(context);
+		task1.setName("Task1");
+		task1.setStatus(WorkflowTask.STATUS_ENABLED);
+		task1.setRoleId("role1");
+		service.addWorkflowTask(task1);
+		WorkflowTask task2 = service.createWorkflowTask(context);
+		task2.setName("Task2");
+		service.addWorkflowTask(task2);
+		service.commit();
+		service.shutdown();
+
+		service = createService(directory);
+		task1 = findWorkflowTask(service, "Task1");
+		assertEquals(WorkflowTask.STATUS_ENABLED, task1.getStatus());
+		assertEquals("role1", task1.getRoleId());
+		assertSame(service.getContextById(context.getId()), task1.getTokenContext());
+		task1.setStatus(WorkflowTask.STATUS_COMPLETED);
+		service.saveWorkflowTask(task1);
+		service.deleteWorkflowTask(findWorkflowTask(service, "Task2"));
+		service.commit();
+		service.shutdown();
+
+		service = createService(directory);
+		assertEquals(WorkflowTask.STATUS_COMPLETED, findWorkflowTask(service, "Task1").getStatus());
+		assertNull(findWorkflowTask(service, "Task2"));
+		service.deleteWorkflowTask(findWorkflowTask(service, "Task1"));
+		service.deleteContext(service.getContextById(context.getId()));
+		service.commit();
+		service.shutdown();
+
+		service = createService(directory);
+		assertNull(findWorkflowTask(service, "Task1"));
+		service.shutdown();
+	}
+
+	/**
+	 * The child counter of a parent context must be restored although the parent itself has not been saved after the release of a child.
+	 */
+	private void testChildCount(File directory)
+	{
+		LogStructuredTokenContextService service = createService(directory);
+		TokenContext parentContext = service.createContext();
+		service.addContext(parentContext);
+		TokenContext child1 = service.createChildContext(parentContext);
+		service.addContext(child1);
+		TokenContext child2 = service.createChildContext(parentContext);
+		service.addContext(child2);
+		service.addChildCount(parentContext, 2);
+		service.commit();
+
+		// Release the first child only, the parent context is not saved explicitly
+		assertFalse(service.releaseChildContext(parentContext, child1));
+		service.deleteContext(child1);
+		service.commit();
+		service.shutdown();
+
+		service = createService(directory);
+		parentContext = service.getContextById(parentContext.getId());
+		assertEquals(1, parentContext.getChildCount());
+		assertNull(service.getContextById(child1.getId()));
+		child2 = service.getContextById(child2.getId());
+		assertSame(parentContext, child2.getParentContext());
+
+		// Releasing the second child completes the join
+		assertTrue(service.releaseChildContext(parentContext, child2));
+		service.deleteContext(child2);
+		service.deleteContext(parentContext);
+		service.commit();
+		service.shutdown();
+
+		service = createService(directory);
+		assertNull(service.getContextById(parentContext.getId()));
+		service.shutdown();
+	}
+
+	/**
+	 * If the process crashes while a commit is being written, none of the changes of the commit must be restored.
+	 */
+	private void testTornCommit(File directory)
+		throws Exception
+	{
+		LogStructuredTokenContextService service = createService(directory);
+		TokenContext context1 = service.createContext();
+		context1.setPriority(1);
+		service.addContext(context1);
+		service.commit();
+		service.shutdown();
+
+		service = createService(directory);
+		context1 = service.getContextById(context1.getId());
+		context1.setPriority(2);
+		service.saveContext(context1);
+		TokenContext context2 = service.createContext();
+		service.addContext(context2);
+		service.commit();
+		service.shutdown();
+
+		// Simulate a crash before the end of the last commit has been written
+		File [] files = directory.listFiles();
+		Arrays.sort(files);
+		RandomAccessFile raf = new RandomAccessFile(files[files.length - 1], "rw");
+		int position = (int) raf.length() - 1;
+		for (; position > 0; --position)
+		{
+			raf.seek(position);
+			if (raf.read() != 0)
+				break;
+		}
+		raf.seek(position);
+		raf.write(0);
+		raf.close();
+
+		service = createService(directory);
+		assertEquals(1, service.getContextById(context1.getId()).getPriority());
+		assertNull(service.getContextById(context2.getId()));
+		service.deleteContext(service.getContextById(context1.getId()));
+		service.commit();
+		service.shutdown();
+	}
+
+	/**
+	 * The compactor thread must remove the obsolete segments while the contexts are being updated.
+	 */
+	private void testCompaction(File directory)
+		throws Exception
+	{
+		LogStructuredTokenContextService service = createService(directory);
+		TokenContext context = service.createContext();
+		service.addContext(context);
+		service.commit();
+
+		for (int i = 1; i <= 500; ++i)
+		{
+			context.setPriority(i);
+			service.saveContext(context);
+			service.commit();
+		}
+
+		// 500 records do not fit into a few segments, so the compactor must have removed some
+		for (int i = 0; i < 100 && directory.listFiles().length > 5; ++i)
+		{
+			Thread.sleep(50L);
+		}
+		assertTrue(directory.listFiles().length <= 5);
+		service.shutdown();
+
+		service = createService(directory);
+		context = service.getContextById(context.getId());
+		assertEquals(500, context.getPriority());
+		service.deleteContext(context);
+		service.commit();
+		service.shutdown();
+	}
+
+	/**
+	 * The pending changes belong to the persistence context; they must be discarded when the persistence context is released.
+	 */
+	private void testReleasedPersistenceContext(File directory)
+	{
+		LogStructuredTokenContextService service = createService(directory);
+		TokenContext context1 = service.createContext();
+		service.addContext(context1);
+		service.getPersistenceContextProvider().obtainExistingPersistenceContext().release();
+		TokenContext context2 = service.createContext();
+		service.addContext(context2);
+		service.commit();
+		service.shutdown();
+
+		service = createService(directory);
+		assertNull(service.getContextById(context1.getId()));
+		assertNotNull(service.getContextById(context2.getId()));
+		service.deleteContext(service.getContextById(context2.getId()));
+		service.commit();
+		service.shutdown();
+	}
+
+	/**
+	 * Finds a workflow task by its name.
+	 *
+	 * @param service Token context service
+	 * @param name Name of the workflow task
+	 * @return The workflow task or null
+	 */
+	private WorkflowTask findWorkflowTask(LogStructuredTokenContextService service, String name)
+	{
+		WorkflowTaskCriteria criteria = new WorkflowTaskCriteria();
+		criteria.setName(name);
+		Iterator it = service.getworkflowTasks(criteria);
+		return it.hasNext() ? (WorkflowTask) it.next() : null;
+	}
+
+	/**
+	 * Creates and initializes a log-structured token context service.
+	 *
+	 * @param directory Log directory
+	 * @return The service
+	 */
+	private LogStructuredTokenContextService createService(File directory)
+	{
+		LogStructuredTokenContextService service = new LogStructuredTokenContextService();
+		service.setModelMgr(getProcessServer().getModelMgr());
+		service.setPersistenceContextProvider(getProcessServer().getEngine().getPersistenceContextProvider());
+		service.setDirectory(directory.getPath());
+		service.setSegmentSize(SEGMENT_SIZE);
+		service.initialize();
+		return service;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.NodeParam;
+import org.openbp.core.model.item.process.NodeParamImpl;
+import org.openbp.core.model.item.process.ProcessItem;
+import org.openbp.server.context.ParamValueMap;
+import org.openbp.server.context.TokenContextValue;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that accesses the values of a parameter value map by context slot and by name
+ * and makes sure that both views stay consistent when values are removed, replaced and added again.
+ *
+ * @author Heiko Erhardt
+ */
+public class ParamValueMapTest extends TestCaseBase
+{
+	public ParamValueMapTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		ProcessItem process = (ProcessItem) getProcessServer().getModelMgr().getItemByQualifier(
+			new ModelQualifier("/TestCase", "SimpleSignalProcess", ItemTypes.PROCESS), true);
+		NodeParam idParam = (NodeParam) process.getParamByName("Start.Out.SignalId");
+		NodeParam valueParam = (NodeParam) process.getParamByName("Start.Out.SignalValue");
+		assertTrue(idParam.getContextSlot() >= 0);
+		assertTrue(idParam.getContextSlot() != valueParam.getContextSlot());
+
+		checkSlotAccess(idParam);
+		checkReattach(idParam, valueParam);
+		checkForeignMap(idParam);
+		checkConcurrentSlotAllocation(process);
+	}
+
+	/**
+	 * Values are found by slot and by name.
+	 */
+	private void checkSlotAccess(NodeParam param)
+	{
+		ParamValueMap map = new ParamValueMap();
+		assertNull(map.getValue(param));
+
+		TokenContextValue tcv = map.obtainValue(param, true);
+		assertSame(tcv, map.get(param.getContextName()));
+		assertSame(tcv, map.getValue(param));
+		assertSame(tcv, map.obtainValue(param, true));
+
+		// Replacing by name must be visible by slot
+		TokenContextValue tcv2 = new TokenContextValue();
+		map.put(param.getContextName(), tcv2);
+		assertSame(tcv2, map.getValue(param));
+
+		map.remove(param.getContextName());
+		assertNull(map.getValue(param));
+	}
+
+	/**
+	 * A value that has been removed and is added again under a different name must not be found under its old name.
+	 */
+	private void checkReattach(NodeParam idParam, NodeParam valueParam)
+	{
+		ParamValueMap map = new ParamValueMap();
+		TokenContextValue tcv = map.obtainValue(idParam, true);
+		assertSame(tcv, map.getValue(idParam));
+
+		map.remove(idParam.getContextName());
+		map.put(valueParam.getContextName(), tcv);
+		assertNull(map.getValue(idParam));
+		assertSame(tcv, map.getValue(valueParam));
+
+		// And it will be found by slot again when added under its old name
+		map.remove(valueParam.getContextName());
+		map.put(idParam.getContextName(), tcv);
+		assertSame(tcv, map.getValue(idParam));
+		assertNull(map.getValue(valueParam));
+	}
+
+	/**
+	 * A value that has been moved to another map must not be found in the original map anymore.
+	 */
+	private void checkForeignMap(NodeParam param)
+	{
+		ParamValueMap map = new ParamValueMap();
+		ParamValueMap other = new ParamValueMap();
+		TokenContextValue tcv = map.obtainValue(param, true);
+		assertSame(tcv, map.getValue(param));
+
+		map.remove(param.getContextName());
+		other.put(param.getContextName(), tcv);
+		assertNull(map.getValue(param));
+		assertSame(tcv, other.getValue(param));
+	}
+
+	/**
+	 * Threads that access the context slot of a new parameter concurrently must all get the same slot.
+	 */
+	private void checkConcurrentSlotAllocation(ProcessItem process)
+		throws Exception
+	{
+		final NodeParamImpl param = new NodeParamImpl();
+		param.setSocket(((NodeParam) process.getParamByName("Start.Out.SignalId")).getSocket());
+
+		final int nThreads = 8;
+		final Set<Integer> slots = new HashSet<Integer>();
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch doneLatch = new CountDownLatch(nThreads);
+		for (int i = 0; i < nThreads; ++i)
+		{
+			new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						startLatch.await();
+						int slot = param.getContextSlot();
+						synchronized (slots)
+						{
+							slots.add(Integer.valueOf(slot));
+						}
+					}
+					catch (InterruptedException e)
+					{
+					}
+					finally
+					{
+						doneLatch.countDown();
+					}
+				}
+			}.start();
+		}
+		startLatch.countDown();
+		doneLatch.await();
+
+		assertEquals(1, slots.size());
+		assertEquals(slots.iterator().next().intValue(), param.getContextSlot());
+	}
+}
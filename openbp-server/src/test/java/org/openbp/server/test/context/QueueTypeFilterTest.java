@@ -0,0 +1,111 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.QueueTypeFilter;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.test.base.TestCaseBase;
+import org.openbp.server.test.base.TestCaseSyncMgr;
+
+/**
+ * Test case that retrieves and claims executable tokens using a queue type filter.
+ *
+ * @author Heiko Erhardt
+ */
+public class QueueTypeFilterTest extends TestCaseBase
+{
+	public QueueTypeFilterTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+
+		// Make sure there are no executable tokens left by other tests
+		getProcessFacade().executePendingContextsInThisThread();
+
+		TokenContext tc1 = startSimpleSignalSetProcess("QueueTypeFilterTest1", "Done", 0);
+		TokenContext tc2 = startSimpleSignalSetProcess("QueueTypeFilterTest2", "Done", 0);
+		tc2.setQueueType("FilterQueue");
+		tokenContextService.saveContext(tc2);
+		tokenContextService.commit();
+		Object id1 = tc1.getId();
+		Object id2 = tc2.getId();
+
+		List filterQueue = Collections.singletonList("FilterQueue");
+
+		// An excluding filter skips the excluded queue type, but accepts contexts without a queue type
+		assertEquals(Collections.singletonList(id1), getExecutableIds(QueueTypeFilter.exclude(filterQueue)));
+
+		// An including filter accepts the included queue type only
+		assertEquals(Collections.singletonList(id2), getExecutableIds(QueueTypeFilter.include(filterQueue)));
+		assertEquals(Collections.EMPTY_LIST, getExecutableIds(QueueTypeFilter.include(Collections.EMPTY_LIST)));
+
+		// The rejected contexts will not be claimed
+		tokenContextService.clearCache();
+		List claimed = tokenContextService.claimExecutableContexts(0, "QueueTypeFilterTest", 0, 1, QueueTypeFilter.exclude(filterQueue));
+		tokenContextService.rollback();
+		assertEquals(1, claimed.size());
+		assertEquals(id1, ((TokenContext) claimed.get(0)).getId());
+
+		tokenContextService.clearCache();
+		tc1 = tokenContextService.getContextById(id1);
+		tc2 = tokenContextService.getContextById(id2);
+		assertEquals(LifecycleState.SELECTED, tc1.getLifecycleState());
+		assertEquals(LifecycleState.CREATED, tc2.getLifecycleState());
+
+		// Release the claimed token and execute both tokens
+		tc1.setLifecycleState(LifecycleState.SUSPENDED);
+		tokenContextService.saveContext(tc1);
+		tokenContextService.commit();
+		getProcessFacade().executePendingContextsInThisThread();
+		assertEquals("Done", TestCaseSyncMgr.getInstance().getSignal(null, "QueueTypeFilterTest1"));
+		assertEquals("Done", TestCaseSyncMgr.getInstance().getSignal(null, "QueueTypeFilterTest2"));
+
+		// Plain filter semantics
+		QueueTypeFilter exclude = QueueTypeFilter.exclude(filterQueue);
+		assertFalse(exclude.accepts("FilterQueue"));
+		assertTrue(exclude.accepts("OtherQueue"));
+		assertTrue(exclude.accepts(null));
+		QueueTypeFilter include = QueueTypeFilter.include(filterQueue);
+		assertTrue(include.accepts("FilterQueue"));
+		assertFalse(include.accepts("OtherQueue"));
+		assertFalse(include.accepts(null));
+	}
+
+	private List getExecutableIds(QueueTypeFilter queueTypeFilter)
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		tokenContextService.clearCache();
+
+		List ids = new ArrayList();
+		for (Iterator it = tokenContextService.getExecutableContexts(0, queueTypeFilter); it.hasNext();)
+		{
+			ids.add(((TokenContext) it.next()).getId());
+		}
+		tokenContextService.rollback();
+		return ids;
+	}
+}
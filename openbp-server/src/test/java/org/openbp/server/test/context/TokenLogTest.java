@@ -0,0 +1,254 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.context;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openbp.server.context.TokenLog;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that writes records to a token log, replays them and compacts the log.
+ *
+ * @author Heiko Erhardt
+ */
+public class TokenLogTest extends TestCaseBase
+{
+	/** Size of a segment; small, so the log will consist of several segments */
+	private static final int SEGMENT_SIZE = 256;
+
+	/** Size of the segment header */
+	private static final int SEGMENT_HEADER_SIZE = 8;
+
+	/** Size of the batch header (length and checksum) */
+	private static final int BATCH_HEADER_SIZE = 8;
+
+	/** Size of the record header (length and type) */
+	private static final int RECORD_HEADER_SIZE = 5;
+
+	/** Size of a record that has been appended as a batch of its own */
+	private static final int RECORD_OVERHEAD = BATCH_HEADER_SIZE + RECORD_HEADER_SIZE;
+
+	private static final byte TYPE = 1;
+
+	public TokenLogTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		File directory = File.createTempFile("tokenlog", "");
+		directory.delete();
+
+		try
+		{
+			testReplay(directory);
+			testTornTail(directory);
+			testTornBatch(directory);
+			testCompaction(directory);
+		}
+		finally
+		{
+			File [] files = directory.listFiles();
+			for (int i = 0; files != null && i < files.length; ++i)
+			{
+				files[i].delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Records must be replayed in the order they have been written; reopening the log continues the last segment.
+	 */
+	private void testReplay(File directory)
+	{
+		TokenLog log = new TokenLog(directory, SEGMENT_SIZE);
+		open(log);
+		log.append(TYPE, "A".getBytes());
+		log.append(TYPE, "B".getBytes());
+		log.close();
+		assertEquals(1, countSegments(directory));
+
+		log = new TokenLog(directory, SEGMENT_SIZE);
+		assertEquals("[A, B]", open(log).toString());
+		log.append(TYPE, "C".getBytes());
+		log.close();
+		assertEquals(1, countSegments(directory));
+
+		log = new TokenLog(directory, SEGMENT_SIZE);
+		assertEquals("[A, B, C]", open(log).toString());
+		log.close();
+		assertEquals(1, countSegments(directory));
+	}
+
+	/**
+	 * An incomplete record at the end of the log must be ignored and overwritten by the next record.
+	 */
+	private void testTornTail(File directory)
+		throws Exception
+	{
+		// Simulate a batch that has been written partially: a length, a wrong checksum and part of the data
+		int tail = SEGMENT_HEADER_SIZE + 3 * (RECORD_OVERHEAD + 1);
+		RandomAccessFile raf = new RandomAccessFile(directory.listFiles()[0], "rw");
+		raf.seek(tail);
+		raf.writeInt(1 + 20);
+		raf.writeInt(12345);
+		raf.write(TYPE);
+		raf.write("Torn".getBytes());
+		raf.close();
+
+		TokenLog log = new TokenLog(directory, SEGMENT_SIZE);
+		assertEquals("[A, B, C]", open(log).toString());
+		log.append(TYPE, "D".getBytes());
+		log.close();
+
+		log = new TokenLog(directory, SEGMENT_SIZE);
+		assertEquals("[A, B, C, D]", open(log).toString());
+		log.close();
+	}
+
+	/**
+	 * The records of a batch that has been written partially must not be replayed at all.
+	 */
+	private void testTornBatch(File directory)
+		throws Exception
+	{
+		TokenLog log = new TokenLog(directory, SEGMENT_SIZE);
+		open(log);
+		TokenLog.Batch batch = new TokenLog.Batch();
+		batch.add(TYPE, "E".getBytes());
+		batch.add(TYPE, "F".getBytes());
+		batch.add(TYPE, "G".getBytes());
+		log.append(batch);
+		log.close();
+
+		log = new TokenLog(directory, SEGMENT_SIZE);
+		assertEquals("[A, B, C, D, E, F, G]", open(log).toString());
+		log.close();
+
+		// Simulate a crash before the last record of the batch has been written
+		int tail = SEGMENT_HEADER_SIZE + 4 * (RECORD_OVERHEAD + 1) + BATCH_HEADER_SIZE + 3 * (RECORD_HEADER_SIZE + 1);
+		RandomAccessFile raf = new RandomAccessFile(directory.listFiles()[0], "rw");
+		raf.seek(tail - 1);
+		raf.write(0);
+		raf.close();
+
+		log = new TokenLog(directory, SEGMENT_SIZE);
+		assertEquals("[A, B, C, D]", open(log).toString());
+		log.close();
+	}
+
+	/**
+	 * After a compaction, only the live records must be replayed.
+	 */
+	private void testCompaction(File directory)
+	{
+		TokenLog log = new TokenLog(directory, SEGMENT_SIZE);
+		Map locations = new HashMap();
+		open(log, locations);
+
+		// Overwrite a record several times, so the log spans several segments
+		for (int i = 0; i < 60; ++i)
+		{
+			TokenLog.Location oldLocation = (TokenLog.Location) locations.put("A", log.append(TYPE, ("A" + i).getBytes()));
+			log.release(oldLocation);
+		}
+		List sealedSegments = log.getSealedSegments();
+		assertTrue(sealedSegments.size() > 1);
+		assertTrue(log.getSealedGarbageRatio() > 0.5d);
+
+		// Copy the live records of the sealed segments to the head of the log and remove the sealed segments
+		for (Iterator it = locations.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry entry = (Map.Entry) it.next();
+			TokenLog.Location location = (TokenLog.Location) entry.getValue();
+			if (sealedSegments.contains(location.getSegment()))
+			{
+				entry.setValue(log.copy(location));
+				log.release(location);
+			}
+		}
+		log.removeSegments(sealedSegments);
+		assertEquals(0, log.getSealedSegments().size());
+		log.close();
+		assertEquals(1, countSegments(directory));
+
+		log = new TokenLog(directory, SEGMENT_SIZE);
+		List records = open(log);
+		assertFalse(records.contains("A0"));
+		assertEquals("{A=A59, B=B, C=C, D=D}", getCurrentValues(records).toString());
+		log.close();
+	}
+
+	private List open(TokenLog log)
+	{
+		return open(log, new HashMap());
+	}
+
+	/**
+	 * Opens the log.
+	 *
+	 * @param log Log to open
+	 * @param locations Map that receives the location of the last record of each key (i. e. the first character of a record)
+	 * @return The records in the order they have been replayed
+	 */
+	private List open(TokenLog log, final Map locations)
+	{
+		final List records = new ArrayList();
+		log.open(new TokenLog.RecordHandler()
+		{
+			public void handleRecord(byte type, byte [] payload, TokenLog.Location location)
+			{
+				assertEquals(TYPE, type);
+				String value = new String(payload);
+				records.add(value);
+				locations.put(value.substring(0, 1), location);
+			}
+		});
+		return records;
+	}
+
+	/**
+	 * Gets the current value of each key, i. e. the value of the last record of the key.
+	 *
+	 * @param records Records in the order they have been replayed
+	 * @return Maps the keys to their current values
+	 */
+	private Map getCurrentValues(List records)
+	{
+		Map values = new TreeMap();
+		for (Iterator it = records.iterator(); it.hasNext();)
+		{
+			String value = (String) it.next();
+			values.put(value.substring(0, 1), value);
+		}
+		return values;
+	}
+
+	private int countSegments(File directory)
+	{
+		return directory.list().length - (new File(directory, "checkpoint").exists() ? 1 : 0);
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.engine;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.engine.ClusterNodeRegistry;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.test.base.TestCaseBase;
+import org.openbp.server.test.base.TestCaseSyncMgr;
+
+/**
+ * Test case that registers two cluster nodes, lets one of them time out and fences it.
+ *
+ * @author Heiko Erhardt
+ */
+public class ClusterNodeRegistryTest extends TestCaseBase
+{
+	public ClusterNodeRegistryTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		PersistenceContext pc = getProcessServer().getEngine().getPersistenceContextProvider().obtainPersistenceContext();
+
+		// Make sure there are no executable tokens left by other tests
+		getProcessFacade().executePendingContextsInThisThread();
+
+		ClusterNodeRegistry registry1 = createRegistry();
+		ClusterNodeRegistry registry2 = createRegistry();
+		assertFalse(registry1.isOwnToken("AnyToken"));
+
+		assertTrue(registry1.heartbeat("ClusterNode1"));
+		assertTrue(registry2.heartbeat("ClusterNode2"));
+		assertTrue(registry1.heartbeat("ClusterNode1"));
+		assertEquals(0, registry1.getPartition());
+		assertEquals(2, registry1.getPartitionCount());
+		assertEquals(1, registry2.getPartition());
+		assertEquals(2, registry2.getPartitionCount());
+
+		// A token that is being executed by node 1
+		TokenContext tc = createToken();
+		HashMap initialParams = new HashMap();
+		initialParams.put("SignalId", "ClusterNodeRegistryTest");
+		initialParams.put("SignalValue", "Done");
+		getProcessFacade().startToken(tc, SIMPLE_SIGNAL_SET_PROCESS_STARTREF, initialParams);
+		tokenContextService.commit();
+		List claimed = tokenContextService.claimExecutableContexts(0, "ClusterNode1");
+		assertEquals(1, claimed.size());
+		TokenContext inFlightContext = (TokenContext) claimed.get(0);
+
+		// The heartbeat of node 1 is overdue, node 2 reclaims its token
+		pc.executeUpdateOrDelete("update OPENBPNODE set NODE_HEARTBEAT = 0 where NODE_ID = ?", new Object[] { "ClusterNode1" });
+		pc.commitTransaction();
+		assertTrue(registry2.heartbeat("ClusterNode2"));
+		assertEquals(0, registry2.getPartition());
+		assertEquals(1, registry2.getPartitionCount());
+
+		// The execution that is still in flight on node 1 must not overwrite the reclaimed token
+		boolean failed = false;
+		try
+		{
+			inFlightContext.setLifecycleState(LifecycleState.RUNNING);
+			tokenContextService.saveContext(inFlightContext);
+			tokenContextService.commit();
+		}
+		catch (RuntimeException e)
+		{
+			failed = true;
+			tokenContextService.rollback();
+		}
+		assertTrue(failed);
+		tokenContextService.clearCache();
+
+		tc = tokenContextService.getContextById(tc.getId());
+		assertEquals(LifecycleState.SUSPENDED, tc.getLifecycleState());
+		assertEquals(LifecycleRequest.RESUME, tc.getLifecycleRequest());
+
+		// Node 1 has been fenced; it does not own any tokens until it rejoins with the next heartbeat
+		assertFalse(registry1.heartbeat("ClusterNode1"));
+		assertFalse(registry1.isRegistered());
+		assertFalse(registry1.isOwnToken(tc.getId()));
+		assertTrue(registry1.heartbeat("ClusterNode1"));
+		assertTrue(registry1.isRegistered());
+		assertEquals(2, registry1.getPartitionCount());
+
+		registry1.unregister("ClusterNode1");
+		registry2.unregister("ClusterNode2");
+		assertFalse(registry1.isRegistered());
+
+		// The reclaimed token can be executed
+		getProcessFacade().executePendingContextsInThisThread();
+		assertEquals("Done", TestCaseSyncMgr.getInstance().getSignal(null, "ClusterNodeRegistryTest"));
+	}
+
+	private ClusterNodeRegistry createRegistry()
+	{
+		ClusterNodeRegistry registry = new ClusterNodeRegistry();
+		registry.setPersistenceContextProvider(getProcessServer().getEngine().getPersistenceContextProvider());
+		registry.setTokenContextService(getProcessServer().getTokenContextService());
+		return registry;
+	}
+}
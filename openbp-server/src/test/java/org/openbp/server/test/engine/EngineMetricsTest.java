@@ -0,0 +1,119 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.engine;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.server.engine.EngineImpl;
+import org.openbp.server.engine.metrics.EngineMetrics;
+import org.openbp.server.engine.metrics.LatencyStatistics;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that makes sure that the engine metrics are keyed by qualifier strings
+ * and that the statistics of model objects are discarded on model updates.
+ *
+ * @author Heiko Erhardt
+ */
+public class EngineMetricsTest extends TestCaseBase
+{
+	private static final String SIGNAL_PROCESS = "/TestCase/SimpleSignalProcess";
+
+	private static final String WAIT_PROCESS = "/TestCase/SimpleWaitProcess";
+
+	public EngineMetricsTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		EngineImpl engine = (EngineImpl) getProcessServer().getEngine();
+
+		// Make sure there are no executable tokens left by other tests
+		getProcessFacade().executePendingContextsInThisThread();
+
+		EngineMetrics metrics = new EngineMetrics();
+		metrics.setObjectName(null);
+		EngineMetrics oldMetrics = engine.getEngineMetrics();
+		engine.setEngineMetrics(metrics);
+		try
+		{
+			// The signal is set before the wait process is executed, so the wait process will not block
+			startSimpleSignalSetProcess("EngineMetricsTest", "Done", 0);
+			startSimpleSignalWaitProcess("EngineMetricsTest", 0);
+			getProcessFacade().executePendingContextsInThisThread();
+
+			assertEquals(2, metrics.getTokensStarted());
+			assertTrue(metrics.getProcessStatistics().containsKey(SIGNAL_PROCESS));
+			assertTrue(metrics.getProcessStatistics().containsKey(WAIT_PROCESS));
+			assertTrue(countKeys(metrics.getNodeStatistics(), SIGNAL_PROCESS) > 0);
+			assertTrue(countKeys(metrics.getNodeStatistics(), WAIT_PROCESS) > 0);
+			assertTrue(countKeys(metrics.getHandlerStatistics(), SIGNAL_PROCESS) > 0);
+
+			// The update of a process discards the statistics of the process only
+			metrics.modelUpdated(new ModelQualifier(SIGNAL_PROCESS), 0);
+			assertFalse(metrics.getProcessStatistics().containsKey(SIGNAL_PROCESS));
+			assertEquals(0, countKeys(metrics.getNodeStatistics(), SIGNAL_PROCESS));
+			assertEquals(0, countKeys(metrics.getHandlerStatistics(), SIGNAL_PROCESS));
+			assertTrue(metrics.getProcessStatistics().containsKey(WAIT_PROCESS));
+			assertTrue(countKeys(metrics.getNodeStatistics(), WAIT_PROCESS) > 0);
+
+			// The statistics of the same process continue after the update
+			startSimpleSignalSetProcess("EngineMetricsTest", "Done", 0);
+			getProcessFacade().executePendingContextsInThisThread();
+			LatencyStatistics statistics = metrics.getProcessStatistics().get(SIGNAL_PROCESS);
+			assertNotNull(statistics);
+			assertEquals(1L, statistics.getCount());
+
+			// A model reset discards all model statistics, but retains the counters
+			metrics.requestModelReset();
+			assertTrue(metrics.getProcessStatistics().isEmpty());
+			assertTrue(metrics.getNodeStatistics().isEmpty());
+			assertTrue(metrics.getHandlerStatistics().isEmpty());
+			assertEquals(3, metrics.getTokensStarted());
+
+			metrics.reset();
+			assertEquals(0, metrics.getTokensStarted());
+		}
+		finally
+		{
+			engine.setEngineMetrics(oldMetrics);
+		}
+	}
+
+	/**
+	 * Counts the statistics of the sub objects of a process.
+	 *
+	 * @param statistics Statistics map
+	 * @param processName Process qualifier
+	 * @return The number of keys that start with the process qualifier and the object delimiter
+	 */
+	private static int countKeys(Map<String, LatencyStatistics> statistics, String processName)
+	{
+		int n = 0;
+		for (Iterator<String> it = statistics.keySet().iterator(); it.hasNext();)
+		{
+			if (it.next().startsWith(processName + ModelQualifier.OBJECT_DELIMITER_CHAR))
+			{
+				++n;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.openbp.server.ServerConstants;
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.PersistentTokenContextService;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.context.TokenContextUtil;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that makes sure that a fork node that commits its child tokens in chunks
+ * does not create the children of the committed chunks again if the fork is retried after a failure.
+ *
+ * @author Heiko Erhardt
+ */
+public class ForkRetryTest extends TestCaseBase
+{
+	private static final String STARTREF = "/TestCase/ForkTest.Start";
+
+	private static final String PROGRESS_PARAM = "Fork.In.ForkProgress";
+
+	private static final int NUMBER_OF_ELEMENTS = 5;
+
+	public ForkRetryTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		if (! (tokenContextService instanceof PersistentTokenContextService))
+			return;
+
+		// Make sure there are no executable tokens left by other tests
+		getProcessFacade().executePendingContextsInThisThread();
+
+		String oldChunkSize = System.getProperty(ServerConstants.SYSPROP_FORK_CHUNKSIZE);
+		String oldCommitChunks = System.getProperty(ServerConstants.SYSPROP_FORK_COMMITCHUNKS);
+		System.setProperty(ServerConstants.SYSPROP_FORK_CHUNKSIZE, "2");
+		System.setProperty(ServerConstants.SYSPROP_FORK_COMMITCHUNKS, "true");
+		try
+		{
+			performForkTest(tokenContextService);
+		}
+		finally
+		{
+			restoreProperty(ServerConstants.SYSPROP_FORK_CHUNKSIZE, oldChunkSize);
+			restoreProperty(ServerConstants.SYSPROP_FORK_COMMITCHUNKS, oldCommitChunks);
+			FailingList.failAt = -1;
+		}
+	}
+
+	private void performForkTest(TokenContextService tokenContextService)
+	{
+		FailingList elements = new FailingList();
+		for (int i = 0; i < NUMBER_OF_ELEMENTS; ++i)
+		{
+			elements.add("Element" + i);
+		}
+
+		HashMap initialParams = new HashMap();
+		initialParams.put("Collection", elements);
+
+		TokenContext parent = createToken();
+		getProcessFacade().startToken(parent, STARTREF, initialParams);
+		Object parentId = parent.getId();
+
+		// Fail when retrieving the last element, i. e. after two chunks have been committed
+		FailingList.failAt = NUMBER_OF_ELEMENTS - 1;
+		try
+		{
+			getProcessFacade().executeContextInThisThread(parent);
+			fail("Fork did not fail.");
+		}
+		catch (RuntimeException e)
+		{
+			// Expected
+		}
+
+		tokenContextService.clearCache();
+		parent = tokenContextService.getContextById(parentId);
+		assertEquals("Fork", parent.getCurrentSocket().getNode().getName());
+		assertEquals(Integer.valueOf(4), parent.getParamValue(PROGRESS_PARAM));
+		assertEquals(4, getChildren(parentId).size());
+
+		// Retry the fork
+		FailingList.failAt = -1;
+		parent.setLifecycleRequest(LifecycleRequest.RESUME);
+		getProcessFacade().executeContextInThisThread(parent);
+
+		tokenContextService.clearCache();
+		parent = tokenContextService.getContextById(parentId);
+		assertFalse(parent.hasParamValue(PROGRESS_PARAM));
+		assertEquals(Integer.valueOf(NUMBER_OF_ELEMENTS), getChildCount(parentId));
+
+		// Each element has been forked exactly once
+		Collection childIds = getChildren(parentId);
+		assertEquals(NUMBER_OF_ELEMENTS, childIds.size());
+		Set forkedElements = new HashSet();
+		for (Iterator it = childIds.iterator(); it.hasNext();)
+		{
+			TokenContext child = tokenContextService.getContextById(it.next());
+			forkedElements.add(TokenContextUtil.getParamValue(child, child.getCurrentSocket(), "CollectionElement"));
+		}
+		assertEquals(new HashSet(elements), forkedElements);
+
+		tokenContextService.deleteContext(parent);
+		tokenContextService.commit();
+	}
+
+	private Collection getChildren(Object parentId)
+	{
+		PersistenceContext pc = getProcessServer().getEngine().getPersistenceContextProvider().obtainPersistenceContext();
+		return pc.executeSelect("select TC_ID from OPENBPTOKENCONTEXT where TC_PARENT_ID = ?", new Object[] { parentId }, 0);
+	}
+
+	private Integer getChildCount(Object parentId)
+	{
+		PersistenceContext pc = getProcessServer().getEngine().getPersistenceContextProvider().obtainPersistenceContext();
+		Object value = pc.executeSelect("select TC_CHILD_COUNT from OPENBPTOKENCONTEXT where TC_ID = ?", new Object[] { parentId }, 0).iterator().next();
+		return value != null ? Integer.valueOf(((Number) value).intValue()) : null;
+	}
+
+	private static void restoreProperty(String name, String value)
+	{
+		if (value != null)
+		{
+			System.setProperty(name, value);
+		}
+		else
+		{
+			System.clearProperty(name);
+		}
+	}
+
+	/**
+	 * List whose iterator fails when the element at a given index is retrieved.
+	 */
+	public static class FailingList extends ArrayList
+	{
+		/** Index of the element that causes the failure or -1 */
+		static int failAt = -1;
+
+		public Iterator iterator()
+		{
+			final Iterator it = super.iterator();
+			return new Iterator()
+			{
+				private int index;
+
+				public boolean hasNext()
+				{
+					return it.hasNext();
+				}
+
+				public Object next()
+				{
+					if (index++ == failAt)
+						throw new IllegalStateException("Simulated failure at element " + failAt + ".");
+					return it.next();
+				}
+
+				public void remove()
+				{
+					it.remove();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.engine;
+
+import java.util.HashMap;
+
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.DataLinkImpl;
+import org.openbp.core.model.item.process.ProcessItem;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.test.ComplexParam;
+import org.openbp.server.test.base.TestCaseBase;
+import org.openbp.server.test.base.TestCaseSyncMgr;
+
+/**
+ * Test case that executes a data link with a source member path and makes sure that the member path
+ * is compiled once and compiled again after the data link has been modified.
+ *
+ * @author Heiko Erhardt
+ */
+public class MemberPathTest extends TestCaseBase
+{
+	private static final String STARTREF = "/TestCase/MemberPathTest.Start";
+
+	public MemberPathTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		ProcessItem process = (ProcessItem) getProcessServer().getModelMgr().getItemByQualifier(
+			new ModelQualifier("/TestCase", "MemberPathTest", ItemTypes.PROCESS), true);
+		DataLinkImpl link = (DataLinkImpl) process.getDataLinkByName("DataLink");
+
+		// The member path is compiled on first execution
+		runProcess("Title1");
+		Object path = link.getCompiledSourceMemberPath();
+		assertNotNull(path);
+
+		// And reused afterwards
+		runProcess("Title2");
+		assertSame(path, link.getCompiledSourceMemberPath());
+
+		// Modifying the member path discards the compiled expression
+		link.setSourceMemberPath(link.getSourceMemberPath());
+		assertNull(link.getCompiledSourceMemberPath());
+		runProcess("Title3");
+		assertNotNull(link.getCompiledSourceMemberPath());
+		assertNotSame(path, link.getCompiledSourceMemberPath());
+
+		// So does modifying the source parameter
+		link.setSourceParam(link.getSourceParam());
+		assertNull(link.getCompiledSourceMemberPath());
+		runProcess("Title4");
+
+		// The same applies to the target member path
+		Object targetPath = new Object();
+		link.setCompiledTargetMemberPath(targetPath);
+		link.setTargetParam(link.getTargetParam());
+		assertNull(link.getCompiledTargetMemberPath());
+		link.setCompiledTargetMemberPath(targetPath);
+		link.setTargetMemberPath(null);
+		assertNull(link.getCompiledTargetMemberPath());
+	}
+
+	private void runProcess(String title)
+	{
+		ComplexParam complexParam = new ComplexParam();
+		complexParam.setTitle(title);
+
+		HashMap initialParams = new HashMap();
+		initialParams.put("SignalId", "MemberPathTest");
+		initialParams.put("Complex", complexParam);
+
+		TokenContext tc = createToken();
+		getProcessFacade().startToken(tc, STARTREF, initialParams);
+		getProcessFacade().executePendingContextsInThisThread();
+
+		assertEquals(title, TestCaseSyncMgr.getInstance().getSignal(null, "MemberPathTest"));
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.engine;
+
+import org.openbp.common.util.observer.EventObserver;
+import org.openbp.common.util.observer.ObserverEvent;
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.LifecycleState;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.engine.EngineEvent;
+import org.openbp.server.engine.EngineImpl;
+import org.openbp.server.engine.EngineRunner;
+import org.openbp.server.engine.MemorySuspendRegistry;
+import org.openbp.server.persistence.PersistenceContext;
+import org.openbp.server.test.base.TestCaseBase;
+import org.openbp.server.test.base.TestCaseSyncMgr;
+
+/**
+ * Test case that suspends a token in memory using the memory suspend registry and resumes it again.
+ *
+ * @author Heiko Erhardt
+ */
+public class MemorySuspendTest extends TestCaseBase
+{
+	public MemorySuspendTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		EngineImpl engine = (EngineImpl) getProcessServer().getEngine();
+		EngineRunner engineRunner = getProcessServer().getEngineRunner();
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+
+		MemorySuspendRegistry registry = new MemorySuspendRegistry();
+		engine.setMemorySuspendRegistry(registry);
+		engineRunner.setMemorySuspendRegistry(registry);
+
+		SuspendObserver observer = new SuspendObserver();
+		engine.registerObserver(observer, new String[] { EngineEvent.BEGIN_EXECUTION });
+
+		try
+		{
+			TokenContext tc = startSimpleSignalSetProcess("MemorySuspendTest", "Done", 0);
+			observer.contextId = tc.getId();
+
+			// The token will be suspended at the start node; this must not block the executing thread
+			getProcessFacade().executePendingContextsInThisThread();
+
+			// The parked token must not keep the persistence context (i. e. database session and connection) of the executing thread
+			assertNotNull(observer.persistenceContext);
+			assertNotSame(observer.persistenceContext, engine.getPersistenceContextProvider().obtainExistingPersistenceContext());
+
+			assertEquals(1, registry.getNumberOfParkedContexts());
+			TokenContext parkedContext = registry.getParkedContext(tc.getId());
+			assertNotNull(parkedContext);
+			assertEquals(LifecycleState.IDLING, parkedContext.getLifecycleState());
+			assertNull(TestCaseSyncMgr.getInstance().getSignal(null, "MemorySuspendTest"));
+
+			// The work of the token has been committed before it has been parked; the idle state is a mere memory state
+			tokenContextService.clearCache();
+			assertEquals(LifecycleState.RUNNING, tokenContextService.getContextById(tc.getId()).getLifecycleState());
+
+			// Resuming the token must dispatch it to the engine runner
+			getProcessFacade().resumeToken(parkedContext);
+			assertEquals("Done", TestCaseSyncMgr.getInstance().receiveSignal(null, "MemorySuspendTest", 10));
+			assertEquals(0, registry.getNumberOfParkedContexts());
+		}
+		finally
+		{
+			engine.unregisterObserver(observer);
+			engine.setMemorySuspendRegistry(null);
+			engineRunner.setMemorySuspendRegistry(null);
+		}
+	}
+
+	/**
+	 * Observer that requests a memory suspension of a particular token when it begins its execution for the first time.
+	 */
+	private static class SuspendObserver
+		implements EventObserver
+	{
+		/** Id of the token to suspend */
+		private volatile Object contextId;
+
+		/** Flag if the token has been suspended */
+		private boolean suspended;
+
+		/** Persistence context of the thread that suspended the token */
+		private PersistenceContext persistenceContext;
+
+		public void observeEvent(ObserverEvent e)
+		{
+			TokenContext context = ((EngineEvent) e).getContext();
+			if (! suspended && context.getId().equals(contextId))
+			{
+				suspended = true;
+				persistenceContext = ((EngineEvent) e).getEngine().getPersistenceContextProvider().obtainExistingPersistenceContext();
+				context.setLifecycleRequest(LifecycleRequest.SUSPEND_MEMORY);
+			}
+		}
+
+		public String getSubscriptionKey()
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.engine;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.openbp.server.context.LifecycleRequest;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.engine.ThreadPoolEngineRunner;
+import org.openbp.server.test.base.TestCaseBase;
+import org.openbp.server.test.base.TestCaseSyncMgr;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Test case that makes sure that a token will be left in the database
+ * if the executor of its queue type is saturated.
+ *
+ * @author Heiko Erhardt
+ */
+public class QueueExecutorSaturationTest extends TestCaseBase
+{
+	public QueueExecutorSaturationTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		ThreadPoolEngineRunner engineRunner = (ThreadPoolEngineRunner) getProcessServer().getEngineRunner();
+		boolean claimContexts = engineRunner.isClaimContexts();
+
+		// Make sure there are no executable tokens left by other tests
+		getProcessFacade().executePendingContextsInThisThread();
+
+		// Occupy the only thread of the default executor
+		setThreadPoolSize(1);
+		final CountDownLatch latch = new CountDownLatch(1);
+		engineRunner.getExecutor().execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					latch.await();
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+		});
+		while (engineRunner.getExecutor().getActiveCount() == 0)
+		{
+			Thread.sleep(10);
+		}
+
+		// Provide an executor for a different queue type, so the engine runner will continue after the saturated executor
+		ThreadPoolTaskExecutor otherExecutor = new ThreadPoolTaskExecutor();
+		otherExecutor.setCorePoolSize(1);
+		otherExecutor.setMaxPoolSize(1);
+		otherExecutor.setQueueCapacity(0);
+		otherExecutor.initialize();
+		HashMap queueExecutors = new HashMap();
+		queueExecutors.put("OtherQueue", otherExecutor);
+
+		TokenContext tc = startSimpleSignalSetProcess("SaturationTest", "Done", 0);
+		tokenContextService.commit();
+		Object id = tc.getId();
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		Object version = tc.getVersion();
+		int lifecycleState = tc.getLifecycleState();
+
+		try
+		{
+			engineRunner.setQueueExecutors(queueExecutors);
+			engineRunner.setClaimContexts(true);
+			getProcessFacade().executePendingContextsInDifferentThread();
+		}
+		finally
+		{
+			engineRunner.setQueueExecutors(null);
+			engineRunner.setClaimContexts(claimContexts);
+			latch.countDown();
+			otherExecutor.shutdown();
+		}
+
+		// The token must not have been claimed, since its queue type has been excluded from the query
+		tokenContextService.clearCache();
+		tc = tokenContextService.getContextById(id);
+		assertEquals(version, tc.getVersion());
+		assertEquals(lifecycleState, tc.getLifecycleState());
+		assertEquals(LifecycleRequest.RESUME, tc.getLifecycleRequest());
+		assertNull(TestCaseSyncMgr.getInstance().getSignal(null, "SaturationTest"));
+
+		// It will be executed by the next poll
+		getProcessFacade().executePendingContextsInThisThread();
+		assertEquals("Done", TestCaseSyncMgr.getInstance().getSignal(null, "SaturationTest"));
+
+		setThreadPoolSize(5);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.engine;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.context.TokenContextService;
+import org.openbp.server.engine.EngineImpl;
+import org.openbp.server.engine.ReadyTokenQueue;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that makes sure that the tokens posted to the ready token queue are published
+ * when the transaction is committed, also if the application commits using the token context service directly,
+ * and that they are discarded when the transaction is rolled back.
+ *
+ * @author Heiko Erhardt
+ */
+public class ReadyTokenQueueTest extends TestCaseBase
+{
+	public ReadyTokenQueueTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		TokenContextService tokenContextService = getProcessServer().getTokenContextService();
+		EngineImpl engine = (EngineImpl) getProcessServer().getEngine();
+
+		// Make sure there are no executable tokens left by other tests
+		getProcessFacade().executePendingContextsInThisThread();
+
+		// The engine runner is not attached to the queue, so the queue will not be drained
+		ReadyTokenQueue queue = new ReadyTokenQueue();
+		engine.setReadyTokenQueue(queue);
+		try
+		{
+			// Token started and committed by the engine
+			TokenContext tc = startSimpleSignalSetProcess("ReadyTokenQueueTest", "Done", 0);
+			Object id = tc.getId();
+			assertEquals(id, queue.poll(0L));
+			assertEquals(0, queue.size());
+
+			// Token posted within a transaction that is committed by the application
+			tokenContextService.begin();
+			engine.notifyTokenReady(tc);
+			assertEquals(0, queue.size());
+			tokenContextService.commit();
+			assertEquals(id, queue.poll(0L));
+
+			// Token posted within a transaction that is rolled back by the application
+			tokenContextService.begin();
+			engine.notifyTokenReady(tc);
+			tokenContextService.rollback();
+			tokenContextService.begin();
+			tokenContextService.commit();
+			assertEquals(0, queue.size());
+		}
+		finally
+		{
+			engine.setReadyTokenQueue(null);
+		}
+
+		getProcessFacade().executePendingContextsInThisThread();
+
+		checkCapacity();
+		checkConcurrentFirstUse();
+	}
+
+	/**
+	 * Ids that exceed the capacity of the queue are dropped.
+	 */
+	private void checkCapacity()
+	{
+		ReadyTokenQueue queue = new ReadyTokenQueue();
+		queue.setCapacity(1);
+		queue.post("1");
+		queue.post("2");
+		queue.transactionCommitted();
+		assertEquals(1, queue.size());
+		assertEquals("1", queue.poll(0L));
+		assertNull(queue.poll(0L));
+	}
+
+	/**
+	 * Threads that access a fresh queue concurrently must all publish to the same queue instance.
+	 */
+	private void checkConcurrentFirstUse()
+		throws Exception
+	{
+		final int nThreads = 8;
+		final int nIds = 100;
+		final ReadyTokenQueue queue = new ReadyTokenQueue();
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch doneLatch = new CountDownLatch(nThreads);
+
+		for (int i = 0; i < nThreads; ++i)
+		{
+			final int threadIndex = i;
+			new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						for (int j = 0; j < nIds; ++j)
+						{
+							queue.post(Integer.valueOf(threadIndex * nIds + j));
+						}
+						startLatch.await();
+						queue.transactionCommitted();
+					}
+					catch (InterruptedException e)
+					{
+					}
+					finally
+					{
+						doneLatch.countDown();
+					}
+				}
+			}.start();
+		}
+		startLatch.countDown();
+		doneLatch.await();
+
+		Set<Object> ids = new HashSet<Object>();
+		Object id;
+		while ((id = queue.poll(0L)) != null)
+		{
+			ids.add(id);
+		}
+		assertEquals(nThreads * nIds, ids.size());
+	}
+}
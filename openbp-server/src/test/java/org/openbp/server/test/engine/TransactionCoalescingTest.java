@@ -0,0 +1,107 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.engine;
+
+import java.util.Collections;
+
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.ProcessItem;
+import org.openbp.server.engine.EngineImpl;
+import org.openbp.server.engine.metrics.EngineMetrics;
+import org.openbp.server.test.base.TestCaseBase;
+import org.openbp.server.test.base.TestCaseSyncMgr;
+
+/**
+ * Test case that executes a straight-through process with and without transaction coalescing
+ * and makes sure that the coalesced execution saves the commit before the first step.
+ *
+ * @author Heiko Erhardt
+ */
+public class TransactionCoalescingTest extends TestCaseBase
+{
+	private static final String SIGNAL_ID = "TransactionCoalescingTest";
+
+	public TransactionCoalescingTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		EngineImpl engine = (EngineImpl) getProcessServer().getEngine();
+		ProcessItem signalProcess = (ProcessItem) getProcessServer().getModelMgr().getItemByQualifier(
+			new ModelQualifier("/TestCase", "SimpleSignalProcess", ItemTypes.PROCESS), true);
+		ProcessItem waitProcess = (ProcessItem) getProcessServer().getModelMgr().getItemByQualifier(
+			new ModelQualifier("/TestCase", "SimpleWaitProcess", ItemTypes.PROCESS), true);
+
+		// Make sure there are no executable tokens left by other tests
+		getProcessFacade().executePendingContextsInThisThread();
+
+		EngineMetrics metrics = new EngineMetrics();
+		metrics.setObjectName(null);
+		EngineMetrics oldMetrics = engine.getEngineMetrics();
+		boolean oldCoalescing = engine.isTransactionCoalescing();
+		engine.setEngineMetrics(metrics);
+		try
+		{
+			engine.setTransactionCoalescing(false);
+			engine.setTransactionCoalescingProcesses(null);
+			assertFalse(engine.isTransactionCoalescing(signalProcess));
+			long commits = runProcess(metrics, "Regular");
+
+			// Coalescing enabled for the process
+			engine.setTransactionCoalescingProcesses(Collections.singleton("/TestCase/SimpleSignalProcess"));
+			assertTrue(engine.isTransactionCoalescing(signalProcess));
+			assertFalse(engine.isTransactionCoalescing(waitProcess));
+			assertFalse(engine.isTransactionCoalescing(null));
+			assertEquals(commits - 1, runProcess(metrics, "Process"));
+
+			// Coalescing enabled for the engine
+			engine.setTransactionCoalescingProcesses(null);
+			engine.setTransactionCoalescing(true);
+			assertTrue(engine.isTransactionCoalescing(signalProcess));
+			assertTrue(engine.isTransactionCoalescing(waitProcess));
+			assertTrue(engine.isTransactionCoalescing(null));
+			assertEquals(commits - 1, runProcess(metrics, "Engine"));
+		}
+		finally
+		{
+			engine.setTransactionCoalescing(oldCoalescing);
+			engine.setTransactionCoalescingProcesses(null);
+			engine.setEngineMetrics(oldMetrics);
+		}
+	}
+
+	/**
+	 * Starts the signal process and executes it using the engine runner.
+	 *
+	 * @param metrics Engine metrics
+	 * @param signalValue Value the process should set
+	 * @return The number of commits of the execution
+	 */
+	private long runProcess(EngineMetrics metrics, String signalValue)
+	{
+		startSimpleSignalSetProcess(SIGNAL_ID, signalValue, 0);
+
+		metrics.reset();
+		getProcessFacade().executePendingContextsInThisThread();
+		assertEquals(signalValue, TestCaseSyncMgr.getInstance().getSignal(null, SIGNAL_ID));
+		assertEquals(1L, metrics.getTokensEnded());
+
+		return metrics.getCommitStatistics().getCount();
+	}
+}
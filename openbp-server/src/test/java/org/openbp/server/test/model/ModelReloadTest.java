@@ -0,0 +1,90 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.model;
+
+import org.openbp.core.model.Model;
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.ProcessItem;
+import org.openbp.core.model.modelmgr.ModelMgr;
+import org.openbp.core.model.modelmgr.NonDelegatingModelMgrBase;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that makes sure that models that are being reloaded are published to other threads
+ * only after they have been initialized.
+ *
+ * @author Heiko Erhardt
+ */
+public class ModelReloadTest extends TestCaseBase
+{
+	public static final String PROCESSREF = "/TestCase/ModelInspectorUtilTest";
+
+	public ModelReloadTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		ModelMgr modelMgr = getProcessServer().getModelMgr();
+		ModelQualifier modelQualifier = new ModelQualifier("/TestCase");
+		Model oldModel = modelMgr.getModelByQualifier(modelQualifier);
+		NonDelegatingModelMgrBase loadingModelMgr = (NonDelegatingModelMgrBase) oldModel.getModelMgr();
+
+		loadingModelMgr.readModels();
+		try
+		{
+			// The reading thread sees the new model...
+			Model loadingModel = modelMgr.getModelByQualifier(modelQualifier);
+			assertNotSame(oldModel, loadingModel);
+
+			// ...while other threads continue to see the old model until the new one has been initialized
+			assertSame(oldModel, getModelInOtherThread(modelMgr, modelQualifier));
+		}
+		finally
+		{
+			loadingModelMgr.initializeModels();
+		}
+
+		Model newModel = modelMgr.getModelByQualifier(modelQualifier);
+		assertNotSame(oldModel, newModel);
+		assertSame(newModel, getModelInOtherThread(modelMgr, modelQualifier));
+
+		// The references of the new model have been established
+		ModelQualifier processQualifier = new ModelQualifier(PROCESSREF);
+		processQualifier.setItemType(ItemTypes.PROCESS);
+		ProcessItem process = (ProcessItem) modelMgr.getItemByQualifier(processQualifier, true);
+		assertSame(newModel, process.getModel());
+		assertNotNull(process.getNodeByName("Start").getDefaultEntrySocket().getProcess());
+	}
+
+	private Model getModelInOtherThread(final ModelMgr modelMgr, final ModelQualifier modelQualifier)
+		throws InterruptedException
+	{
+		final Model[] result = new Model[1];
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				result[0] = modelMgr.getOptionalModelByQualifier(modelQualifier);
+			}
+		};
+		thread.start();
+		thread.join();
+		return result[0];
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.model;
+
+import java.util.List;
+
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.DataLink;
+import org.openbp.core.model.item.process.DataLinkImpl;
+import org.openbp.core.model.item.process.NodeParam;
+import org.openbp.core.model.item.process.ProcessItem;
+import org.openbp.core.model.item.process.ProcessVariable;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that makes sure that the process variable data link index of a process
+ * reflects data links that are added to or removed from a parameter directly
+ * and data links whose target parameter changes.
+ *
+ * @author Heiko Erhardt
+ */
+public class ProcessVariableLinkIndexTest extends TestCaseBase
+{
+	public ProcessVariableLinkIndexTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		ProcessItem process = (ProcessItem) getProcessServer().getModelMgr().getItemByQualifier(
+			new ModelQualifier("/TestCase", "SimpleAddParamTest", ItemTypes.PROCESS), true);
+		ProcessVariable var = process.getProcessVariableByName("globalObject");
+		NodeParam endParam = (NodeParam) process.getParamByName("End.In.r");
+		NodeParam workflowParam = (NodeParam) process.getParamByName("Workflow.In.StepDisplayName");
+
+		// Build the index
+		assertNull(process.getProcessVariableLinks(endParam));
+
+		DataLink link = new DataLinkImpl();
+		link.setName("ProcessVariableLinkIndexTest");
+		link.setProcess(process);
+		link.setSourceParam(var);
+		link.setTargetParam(endParam);
+		try
+		{
+			// Link added to the process variable directly
+			assertNull(process.getProcessVariableLinks(endParam));
+			var.addDataLink(link);
+			checkLinks(process, endParam, link);
+
+			// Link retargeted
+			link.setTargetParam(workflowParam);
+			assertNull(process.getProcessVariableLinks(endParam));
+			checkLinks(process, workflowParam, link);
+
+			// Link removed from the process variable directly
+			var.removeDataLink(link);
+			assertNull(process.getProcessVariableLinks(workflowParam));
+		}
+		finally
+		{
+			var.removeDataLink(link);
+			process.invalidateProcessVariableLinkIndex();
+		}
+	}
+
+	private void checkLinks(ProcessItem process, NodeParam param, DataLink link)
+	{
+		List links = process.getProcessVariableLinks(param);
+		assertNotNull(links);
+		assertEquals(1, links.size());
+		assertSame(link, links.get(0));
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.model;
+
+import org.openbp.core.model.Model;
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.NodeSocket;
+import org.openbp.core.model.item.process.ProcessItem;
+import org.openbp.core.model.modelmgr.ModelMgr;
+import org.openbp.core.model.modelmgr.NonDelegatingModelMgrBase;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case that makes sure that models and node sockets that are resolved by their qualifier string
+ * are cached and that the cache does not return stale objects after the models have been reloaded.
+ *
+ * @author Heiko Erhardt
+ */
+public class QualifierCacheTest extends TestCaseBase
+{
+	public static final String MODELREF = "/TestCase";
+
+	public static final String SOCKETREF = "/TestCase/SimpleSignalProcess.Start.Out";
+
+	public QualifierCacheTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		ModelMgr modelMgr = getProcessServer().getModelMgr();
+
+		// Repeated lookups return the cached objects
+		Model oldModel = checkModel(modelMgr);
+		NodeSocket oldSocket = checkSocket(modelMgr, oldModel);
+
+		// Unresolvable qualifiers are not cached
+		assertNull(modelMgr.getNodeSocketByQualifierString("/TestCase/SimpleSignalProcess.Start.Unknown"));
+		assertNull(modelMgr.getNodeSocketByQualifierString("/TestCase/SimpleSignalProcess.Start.Unknown"));
+
+		// Clearing the cache resolves the same objects again
+		modelMgr.clearQualifierCache();
+		assertSame(oldModel, checkModel(modelMgr));
+		assertSame(oldSocket, checkSocket(modelMgr, oldModel));
+
+		// Reloading the models must not leave stale objects in the cache
+		NonDelegatingModelMgrBase loadingModelMgr = (NonDelegatingModelMgrBase) oldModel.getModelMgr();
+		loadingModelMgr.readModels();
+		loadingModelMgr.initializeModels();
+
+		Model newModel = checkModel(modelMgr);
+		assertNotSame(oldModel, newModel);
+		NodeSocket newSocket = checkSocket(modelMgr, newModel);
+		assertNotSame(oldSocket, newSocket);
+	}
+
+	private Model checkModel(ModelMgr modelMgr)
+	{
+		Model model = modelMgr.getModelByQualifierString(MODELREF);
+		assertNotNull(model);
+		assertSame(model, modelMgr.getModelByQualifierString(MODELREF));
+		assertSame(modelMgr.getModelByQualifier(new ModelQualifier(MODELREF)), model);
+		return model;
+	}
+
+	private NodeSocket checkSocket(ModelMgr modelMgr, Model model)
+	{
+		NodeSocket socket = modelMgr.getNodeSocketByQualifierString(SOCKETREF);
+		assertNotNull(socket);
+		assertSame(socket, modelMgr.getNodeSocketByQualifierString(SOCKETREF));
+
+		ProcessItem process = (ProcessItem) modelMgr.getItemByQualifier(new ModelQualifier(MODELREF, "SimpleSignalProcess", ItemTypes.PROCESS), true);
+		assertSame(model, process.getModel());
+		assertSame(process, socket.getProcess());
+		assertSame(process.getNodeByName("Start").getSocketByName("Out"), socket);
+		return socket;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.script;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.openbp.server.engine.script.ScriptCache;
+import org.openbp.server.engine.script.ScriptEngine;
+import org.openbp.server.engine.script.ScriptEngineFactoryImpl;
+import org.openbp.server.test.base.TestCaseBase;
+
+import bsh.PreparsedScript;
+
+/**
+ * Test case for the cache of parsed scripts.
+ * Makes sure that parsed scripts are kept per thread and class loader and that the cache
+ * is cleared on model updates.
+ *
+ * @author Heiko Erhardt
+ */
+public class ScriptCacheTest extends TestCaseBase
+{
+	private static final String SCRIPT = "x = 0; for (i = 0; i < 100; i++) { x += i; } x;";
+
+	private static final Integer RESULT = Integer.valueOf(4950);
+
+	private static final int NUMBER_OF_THREADS = 8;
+
+	private static final int EXECUTIONS_PER_THREAD = 200;
+
+	public ScriptCacheTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		checkThreadAndClassLoaderKeys();
+		checkEviction();
+		checkWeakClassLoaderKey();
+		checkConcurrentExecution();
+		checkModelUpdate();
+	}
+
+	private void checkThreadAndClassLoaderKeys()
+		throws Exception
+	{
+		final ScriptCache cache = new ScriptCache(10);
+		ClassLoader cl = getClass().getClassLoader();
+		ClassLoader otherCl = new URLClassLoader(new URL[0], cl);
+
+		PreparsedScript script = PreparsedScript.parse(SCRIPT, "<?>");
+		cache.put(SCRIPT, cl, script);
+		assertSame(script, cache.get(SCRIPT, cl));
+		assertNull(cache.get(SCRIPT, otherCl));
+		assertNull(cache.get(SCRIPT, null));
+
+		PreparsedScript nullClScript = PreparsedScript.parse(SCRIPT, "<?>");
+		cache.put(SCRIPT, null, nullClScript);
+		assertSame(nullClScript, cache.get(SCRIPT, null));
+		assertEquals(2, cache.size());
+
+		// Another thread does not see the scripts of this thread
+		final PreparsedScript threadScript = PreparsedScript.parse(SCRIPT, "<?>");
+		final PreparsedScript [] otherScript = new PreparsedScript [2];
+		Thread t = new Thread()
+		{
+			public void run()
+			{
+				ClassLoader cl = ScriptCacheTest.class.getClassLoader();
+				otherScript[0] = cache.get(SCRIPT, cl);
+				cache.put(SCRIPT, cl, threadScript);
+
+				synchronized (otherScript)
+				{
+					otherScript.notifyAll();
+					try
+					{
+						// Wait until the main thread has cleared the cache
+						otherScript.wait(10000);
+					}
+					catch (InterruptedException e)
+					{
+					}
+				}
+				otherScript[1] = cache.get(SCRIPT, cl);
+			}
+		};
+		synchronized (otherScript)
+		{
+			t.start();
+			otherScript.wait(10000);
+
+			// Clearing the cache applies to all threads
+			cache.clear();
+			assertEquals(0, cache.size());
+
+			otherScript.notifyAll();
+		}
+		t.join(10000);
+		assertNull(otherScript[0]);
+		assertNull(otherScript[1]);
+	}
+
+	private void checkEviction()
+		throws Exception
+	{
+		ScriptCache cache = new ScriptCache(3);
+		for (int i = 0; i < 5; ++i)
+		{
+			String script = "x = " + i + ";";
+			cache.put(script, null, PreparsedScript.parse(script, "<?>"));
+			cache.get("x = 0;", null);
+		}
+		assertEquals(3, cache.size());
+
+		// The most recently used script is retained
+		assertNotNull(cache.get("x = 0;", null));
+		assertNull(cache.get("x = 1;", null));
+		assertNull(cache.get("x = 2;", null));
+		assertNotNull(cache.get("x = 4;", null));
+	}
+
+	private void checkWeakClassLoaderKey()
+		throws Exception
+	{
+		ScriptCache cache = new ScriptCache(10);
+		ClassLoader cl = new URLClassLoader(new URL[0], getClass().getClassLoader());
+		cache.put(SCRIPT, cl, PreparsedScript.parse(SCRIPT, "<?>"));
+		assertEquals(1, cache.size());
+
+		WeakReference<ClassLoader> ref = new WeakReference<ClassLoader>(cl);
+		cl = null;
+		for (int i = 0; i < 50 && (ref.get() != null || cache.size() != 0); ++i)
+		{
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertNull(ref.get());
+		assertEquals(0, cache.size());
+	}
+
+	private void checkConcurrentExecution()
+		throws Exception
+	{
+		final ScriptEngineFactoryImpl factory = new ScriptEngineFactoryImpl();
+		final Throwable [] errors = new Throwable [NUMBER_OF_THREADS];
+
+		Thread [] threads = new Thread [NUMBER_OF_THREADS];
+		for (int i = 0; i < NUMBER_OF_THREADS; ++i)
+		{
+			final int index = i;
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						for (int n = 0; n < EXECUTIONS_PER_THREAD; ++n)
+						{
+							ScriptEngine engine = factory.obtainScriptEngine(null);
+							try
+							{
+								assertEquals(RESULT, engine.executeScript(SCRIPT, null, null));
+							}
+							finally
+							{
+								factory.releaseScriptEngine(engine);
+							}
+						}
+						assertEquals(1, factory.getScriptCache().size());
+					}
+					catch (Throwable t)
+					{
+						errors[index] = t;
+					}
+				}
+			};
+		}
+
+		for (int i = 0; i < NUMBER_OF_THREADS; ++i)
+		{
+			threads[i].start();
+		}
+		for (int i = 0; i < NUMBER_OF_THREADS; ++i)
+		{
+			threads[i].join(60000);
+			if (errors[i] != null)
+			{
+				throw new RuntimeException("Script execution in thread " + i + " failed.", errors[i]);
+			}
+		}
+	}
+
+	private void checkModelUpdate()
+	{
+		ScriptEngineFactoryImpl factory = new ScriptEngineFactoryImpl();
+		ScriptEngine engine = factory.obtainScriptEngine(null);
+		assertEquals(RESULT, engine.executeScript(SCRIPT, null, null));
+		factory.releaseScriptEngine(engine);
+		assertEquals(1, factory.getScriptCache().size());
+
+		factory.modelUpdated(null, 0);
+		assertEquals(0, factory.getScriptCache().size());
+
+		engine = factory.obtainScriptEngine(null);
+		assertEquals(RESULT, engine.executeScript(SCRIPT, null, null));
+		factory.releaseScriptEngine(engine);
+		assertEquals(1, factory.getScriptCache().size());
+
+		factory.requestModelReset();
+		assertEquals(0, factory.getScriptCache().size());
+	}
+}
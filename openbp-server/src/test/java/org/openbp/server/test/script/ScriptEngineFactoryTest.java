@@ -0,0 +1,202 @@
+/*
+ *   Copyright 2010 skynamics AG
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.openbp.server.test.script;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openbp.core.engine.EngineException;
+import org.openbp.core.model.ModelQualifier;
+import org.openbp.core.model.item.ItemTypes;
+import org.openbp.core.model.item.process.NodeSocket;
+import org.openbp.core.model.item.process.ProcessItem;
+import org.openbp.server.context.TokenContext;
+import org.openbp.server.engine.script.ScriptEngine;
+import org.openbp.server.engine.script.ScriptEngineFactoryImpl;
+import org.openbp.server.test.base.TestCaseBase;
+
+/**
+ * Test case for the script engine pool.
+ * Makes sure that the number of script engines is bounded, that the engines reserved by threads are discarded on shutdown
+ * and that the socket parameters are removed from the script namespace after the execution of a socket script.
+ *
+ * @author Heiko Erhardt
+ */
+public class ScriptEngineFactoryTest extends TestCaseBase
+{
+	public ScriptEngineFactoryTest()
+	{
+	}
+
+	public void performTest()
+		throws Exception
+	{
+		checkMaxEngines();
+		checkTakeOverThreadEngine();
+		checkShutdown();
+		checkSocketVariables();
+	}
+
+	private void checkMaxEngines()
+		throws Exception
+	{
+		final ScriptEngineFactoryImpl factory = new ScriptEngineFactoryImpl();
+		factory.setMaxEngines(2);
+		factory.setMaxWaitTime(100L);
+		factory.setThreadAffine(false);
+
+		ScriptEngine engine1 = factory.obtainScriptEngine(null);
+		ScriptEngine engine2 = factory.obtainScriptEngine(null);
+		assertEquals(2, factory.getEngineCount());
+
+		// The limit has been reached
+		try
+		{
+			factory.obtainScriptEngine(null);
+			fail("Obtained more than the maximum number of script engines.");
+		}
+		catch (EngineException e)
+		{
+			// Expected
+		}
+
+		// A waiting thread receives the engine that is released
+		factory.setMaxWaitTime(10000L);
+		final ScriptEngine [] obtained = new ScriptEngine [1];
+		Thread t = new Thread()
+		{
+			public void run()
+			{
+				obtained[0] = factory.obtainScriptEngine(null);
+			}
+		};
+		t.start();
+		Thread.sleep(200L);
+		assertTrue(t.isAlive());
+		factory.releaseScriptEngine(engine1);
+		t.join(10000L);
+		assertSame(engine1, obtained[0]);
+		assertEquals(2, factory.getEngineCount());
+
+		factory.releaseScriptEngine(engine2);
+		factory.releaseScriptEngine(obtained[0]);
+		assertEquals(2, factory.getEngineCount());
+	}
+
+	private void checkTakeOverThreadEngine()
+		throws Exception
+	{
+		final ScriptEngineFactoryImpl factory = new ScriptEngineFactoryImpl();
+		factory.setMaxEngines(1);
+		factory.setMaxWaitTime(100L);
+
+		// The engine remains reserved for the thread
+		final ScriptEngine threadEngine = obtainAndReleaseInOtherThread(factory);
+		assertEquals(1, factory.getEngineCount());
+
+		// Another thread takes it over instead of exceeding the limit
+		ScriptEngine engine = factory.obtainScriptEngine(null);
+		assertSame(threadEngine, engine);
+		assertEquals(1, factory.getEngineCount());
+		factory.releaseScriptEngine(engine);
+	}
+
+	private void checkShutdown()
+		throws Exception
+	{
+		final ScriptEngineFactoryImpl factory = new ScriptEngineFactoryImpl();
+		ScriptEngine engine = factory.obtainScriptEngine(null);
+		factory.releaseScriptEngine(engine);
+
+		// The engines reserved by other threads are discarded as well
+		final CountDownLatch reserved = new CountDownLatch(1);
+		final CountDownLatch shutdown = new CountDownLatch(1);
+		Thread t = new Thread()
+		{
+			public void run()
+			{
+				factory.releaseScriptEngine(factory.obtainScriptEngine(null));
+				reserved.countDown();
+				try
+				{
+					shutdown.await(10L, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+		};
+		t.start();
+		reserved.await(10L, TimeUnit.SECONDS);
+		assertEquals(2, factory.getEngineCount());
+
+		factory.shutdown();
+		assertEquals(0, factory.getEngineCount());
+		shutdown.countDown();
+		t.join(10000L);
+
+		ScriptEngine newEngine = factory.obtainScriptEngine(null);
+		assertNotSame(engine, newEngine);
+		assertEquals(1, factory.getEngineCount());
+		factory.releaseScriptEngine(newEngine);
+	}
+
+	private void checkSocketVariables()
+	{
+		ModelQualifier processQualifier = new ModelQualifier(SIMPLE_SIGNAL_SET_PROCESS_STARTREF);
+		processQualifier.setItemType(ItemTypes.PROCESS);
+		processQualifier.setObjectPath(null);
+		ProcessItem process = (ProcessItem) getProcessServer().getModelMgr().getItemByQualifier(processQualifier, true);
+		NodeSocket socket = process.getNodeByName("SetSignal").getDefaultEntrySocket();
+
+		TokenContext token = createToken();
+		ScriptEngineFactoryImpl factory = new ScriptEngineFactoryImpl();
+		ScriptEngine engine = factory.obtainScriptEngine(token);
+		try
+		{
+			engine.prepareNodeSocketExecution(socket);
+			engine.executeScript("SignalValue = \"Modified\";", null, null);
+			assertEquals(Boolean.FALSE, engine.executeScript("SignalValue == void", null, null));
+			engine.finishNodeSocketExecution(socket);
+
+			// The value has been transferred to the token and the parameter has been removed from the script namespace
+			assertEquals("Modified", token.getParamValue(socket.getParamByName("SignalValue").getContextName()));
+			assertEquals(Boolean.TRUE, engine.executeScript("SignalValue == void", null, null));
+			assertEquals(Boolean.TRUE, engine.executeScript("SignalId == void", null, null));
+		}
+		finally
+		{
+			factory.releaseScriptEngine(engine);
+		}
+	}
+
+	private static ScriptEngine obtainAndReleaseInOtherThread(final ScriptEngineFactoryImpl factory)
+		throws Exception
+	{
+		final ScriptEngine [] engine = new ScriptEngine [1];
+		Thread t = new Thread()
+		{
+			public void run()
+			{
+				engine[0] = factory.obtainScriptEngine(null);
+				factory.releaseScriptEngine(engine[0]);
+			}
+		};
+		t.start();
+		t.join(10000L);
+		return engine[0];
+	}
+}